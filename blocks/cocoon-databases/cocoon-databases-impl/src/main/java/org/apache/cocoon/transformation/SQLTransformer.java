@@ -95,6 +95,8 @@ import org.xml.sax.helpers.AttributesImpl;
  *   &lt;map:parameter name="namespace-uri" value="http://apache.org/cocoon/SQL/2.0"/&gt;
  *   &lt;map:parameter name="namespace-prefix" value="sql"/&gt;
  *   &lt;map:parameter name="clob-encoding" value=""/&gt;
+ *   &lt;map:parameter name="streaming" value="false"/&gt;
+ *   &lt;map:parameter name="fetch-size" value="0"/&gt;
  * &lt;/map:transform&gt;
  * </pre>
  * </p>
@@ -102,7 +104,7 @@ import org.xml.sax.helpers.AttributesImpl;
  * <p>
  * The following DTD is valid:
  * <code>
- * &lt;!ENTITY % param "(own-connection?,(use-connection|(dburl,username,password))?,show-nr-or-rows?,doc-element?,row-element?,namespace-uri?,namespace-prefix?,clob-encoding?)"&gt;<br>
+ * &lt;!ENTITY % param "(own-connection?,(use-connection|(dburl,username,password))?,show-nr-or-rows?,doc-element?,row-element?,namespace-uri?,namespace-prefix?,clob-encoding?,streaming?,fetch-size?)"&gt;<br>
  * &lt;!ELEMENT execute-query (query,(in-parameter|out-parameter)*,execute-query?, %param;)&gt;<br>
  * &lt;!ELEMENT own-connection (#PCDATA)&gt;<br>
  * &lt;!ELEMENT use-connection (#PCDATA)&gt;<br>
@@ -140,6 +142,22 @@ import org.xml.sax.helpers.AttributesImpl;
  * </p>
  *
  * <p>
+ * By default, queries use scroll insensitive result sets so that the number of rows
+ * can be determined before the rows are streamed. Many drivers read the complete result
+ * into memory to provide this. With the <code>streaming</code> parameter set to true,
+ * forward only result sets are used instead and the rows are processed as the driver
+ * fetches them, <code>fetch-size</code> rows at a time. The number of rows is not known
+ * in advance in this mode, so <code>show-nr-of-rows</code> is ignored.
+ * </p>
+ *
+ * <p>
+ * Prepared statements are kept for the duration of the request, per connection and
+ * query text, so that nested queries executed for each row of their parent are only
+ * prepared once. This can be disabled with the <code>cache-statements</code>
+ * configuration element.
+ * </p>
+ *
+ * <p>
  * TODO: Support inserting of the XML data into the database without need to escape it.
  *       Can be implemented by introducing new &lt;sql:xml/&gt; tag to indicate that
  *       startSerializedXMLRecording(...) should be used.
@@ -189,6 +207,8 @@ public class SQLTransformer extends AbstractSAXTransformer {
     public static final String MAGIC_STORED_PROCEDURE_ATTRIBUTE = "isstoredprocedure";
     public static final String MAGIC_UPDATE_ATTRIBUTE = "isupdate";
     public static final String CLOB_ENCODING = "clob-encoding";
+    public static final String MAGIC_STREAMING = "streaming";
+    public static final String MAGIC_FETCH_SIZE = "fetch-size";
 
     // The states we are allowed to be in
     protected static final int STATE_OUTSIDE = 0;
@@ -214,6 +234,9 @@ public class SQLTransformer extends AbstractSAXTransformer {
     /** How long wait between connection attempts? (default is 5000 ms) */
     protected int connectWaittime;
 
+    /** Are prepared statements kept for the request? (default is on) */
+    protected boolean cacheStatements;
+
     //
     // State
     //
@@ -233,6 +256,9 @@ public class SQLTransformer extends AbstractSAXTransformer {
     // Used to parse XML from database.
     protected SAXParser parser;
 
+    /** The prepared statements of this request: a map of statements by query for each connection */
+    protected final Map statements = new HashMap();
+
     /**
      * Constructor
      */
@@ -269,6 +295,7 @@ public class SQLTransformer extends AbstractSAXTransformer {
      * <li>old-driver</li>
      * <li>connect-attempts</li>
      * <li>connect-waittime</li>
+     * <li>cache-statements</li>
      * </ul>
      */
     public void configure(Configuration conf) throws ConfigurationException {
@@ -281,6 +308,7 @@ public class SQLTransformer extends AbstractSAXTransformer {
 
         this.connectAttempts = conf.getChild("connect-attempts").getValueAsInteger(5);
         this.connectWaittime = conf.getChild("connect-waittime").getValueAsInteger(5000);
+        this.cacheStatements = conf.getChild("cache-statements").getValueAsBoolean(true);
     }
 
     /**
@@ -301,6 +329,7 @@ public class SQLTransformer extends AbstractSAXTransformer {
      */
     public void recycle() {
         this.query = null;
+        closeStatements(null);
         try {
             // Close the connection used by all top level queries
             if (this.conn != null) {
@@ -816,6 +845,81 @@ public class SQLTransformer extends AbstractSAXTransformer {
         return result;
     }
 
+    /**
+     * Return the cached statement for the given query, or prepare a new one.
+     * A cached statement is handed out to one query at a time, a query asking
+     * for a statement which is in use gets a new statement which is not cached.
+     * A reused statement has its parameters cleared and the fetch size it was
+     * prepared with.
+     */
+    PreparedStatement prepare(Connection conn, String query, int resultSetType)
+    throws SQLException {
+        if (!this.cacheStatements) {
+            return conn.prepareStatement(query, resultSetType, ResultSet.CONCUR_READ_ONLY);
+        }
+
+        Map cache = (Map) this.statements.get(conn);
+        if (cache == null) {
+            cache = new HashMap();
+            this.statements.put(conn, cache);
+        }
+        final String key = resultSetType + ":" + query;
+        CachedStatement cached = (CachedStatement) cache.get(key);
+        if (cached == null) {
+            cached = new CachedStatement(conn.prepareStatement(query, resultSetType, ResultSet.CONCUR_READ_ONLY));
+            cache.put(key, cached);
+        } else if (cached.inUse) {
+            return conn.prepareStatement(query, resultSetType, ResultSet.CONCUR_READ_ONLY);
+        } else {
+            cached.statement.clearParameters();
+            cached.statement.setFetchSize(cached.fetchSize);
+        }
+        cached.inUse = true;
+        return cached.statement;
+    }
+
+    /**
+     * Hand a statement back. Returns false if the statement is not cached
+     * and has to be closed by the caller.
+     */
+    boolean release(Connection conn, PreparedStatement statement) {
+        final Map cache = (Map) this.statements.get(conn);
+        if (cache != null) {
+            for (Iterator i = cache.values().iterator(); i.hasNext();) {
+                final CachedStatement cached = (CachedStatement) i.next();
+                if (cached.statement == statement) {
+                    cached.inUse = false;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Close the cached statements of the given connection, or of all
+     * connections if it is null.
+     */
+    private void closeStatements(Connection conn) {
+        final List caches = new ArrayList();
+        if (conn == null) {
+            caches.addAll(this.statements.values());
+            this.statements.clear();
+        } else if (this.statements.containsKey(conn)) {
+            caches.add(this.statements.remove(conn));
+        }
+
+        for (Iterator i = caches.iterator(); i.hasNext();) {
+            for (Iterator j = ((Map) i.next()).values().iterator(); j.hasNext();) {
+                try {
+                    ((CachedStatement) j.next()).statement.close();
+                } catch (SQLException e) {
+                    getLogger().info("Unable to close the statement.", e);
+                }
+            }
+        }
+    }
+
     /**
      * Attempt to parse string value
      */
@@ -905,6 +1009,12 @@ public class SQLTransformer extends AbstractSAXTransformer {
         /** Encoding we use for CLOB field */
         protected String clobEncoding;
 
+        /** Use a forward only result set? */
+        protected boolean streaming;
+
+        /** Number of rows the driver fetches at once (0 for the driver default) */
+        protected int fetchSize;
+
         //
         // Query State
         //
@@ -930,6 +1040,12 @@ public class SQLTransformer extends AbstractSAXTransformer {
         /** And the results' metadata */
         protected ResultSetMetaData md;
 
+        /** The element names of the result columns, starting at index 1 */
+        protected String[] columnNames;
+
+        /** The SQL types of the result columns, starting at index 1 */
+        protected int[] columnTypes;
+
         /** If it is an update/etc, the return value (num rows modified) */
         protected int rv = -1;
 
@@ -1112,6 +1228,13 @@ public class SQLTransformer extends AbstractSAXTransformer {
             if (this.clobEncoding.length() == 0) {
                 this.clobEncoding = null;
             }
+            this.streaming = this.params.getParameterAsBoolean(SQLTransformer.MAGIC_STREAMING, false);
+            this.fetchSize = this.params.getParameterAsInteger(SQLTransformer.MAGIC_FETCH_SIZE, 0);
+            if (this.streaming && this.showNrOfRows) {
+                // Counting would read the whole result before the first row
+                getLogger().debug("Ignoring show-nr-of-rows for streaming query");
+                this.showNrOfRows = false;
+            }
 
             // Start prefix mapping for output namespace, only if it's not mapped yet
             final String prefix = SQLTransformer.this.findPrefixMapping(this.outUri);
@@ -1210,41 +1333,57 @@ public class SQLTransformer extends AbstractSAXTransformer {
             if (getLogger().isDebugEnabled()) {
                 getLogger().debug("Executing " + query);
             }
+            final int resultSetType = streaming ? ResultSet.TYPE_FORWARD_ONLY : ResultSet.TYPE_SCROLL_INSENSITIVE;
             if (!isStoredProcedure) {
                 if (oldDriver) {
                     pst = conn.prepareStatement(query);
                 } else {
-                    pst = conn.prepareStatement(query,
-                                                ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                                ResultSet.CONCUR_READ_ONLY);
+                    pst = SQLTransformer.this.prepare(conn, query, resultSetType);
                 }
             } else {
                 if (oldDriver) {
                     cst = conn.prepareCall(query);
                 } else {
                     cst = conn.prepareCall(query,
-                                           ResultSet.TYPE_SCROLL_INSENSITIVE,
+                                           resultSetType,
                                            ResultSet.CONCUR_READ_ONLY);
                 }
                 registerOutParameters(cst);
                 pst = cst;
             }
+            if (fetchSize > 0) {
+                pst.setFetchSize(fetchSize);
+            }
 
             registerInParameters();
             boolean result = pst.execute();
             if (result) {
-                rs = pst.getResultSet();
-                md = rs.getMetaData();
+                setResultSet(pst.getResultSet());
             } else {
                 rv = pst.getUpdateCount();
             }
         }
 
+        /**
+         * Set the current result set and look up its columns.
+         */
+        private void setResultSet(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            this.md = rs.getMetaData();
+            final int n = md.getColumnCount();
+            this.columnNames = new String[n + 1];
+            this.columnTypes = new int[n + 1];
+            for (int i = 1; i <= n; i++) {
+                this.columnNames[i] = getColumnName(md.getColumnName(i));
+                this.columnTypes[i] = md.getColumnType(i);
+            }
+        }
+
         protected int getNrOfRows() throws SQLException {
             int nr = 0;
 
             if (rs != null) {
-                if (oldDriver) {
+                if (oldDriver || streaming) {
                     nr = -1;
                 } else {
                     try {
@@ -1266,7 +1405,10 @@ public class SQLTransformer extends AbstractSAXTransformer {
         }
 
         protected String getColumnValue(ResultSet rs, int i) throws SQLException {
-            final int type = rs.getMetaData().getColumnType(i);
+            return getColumnValue(rs, i, rs.getMetaData().getColumnType(i));
+        }
+
+        private String getColumnValue(ResultSet rs, int i, int type) throws SQLException {
             if (type == java.sql.Types.DOUBLE) {
                 return getStringValue(rs.getBigDecimal(i));
             } else if (type == java.sql.Types.CLOB) {
@@ -1301,8 +1443,7 @@ public class SQLTransformer extends AbstractSAXTransformer {
             }
 
             while (pst.getMoreResults()) {
-                rs = pst.getResultSet();
-                md = rs.getMetaData();
+                setResultSet(pst.getResultSet());
                 if (rs.next()) {
                     // Have next row in next result set
                     return true;
@@ -1327,7 +1468,7 @@ public class SQLTransformer extends AbstractSAXTransformer {
                 rs = null;
             }
 
-            if (pst != null && pst != cst) {
+            if (pst != null && pst != cst && !SQLTransformer.this.release(conn, pst)) {
                 try {
                     pst.close();
                 } catch (SQLException e) {
@@ -1349,6 +1490,7 @@ public class SQLTransformer extends AbstractSAXTransformer {
 
             try {
                 if (ownConn && conn != null) {
+                    SQLTransformer.this.closeStatements(conn);
                     conn.close();
                 }
             } catch (SQLException e) {
@@ -1387,11 +1529,10 @@ public class SQLTransformer extends AbstractSAXTransformer {
                 // Reset rv so next() returns false next time.
                 rv = -1;
             } else {
-                for (int i = 1; i <= md.getColumnCount(); i++) {
-                    String columnName = getColumnName(md.getColumnName(i));
-                    start(columnName, EMPTY_ATTRIBUTES);
-                    serializeData(getColumnValue(rs, i));
-                    end(columnName);
+                for (int i = 1; i < columnNames.length; i++) {
+                    start(columnNames[i], EMPTY_ATTRIBUTES);
+                    serializeData(getColumnValue(rs, i, columnTypes[i]));
+                    end(columnNames[i]);
                 }
             }
         }
@@ -1400,10 +1541,12 @@ public class SQLTransformer extends AbstractSAXTransformer {
             final ResultSetMetaData md = rs.getMetaData();
             final int n = md.getColumnCount();
 
-            // Get column names
+            // Get column names and types
             final String[] columns = new String[n + 1];
+            final int[] types = new int[n + 1];
             for (int i = 1; i <= n; i++) {
                 columns[i] = getColumnName(md.getColumnName(i));
+                types[i] = md.getColumnType(i);
             }
 
             // Process rows
@@ -1411,7 +1554,7 @@ public class SQLTransformer extends AbstractSAXTransformer {
                 start(rowElement, EMPTY_ATTRIBUTES);
                 for (int i = 1; i <= n; i++) {
                     start(columns[i], EMPTY_ATTRIBUTES);
-                    serializeData(getColumnValue(rs, i));
+                    serializeData(getColumnValue(rs, i, types[i]));
                     end(columns[i]);
                 }
                 end(this.rowElement);
@@ -1535,6 +1678,21 @@ public class SQLTransformer extends AbstractSAXTransformer {
         }
     }
 
+    /**
+     * A prepared statement kept for the request.
+     */
+    private static class CachedStatement {
+        protected final PreparedStatement statement;
+        /** The fetch size of the driver, restored when the statement is reused */
+        protected final int fetchSize;
+        protected boolean inUse;
+
+        protected CachedStatement(PreparedStatement statement) throws SQLException {
+            this.statement = statement;
+            this.fetchSize = statement.getFetchSize();
+        }
+    }
+
     private static class AncestorValue {
         protected int level;
         protected String name;
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.transformation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the cache of prepared statements of the
+ * {@link SQLTransformer}.
+ *
+ * @version $Id$
+ */
+public class SQLTransformerTestCase extends TestCase {
+
+    private static final String QUERY = "SELECT * FROM department WHERE id = ?";
+
+    private SQLTransformer transformer;
+    private Connection conn;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.transformer = new SQLTransformer();
+        this.transformer.cacheStatements = true;
+        this.conn = newConnection();
+    }
+
+    public void testReuse() throws Exception {
+        PreparedStatement first = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        first.setInt(1, 1);
+        assertTrue(this.transformer.release(this.conn, first));
+
+        PreparedStatement second = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        assertSame(first, second);
+        assertEquals(1, handler(second).cleared);
+        assertEquals(1, handler(second).prepared);
+    }
+
+    /**
+     * A statement in use, for example by a query nested into itself, is not
+     * handed out a second time.
+     */
+    public void testInUse() throws Exception {
+        PreparedStatement outer = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        PreparedStatement inner = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        assertNotSame(outer, inner);
+        assertFalse("A statement which is not cached must be closed by the caller",
+                    this.transformer.release(this.conn, inner));
+        assertTrue(this.transformer.release(this.conn, outer));
+
+        assertSame(outer, this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY));
+    }
+
+    public void testKey() throws Exception {
+        PreparedStatement forward = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        this.transformer.release(this.conn, forward);
+
+        PreparedStatement scroll = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_SCROLL_INSENSITIVE);
+        assertNotSame(forward, scroll);
+        this.transformer.release(this.conn, scroll);
+
+        PreparedStatement other = this.transformer.prepare(this.conn, "SELECT * FROM employee",
+                                                           ResultSet.TYPE_FORWARD_ONLY);
+        assertNotSame(forward, other);
+        this.transformer.release(this.conn, other);
+
+        Connection otherConn = newConnection();
+        PreparedStatement otherConnection = this.transformer.prepare(otherConn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        assertNotSame(forward, otherConnection);
+        assertFalse(this.transformer.release(this.conn, otherConnection));
+        assertTrue(this.transformer.release(otherConn, otherConnection));
+    }
+
+    /**
+     * The fetch size of one query does not carry over to the next query
+     * reusing the statement.
+     */
+    public void testFetchSize() throws Exception {
+        PreparedStatement first = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        first.setFetchSize(500);
+        this.transformer.release(this.conn, first);
+
+        PreparedStatement second = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        assertSame(first, second);
+        assertEquals(StatementHandler.DEFAULT_FETCH_SIZE, second.getFetchSize());
+    }
+
+    public void testCacheDisabled() throws Exception {
+        this.transformer.cacheStatements = false;
+        PreparedStatement first = this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY);
+        assertFalse(this.transformer.release(this.conn, first));
+        assertNotSame(first, this.transformer.prepare(this.conn, QUERY, ResultSet.TYPE_FORWARD_ONLY));
+    }
+
+    private static StatementHandler handler(PreparedStatement statement) {
+        return (StatementHandler) Proxy.getInvocationHandler(statement);
+    }
+
+    /**
+     * Create a connection which prepares a new {@link StatementHandler}
+     * statement each time.
+     */
+    private static Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class[] { Connection.class },
+                new InvocationHandler() {
+                    private int prepared;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("prepareStatement".equals(method.getName())) {
+                            return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                    new Class[] { PreparedStatement.class },
+                                    new StatementHandler(++this.prepared));
+                        }
+                        if ("hashCode".equals(method.getName())) {
+                            return new Integer(System.identityHashCode(proxy));
+                        }
+                        if ("equals".equals(method.getName())) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * A prepared statement which records the calls of the statement cache.
+     */
+    private static class StatementHandler implements InvocationHandler {
+
+        static final int DEFAULT_FETCH_SIZE = 10;
+
+        final int prepared;
+        int fetchSize = DEFAULT_FETCH_SIZE;
+        int cleared;
+
+        StatementHandler(int prepared) {
+            this.prepared = prepared;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getFetchSize".equals(name)) {
+                return new Integer(this.fetchSize);
+            }
+            if ("setFetchSize".equals(name)) {
+                this.fetchSize = ((Integer) args[0]).intValue();
+                return null;
+            }
+            if ("clearParameters".equals(name)) {
+                this.cleared++;
+                return null;
+            }
+            if ("setInt".equals(name) || "close".equals(name)) {
+                return null;
+            }
+            if ("hashCode".equals(name)) {
+                return new Integer(System.identityHashCode(proxy));
+            }
+            if ("equals".equals(name)) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
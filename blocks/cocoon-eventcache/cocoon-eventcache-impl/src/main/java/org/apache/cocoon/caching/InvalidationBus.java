@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+/**
+ * An <code>InvalidationBus</code> distributes cache <code>Event</code>s to
+ * the <code>EventAware</code> caches of all nodes of a cluster. Events sent
+ * to the bus are processed by the local cache right away, and are sent to
+ * the other nodes shortly after. Being <code>EventAware</code> itself, the
+ * bus can be used in place of the local cache by all components sending
+ * events, for example the <code>CacheEventAction</code>.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface InvalidationBus extends EventAware {
+
+    /**
+     * The Avalon ROLE for this component
+     */
+    String ROLE = InvalidationBus.class.getName();
+
+    /**
+     * Send all events not yet sent to the other nodes.
+     */
+    void flush();
+}
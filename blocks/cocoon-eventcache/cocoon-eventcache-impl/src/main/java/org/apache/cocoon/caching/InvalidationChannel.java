@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.io.IOException;
+
+/**
+ * The transport of an <code>InvalidationBus</code>. A channel sends packets
+ * to all nodes of the cluster, and hands the packets it receives to its
+ * <code>Receiver</code>. Packets may be lost, duplicated or reordered; a
+ * node may or may not receive the packets it sent itself.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface InvalidationChannel {
+
+    /**
+     * Set the receiver of incoming packets.
+     *
+     * @param receiver receiver
+     */
+    void setReceiver(Receiver receiver);
+
+    /**
+     * Send a packet to all nodes.
+     *
+     * @param packet packet
+     * @throws IOException if the packet could not be sent
+     */
+    void send(byte[] packet) throws IOException;
+
+    /**
+     * The receiver of incoming packets.
+     */
+    interface Receiver {
+
+        /**
+         * Handle an incoming packet.
+         *
+         * @param packet packet
+         */
+        void receive(byte[] packet);
+    }
+}
@@ -0,0 +1,648 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.cocoon.caching.Cache;
+import org.apache.cocoon.caching.EventAware;
+import org.apache.cocoon.caching.InvalidationBus;
+import org.apache.cocoon.caching.InvalidationChannel;
+import org.apache.cocoon.caching.validity.Event;
+import org.apache.cocoon.caching.validity.NameValueEvent;
+import org.apache.cocoon.caching.validity.NamedEvent;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.util.AbstractLogEnabled;
+
+/**
+ * The default <code>InvalidationBus</code>, sending events over a pluggable
+ * {@link InvalidationChannel}.
+ *
+ * <p>Events are collected for <code>batchInterval</code> milliseconds and sent
+ * in batches; an event sent several times within the interval is only sent
+ * once. Every batch carries the id of the sending node and a sequence number.
+ * A receiver which detects a gap in the sequence numbers asks the sender to
+ * send the missing batches again, which the sender can do for its last
+ * <code>historySize</code> batches. Heartbeats carrying the last sequence
+ * number reveal lost batches at the end of a sequence. If missing batches
+ * can't be sent again, or are still missing after
+ * <code>maxMissedHeartbeats</code> heartbeats, the receiver clears its
+ * cache. Events are thus delivered at least once, or the cache is
+ * cleared.</p>
+ *
+ * <p>Only events of the classes listed in <code>eventClasses</code> are
+ * accepted from other nodes. Any other class found in a batch is rejected
+ * before it is loaded, and the cache is cleared instead of processing the
+ * event.</p>
+ *
+ * <p>Configuration:
+ * <ul>
+ *  <li><b>cache</b>: The local <code>EventAware</code> cache</li>
+ *  <li><b>channel</b>: The {@link InvalidationChannel}</li>
+ *  <li><b>batchInterval</b>: Milliseconds events are collected before they
+ *      are sent (Default: 100)</li>
+ *  <li><b>eventClasses</b>: Names of the classes allowed in received
+ *      events: the events, their super classes up to <code>Event</code> and
+ *      the classes of their fields (Default: NamedEvent, NameValueEvent)</li>
+ *  <li><b>heartbeatInterval</b>: Milliseconds between heartbeats (Default: 5000)</li>
+ *  <li><b>maxPacketSize</b>: Maximum size of a batch in bytes (Default: 8192)</li>
+ *  <li><b>historySize</b>: Number of batches kept to be sent again (Default: 1000)</li>
+ *  <li><b>maxMissedHeartbeats</b>: Number of heartbeats after which missing
+ *      batches are given up (Default: 3)</li>
+ *  <li><b>runnableManager</b>: Runs the batches and heartbeats. Without it
+ *      events are sent right away and no heartbeats are sent.</li>
+ * </ul></p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class DefaultInvalidationBus extends AbstractLogEnabled
+                                    implements InvalidationBus, InvalidationChannel.Receiver, Runnable {
+
+    private static final int BATCH_INTERVAL = 100;
+    private static final int HEARTBEAT_INTERVAL = 5000;
+    private static final int MAX_PACKET_SIZE = 8192;
+    private static final int HISTORY_SIZE = 1000;
+    private static final int MAX_MISSED_HEARTBEATS = 3;
+    private static final String THREAD_POOL = "daemon";
+
+    private static final int MAGIC = 0x43494231;
+
+    private static final byte PACKET_BATCH = 1;
+    private static final byte PACKET_HEARTBEAT = 2;
+    private static final byte PACKET_RESEND = 3;
+    private static final byte PACKET_GONE = 4;
+
+    private EventAware cache;
+    private InvalidationChannel channel;
+    private RunnableManager runnableManager;
+    private String threadPool = THREAD_POOL;
+    private int batchInterval = BATCH_INTERVAL;
+    private int heartbeatInterval = HEARTBEAT_INTERVAL;
+    private int maxPacketSize = MAX_PACKET_SIZE;
+    private int historySize = HISTORY_SIZE;
+    private int maxMissedHeartbeats = MAX_MISSED_HEARTBEATS;
+
+    /** The names of the classes which may be deserialized. */
+    private Set eventClasses = new HashSet(Arrays.asList(new String[] {
+            Event.class.getName(), NamedEvent.class.getName(), NameValueEvent.class.getName() }));
+
+    /** Identifies this node, a restarted node is a new node. */
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /** The events not yet sent, in order. */
+    private final Set pending = new LinkedHashSet();
+
+    /** Guards the sequence and the history. */
+    private final Object sendLock = new Object();
+
+    /** The sequence number of the last batch sent. */
+    private long sequence;
+
+    /** The last batches sent, by sequence number. */
+    private final LinkedHashMap history = new LinkedHashMap();
+
+    /** The {@link Sender} state of each node heard of, by node id. */
+    private final Map senders = new HashMap();
+
+    private long lastHeartbeat;
+
+    /**
+     * Start receiving and sending.
+     */
+    public void init() {
+        if (this.cache == null || this.channel == null) {
+            throw new IllegalStateException("DefaultInvalidationBus needs a cache and a channel");
+        }
+        this.channel.setReceiver(this);
+        if (this.runnableManager != null && this.batchInterval > 0) {
+            this.runnableManager.execute(this.threadPool, this, this.batchInterval, this.batchInterval);
+        }
+    }
+
+    /**
+     * Stop sending, after sending the pending events.
+     */
+    public void destroy() {
+        if (this.runnableManager != null) {
+            this.runnableManager.remove(this);
+        }
+        flush();
+        this.channel.setReceiver(null);
+    }
+
+    /**
+     * Process the event in the local cache, and send it to the other nodes.
+     *
+     * @see org.apache.cocoon.caching.EventAware#processEvent(org.apache.cocoon.caching.validity.Event)
+     */
+    public void processEvent(Event e) {
+        if (e == null) return;
+        this.cache.processEvent(e);
+        synchronized (this.pending) {
+            this.pending.add(e);
+        }
+        if (this.runnableManager == null || this.batchInterval <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the pending events, and a heartbeat if it is due.
+     */
+    public void run() {
+        flush();
+        final long now = System.currentTimeMillis();
+        if (now - this.lastHeartbeat >= this.heartbeatInterval) {
+            this.lastHeartbeat = now;
+            heartbeat();
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.InvalidationBus#flush()
+     */
+    public void flush() {
+        final Event[] events;
+        synchronized (this.pending) {
+            if (this.pending.isEmpty()) {
+                return;
+            }
+            events = (Event[]) this.pending.toArray(new Event[this.pending.size()]);
+            this.pending.clear();
+        }
+
+        // Split the events into batches of at most maxPacketSize bytes
+        List batch = new ArrayList();
+        int size = 0;
+        for (int i = 0; i < events.length; i++) {
+            final byte[] data;
+            try {
+                data = serialize(events[i]);
+            } catch (IOException e) {
+                getLogger().error("Unable to serialize event " + events[i], e);
+                continue;
+            }
+            if (!batch.isEmpty() && size + data.length + 4 > this.maxPacketSize - 128) {
+                sendBatch(batch);
+                batch.clear();
+                size = 0;
+            }
+            batch.add(data);
+            size += data.length + 4;
+        }
+        if (!batch.isEmpty()) {
+            sendBatch(batch);
+        }
+    }
+
+    private void sendBatch(List events) {
+        final byte[] packet;
+        synchronized (this.sendLock) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.maxPacketSize);
+                DataOutputStream out = header(bytes, PACKET_BATCH);
+                out.writeLong(++this.sequence);
+                out.writeInt(events.size());
+                for (Iterator i = events.iterator(); i.hasNext();) {
+                    byte[] data = (byte[]) i.next();
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+                out.flush();
+                packet = bytes.toByteArray();
+            } catch (IOException e) {
+                // can't happen with a byte array
+                throw new RuntimeException(e);
+            }
+            this.history.put(new Long(this.sequence), packet);
+            if (this.history.size() > this.historySize) {
+                Iterator eldest = this.history.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        send(packet);
+    }
+
+    private void heartbeat() {
+        final long last;
+        synchronized (this.sendLock) {
+            last = this.sequence;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = header(bytes, PACKET_HEARTBEAT);
+            out.writeLong(last);
+            out.flush();
+            send(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // Give up batches missing for too long, forget silent nodes
+        final long now = System.currentTimeMillis();
+        final long timeout = (long) this.heartbeatInterval * (this.maxMissedHeartbeats + 1);
+        synchronized (this.senders) {
+            for (Iterator i = this.senders.values().iterator(); i.hasNext();) {
+                Sender sender = (Sender) i.next();
+                if (now - sender.lastHeard > timeout * 4) {
+                    i.remove();
+                    continue;
+                }
+                if (!sender.missing.isEmpty() && ++sender.missedHeartbeats > this.maxMissedHeartbeats) {
+                    getLogger().warn("Batches " + sender.missing + " of node " + sender.nodeId +
+                                     " are lost, clearing the cache.");
+                    sender.missing.clear();
+                    sender.missedHeartbeats = 0;
+                    clearCache();
+                }
+            }
+        }
+    }
+
+    private void send(byte[] packet) {
+        try {
+            this.channel.send(packet);
+        } catch (IOException e) {
+            getLogger().error("Unable to send invalidation packet", e);
+        }
+    }
+
+    /**
+     * Handle a packet from the channel.
+     *
+     * @see org.apache.cocoon.caching.InvalidationChannel.Receiver#receive(byte[])
+     */
+    public void receive(byte[] packet) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet));
+            if (in.readInt() != MAGIC) {
+                getLogger().warn("Ignoring unknown invalidation packet");
+                return;
+            }
+            final byte type = in.readByte();
+            final String from = in.readUTF();
+            if (from.equals(this.nodeId)) {
+                return;
+            }
+            switch (type) {
+                case PACKET_BATCH:
+                    receiveBatch(from, in);
+                    break;
+                case PACKET_HEARTBEAT:
+                    receiveSequence(from, in.readLong(), false);
+                    break;
+                case PACKET_RESEND:
+                    if (in.readUTF().equals(this.nodeId)) {
+                        resend(from, in.readLong(), in.readLong());
+                    }
+                    break;
+                case PACKET_GONE:
+                    if (in.readUTF().equals(this.nodeId)) {
+                        gone(from, in.readLong(), in.readLong());
+                    }
+                    break;
+                default:
+                    getLogger().warn("Ignoring invalidation packet of unknown type " + type);
+            }
+        } catch (Exception e) {
+            getLogger().warn("Unable to read invalidation packet", e);
+        }
+    }
+
+    private void receiveBatch(String from, DataInputStream in) throws IOException, ClassNotFoundException {
+        final long seq = in.readLong();
+        if (!receiveSequence(from, seq, true)) {
+            // duplicate
+            return;
+        }
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            final Event e;
+            try {
+                e = (Event) new EventInputStream(new ByteArrayInputStream(data)).readObject();
+            } catch (InvalidClassException ice) {
+                getLogger().warn("Rejected event from node " + from + ", clearing the cache: " +
+                                 ice.getMessage());
+                clearCache();
+                continue;
+            }
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Received " + e + " from node " + from);
+            }
+            this.cache.processEvent(e);
+        }
+    }
+
+    /**
+     * Track the sequence numbers of a node, and ask for missing batches.
+     *
+     * @param batch if the sequence number is the one of a batch, not of a
+     *              heartbeat
+     * @return true if the batch has not been received before
+     */
+    private boolean receiveSequence(String from, long seq, boolean batch) {
+        long first = 0;
+        long last = -1;
+        boolean clear = false;
+        boolean isNew = false;
+        synchronized (this.senders) {
+            Sender sender = (Sender) this.senders.get(from);
+            if (sender == null) {
+                // the batches sent before we heard of the node are of no interest
+                sender = new Sender(from, batch ? seq - 1 : seq);
+                this.senders.put(from, sender);
+            }
+            sender.lastHeard = System.currentTimeMillis();
+            if (seq > sender.last) {
+                if (seq - sender.last - 1 > this.historySize) {
+                    clear = true;
+                } else if (seq - sender.last > (batch ? 1 : 0)) {
+                    first = sender.last + 1;
+                    last = batch ? seq - 1 : seq;
+                    for (long i = first; i <= last; i++) {
+                        sender.missing.add(new Long(i));
+                    }
+                }
+                sender.last = seq;
+                isNew = batch;
+            } else if (batch) {
+                isNew = sender.missing.remove(new Long(seq));
+            }
+            if (sender.missing.isEmpty()) {
+                sender.missedHeartbeats = 0;
+            } else if (!batch) {
+                // ask again for all batches still missing
+                first = ((Long) sender.missing.first()).longValue();
+                last = ((Long) sender.missing.last()).longValue();
+            }
+        }
+
+        if (clear) {
+            getLogger().warn("Too many batches of node " + from + " are lost, clearing the cache.");
+            clearCache();
+        } else if (last >= first && last >= 0) {
+            if (getLogger().isInfoEnabled()) {
+                getLogger().info("Asking node " + from + " to send batches " + first + " to " + last + " again.");
+            }
+            request(PACKET_RESEND, from, first, last);
+        }
+        return isNew;
+    }
+
+    /**
+     * Send the requested batches again, and tell which are no longer there.
+     * The range is clamped to the batches sent so far, so a bogus request
+     * can't keep us busy.
+     */
+    private void resend(String to, long first, long last) {
+        List packets = new ArrayList();
+        long gone = -1;
+        synchronized (this.sendLock) {
+            // batches after the current one have never been sent
+            final long newest = Math.min(last, this.sequence);
+            // the history holds the batches from the oldest one up to the current one
+            final long oldest = this.history.isEmpty() ? this.sequence + 1
+                                : ((Long) this.history.keySet().iterator().next()).longValue();
+            if (first < oldest && first <= newest) {
+                gone = Math.min(newest, oldest - 1);
+            }
+            for (long i = Math.max(first, oldest); i <= newest; i++) {
+                packets.add(this.history.get(new Long(i)));
+            }
+        }
+        if (gone >= 0) {
+            request(PACKET_GONE, to, first, gone);
+        }
+        for (Iterator i = packets.iterator(); i.hasNext();) {
+            send((byte[]) i.next());
+        }
+    }
+
+    /**
+     * Batches of another node are lost for good.
+     */
+    private void gone(String from, long first, long last) {
+        synchronized (this.senders) {
+            Sender sender = (Sender) this.senders.get(from);
+            if (sender != null) {
+                sender.missing.subSet(new Long(first), new Long(last + 1)).clear();
+            }
+        }
+        getLogger().warn("Batches " + first + " to " + last + " of node " + from +
+                         " are lost, clearing the cache.");
+        clearCache();
+    }
+
+    private void request(byte type, String to, long first, long last) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = header(bytes, type);
+            out.writeUTF(to);
+            out.writeLong(first);
+            out.writeLong(last);
+            out.flush();
+            send(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void clearCache() {
+        if (this.cache instanceof Cache) {
+            ((Cache) this.cache).clear();
+        } else {
+            getLogger().error("Unable to clear " + this.cache + ", stale content may be served.");
+        }
+    }
+
+    private DataOutputStream header(ByteArrayOutputStream bytes, byte type) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(type);
+        out.writeUTF(this.nodeId);
+        return out;
+    }
+
+    private static byte[] serialize(Event e) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(e);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes only the allowed event classes, so that no other class of
+     * the classpath is instantiated by a packet received from the network.
+     */
+    private final class EventInputStream extends ObjectInputStream {
+
+        EventInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!eventClasses.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "not an allowed event class");
+            }
+            return super.resolveClass(desc);
+        }
+
+        protected Class resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed events");
+        }
+    }
+
+    /**
+     * What is known about another node.
+     */
+    private static final class Sender {
+        final String nodeId;
+        long last;
+        long lastHeard;
+        int missedHeartbeats;
+        final SortedSet missing = new TreeSet();
+
+        Sender(String nodeId, long last) {
+            this.nodeId = nodeId;
+            this.last = last;
+        }
+    }
+
+    //
+    // Configuration
+    //
+
+    /**
+     * @return the id of this node
+     */
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @param cache the local cache
+     */
+    public void setCache(EventAware cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Names of the classes allowed in received events, in addition to
+     * <code>Event</code> itself. (Default: NamedEvent, NameValueEvent)
+     *
+     * @param eventClasses
+     */
+    public void setEventClasses(List eventClasses) {
+        this.eventClasses = new HashSet(eventClasses);
+        this.eventClasses.add(Event.class.getName());
+    }
+
+    /**
+     * @param channel the channel to send and receive events
+     */
+    public void setChannel(InvalidationChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param runnableManager
+     */
+    public void setRunnableManager(RunnableManager runnableManager) {
+        this.runnableManager = runnableManager;
+    }
+
+    /**
+     * Name of the thread pool batches are sent in. (Default: daemon)
+     *
+     * @param threadPool
+     */
+    public void setThreadPool(String threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Milliseconds events are collected before they are sent. (Default: 100)
+     *
+     * @param batchInterval
+     */
+    public void setBatchInterval(int batchInterval) {
+        this.batchInterval = batchInterval;
+    }
+
+    /**
+     * Milliseconds between heartbeats. (Default: 5000)
+     *
+     * @param heartbeatInterval
+     */
+    public void setHeartbeatInterval(int heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Maximum size of a batch in bytes. (Default: 8192)
+     *
+     * @param maxPacketSize
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Number of batches kept to be sent again. (Default: 1000)
+     *
+     * @param historySize
+     */
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    /**
+     * Number of heartbeats after which missing batches are given up. (Default: 3)
+     *
+     * @param maxMissedHeartbeats
+     */
+    public void setMaxMissedHeartbeats(int maxMissedHeartbeats) {
+        this.maxMissedHeartbeats = maxMissedHeartbeats;
+    }
+}
@@ -0,0 +1,749 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.cocoon.caching.EventRegistry;
+import org.apache.cocoon.caching.validity.Event;
+import org.apache.cocoon.configuration.Settings;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.util.AbstractLogEnabled;
+import org.apache.cocoon.util.IOUtils;
+
+/**
+ * This implementation of <code>EventRegistry</code> survives a crash of the
+ * application. Every registration and removal is appended to a journal
+ * file before it returns; from time to time the whole registry is written
+ * to a snapshot file and a new journal is started. At startup the last
+ * snapshot is read and the journals written after it are replayed. A record
+ * which was only partly written at the end of the last journal is ignored,
+ * as the cache entry it belongs to was never stored.
+ *
+ * <p>The event-key mappings are held in concurrent maps, modified under
+ * striped locks instead of one lock for the whole registry. Looking up the
+ * keys of an event only touches the keys mapped to that event.</p>
+ *
+ * <p>Configuration:
+ * <ul>
+ *  <li><b>directory</b>: Directory of the snapshot and journal files, relative
+ *      to the work directory (Default: the <code>event-registry</code> sub
+ *      directory of the work directory)</li>
+ *  <li><b>stripes</b>: Number of locks the mappings are distributed over
+ *      (Default: 64)</li>
+ *  <li><b>snapshotThreshold</b>: Number of journal records after which a
+ *      new snapshot is written (Default: 100000)</li>
+ *  <li><b>snapshotInterval</b>: Seconds between checks of the threshold
+ *      (Default: 60). The checks need a <code>runnableManager</code>;
+ *      without it snapshots are only written at startup and shutdown.</li>
+ *  <li><b>syncJournal</b>: Force each journal record to the disk, which
+ *      protects against a crash of the operating system too (Default: false)</li>
+ * </ul></p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class JournaledEventRegistryImpl extends AbstractLogEnabled
+                                        implements EventRegistry, Runnable {
+
+    private static final int STRIPES = 64;
+    private static final int SNAPSHOT_THRESHOLD = 100000;
+    private static final int SNAPSHOT_INTERVAL = 60;
+    private static final String THREAD_POOL = "daemon";
+    private static final String DIRECTORY = "event-registry";
+    private static final String SNAPSHOT = "registry.snapshot";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+
+    private static final byte RECORD_REGISTER = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_CLEAR = 3;
+
+    private Settings settings;
+    private String directory;
+    private int stripes = STRIPES;
+    private int snapshotThreshold = SNAPSHOT_THRESHOLD;
+    private int snapshotInterval = SNAPSHOT_INTERVAL;
+    private boolean syncJournal;
+    private String threadPool = THREAD_POOL;
+    private RunnableManager runnableManager;
+
+    private File registryDirectory;
+    private boolean recovered;
+
+    /** Key to the <code>Set</code> of its events, guarded by the key locks. */
+    private final Map keyMap = new ConcurrentHashMap();
+
+    /** Event to the concurrent <code>Set</code> of its keys, guarded by the event locks. */
+    private final Map eventMap = new ConcurrentHashMap();
+
+    private Object[] keyLocks;
+    private Object[] eventLocks;
+
+    /**
+     * Shared by all modifications, exclusive for clearing the registry and
+     * copying it for a snapshot.
+     */
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    /** Guards the journal. */
+    private final Object journalLock = new Object();
+    private FileOutputStream journalFile;
+    private DataOutputStream journal;
+    private long journalId;
+    private int journalRecords;
+
+    /** Serializes snapshots. */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Recover the registry from the snapshot and the journals.
+     *
+     * @throws Exception
+     */
+    public void initialize() throws Exception {
+        if (this.stripes < 1) {
+            throw new Exception("JournaledEventRegistryImpl stripes must be at least 1");
+        }
+        this.keyLocks = new Object[this.stripes];
+        this.eventLocks = new Object[this.stripes];
+        for (int i = 0; i < this.stripes; i++) {
+            this.keyLocks[i] = new Object();
+            this.eventLocks[i] = new Object();
+        }
+
+        if (this.directory != null) {
+            this.registryDirectory = new File(IOUtils.getContextFilePath(this.settings.getWorkDirectory(),
+                                                                         this.directory));
+        } else {
+            this.registryDirectory = new File(this.settings.getWorkDirectory(), DIRECTORY);
+        }
+        if (!this.registryDirectory.isDirectory() && !this.registryDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory " + this.registryDirectory);
+        }
+
+        this.recovered = recover();
+        if (!this.recovered) {
+            this.keyMap.clear();
+            this.eventMap.clear();
+        }
+
+        // Start with a fresh snapshot, so that a torn journal is never appended to
+        snapshot(true);
+
+        if (this.runnableManager != null && this.snapshotInterval > 0) {
+            final long interval = this.snapshotInterval * 1000L;
+            this.runnableManager.execute(this.threadPool, this, interval, interval);
+        }
+    }
+
+    /**
+     * Write a last snapshot and close the journal.
+     */
+    public void dispose() {
+        if (this.runnableManager != null) {
+            this.runnableManager.remove(this);
+        }
+        snapshot(true);
+        synchronized (this.journalLock) {
+            closeJournal();
+        }
+        this.keyMap.clear();
+        this.eventMap.clear();
+    }
+
+    /**
+     * Write a snapshot if the journal has grown beyond the threshold.
+     */
+    public void run() {
+        synchronized (this.journalLock) {
+            if (this.journalRecords < this.snapshotThreshold) {
+                return;
+            }
+        }
+        snapshot(false);
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.EventRegistry#register(org.apache.cocoon.caching.validity.Event, java.io.Serializable)
+     */
+    public void register(Event e, Serializable key) {
+        this.stateLock.readLock().lock();
+        try {
+            synchronized (keyLock(key)) {
+                if (put(e, key)) {
+                    journal(RECORD_REGISTER, e, key);
+                }
+            }
+        } finally {
+            this.stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.EventRegistry#removeKey(java.io.Serializable)
+     */
+    public void removeKey(Serializable key) {
+        if (!this.keyMap.containsKey(key)) {
+            return;
+        }
+        this.stateLock.readLock().lock();
+        try {
+            synchronized (keyLock(key)) {
+                if (drop(key)) {
+                    journal(RECORD_REMOVE, null, key);
+                }
+            }
+        } finally {
+            this.stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.EventRegistry#keysForEvent(org.apache.cocoon.caching.validity.Event)
+     */
+    public Serializable[] keysForEvent(Event e) {
+        Set keys = (Set) this.eventMap.get(e);
+        if (keys == null) {
+            return null;
+        }
+        Serializable[] result = (Serializable[]) keys.toArray(new Serializable[keys.size()]);
+        return result.length == 0 ? null : result;
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.EventRegistry#allKeys()
+     */
+    public Serializable[] allKeys() {
+        Set keys = this.keyMap.keySet();
+        return (Serializable[]) keys.toArray(new Serializable[keys.size()]);
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.EventRegistry#clear()
+     */
+    public void clear() {
+        this.stateLock.writeLock().lock();
+        try {
+            this.keyMap.clear();
+            this.eventMap.clear();
+            journal(RECORD_CLEAR, null, null);
+        } finally {
+            this.stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.EventRegistry#wasRecoverySuccessful()
+     */
+    public boolean wasRecoverySuccessful() {
+        return this.recovered;
+    }
+
+    private Object keyLock(Object key) {
+        return this.keyLocks[(key.hashCode() & 0x7fffffff) % this.stripes];
+    }
+
+    private Object eventLock(Object event) {
+        return this.eventLocks[(event.hashCode() & 0x7fffffff) % this.stripes];
+    }
+
+    /**
+     * Map the event to the key. The lock of the key must be held.
+     *
+     * @return false if the mapping existed already
+     */
+    private boolean put(Event e, Serializable key) {
+        Set events = (Set) this.keyMap.get(key);
+        if (events == null) {
+            events = new HashSet(4);
+            this.keyMap.put(key, events);
+        }
+        if (!events.add(e)) {
+            return false;
+        }
+        synchronized (eventLock(e)) {
+            Set keys = (Set) this.eventMap.get(e);
+            if (keys == null) {
+                keys = Collections.newSetFromMap(new ConcurrentHashMap());
+                this.eventMap.put(e, keys);
+            }
+            keys.add(key);
+        }
+        return true;
+    }
+
+    /**
+     * Remove all mappings of the key. The lock of the key must be held.
+     *
+     * @return false if the key was not mapped
+     */
+    private boolean drop(Serializable key) {
+        Set events = (Set) this.keyMap.remove(key);
+        if (events == null) {
+            return false;
+        }
+        for (Iterator i = events.iterator(); i.hasNext();) {
+            Object e = i.next();
+            synchronized (eventLock(e)) {
+                Set keys = (Set) this.eventMap.get(e);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        this.eventMap.remove(e);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    //
+    // Journal
+    //
+
+    /**
+     * Append a record to the journal. If the journal can't be written, the
+     * snapshot is deleted so that the registry is not recovered from
+     * incomplete data after a crash.
+     */
+    private void journal(byte type, Event e, Serializable key) {
+        final byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            if (type != RECORD_CLEAR) {
+                ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                if (type == RECORD_REGISTER) {
+                    oos.writeObject(e);
+                }
+                oos.writeObject(key);
+                oos.close();
+            }
+            data = bytes.toByteArray();
+        } catch (IOException ioe) {
+            getLogger().error("Unable to serialize event registry record for " + key, ioe);
+            journalFailed();
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data);
+
+        synchronized (this.journalLock) {
+            if (this.journal == null) {
+                return;
+            }
+            try {
+                this.journal.writeByte(type);
+                this.journal.writeInt(data.length);
+                this.journal.write(data);
+                this.journal.writeLong(crc.getValue());
+                this.journal.flush();
+                if (this.syncJournal) {
+                    this.journalFile.getFD().sync();
+                }
+                this.journalRecords++;
+            } catch (IOException ioe) {
+                getLogger().error("Unable to write event registry journal", ioe);
+                closeJournal();
+                journalFailed();
+            }
+        }
+    }
+
+    private void journalFailed() {
+        File snapshot = new File(this.registryDirectory, SNAPSHOT);
+        if (snapshot.exists() && !snapshot.delete()) {
+            getLogger().error("Unable to delete " + snapshot + ", the event registry may be " +
+                              "recovered with stale data");
+        }
+    }
+
+    private File journalFile(long id) {
+        return new File(this.registryDirectory, JOURNAL_PREFIX + id + JOURNAL_SUFFIX);
+    }
+
+    private void openJournal(long id) throws IOException {
+        this.journalFile = new FileOutputStream(journalFile(id));
+        this.journal = new DataOutputStream(new BufferedOutputStream(this.journalFile));
+        this.journalId = id;
+        this.journalRecords = 0;
+    }
+
+    private void closeJournal() {
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to close event registry journal", e);
+            }
+            this.journal = null;
+            this.journalFile = null;
+        }
+    }
+
+    //
+    // Snapshots and recovery
+    //
+
+    /**
+     * Write all mappings to a new snapshot file. The registry is only locked
+     * while it is copied and a new journal is started; the journals covered
+     * by the snapshot are deleted once it has been written.
+     *
+     * @param force write a snapshot even if the journal is empty
+     */
+    private void snapshot(boolean force) {
+        synchronized (this.snapshotLock) {
+            final List entries = new ArrayList();
+            final long firstJournal;
+            this.stateLock.writeLock().lock();
+            try {
+                synchronized (this.journalLock) {
+                    if (!force && this.journal != null && this.journalRecords == 0) {
+                        return;
+                    }
+                    for (Iterator i = this.keyMap.entrySet().iterator(); i.hasNext();) {
+                        Map.Entry entry = (Map.Entry) i.next();
+                        entries.add(entry.getKey());
+                        entries.add(((Set) entry.getValue()).toArray());
+                    }
+                    closeJournal();
+                    try {
+                        openJournal(this.journalId + 1);
+                    } catch (IOException e) {
+                        getLogger().error("Unable to start event registry journal", e);
+                        journalFailed();
+                        return;
+                    }
+                    firstJournal = this.journalId;
+                }
+            } finally {
+                this.stateLock.writeLock().unlock();
+            }
+
+            final File snapshot = new File(this.registryDirectory, SNAPSHOT);
+            final File temp = new File(this.registryDirectory, SNAPSHOT + ".tmp");
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp)));
+                try {
+                    oos.writeLong(firstJournal);
+                    oos.writeInt(entries.size() / 2);
+                    for (Iterator i = entries.iterator(); i.hasNext();) {
+                        oos.writeObject(i.next());
+                        oos.writeObject(i.next());
+                        // don't keep references to all written objects
+                        oos.reset();
+                    }
+                } finally {
+                    oos.close();
+                }
+                if (!temp.renameTo(snapshot)) {
+                    throw new IOException("Unable to rename " + temp + " to " + snapshot);
+                }
+                synchronized (this.journalLock) {
+                    if (this.journal == null) {
+                        // the journal failed while the snapshot was written
+                        journalFailed();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                getLogger().error("Unable to write event registry snapshot", e);
+                temp.delete();
+                return;
+            }
+
+            // the older journals are covered by the snapshot now
+            long[] ids = journalIds();
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] < firstJournal) {
+                    journalFile(ids[i]).delete();
+                }
+            }
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Wrote event registry snapshot with " + entries.size() / 2 + " keys");
+            }
+        }
+    }
+
+    /**
+     * Read the snapshot and replay the journals written after it.
+     *
+     * @return true if the registry was recovered completely
+     */
+    private boolean recover() {
+        final long[] ids = journalIds();
+        if (ids.length > 0) {
+            this.journalId = ids[ids.length - 1];
+        }
+
+        final File snapshot = new File(this.registryDirectory, SNAPSHOT);
+        if (!snapshot.exists()) {
+            getLogger().warn(snapshot + " does not exist - Unable to retrieve EventRegistry.");
+            return false;
+        }
+
+        long firstJournal;
+        try {
+            ObjectInputStream ois = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(snapshot)));
+            try {
+                firstJournal = ois.readLong();
+                int size = ois.readInt();
+                for (int i = 0; i < size; i++) {
+                    Serializable key = (Serializable) ois.readObject();
+                    Object[] events = (Object[]) ois.readObject();
+                    for (int j = 0; j < events.length; j++) {
+                        put((Event) events[j], key);
+                    }
+                }
+            } finally {
+                ois.close();
+            }
+        } catch (Exception e) {
+            getLogger().error("Unable to retrieve EventRegistry", e);
+            return false;
+        }
+        this.journalId = Math.max(this.journalId, firstJournal);
+
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < firstJournal) {
+                continue;
+            }
+            if (!replay(journalFile(ids[i]), i == ids.length - 1)) {
+                return false;
+            }
+        }
+        if (getLogger().isInfoEnabled()) {
+            getLogger().info("Recovered EventRegistry with " + this.keyMap.size() + " keys.");
+        }
+        return true;
+    }
+
+    /**
+     * Apply the records of a journal.
+     *
+     * @param last if this is the newest journal, which may end with a torn record
+     * @return false if the journal is corrupt
+     */
+    private boolean replay(File file, boolean last) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                final byte type;
+                final byte[] data;
+                final long checksum;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    // clean end of the journal
+                    return true;
+                }
+                try {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    data = new byte[length];
+                    in.readFully(data);
+                    checksum = in.readLong();
+                } catch (EOFException e) {
+                    return tornRecord(file, last);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(data);
+                if (crc.getValue() != checksum) {
+                    return tornRecord(file, last);
+                }
+                apply(type, data);
+            }
+        } catch (Exception e) {
+            getLogger().error("Unable to replay event registry journal " + file, e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private boolean tornRecord(File file, boolean last) {
+        if (last) {
+            getLogger().info("Ignoring incomplete last record of " + file);
+            return true;
+        }
+        getLogger().error("Event registry journal " + file + " is corrupt");
+        return false;
+    }
+
+    private void apply(byte type, byte[] data) throws IOException, ClassNotFoundException {
+        if (type == RECORD_CLEAR) {
+            this.keyMap.clear();
+            this.eventMap.clear();
+            return;
+        }
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            if (type == RECORD_REGISTER) {
+                Event e = (Event) ois.readObject();
+                put(e, (Serializable) ois.readObject());
+            } else if (type == RECORD_REMOVE) {
+                drop((Serializable) ois.readObject());
+            } else {
+                throw new IOException("Unknown record type " + type);
+            }
+        } finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * @return the ids of all journal files, in ascending order
+     */
+    private long[] journalIds() {
+        String[] names = this.registryDirectory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX)) {
+                try {
+                    ids[count] = Long.parseLong(name.substring(JOURNAL_PREFIX.length(),
+                                                               name.length() - JOURNAL_SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    //
+    // Configuration
+    //
+
+    /**
+     * @param settings
+     */
+    public void setSettings(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Directory of the snapshot and journal files, relative to the work
+     * directory.
+     *
+     * @param directory
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Number of locks the mappings are distributed over. (Default: 64)
+     *
+     * @param stripes
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * Number of journal records after which a new snapshot is written.
+     * (Default: 100000)
+     *
+     * @param snapshotThreshold
+     */
+    public void setSnapshotThreshold(int snapshotThreshold) {
+        this.snapshotThreshold = snapshotThreshold;
+    }
+
+    /**
+     * Seconds between checks of the snapshot threshold. (Default: 60)
+     *
+     * @param snapshotInterval
+     */
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Force each journal record to the disk. (Default: false)
+     *
+     * @param syncJournal
+     */
+    public void setSyncJournal(boolean syncJournal) {
+        this.syncJournal = syncJournal;
+    }
+
+    /**
+     * Name of the thread pool the snapshots are written in. (Default: daemon)
+     *
+     * @param threadPool
+     */
+    public void setThreadPool(String threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * @param runnableManager
+     */
+    public void setRunnableManager(RunnableManager runnableManager) {
+        this.runnableManager = runnableManager;
+    }
+}
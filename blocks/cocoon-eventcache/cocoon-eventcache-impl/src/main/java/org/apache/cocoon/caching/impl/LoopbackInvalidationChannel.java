@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cocoon.caching.InvalidationChannel;
+
+/**
+ * An <code>InvalidationChannel</code> connecting the buses of one JVM. Every
+ * packet is handed to the receivers of all channels of the same group,
+ * including the sending one, in the thread of the sender. This is useful for
+ * several applications in one container, and for tests.
+ *
+ * <p>Configuration:
+ * <ul>
+ *  <li><b>group</b>: Name of the group of channels (Default: default)</li>
+ * </ul></p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class LoopbackInvalidationChannel implements InvalidationChannel {
+
+    /** The channels, by group name. */
+    private static final Map GROUPS = new HashMap();
+
+    private String group = "default";
+
+    private InvalidationChannel.Receiver receiver;
+
+    /**
+     * Join the group.
+     */
+    public void init() {
+        synchronized (GROUPS) {
+            List channels = (List) GROUPS.get(this.group);
+            if (channels == null) {
+                channels = new ArrayList();
+                GROUPS.put(this.group, channels);
+            }
+            channels.add(this);
+        }
+    }
+
+    /**
+     * Leave the group.
+     */
+    public void destroy() {
+        synchronized (GROUPS) {
+            List channels = (List) GROUPS.get(this.group);
+            if (channels != null) {
+                channels.remove(this);
+                if (channels.isEmpty()) {
+                    GROUPS.remove(this.group);
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.InvalidationChannel#send(byte[])
+     */
+    public void send(byte[] packet) throws IOException {
+        final Object[] channels;
+        synchronized (GROUPS) {
+            List list = (List) GROUPS.get(this.group);
+            if (list == null) {
+                throw new IOException("Channel has not joined group " + this.group);
+            }
+            channels = list.toArray();
+        }
+        for (int i = 0; i < channels.length; i++) {
+            InvalidationChannel.Receiver r = ((LoopbackInvalidationChannel) channels[i]).receiver;
+            if (r != null) {
+                r.receive((byte[]) packet.clone());
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.InvalidationChannel#setReceiver(org.apache.cocoon.caching.InvalidationChannel.Receiver)
+     */
+    public void setReceiver(InvalidationChannel.Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * @param group name of the group of channels
+     */
+    public void setGroup(String group) {
+        this.group = group;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+
+import org.apache.cocoon.caching.InvalidationChannel;
+import org.apache.cocoon.util.AbstractLogEnabled;
+
+/**
+ * An <code>InvalidationChannel</code> sending packets to a UDP multicast
+ * group. A daemon thread receives the packets of the group and hands them to
+ * the receiver. UDP does not guarantee delivery; the bus detects and
+ * requests lost packets.
+ *
+ * <p>Configuration:
+ * <ul>
+ *  <li><b>address</b>: Multicast group address (Default: 228.5.6.7)</li>
+ *  <li><b>port</b>: Port of the group (Default: 45678)</li>
+ *  <li><b>timeToLive</b>: Number of router hops of the packets (Default: 1)</li>
+ *  <li><b>networkInterface</b>: Name of the network interface to use
+ *      (Default: chosen by the operating system)</li>
+ *  <li><b>loopback</b>: Receive the packets sent by this channel, useful to
+ *      test several nodes on one host (Default: true)</li>
+ * </ul></p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class MulticastInvalidationChannel extends AbstractLogEnabled
+                                          implements InvalidationChannel, Runnable {
+
+    /** Maximum payload of a UDP packet. */
+    private static final int MAX_PACKET_SIZE = 65507;
+
+    private String address = "228.5.6.7";
+    private int port = 45678;
+    private int timeToLive = 1;
+    private String networkInterface;
+    private boolean loopback = true;
+
+    private InetAddress group;
+    private MulticastSocket socket;
+    private Thread thread;
+    private volatile boolean running;
+
+    private volatile InvalidationChannel.Receiver receiver;
+
+    /**
+     * Join the multicast group and start receiving.
+     *
+     * @throws IOException
+     */
+    public void init() throws IOException {
+        this.group = InetAddress.getByName(this.address);
+        this.socket = new MulticastSocket(this.port);
+        if (this.networkInterface != null) {
+            NetworkInterface ni = NetworkInterface.getByName(this.networkInterface);
+            if (ni == null) {
+                throw new SocketException("Unknown network interface " + this.networkInterface);
+            }
+            this.socket.setNetworkInterface(ni);
+        }
+        this.socket.setTimeToLive(this.timeToLive);
+        // true disables the loopback
+        this.socket.setLoopbackMode(!this.loopback);
+        this.socket.joinGroup(this.group);
+
+        this.running = true;
+        this.thread = new Thread(this, "cocoon-invalidation-" + this.address + ":" + this.port);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Leave the multicast group and stop receiving.
+     */
+    public void destroy() {
+        this.running = false;
+        if (this.socket != null) {
+            try {
+                this.socket.leaveGroup(this.group);
+            } catch (IOException e) {
+                getLogger().debug("Unable to leave multicast group", e);
+            }
+            // unblocks the receiving thread
+            this.socket.close();
+            this.socket = null;
+        }
+    }
+
+    /**
+     * Receive packets until the channel is destroyed.
+     */
+    public void run() {
+        final byte[] buffer = new byte[MAX_PACKET_SIZE];
+        final MulticastSocket socket = this.socket;
+        while (this.running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (this.running) {
+                    getLogger().error("Unable to receive invalidation packet", e);
+                }
+                continue;
+            }
+            final InvalidationChannel.Receiver r = this.receiver;
+            if (r != null) {
+                byte[] data = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+                try {
+                    r.receive(data);
+                } catch (RuntimeException e) {
+                    getLogger().error("Unable to process invalidation packet", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.InvalidationChannel#send(byte[])
+     */
+    public void send(byte[] packet) throws IOException {
+        if (packet.length > MAX_PACKET_SIZE) {
+            throw new IOException("Packet of " + packet.length + " bytes is too large");
+        }
+        final MulticastSocket socket = this.socket;
+        if (socket == null) {
+            throw new IOException("Channel is not started");
+        }
+        socket.send(new DatagramPacket(packet, packet.length, this.group, this.port));
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.InvalidationChannel#setReceiver(org.apache.cocoon.caching.InvalidationChannel.Receiver)
+     */
+    public void setReceiver(InvalidationChannel.Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * @param address multicast group address
+     */
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    /**
+     * @param port port of the multicast group
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @param timeToLive number of router hops of the packets
+     */
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param networkInterface name of the network interface to use
+     */
+    public void setNetworkInterface(String networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    /**
+     * @param loopback receive the packets sent by this channel
+     */
+    public void setLoopback(boolean loopback) {
+        this.loopback = loopback;
+    }
+}
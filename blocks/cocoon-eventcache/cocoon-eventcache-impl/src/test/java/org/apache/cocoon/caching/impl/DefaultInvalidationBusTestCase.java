@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.Cache;
+import org.apache.cocoon.caching.EventAware;
+import org.apache.cocoon.caching.validity.Event;
+import org.apache.cocoon.caching.validity.NamedEvent;
+import org.apache.cocoon.thread.RunnableManager;
+
+/**
+ * Test case for the {@link DefaultInvalidationBus}, with the nodes connected
+ * by a {@link LoopbackInvalidationChannel} which can lose batches.
+ *
+ * @version $Id$
+ */
+public class DefaultInvalidationBusTestCase extends TestCase {
+
+    private static final Event E1 = new NamedEvent("e1");
+    private static final Event E2 = new NamedEvent("e2");
+    private static final Event E3 = new NamedEvent("e3");
+    private static final Event E4 = new NamedEvent("e4");
+
+    private LossyChannel senderChannel;
+    private LossyChannel receiverChannel;
+
+    private RecordingCache senderCache;
+    private RecordingCache receiverCache;
+
+    private DefaultInvalidationBus sender;
+    private DefaultInvalidationBus receiver;
+
+
+    protected void setUp() throws Exception {
+        this.senderChannel = new LossyChannel(getName());
+        this.receiverChannel = new LossyChannel(getName());
+        this.senderCache = new RecordingCache();
+        this.receiverCache = new RecordingCache();
+        this.sender = newBus(this.senderChannel, this.senderCache);
+        this.receiver = newBus(this.receiverChannel, this.receiverCache);
+    }
+
+    protected void tearDown() throws Exception {
+        this.sender.destroy();
+        this.receiver.destroy();
+        this.senderChannel.destroy();
+        this.receiverChannel.destroy();
+    }
+
+    /**
+     * Events are collected and sent in one batch, each event once.
+     */
+    public void testBatching() {
+        this.sender.destroy();
+        this.sender = newBus(this.senderChannel, this.senderCache);
+        this.sender.setRunnableManager(newRunnableManager());
+        this.sender.init();
+
+        this.sender.processEvent(E1);
+        this.sender.processEvent(E2);
+        this.sender.processEvent(E1);
+        assertEquals(Arrays.asList(new Event[] { E1, E2, E1 }), this.senderCache.events);
+        assertEquals(Collections.EMPTY_LIST, this.receiverCache.events);
+
+        this.sender.flush();
+        assertEquals(1, this.senderChannel.batches);
+        assertEquals(Arrays.asList(new Event[] { E1, E2 }), this.receiverCache.events);
+        assertEquals(0, this.receiverCache.clears);
+    }
+
+    /**
+     * Events which don't fit into one packet are split into several batches.
+     */
+    public void testMaxPacketSize() {
+        this.sender.destroy();
+        this.sender = newBus(this.senderChannel, this.senderCache);
+        this.sender.setRunnableManager(newRunnableManager());
+        this.sender.setMaxPacketSize(256);
+        this.sender.init();
+
+        this.sender.processEvent(E1);
+        this.sender.processEvent(E2);
+        this.sender.processEvent(E3);
+        this.sender.flush();
+
+        assertTrue(this.senderChannel.batches > 1);
+        assertEquals(Arrays.asList(new Event[] { E1, E2, E3 }), this.receiverCache.events);
+        assertEquals(0, this.receiverCache.clears);
+    }
+
+    /**
+     * A batch missing before a later one is asked for and sent again.
+     */
+    public void testGapResend() {
+        this.sender.processEvent(E1);
+        this.senderChannel.drop = 1;
+        this.sender.processEvent(E2);
+        this.sender.processEvent(E3);
+
+        // batch 2 has been sent again when batch 3 revealed the gap
+        assertEquals(4, this.senderChannel.batches);
+        assertEquals(Arrays.asList(new Event[] { E1, E2, E3 }), this.receiverCache.events);
+        assertEquals(0, this.receiverCache.clears);
+    }
+
+    /**
+     * A batch the sender no longer has can't be sent again, so the receiver
+     * clears its cache.
+     */
+    public void testGone() {
+        this.sender.setHistorySize(2);
+        this.sender.processEvent(E1);
+        this.senderChannel.drop = 2;
+        this.sender.processEvent(E2);
+        this.sender.processEvent(E3);
+        this.sender.processEvent(E4);
+
+        assertEquals(1, this.receiverCache.clears);
+        assertEquals(Arrays.asList(new Event[] { E1, E3, E4 }), this.receiverCache.events);
+    }
+
+    /**
+     * A heartbeat reveals a lost batch at the end of the sequence, which is
+     * then sent again.
+     */
+    public void testHeartbeatResend() {
+        this.sender.processEvent(E1);
+        this.senderChannel.drop = 1;
+        this.sender.processEvent(E2);
+        assertEquals(Arrays.asList(new Event[] { E1 }), this.receiverCache.events);
+
+        this.sender.run();
+
+        assertEquals(Arrays.asList(new Event[] { E1, E2 }), this.receiverCache.events);
+        assertEquals(0, this.receiverCache.clears);
+    }
+
+    /**
+     * A batch still missing after maxMissedHeartbeats heartbeats of the
+     * receiver is given up and the cache is cleared.
+     */
+    public void testHeartbeatLoss() throws InterruptedException {
+        this.receiver.setHeartbeatInterval(50);
+        this.receiver.setMaxMissedHeartbeats(2);
+
+        this.sender.processEvent(E1);
+        this.senderChannel.drop = Integer.MAX_VALUE;
+        this.sender.processEvent(E2);
+
+        // the heartbeat of the sender reveals the loss, sending it again fails
+        this.sender.run();
+        assertEquals(Arrays.asList(new Event[] { E1 }), this.receiverCache.events);
+
+        for (int i = 0; i < 2; i++) {
+            this.receiver.run();
+            assertEquals(0, this.receiverCache.clears);
+            Thread.sleep(60);
+        }
+        this.receiver.run();
+        assertEquals(1, this.receiverCache.clears);
+        assertEquals(Arrays.asList(new Event[] { E1 }), this.receiverCache.events);
+    }
+
+    /**
+     * A request for a huge range of batches only sends the batches in the
+     * history again.
+     */
+    public void testResendRangeClamped() throws Exception {
+        this.sender.setHistorySize(2);
+        this.sender.processEvent(E1);
+        this.sender.processEvent(E2);
+        this.sender.processEvent(E3);
+        assertEquals(3, this.senderChannel.batches);
+
+        // a resend request as sent by DefaultInvalidationBus
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(packet);
+        out.writeInt(0x43494231);
+        out.writeByte(3);
+        out.writeUTF("another-node");
+        out.writeUTF(this.sender.getNodeId());
+        out.writeLong(0);
+        out.writeLong(Long.MAX_VALUE);
+        out.flush();
+        final byte[] request = packet.toByteArray();
+
+        final Thread requester = new Thread() {
+            public void run() {
+                try {
+                    receiverChannel.send(request);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        requester.start();
+        requester.join(5000);
+        assertFalse("The resend must not loop over the requested range", requester.isAlive());
+
+        // batches 2 and 3 are sent again, the receiver has them already
+        assertEquals(5, this.senderChannel.batches);
+        assertEquals(Arrays.asList(new Event[] { E1, E2, E3 }), this.receiverCache.events);
+    }
+
+    /**
+     * Classes which are not allowed events are never instantiated, the cache
+     * is cleared instead.
+     */
+    public void testRejectedClass() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ObjectOutputStream object = new ObjectOutputStream(data);
+        object.writeObject(new Gadget());
+        object.close();
+
+        // a batch as sent by DefaultInvalidationBus
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(packet);
+        out.writeInt(0x43494231);
+        out.writeByte(1);
+        out.writeUTF("another-node");
+        out.writeLong(1);
+        out.writeInt(1);
+        out.writeInt(data.size());
+        out.write(data.toByteArray());
+        out.flush();
+
+        Gadget.deserialized = false;
+        this.senderChannel.send(packet.toByteArray());
+
+        assertFalse(Gadget.deserialized);
+        assertEquals(Collections.EMPTY_LIST, this.receiverCache.events);
+        assertEquals(1, this.receiverCache.clears);
+    }
+
+    private static DefaultInvalidationBus newBus(LossyChannel channel, RecordingCache cache) {
+        DefaultInvalidationBus bus = new DefaultInvalidationBus();
+        bus.setCache(cache.proxy);
+        bus.setChannel(channel);
+        bus.setHeartbeatInterval(0);
+        bus.init();
+        return bus;
+    }
+
+    /**
+     * A runnable manager which never runs anything, batches are sent by
+     * calling flush().
+     */
+    private static RunnableManager newRunnableManager() {
+        return (RunnableManager) Proxy.newProxyInstance(RunnableManager.class.getClassLoader(),
+                                                        new Class[] { RunnableManager.class },
+                                                        new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A loopback channel which loses the next <code>drop</code> batches it
+     * sends.
+     */
+    private static class LossyChannel extends LoopbackInvalidationChannel {
+
+        int drop;
+
+        int batches;
+
+        public LossyChannel(String group) {
+            setGroup(group);
+            init();
+        }
+
+        public void send(byte[] packet) throws IOException {
+            // the type of the packet follows the magic number
+            if (packet[4] == 1) {
+                this.batches++;
+                if (this.drop > 0) {
+                    this.drop--;
+                    return;
+                }
+            }
+            super.send(packet);
+        }
+    }
+
+    /**
+     * A cache recording the events it processes and how often it has been
+     * cleared.
+     */
+    private static class RecordingCache implements InvocationHandler {
+
+        final List events = new ArrayList();
+
+        int clears;
+
+        final EventAware proxy = (EventAware) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                     new Class[] { Cache.class, EventAware.class },
+                                                                     this);
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("processEvent".equals(method.getName())) {
+                this.events.add(args[0]);
+            } else if ("clear".equals(method.getName())) {
+                this.clears++;
+            } else if ("equals".equals(method.getName())) {
+                return Boolean.valueOf(proxy == args[0]);
+            } else if ("hashCode".equals(method.getName())) {
+                return new Integer(System.identityHashCode(proxy));
+            } else if ("toString".equals(method.getName())) {
+                return "RecordingCache";
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A serializable class which is not an event.
+     */
+    private static class Gadget implements Serializable {
+
+        static boolean deserialized;
+
+        private void readObject(ObjectInputStream in) {
+            deserialized = true;
+        }
+    }
+}
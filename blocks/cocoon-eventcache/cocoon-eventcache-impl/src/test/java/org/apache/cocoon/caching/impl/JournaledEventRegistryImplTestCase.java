@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.validity.Event;
+import org.apache.cocoon.caching.validity.NamedEvent;
+import org.apache.cocoon.configuration.Settings;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Test case for the recovery of the {@link JournaledEventRegistryImpl} from
+ * its snapshot and journals. A crash is simulated by starting a new registry
+ * on the files of one which has not been disposed.
+ *
+ * @version $Id$
+ */
+public class JournaledEventRegistryImplTestCase extends TestCase {
+
+    private static final Event E1 = new NamedEvent("e1");
+    private static final Event E2 = new NamedEvent("e2");
+
+    private File workDirectory;
+    private File registryDirectory;
+
+
+    protected void setUp() throws Exception {
+        this.workDirectory = new File(System.getProperty("java.io.tmpdir"),
+                                      "journaled-event-registry-" + getName());
+        FileUtils.deleteDirectory(this.workDirectory);
+        this.registryDirectory = new File(this.workDirectory, "event-registry");
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.workDirectory);
+    }
+
+    /**
+     * Registrations, removals and clearing survive a restart as well as a
+     * crash.
+     */
+    public void testRoundTrip() throws Exception {
+        JournaledEventRegistryImpl registry = newRegistry();
+        assertFalse("There is nothing to recover at the first start", registry.wasRecoverySuccessful());
+        registry.register(E1, "k1");
+        registry.register(E1, "k2");
+        registry.register(E2, "k1");
+        registry.removeKey("k2");
+        registry.dispose();
+
+        registry = newRegistry();
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "k1" }, registry.keysForEvent(E1));
+        assertKeys(new String[] { "k1" }, registry.keysForEvent(E2));
+        assertKeys(new String[] { "k1" }, registry.allKeys());
+
+        // crash after clearing
+        registry.register(E2, "k3");
+        registry.clear();
+        registry.register(E1, "k4");
+
+        registry = newRegistry();
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "k4" }, registry.allKeys());
+        assertKeys(new String[] { "k4" }, registry.keysForEvent(E1));
+        assertNull(registry.keysForEvent(E2));
+        registry.dispose();
+    }
+
+    /**
+     * All journals written after the snapshot are replayed in order.
+     */
+    public void testSeveralJournals() throws Exception {
+        crashWithSeveralJournals();
+        assertEquals(Arrays.asList(new String[] { "journal-1.log", "journal-2.log", "registry.snapshot" }),
+                     Arrays.asList(sortedFiles()));
+
+        JournaledEventRegistryImpl registry = newRegistry();
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "k2", "k3" }, registry.allKeys());
+        assertKeys(new String[] { "k2" }, registry.keysForEvent(E1));
+        assertKeys(new String[] { "k3" }, registry.keysForEvent(E2));
+        registry.dispose();
+    }
+
+    /**
+     * A record which was only partly written at the end of the last journal
+     * is ignored.
+     */
+    public void testTornLastRecord() throws Exception {
+        JournaledEventRegistryImpl registry = newRegistry();
+        registry.register(E1, "k1");
+        registry.register(E1, "k2");
+        truncate(journal(1), 3);
+
+        registry = newRegistry();
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "k1" }, registry.allKeys());
+        registry.dispose();
+    }
+
+    /**
+     * A last record with a wrong checksum is ignored.
+     */
+    public void testBadChecksum() throws Exception {
+        JournaledEventRegistryImpl registry = newRegistry();
+        registry.register(E1, "k1");
+        registry.register(E1, "k2");
+        corrupt(journal(1), 1);
+
+        registry = newRegistry();
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "k1" }, registry.allKeys());
+        registry.dispose();
+    }
+
+    /**
+     * A journal followed by a newer one must be complete, the registry is
+     * not recovered otherwise.
+     */
+    public void testCorruptMiddleJournal() throws Exception {
+        crashWithSeveralJournals();
+        truncate(journal(1), 3);
+
+        JournaledEventRegistryImpl registry = newRegistry();
+        assertFalse(registry.wasRecoverySuccessful());
+        assertEquals(0, registry.allKeys().length);
+        registry.dispose();
+    }
+
+    /**
+     * A snapshot is written once the journal has grown beyond the threshold,
+     * and the journals it covers are deleted.
+     */
+    public void testSnapshotThreshold() throws Exception {
+        JournaledEventRegistryImpl registry = new JournaledEventRegistryImpl();
+        registry.setSettings(newSettings());
+        registry.setSnapshotThreshold(3);
+        registry.initialize();
+        registry.register(E1, "k1");
+        registry.register(E1, "k2");
+
+        registry.run();
+        assertTrue(journal(1).exists());
+        assertFalse(journal(2).exists());
+
+        registry.register(E2, "k3");
+        registry.run();
+        assertFalse("The old journal is covered by the snapshot", journal(1).exists());
+        assertTrue(journal(2).exists());
+        assertEquals(0, journal(2).length());
+
+        // crash, the registry is in the snapshot
+        registry.removeKey("k1");
+        registry = newRegistry();
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "k2", "k3" }, registry.allKeys());
+        registry.dispose();
+    }
+
+    /**
+     * Leave a snapshot followed by two journals behind, as a crash while a
+     * new snapshot is written does: k1 and k2 for e1 in the first journal,
+     * the removal of k1 and k3 for e2 in the second one.
+     */
+    private void crashWithSeveralJournals() throws Exception {
+        JournaledEventRegistryImpl registry = newRegistry();
+        registry.register(E1, "k1");
+        registry.register(E1, "k2");
+        File snapshot = new File(this.registryDirectory, "registry.snapshot");
+        byte[] oldSnapshot = FileUtils.readFileToByteArray(snapshot);
+        byte[] oldJournal = FileUtils.readFileToByteArray(journal(1));
+
+        // the next start writes a snapshot covering the first journal
+        registry = newRegistry();
+        assertFalse(journal(1).exists());
+        registry.removeKey("k1");
+        registry.register(E2, "k3");
+
+        // ... which is lost
+        FileUtils.writeByteArrayToFile(snapshot, oldSnapshot);
+        FileUtils.writeByteArrayToFile(journal(1), oldJournal);
+    }
+
+    private JournaledEventRegistryImpl newRegistry() throws Exception {
+        JournaledEventRegistryImpl registry = new JournaledEventRegistryImpl();
+        registry.setSettings(newSettings());
+        registry.initialize();
+        return registry;
+    }
+
+    private Settings newSettings() {
+        return (Settings) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { Settings.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getWorkDirectory".equals(method.getName())) {
+                            return workDirectory.getAbsolutePath();
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private File journal(long id) {
+        return new File(this.registryDirectory, "journal-" + id + ".log");
+    }
+
+    private String[] sortedFiles() {
+        String[] names = this.registryDirectory.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    private void truncate(File file, int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Flip the bits of the byte at the position from the end of the file.
+     */
+    private void corrupt(File file, int fromEnd) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - fromEnd);
+            int b = raf.read();
+            raf.seek(raf.length() - fromEnd);
+            raf.write(~b);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertKeys(String[] expected, Serializable[] actual) {
+        assertNotNull(actual);
+        assertEquals(new HashSet(Arrays.asList(expected)), new HashSet(Arrays.asList(actual)));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow.javascript.fom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.cocoon.components.flow.WebContinuation;
+import org.apache.cocoon.components.flow.javascript.fom.FOM_JavaScriptInterpreter.ThreadScope;
+import org.apache.commons.logging.Log;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+
+/**
+ * Writes the Rhino continuations of a tree of {@link WebContinuation}s to a
+ * stream and reads them back, for the passivation of idle continuations.
+ *
+ * <p>The objects shared by all continuations are not written, but replaced
+ * by references which are resolved when the continuations are read back:
+ * the standard objects and FOM classes of the shared global scope, the
+ * global scope itself, and the thread scope of the continuations with its
+ * <code>cocoon</code> object and its packages. The FOM web continuations
+ * of the tree are replaced by references as well.</p>
+ *
+ * <p>Continuations referring to Java objects which are not serializable
+ * can't be written.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+final class ContinuationSerializer {
+
+    /** The names of the objects of the global scope not written */
+    private static final String[] GLOBAL_NAMES = {
+        "Continuation", "Continuation.prototype",
+        "FOM_Cocoon", "FOM_Cocoon.prototype",
+        "FOM_WebContinuation", "FOM_WebContinuation.prototype",
+        "PageLocal", "PageLocal.prototype"
+    };
+
+    /** The names of the properties of the thread scope not written */
+    private static final String[] THREAD_SCOPE_NAMES = {
+        "cocoon", "Packages", "java", "javax", "org", "com"
+    };
+
+    private ContinuationSerializer() {
+        // static methods only
+    }
+
+    /**
+     * Write the continuation objects of the passed continuations.
+     *
+     * @return the thread scope of the continuations
+     */
+    public static ThreadScope write(WebContinuation[] continuations, Scriptable globalScope,
+                                    OutputStream out)
+    throws IOException {
+        final Object[] objects = new Object[continuations.length];
+        ThreadScope threadScope = null;
+        for (int i = 0; i < continuations.length; i++) {
+            objects[i] = continuations[i].getContinuation();
+            final Scriptable scope = ((Scriptable) objects[i]).getParentScope();
+            if (!(scope instanceof ThreadScope) || (threadScope != null && scope != threadScope)) {
+                throw new NotSerializableException("Continuation " + continuations[i].getId()
+                                                   + " is not bound to a thread scope");
+            }
+            threadScope = (ThreadScope) scope;
+        }
+
+        // Requests resuming a continuation lock its thread scope
+        synchronized (threadScope) {
+            final ContinuationOutputStream stream =
+                new ContinuationOutputStream(out, globalScope, threadScope, continuations);
+            stream.writeObject(objects);
+            stream.flush();
+        }
+        return threadScope;
+    }
+
+    /**
+     * Read back the continuation objects written by
+     * {@link #write(WebContinuation[], Scriptable, OutputStream)}.
+     */
+    public static Object[] read(WebContinuation[] continuations, ThreadScope threadScope,
+                                InputStream in, Log logger)
+    throws IOException, ClassNotFoundException {
+        final ContinuationInputStream stream =
+            new ContinuationInputStream(in, threadScope, continuations, logger);
+        return (Object[]) stream.readObject();
+    }
+
+    /**
+     * A reference to an object not written.
+     */
+    private static final class Reference implements Serializable {
+        static final int GLOBAL_SCOPE = 0;
+        static final int THREAD_SCOPE = 1;
+        static final int THREAD_SCOPE_PROPERTY = 2;
+        static final int PAGE_LOCAL = 3;
+        static final int WEB_CONTINUATION = 4;
+
+        final int type;
+
+        /** The property name or the index of the web continuation */
+        final Object key;
+
+        Reference(int type, Object key) {
+            this.type = type;
+            this.key = key;
+        }
+    }
+
+    private static final class ContinuationOutputStream extends ScriptableOutputStream {
+        private final Map references = new IdentityHashMap();
+        private final Map continuations = new IdentityHashMap();
+
+        ContinuationOutputStream(OutputStream out, Scriptable globalScope, ThreadScope threadScope,
+                                 WebContinuation[] continuations)
+        throws IOException {
+            super(out, globalScope);
+            excludeStandardObjectNames();
+            for (int i = 0; i < GLOBAL_NAMES.length; i++) {
+                addOptionalExcludedName(GLOBAL_NAMES[i]);
+            }
+
+            this.references.put(globalScope, new Reference(Reference.GLOBAL_SCOPE, null));
+            this.references.put(threadScope, new Reference(Reference.THREAD_SCOPE, null));
+            for (int i = 0; i < THREAD_SCOPE_NAMES.length; i++) {
+                final Object value = ScriptableObject.getProperty(threadScope, THREAD_SCOPE_NAMES[i]);
+                if (value instanceof Scriptable) {
+                    this.references.put(value, new Reference(Reference.THREAD_SCOPE_PROPERTY,
+                                                             THREAD_SCOPE_NAMES[i]));
+                }
+            }
+            final FOM_Cocoon cocoon = (FOM_Cocoon) threadScope.get("cocoon", threadScope);
+            if (cocoon.pageLocal != null) {
+                this.references.put(cocoon.pageLocal, new Reference(Reference.PAGE_LOCAL, null));
+            }
+            for (int i = 0; i < continuations.length; i++) {
+                this.continuations.put(continuations[i], new Integer(i));
+            }
+        }
+
+        protected Object replaceObject(Object obj) throws IOException {
+            final Object reference = this.references.get(obj);
+            if (reference != null) {
+                return reference;
+            }
+            if (obj instanceof FOM_WebContinuation) {
+                final Object index = this.continuations.get(((FOM_WebContinuation) obj).getWebContinuation());
+                if (index == null) {
+                    throw new NotSerializableException("FOM_WebContinuation outside of the passivated tree");
+                }
+                return new Reference(Reference.WEB_CONTINUATION, index);
+            }
+            return super.replaceObject(obj);
+        }
+    }
+
+    private static final class ContinuationInputStream extends ScriptableInputStream {
+        private final ThreadScope threadScope;
+        private final WebContinuation[] continuations;
+        private final Log logger;
+
+        ContinuationInputStream(InputStream in, ThreadScope threadScope,
+                                WebContinuation[] continuations, Log logger)
+        throws IOException {
+            super(in, threadScope);
+            this.threadScope = threadScope;
+            this.continuations = continuations;
+            this.logger = logger;
+        }
+
+        protected Object resolveObject(Object obj) throws IOException {
+            if (!(obj instanceof Reference)) {
+                return super.resolveObject(obj);
+            }
+
+            final Reference reference = (Reference) obj;
+            switch (reference.type) {
+                case Reference.GLOBAL_SCOPE:
+                    return this.threadScope.getPrototype();
+                case Reference.THREAD_SCOPE:
+                    return this.threadScope;
+                case Reference.THREAD_SCOPE_PROPERTY:
+                    return this.threadScope.get((String) reference.key, this.threadScope);
+                case Reference.PAGE_LOCAL:
+                    return ((FOM_Cocoon) this.threadScope.get("cocoon", this.threadScope)).pageLocal;
+                default:
+                    final WebContinuation wk = this.continuations[((Integer) reference.key).intValue()];
+                    final FOM_WebContinuation fom_wk = new FOM_WebContinuation(wk);
+                    fom_wk.setLogger(this.logger);
+                    fom_wk.setParentScope(this.threadScope);
+                    fom_wk.setPrototype(ScriptableObject.getClassPrototype(this.threadScope,
+                                                                           fom_wk.getClassName()));
+                    return fom_wk;
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import org.apache.avalon.framework.service.ServiceManager;
 
 import org.apache.cocoon.components.ContextHelper;
 import org.apache.cocoon.components.LifecycleHelper;
+import org.apache.cocoon.components.flow.ContinuationsDisposer;
 import org.apache.cocoon.components.flow.ContinuationsManager;
 import org.apache.cocoon.components.flow.WebContinuation;
 import org.apache.cocoon.components.flow.Interpreter.Argument;
@@ -706,6 +707,15 @@ public class FOM_Cocoon extends ScriptableObject {
     public String getInterpreterId() {
         return getInterpreter().getInterpreterID();
     }
+
+    /**
+     * Required by FOM_WebContinuation, the interpreter is the disposer of
+     * the continuations it creates.
+     * @return interpreter associated with this FOM.
+     */
+    ContinuationsDisposer getContinuationsDisposer() {
+        return getInterpreter();
+    }
     
     /**
      * Call the Cocoon Sitemap to process a page
@@ -812,7 +822,7 @@ public class FOM_Cocoon extends ScriptableObject {
                                            (parent == null ? null : parent.getWebContinuation()),
                                            timeToLive,
                                            getInterpreter().getInterpreterID(),
-                                           null);
+                                           getInterpreter());
         FOM_WebContinuation result = new FOM_WebContinuation(wk);
         result.setLogger(getLogger());
         result.setParentScope(getParentScope());
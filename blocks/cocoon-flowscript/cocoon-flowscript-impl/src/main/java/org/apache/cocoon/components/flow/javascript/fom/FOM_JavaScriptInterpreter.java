@@ -20,6 +20,7 @@ import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PushbackInputStream;
@@ -36,6 +37,7 @@ import org.apache.avalon.framework.configuration.ConfigurationException;
 
 import org.apache.cocoon.ResourceNotFoundException;
 import org.apache.cocoon.components.flow.CompilingInterpreter;
+import org.apache.cocoon.components.flow.ContinuationsPassivator;
 import org.apache.cocoon.components.flow.Interpreter;
 import org.apache.cocoon.components.flow.InvalidContinuationException;
 import org.apache.cocoon.components.flow.WebContinuation;
@@ -76,11 +78,14 @@ import org.mozilla.javascript.tools.shell.Global;
 /**
  * Interface with the JavaScript interpreter.
  *
+ * <p>The interpreter is the {@link ContinuationsPassivator} of the
+ * continuations it creates, see {@link ContinuationSerializer}.</p>
+ *
  * @since March 25, 2002
  * @version $Id$
  */
 public class FOM_JavaScriptInterpreter extends CompilingInterpreter
-                                       implements Initializable {
+                                       implements Initializable, ContinuationsPassivator {
 
     /**
      * A long value is stored under this key in each top level JavaScript
@@ -720,6 +725,45 @@ public class FOM_JavaScriptInterpreter extends CompilingInterpreter
         }
     }
 
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsDisposer#disposeContinuation(org.apache.cocoon.components.flow.WebContinuation)
+     */
+    public void disposeContinuation(WebContinuation webContinuation) {
+        // nothing to clean up
+    }
+
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsPassivator#passivateContinuations(org.apache.cocoon.components.flow.WebContinuation[], java.io.OutputStream)
+     */
+    public Object passivateContinuations(WebContinuation[] continuations, OutputStream out)
+    throws Exception {
+        Context.enter();
+        try {
+            return ContinuationSerializer.write(continuations, this.scope, out);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsPassivator#activateContinuations(org.apache.cocoon.components.flow.WebContinuation[], java.io.InputStream, java.lang.Object)
+     */
+    public Object[] activateContinuations(WebContinuation[] continuations, InputStream in, Object context)
+    throws Exception {
+        final ThreadScope threadScope = (ThreadScope) context;
+        final ClassLoader savedClassLoader = Thread.currentThread().getContextClassLoader();
+        Context.enter();
+        try {
+            if (threadScope.getClassLoader() != null) {
+                Thread.currentThread().setContextClassLoader(threadScope.getClassLoader());
+            }
+            return ContinuationSerializer.read(continuations, threadScope, in, getLogger());
+        } finally {
+            Context.exit();
+            Thread.currentThread().setContextClassLoader(savedClassLoader);
+        }
+    }
+
     public void forwardTo(Scriptable scope, FOM_Cocoon cocoon, String uri,
                           Object bizData, FOM_WebContinuation fom_wk,
                           Redirector redirector)
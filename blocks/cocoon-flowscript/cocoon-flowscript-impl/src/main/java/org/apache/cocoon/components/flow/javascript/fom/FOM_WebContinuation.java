@@ -92,8 +92,8 @@ public class FOM_WebContinuation extends ScriptableObject {
         wk = contMgr.createWebContinuation(c,
                                            (parent == null ? null : parent.getWebContinuation()),
                                            timeToLive,
-                                           cocoon.getInterpreterId(), 
-                                           null);
+                                           cocoon.getInterpreterId(),
+                                           cocoon.getContinuationsDisposer());
 
         FOM_WebContinuation result;
         result = new FOM_WebContinuation(wk);
@@ -19,19 +19,31 @@ package org.apache.cocoon.reading.imageop;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriter;
 import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 
 import org.apache.avalon.framework.activity.Disposable;
@@ -56,6 +68,24 @@ import org.xml.sax.SAXException;
  * the requested resource should be written to the <code>OutputStream</code>
  * or if it can signal that it hasn't changed.
  *
+ * <p>If the first operation is a {@link ScalingOperation} shrinking the
+ * image, the source image is decoded at a lower resolution.</p>
+ *
+ * <p>The reader can be configured with:</p>
+ * <ul>
+ *   <li><code>derivative-cache-dir</code>: a directory in which the images
+ *     produced are kept, keyed by the source, its last modification date and
+ *     the operations applied. Images are only read from the source again if
+ *     they are not in the directory. When a source changes, the images made
+ *     from its previous version are deleted. Off by default.</li>
+ *   <li><code>max-large-decodes</code>: the number of large images which are
+ *     processed at once (default is the number of processors); further
+ *     requests wait. Readers configured with the same number share the
+ *     limit.</li>
+ *   <li><code>large-decode-pixels</code>: the number of decoded pixels
+ *     from which on an image counts as large (default is 4000000).</li>
+ * </ul>
+ *
  * @cocoon.sitemap.component.documentation
  * The <code>ImageOpReader</code> component is used to serve binary image data
  * in a sitemap pipeline. It makes use of HTTP Headers to determine if
@@ -70,11 +100,19 @@ final public class ImageOpReader extends ResourceReader
 
     private final static String FORMAT_DEFAULT = "png";
 
+    private final static long LARGE_DECODE_PIXELS_DEFAULT = 4000000;
+
+    /** The limiters of large decodes, by number of permits */
+    private final static Map limiters = new HashMap();
+
     private String          format;
     private ArrayList       effectsStack;
     private ServiceSelector operationSelector;
     private ServiceManager  manager;
     private SourceResolver  resolver;
+    private File            derivativeCacheDir;
+    private Semaphore       largeDecodes;
+    private long            largeDecodePixels;
 
     /**
      * Read reader configuration
@@ -82,6 +120,20 @@ final public class ImageOpReader extends ResourceReader
     public void configure(Configuration configuration) 
     throws ConfigurationException {
         super.configure( configuration );
+        String cacheDir = configuration.getChild( "derivative-cache-dir" ).getValue( null );
+        if( cacheDir != null ) {
+            derivativeCacheDir = new File( cacheDir );
+            if( ! derivativeCacheDir.isDirectory() && ! derivativeCacheDir.mkdirs() ) {
+                throw new ConfigurationException( "Unable to create the derivative cache directory " + cacheDir );
+            }
+        }
+        int maxLargeDecodes = configuration.getChild( "max-large-decodes" )
+                                           .getValueAsInteger( Runtime.getRuntime().availableProcessors() );
+        if( maxLargeDecodes > 0 ) {
+            largeDecodes = getLimiter( maxLargeDecodes );
+        }
+        largeDecodePixels = configuration.getChild( "large-decode-pixels" ).getValueAsLong( LARGE_DECODE_PIXELS_DEFAULT );
+
         Configuration effects = configuration.getChild( "effects" );
         try {
             configureEffects( effects );
@@ -125,19 +177,82 @@ final public class ImageOpReader extends ResourceReader
         setupEffectsStack( par, resolver );
     }
 
+    /**
+     * Send the cached derivative if there is one, without opening the
+     * source.
+     *
+     * @see org.apache.cocoon.reading.ResourceReader#generate()
+     */
+    public void generate()
+    throws IOException, ProcessingException {
+        if( effectsStack.size() > 0 ) {
+            File derivative = getDerivativeFile();
+            if( derivative != null && derivative.isFile() ) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("passing cached derivative " + derivative);
+                }
+                response.setHeader("Accept-Ranges", "none");
+                writeDerivative( derivative );
+                return;
+            }
+        }
+        super.generate();
+    }
+
     protected void processStream( InputStream inputStream ) 
     throws IOException, ProcessingException {
         if( effectsStack.size() > 0 ) {
             // since we create the image on the fly
             response.setHeader("Accept-Ranges", "none");
 
-            BufferedImage image = ImageIO.read( inputStream );
-            if( image == null ) {
-                throw new ProcessingException( "Unable to decode the InputStream. Possibly an unknown format." );                
+            File derivative = getDerivativeFile();
+            ImageInputStream input = ImageIO.createImageInputStream( inputStream );
+            Iterator readers = input == null ? null : ImageIO.getImageReaders( input );
+            if( readers == null || ! readers.hasNext() ) {
+                throw new ProcessingException( "Unable to decode the InputStream. Possibly an unknown format." );
             }
-            image = applyEffectsStack( image );
+            ImageReader reader = (ImageReader) readers.next();
+            try {
+                reader.setInput( input, true, true );
+                ImageReadParam param = reader.getDefaultReadParam();
+                int width = reader.getWidth( 0 );
+                int height = reader.getHeight( 0 );
+                int subsampling = getSourceSubsampling( width, height );
+                if( subsampling > 1 ) {
+                    if (getLogger().isDebugEnabled()) {
+                        getLogger().debug( "Decoding " + width + "x" + height + " image subsampled by " + subsampling );
+                    }
+                    param.setSourceSubsampling( subsampling, subsampling, 0, 0 );
+                }
 
-            write( image );
+                // Bound the number of large images in memory at once
+                long pixels = ( (long) width / subsampling ) * ( height / subsampling );
+                boolean large = largeDecodes != null && pixels >= largeDecodePixels;
+                if( large ) {
+                    try {
+                        largeDecodes.acquire();
+                    } catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        throw new ProcessingException( "Interrupted while waiting to decode the image.", e );
+                    }
+                }
+                try {
+                    BufferedImage image = reader.read( 0, param );
+                    image = applyEffectsStack( image );
+                    if( derivative != null ) {
+                        writeDerivative( image, derivative );
+                    } else {
+                        write( image, out );
+                    }
+                } finally {
+                    if( large ) {
+                        largeDecodes.release();
+                    }
+                }
+            } finally {
+                reader.dispose();
+                input.close();
+            }
         } else {
             // only read the resource - no modifications requested
             if (getLogger().isDebugEnabled()) {
@@ -147,6 +262,150 @@ final public class ImageOpReader extends ResourceReader
         }
     }
 
+    /**
+     * Return the factor the source image is subsampled by when decoding it.
+     */
+    private int getSourceSubsampling( int width, int height ) {
+        Object first = effectsStack.get( 0 );
+        if( ! ( first instanceof ScalingOperation ) ) {
+            return 1;
+        }
+        ScalingOperation op = (ScalingOperation) first;
+        int subsampling = Math.max( 1, op.getSourceSubsampling( width, height ) );
+        op.setSourceSubsampling( subsampling );
+        return subsampling;
+    }
+
+    /**
+     * Return the shared limiter with the given number of permits.
+     */
+    static Semaphore getLimiter( int permits ) {
+        synchronized( limiters ) {
+            Integer key = new Integer( permits );
+            Semaphore limiter = (Semaphore) limiters.get( key );
+            if( limiter == null ) {
+                limiter = new Semaphore( permits, true );
+                limiters.put( key, limiter );
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * Return the file caching the image for the current request, or
+     * <code>null</code> if there is none. The name is made of a hash of the
+     * key and the last modification date of the source, so that the
+     * derivatives of a source which has changed can be found and deleted.
+     */
+    private File getDerivativeFile() throws ProcessingException {
+        if( derivativeCacheDir == null ) {
+            return null;
+        }
+        long lastModified = inputSource.getLastModified();
+        if( lastModified == 0 ) {
+            // can't tell if the derivative is still valid
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance( "MD5" );
+            byte[] hash = digest.digest( getKey().toString().getBytes( "UTF-8" ) );
+            StringBuffer name = new StringBuffer( 2 * hash.length + 1 + format.length() );
+            for( int i = 0; i < hash.length; i++ ) {
+                name.append( Character.forDigit( ( hash[i] >> 4 ) & 0x0f, 16 ) );
+                name.append( Character.forDigit( hash[i] & 0x0f, 16 ) );
+            }
+            name.append( '-' ).append( lastModified ).append( '.' ).append( format );
+            return new File( derivativeCacheDir, name.toString() );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new ProcessingException( "Unable to compute the derivative file name", e );
+        } catch( IOException e ) {
+            throw new ProcessingException( "Unable to compute the derivative file name", e );
+        }
+    }
+
+    /**
+     * Write the image to the derivative file and send the file.
+     */
+    private void writeDerivative( BufferedImage image, File derivative )
+    throws ProcessingException, IOException {
+        // Write to a temporary file first, so that concurrent requests never
+        // see an incomplete file
+        File temp = File.createTempFile( "imageop", ".tmp", derivativeCacheDir );
+        try {
+            OutputStream os = new FileOutputStream( temp );
+            try {
+                write( image, os );
+            } finally {
+                os.close();
+            }
+            if( ! temp.renameTo( derivative ) ) {
+                // another request was faster, or the rename is not possible
+                if( ! derivative.isFile() ) {
+                    getLogger().warn( "Unable to store derivative " + derivative );
+                    writeDerivative( temp );
+                    return;
+                }
+            }
+            deleteStaleDerivatives( derivative );
+        } finally {
+            if( temp.exists() ) {
+                temp.delete();
+            }
+        }
+        writeDerivative( derivative );
+    }
+
+    /**
+     * Delete the derivatives of the same key made from older versions of the
+     * source, so that the cache does not grow each time a source changes.
+     */
+    private void deleteStaleDerivatives( File derivative ) {
+        String name = derivative.getName();
+        final String prefix = name.substring( 0, name.indexOf( '-' ) + 1 );
+        File[] stale = derivativeCacheDir.listFiles( new FilenameFilter() {
+            public boolean accept( File dir, String fileName ) {
+                return fileName.startsWith( prefix );
+            }
+        });
+        if( stale == null ) {
+            return;
+        }
+        for( int i = 0; i < stale.length; i++ ) {
+            if( ! stale[i].equals( derivative ) ) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("deleting stale derivative " + stale[i]);
+                }
+                stale[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Send a cached image.
+     */
+    private void writeDerivative( File derivative )
+    throws ProcessingException, IOException {
+        Iterator writers = ImageIO.getImageWritersByFormatName( format );
+        if( ! writers.hasNext() ) {
+            throw new ProcessingException( "Unable to find a ImageWriter: " + format );
+        }
+        ImageWriterSpi spi = ((ImageWriter) writers.next()).getOriginatingProvider();
+        response.setHeader("Content-Type", spi.getMIMETypes()[0] );
+        response.setHeader("Content-Length", Long.toString( derivative.length() ) );
+
+        InputStream is = new FileInputStream( derivative );
+        try {
+            byte[] buffer = new byte[bufferSize];
+            int length;
+            while( ( length = is.read( buffer ) ) > -1 ) {
+                out.write( buffer, 0, length );
+            }
+        } finally {
+            is.close();
+        }
+        out.flush();
+    }
+
     /**
      * Generate the unique key.
      * This key must be unique inside the space of this component.
@@ -265,7 +524,7 @@ final public class ImageOpReader extends ResourceReader
         return newImage;
     }
 
-    private void write( BufferedImage image )
+    private void write( BufferedImage image, OutputStream os )
     throws ProcessingException, IOException {
         ImageTypeSpecifier its = ImageTypeSpecifier.createFromRenderedImage( image );
         Iterator writers = ImageIO.getImageWriters( its, format );
@@ -283,14 +542,14 @@ final public class ImageOpReader extends ResourceReader
             getLogger().info( "Setting content-type: " + mimetypes[0] );
         }
         response.setHeader("Content-Type", mimetypes[0] );
-        ImageOutputStream output = ImageIO.createImageOutputStream( out );
+        ImageOutputStream output = ImageIO.createImageOutputStream( os );
         try {
             writer.setOutput( output );
             writer.write( image );
         } finally {
             writer.dispose();
             output.close();
-            out.flush();
+            os.flush();
             // Niclas Hedhman: Stream is closed in superclass.
         }
     }
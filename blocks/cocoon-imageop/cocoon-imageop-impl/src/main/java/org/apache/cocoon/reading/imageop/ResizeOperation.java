@@ -23,7 +23,7 @@ import org.apache.avalon.framework.parameters.Parameters;
 import org.apache.cocoon.ProcessingException;
 
 public class ResizeOperation
-    implements ImageOperation {
+    implements ScalingOperation {
 
     private String  prefix;
     private boolean enabled;
@@ -54,19 +54,35 @@ public class ResizeOperation
     }
  
     public WritableRaster apply( WritableRaster image ) {
-        if( ! enabled ) {
+        double[] scales = getScales( image.getWidth(), image.getHeight() );
+        if( scales == null ) {
             return image;
         }
 
+        AffineTransform scale = AffineTransform.getScaleInstance( scales[0], scales[1] );
+        AffineTransformOp op = new AffineTransformOp( scale, AffineTransformOp.TYPE_BILINEAR );
+        WritableRaster scaledRaster = op.filter( image, null );
+        return scaledRaster;
+    }
+
+    /**
+     * Return the horizontal and vertical scale for an image of the given
+     * size, or <code>null</code> if the image is left unchanged.
+     */
+    private double[] getScales( int imageWidth, int imageHeight ) {
+        if( ! enabled ) {
+            return null;
+        }
+
         // If parameter width or height is zero, use the original image size.
         // Therefore, if both are zero, the image is returned unchanged.
 
         if ( width == 0 && height == 0 ) {
-            return image;
+            return null;
         }
 
-        double xScale = width == 0 ? 1 : width / (double) image.getWidth();
-        double yScale = height == 0 ? 1 : height / (double) image.getHeight();
+        double xScale = width == 0 ? 1 : width / (double) imageWidth;
+        double yScale = height == 0 ? 1 : height / (double) imageHeight;
 
         if (allowEnlarge || (xScale <= 1 && yScale <= 1))
         {
@@ -90,14 +106,25 @@ public class ResizeOperation
 	            else
 	                yScale = xScale;
 	        }
-	        
-	        AffineTransform scale = AffineTransform.getScaleInstance( xScale, yScale );
-	        AffineTransformOp op = new AffineTransformOp( scale, AffineTransformOp.TYPE_BILINEAR );
-	        WritableRaster scaledRaster = op.filter( image, null );
-	        return scaledRaster;
+	        return new double[] { xScale, yScale };
         } else {
-        		return image;
+        		return null;
+        }
+    }
+
+    public int getSourceSubsampling( int imageWidth, int imageHeight ) {
+        double[] scales = getScales( imageWidth, imageHeight );
+        // Only if both directions are shrunk, as the target size is computed
+        // from the size of the subsampled image
+        if( scales == null || scales[0] >= 1 || scales[1] >= 1 ) {
+            return 1;
         }
+        // Keep twice the target resolution for the interpolation
+        return Math.max( 1, (int) ( 1 / ( 2 * Math.max( scales[0], scales[1] ) ) ) );
+    }
+
+    public void setSourceSubsampling( int subsampling ) {
+        // the target size is absolute
     }
 
     public String getKey() {
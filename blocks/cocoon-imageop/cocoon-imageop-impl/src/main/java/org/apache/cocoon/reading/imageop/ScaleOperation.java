@@ -22,11 +22,12 @@ import java.awt.image.WritableRaster;
 import org.apache.avalon.framework.parameters.Parameters;
 
 public class ScaleOperation
-    implements ImageOperation {
+    implements ScalingOperation {
 
     private String  prefix;
     private boolean enabled;
     private float   scale;
+    private int     subsampling;
 
     public void setPrefix( String prefix ) {
         this.prefix = prefix;
@@ -35,18 +36,33 @@ public class ScaleOperation
     public void setup( Parameters params ) {
         enabled = params.getParameterAsBoolean( prefix + "enabled", true);
         scale = params.getParameterAsFloat( prefix + "scale", 1.0f );
+        subsampling = 1;
     }
 
     public WritableRaster apply( WritableRaster image ) {
         if( ! enabled ) {
             return image;
         }
-        AffineTransform scale = AffineTransform.getScaleInstance( this.scale, this.scale );
+        // The image has been shrunk already while decoding
+        double factor = this.scale * this.subsampling;
+        AffineTransform scale = AffineTransform.getScaleInstance( factor, factor );
         AffineTransformOp op = new AffineTransformOp( scale, AffineTransformOp.TYPE_BILINEAR );
         WritableRaster scaledRaster = op.filter( image, null );
         return scaledRaster;
     }
 
+    public int getSourceSubsampling( int width, int height ) {
+        if( ! enabled || scale <= 0 || scale >= 1 ) {
+            return 1;
+        }
+        // Keep twice the target resolution for the interpolation
+        return Math.max( 1, (int) ( 1 / ( 2 * scale ) ) );
+    }
+
+    public void setSourceSubsampling( int subsampling ) {
+        this.subsampling = subsampling;
+    }
+
     public String getKey() {
         return "scale:" 
                + ( enabled ? "enable" : "disable" )
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.reading.imageop;
+
+/**
+ * An operation changing the size of the image by a known amount. If it is
+ * the first operation of a reader, the source image is decoded at a lower
+ * resolution when the operation shrinks it anyway.
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public interface ScalingOperation extends ImageOperation {
+
+    /**
+     * Return by which factor the source image of the given size can be
+     * subsampled while decoding, without changing the result of this
+     * operation noticeably. 1 means no subsampling.
+     */
+    int getSourceSubsampling( int width, int height );
+
+    /**
+     * Tell this operation by which factor the image passed to
+     * {@link #apply(java.awt.image.WritableRaster)} has been subsampled.
+     */
+    void setSourceSubsampling( int subsampling );
+}
@@ -17,15 +17,23 @@
 package org.apache.cocoon.reading.imageop;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
 
 import javax.imageio.ImageIO;
 
 import org.apache.avalon.framework.parameters.Parameters;
 import org.apache.cocoon.SitemapComponentTestCase;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.impl.ResourceSource;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 public class ImageOpReaderTestCase extends SitemapComponentTestCase {
     String imgBase = "resource://org/apache/cocoon/reading/imageop/";
@@ -125,4 +133,130 @@ public class ImageOpReaderTestCase extends SitemapComponentTestCase {
                 resizedImage.flush();
         }
     }
+
+    public void testSubsampledDecode() throws Exception {
+        String inputURI = imgBase + "4x2.jpg";
+
+        // Shrinking by 4 decodes the source at half its resolution
+        Parameters params = new Parameters();
+        params.setParameter("scale-scale", "0.25");
+        BufferedImage decodedImage = ImageIO.read(new ByteArrayInputStream(
+                read("imageop-scale", params, inputURI)));
+        assertEquals(2, RecordingScaleOperation.subsampling);
+        assertEquals(2, decodedImage.getWidth());
+        assertEquals(1, decodedImage.getHeight());
+
+        // Enlarging decodes the full image
+        params.setParameter("scale-scale", "2");
+        decodedImage = ImageIO.read(new ByteArrayInputStream(
+                read("imageop-scale", params, inputURI)));
+        assertEquals(1, RecordingScaleOperation.subsampling);
+        assertEquals(4, decodedImage.getWidth());
+        assertEquals(2, decodedImage.getHeight());
+    }
+
+    public void testDerivativeCache() throws Exception {
+        File source = File.createTempFile("imageop", ".jpg");
+        source.deleteOnExit();
+        OutputStream os = new FileOutputStream(source);
+        try {
+            IOUtils.copy(new ResourceSource(imgBase + "4x2.jpg").getInputStream(), os);
+        } finally {
+            os.close();
+        }
+        String inputURI = source.toURI().toString();
+        File cacheDir = new File("target/imageop-derivatives");
+        if (cacheDir.isDirectory()) {
+            FileUtils.cleanDirectory(cacheDir);
+        }
+
+        Parameters params = new Parameters();
+        params.setParameter("resize-allow-enlarge", "false");
+        params.setParameter("resize-width", "8");
+        params.setParameter("resize-height", "4");
+
+        // A miss stores the derivative
+        byte[] derivative = read("imageop-cached", params, inputURI);
+        assertEquals(4, ImageIO.read(new ByteArrayInputStream(derivative)).getWidth());
+        File[] derivatives = cacheDir.listFiles();
+        assertEquals(1, derivatives.length);
+        assertIdentical(derivative, FileUtils.readFileToByteArray(derivatives[0]));
+
+        // A hit sends the derivative
+        byte[] marker = "cached derivative".getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(derivatives[0], marker);
+        assertIdentical(marker, read("imageop-cached", params, inputURI));
+
+        // Other operations are a miss
+        params.setParameter("resize-width", "16");
+        read("imageop-cached", params, inputURI);
+        assertEquals(2, cacheDir.listFiles().length);
+
+        // A changed source is a miss and replaces the old derivative
+        params.setParameter("resize-width", "8");
+        assertTrue(source.setLastModified(source.lastModified() - 60000));
+        derivative = read("imageop-cached", params, inputURI);
+        assertEquals(4, ImageIO.read(new ByteArrayInputStream(derivative)).getWidth());
+        assertEquals(2, cacheDir.listFiles().length);
+        assertFalse(derivatives[0].exists());
+    }
+
+    public void testDecodeLimiter() throws Exception {
+        final String inputURI = imgBase + "4x2.jpg";
+        final Parameters params = new Parameters();
+        params.setParameter("resize-allow-enlarge", "false");
+        params.setParameter("resize-width", "8");
+        params.setParameter("resize-height", "4");
+
+        final Semaphore limiter = ImageOpReader.getLimiter(1);
+        final byte[][] result = new byte[1][];
+        final Throwable[] error = new Throwable[1];
+        // the pooled components are bound to the request of the thread
+        final RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        Thread decoder = new Thread() {
+            public void run() {
+                RequestContextHolder.setRequestAttributes(attributes);
+                try {
+                    result[0] = read("imageop-limited", params, inputURI);
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        limiter.acquire();
+        try {
+            // Small images are not limited
+            assertNotNull(read("imageop-resize", params, inputURI));
+
+            // A large image waits for the permit
+            decoder.start();
+            decoder.join(500);
+            assertTrue("The decode must wait for the limiter", decoder.isAlive());
+            assertNull(result[0]);
+        } finally {
+            limiter.release();
+        }
+        decoder.join(5000);
+        assertFalse(decoder.isAlive());
+        assertNull(error[0]);
+        assertEquals(4, ImageIO.read(new ByteArrayInputStream(result[0])).getWidth());
+        assertEquals(1, limiter.availablePermits());
+    }
+
+    /**
+     * A scale operation which records the subsampling of the decoded image
+     * and returns the image unchanged.
+     */
+    public static class RecordingScaleOperation extends ScaleOperation {
+        static int subsampling;
+
+        public void setSourceSubsampling(int subsampling) {
+            super.setSourceSubsampling(subsampling);
+            RecordingScaleOperation.subsampling = subsampling;
+        }
+
+        public WritableRaster apply(WritableRaster image) {
+            return image;
+        }
+    }
 }
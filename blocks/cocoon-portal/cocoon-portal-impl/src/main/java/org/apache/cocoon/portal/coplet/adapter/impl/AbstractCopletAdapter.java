@@ -20,10 +20,13 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletRequest;
+
 import org.apache.cocoon.portal.PortalException;
 import org.apache.cocoon.portal.event.CopletInstanceEvent;
 import org.apache.cocoon.portal.event.Receiver;
@@ -72,6 +75,16 @@ import EDU.oswego.cs.dl.util.concurrent.CountDown;
  *   <td><code>null</code></td>
  *  </tr>
  *  <tr>
+ *   <th>prefetch</th>
+ *   <td>Shall the content of the coplet be loaded in the background before the page
+ *       is rendered? This requires the prefetch response processor aspect. By default
+ *       only coplets with a timeout are prefetched, as they are loaded by a background
+ *       thread anyway. A prefetched coplet is buffered.</td>
+ *   <td></td>
+ *   <td>boolean</td>
+ *   <td><code>null</code></td>
+ *  </tr>
+ *  <tr>
  *   <th>cache-enabled</th>
  *   <td>Enable/disable the caching of the coplet.</td>
  *   <td></td>
@@ -132,6 +145,12 @@ public abstract class AbstractCopletAdapter
     /** The configuration name for timeout. */
     public static final String CONFIGURATION_TIMEOUT = "timeout";
 
+    /** The configuration name for prefetching. */
+    public static final String CONFIGURATION_PREFETCH = "prefetch";
+
+    /** The request attribute containing the prefetched contents by coplet instance id. */
+    public static final String PREFETCHED_CONTENTS = PrefetchedContent.class.getName();
+
     /** The configuration name for enabling/disabling the cache. */
     public static final String CONFIGURATION_ENABLE_CACHING = "cache-enabled";
 
@@ -209,6 +228,31 @@ public abstract class AbstractCopletAdapter
     public void toSAX(CopletInstance coplet, ContentHandler contentHandler)
     throws SAXException {
         final long startTime = System.currentTimeMillis();
+        final PrefetchedContent prefetched = this.removePrefetchedContent(coplet);
+        if ( prefetched != null && !prefetched.cancel() ) {
+            boolean read = false;
+            try {
+                read = prefetched.await();
+            } catch (InterruptedException ignore) {
+                // ignored
+            }
+            final Exception error = prefetched.getException();
+            if ( error != null && this.getLogger().isWarnEnabled() ) {
+                this.getLogger().warn("Unable to get content of coplet: " + coplet.getId(), error);
+            }
+            if ( read ) {
+                prefetched.getBuffer().toSAX( contentHandler );
+            } else {
+                this.renderNotAvailable(coplet, contentHandler, error);
+            }
+            if ( this.getLogger().isInfoEnabled() ) {
+                final long msecs = System.currentTimeMillis() - startTime;
+                this.getLogger().info("Streamed prefetched coplet " + coplet.getCopletDefinition().getId() +
+                                      " (instance " + coplet.getId() + ") in " + msecs + "ms.");
+            }
+            return;
+        }
+
         Boolean bool = (Boolean) this.getConfiguration( coplet, CONFIGURATION_BUFFERING );
         Integer timeout = (Integer) this.getConfiguration( coplet, CONFIGURATION_TIMEOUT);
         if ( timeout != null ) {
@@ -250,15 +294,7 @@ public abstract class AbstractCopletAdapter
             if ( read ) {
                 buffer.toSAX( contentHandler );
             } else {
-                if ( !this.renderErrorContent(coplet, contentHandler, error)) {
-                    // FIXME - get correct error message
-                    contentHandler.startDocument();
-                    contentHandler.startElement("", "p", "p", new AttributesImpl());
-                    final char[] msg = ("The coplet " + coplet.getId() + " is currently not available.").toCharArray();
-                    contentHandler.characters(msg, 0, msg.length);
-                    contentHandler.endElement("", "p", "p");
-                    contentHandler.endDocument();
-                }
+                this.renderNotAvailable(coplet, contentHandler, error);
             }
         } else {
             this.streamContentAndCache( coplet, contentHandler );
@@ -270,6 +306,86 @@ public abstract class AbstractCopletAdapter
         }
     }
 
+    /**
+     * Render the error content or a not availability notice for a coplet.
+     */
+    protected void renderNotAvailable(CopletInstance coplet,
+                                      ContentHandler contentHandler,
+                                      Exception      error)
+    throws SAXException {
+        if ( !this.renderErrorContent(coplet, contentHandler, error)) {
+            // FIXME - get correct error message
+            contentHandler.startDocument();
+            contentHandler.startElement("", "p", "p", new AttributesImpl());
+            final char[] msg = ("The coplet " + coplet.getId() + " is currently not available.").toCharArray();
+            contentHandler.characters(msg, 0, msg.length);
+            contentHandler.endElement("", "p", "p");
+            contentHandler.endDocument();
+        }
+    }
+
+    /**
+     * Create the prefetched content for a coplet and register it for the
+     * current request. The content is not loaded by this method, this is
+     * up to the caller.
+     * Coplets are prefetched if configured to, or if they have a timeout.
+     * Coplets with cached content are not prefetched.
+     *
+     * @param coplet         The coplet instance.
+     * @param defaultTimeout The max time in seconds loading may take if the coplet
+     *                       does not configure a timeout, 0 for no limit.
+     * @return The prefetched content or null if the coplet is not prefetched.
+     */
+    public PrefetchedContent prefetch(CopletInstance coplet, int defaultTimeout) {
+        final Boolean prefetch = (Boolean) this.getConfiguration( coplet, CONFIGURATION_PREFETCH );
+        final Integer timeout = (Integer) this.getConfiguration( coplet, CONFIGURATION_TIMEOUT );
+        if ( prefetch == null ? timeout == null : !prefetch.booleanValue() ) {
+            return null;
+        }
+        if ( this.isCached(coplet) ) {
+            return null;
+        }
+
+        final int seconds = (timeout != null ? timeout.intValue() : defaultTimeout);
+        final PrefetchedContent content = new PrefetchedContent(this, coplet, seconds * 1000L);
+        final HttpServletRequest request = this.portalService.getRequestContext().getRequest();
+        Map contents = (Map) request.getAttribute(PREFETCHED_CONTENTS);
+        if ( contents == null ) {
+            contents = new HashMap();
+            request.setAttribute(PREFETCHED_CONTENTS, contents);
+        }
+        contents.put(coplet.getId(), content);
+        return content;
+    }
+
+    /**
+     * Remove the prefetched content of a coplet from the current request.
+     * @return The prefetched content or null.
+     */
+    protected PrefetchedContent removePrefetchedContent(CopletInstance coplet) {
+        final HttpServletRequest request = this.portalService.getRequestContext().getRequest();
+        final Map contents = (Map) request.getAttribute(PREFETCHED_CONTENTS);
+        if ( contents == null ) {
+            return null;
+        }
+        return (PrefetchedContent) contents.remove(coplet.getId());
+    }
+
+    /**
+     * Check if the content of the coplet is in the cache.
+     */
+    protected boolean isCached(CopletInstance coplet) {
+        boolean cachingEnabled = ((Boolean)this.getConfiguration(coplet, CONFIGURATION_ENABLE_CACHING, Boolean.TRUE)).booleanValue();
+        if ( !cachingEnabled || coplet.getTemporaryAttribute(DO_NOT_CACHE) != null ) {
+            return false;
+        }
+        boolean cacheGlobal = ((Boolean)this.getConfiguration(coplet, CONFIGURATION_CACHE_GLOBAL, Boolean.FALSE)).booleanValue();
+        if ( cacheGlobal ) {
+            return coplet.getCopletDefinition().getTemporaryAttribute(this.getCacheKey(coplet)) != null;
+        }
+        return coplet.getTemporaryAttribute(CACHE) != null;
+    }
+
     /**
      * This method does the caching (if enabled).
      */
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.portal.coplet.adapter.impl;
+
+import org.apache.cocoon.portal.PortalException;
+import org.apache.cocoon.portal.om.CopletInstance;
+import org.apache.cocoon.portal.util.SaxBuffer;
+
+/**
+ * The content of a coplet which is loaded in the background before the
+ * page is rendered. The content is created by
+ * {@link AbstractCopletAdapter#prefetch(CopletInstance, int)} and picked up
+ * by {@link AbstractCopletAdapter#toSAX(CopletInstance, org.xml.sax.ContentHandler)}
+ * when the renderer reaches the coplet.
+ *
+ * <p>If the renderer reaches the coplet before loading has started, the
+ * prefetch is cancelled and the coplet is loaded as usual. Otherwise the
+ * renderer waits for the content until the deadline of the coplet, which
+ * starts when loading starts.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public final class PrefetchedContent {
+
+    private static final int PENDING   = 0;
+    private static final int RUNNING   = 1;
+    private static final int DONE      = 2;
+    private static final int CANCELLED = 3;
+
+    private final AbstractCopletAdapter adapter;
+
+    private final CopletInstance coplet;
+
+    /** The max time in milliseconds loading may take, 0 for no limit. */
+    private final long timeout;
+
+    /** The loader, wrapped by the adapter while we are still in the request thread. */
+    private final Runnable loader;
+
+    private final SaxBuffer buffer = new SaxBuffer();
+
+    private int state = PENDING;
+
+    private long deadline;
+
+    private Exception exception;
+
+    PrefetchedContent(AbstractCopletAdapter adapter, CopletInstance coplet, long timeout) {
+        this.adapter = adapter;
+        this.coplet = coplet;
+        this.timeout = timeout;
+        this.loader = adapter.getLoaderRunnable(new Loader());
+    }
+
+    public CopletInstance getCopletInstance() {
+        return this.coplet;
+    }
+
+    /**
+     * Load the content, unless loading has already been started or the
+     * prefetch has been cancelled.
+     */
+    public void load() {
+        synchronized (this) {
+            if (this.state != PENDING) {
+                return;
+            }
+            this.state = RUNNING;
+            if (this.timeout > 0) {
+                this.deadline = System.currentTimeMillis() + this.timeout;
+            }
+        }
+        try {
+            this.loader.run();
+        } catch (Throwable t) {
+            synchronized (this) {
+                if (this.exception == null) {
+                    this.exception = new PortalException("Unable to get content of coplet: " + this.coplet.getId(), t);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                this.state = DONE;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cancel the prefetch if loading has not been started yet.
+     * @return True if the prefetch has been cancelled.
+     */
+    public synchronized boolean cancel() {
+        if (this.state == PENDING) {
+            this.state = CANCELLED;
+            return true;
+        }
+        return this.state == CANCELLED;
+    }
+
+    /**
+     * Wait until the content is loaded or the deadline has passed.
+     * @return True if the content has been loaded without an error.
+     */
+    synchronized boolean await() throws InterruptedException {
+        while (this.state == RUNNING) {
+            if (this.deadline == 0) {
+                this.wait();
+            } else {
+                final long rest = this.deadline - System.currentTimeMillis();
+                if (rest <= 0) {
+                    return false;
+                }
+                this.wait(rest);
+            }
+        }
+        return this.state == DONE && this.exception == null;
+    }
+
+    SaxBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    synchronized Exception getException() {
+        return this.exception;
+    }
+
+    private final class Loader implements Runnable {
+
+        public void run() {
+            try {
+                adapter.streamContentAndCache(coplet, buffer);
+            } catch (Exception e) {
+                synchronized (PrefetchedContent.this) {
+                    exception = e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.portal.services.aspects.impl;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.cocoon.portal.coplet.adapter.impl.AbstractCopletAdapter;
+import org.apache.cocoon.portal.coplet.adapter.impl.PrefetchedContent;
+import org.apache.cocoon.portal.om.CompositeLayout;
+import org.apache.cocoon.portal.om.CopletAdapter;
+import org.apache.cocoon.portal.om.CopletDefinitionFeatures;
+import org.apache.cocoon.portal.om.CopletInstance;
+import org.apache.cocoon.portal.om.CopletInstanceFeatures;
+import org.apache.cocoon.portal.om.CopletLayout;
+import org.apache.cocoon.portal.om.Item;
+import org.apache.cocoon.portal.om.Layout;
+import org.apache.cocoon.portal.om.LayoutFeatures;
+import org.apache.cocoon.portal.om.LinkLayout;
+import org.apache.cocoon.portal.om.NamedItem;
+import org.apache.cocoon.portal.om.LayoutFeatures.RenderInfo;
+import org.apache.cocoon.portal.services.PortalManager;
+import org.apache.cocoon.portal.services.ProfileManager;
+import org.apache.cocoon.portal.services.aspects.ResponseProcessorAspect;
+import org.apache.cocoon.portal.services.aspects.ResponseProcessorAspectContext;
+import org.apache.cocoon.portal.util.AbstractBean;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.commons.lang.StringUtils;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * This aspect loads the coplets of the current page concurrently before the
+ * page is rendered. It walks the layout which is about to be rendered, skipping
+ * hidden tabs and minimized coplets, and starts loading the coplets into buffers.
+ * The coplet adapters stream the buffered content when the renderer reaches
+ * the coplet, waiting at most until the deadline of the coplet.
+ *
+ * Only coplets of adapters extending the {@link AbstractCopletAdapter} are
+ * prefetched, see {@link AbstractCopletAdapter#prefetch(CopletInstance, int)}
+ * for the coplets which qualify. This aspect should be the first aspect of
+ * the response processor chain.
+ *
+ * <h2>Configuration</h2>
+ * <table><tbody>
+ * <tr>
+ *   <th>max-concurrent</th>
+ *   <td>The max number of coplets of a page loaded at the same time.</td>
+ *   <td></td>
+ *   <td>int</td>
+ *   <td><code>4</code></td>
+ *  </tr>
+ *  <tr>
+ *   <th>timeout</th>
+ *   <td>Max time in seconds loading a coplet may take, if the coplet does not
+ *       configure a timeout. <code>0</code> means no limit.</td>
+ *   <td></td>
+ *   <td>int</td>
+ *   <td><code>0</code></td>
+ *  </tr>
+ * </tbody></table>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class PrefetchResponseProcessorAspect
+    extends AbstractBean
+    implements ResponseProcessorAspect {
+
+    /** The runnable manager for loading the coplets. */
+    protected RunnableManager runnableManager;
+
+    public void setRunnableManager(RunnableManager runnableManager) {
+        this.runnableManager = runnableManager;
+    }
+
+    /**
+     * @see org.apache.cocoon.portal.services.aspects.ResponseProcessorAspect#render(org.apache.cocoon.portal.services.aspects.ResponseProcessorAspectContext, org.xml.sax.ContentHandler, java.util.Properties)
+     */
+    public void render(ResponseProcessorAspectContext context,
+                       ContentHandler                 ch,
+                       Properties                     properties)
+    throws SAXException {
+        final Properties config = context.getAspectProperties();
+        final int maxConcurrent = Integer.parseInt(config.getProperty("max-concurrent", "4"));
+        final int timeout = Integer.parseInt(config.getProperty("timeout", "0"));
+
+        final LinkedList jobs = new LinkedList();
+        final Iterator i = this.getVisibleCoplets(properties).iterator();
+        while ( i.hasNext() ) {
+            final CopletInstance cid = (CopletInstance)i.next();
+            final CopletAdapter adapter = cid.getCopletDefinition().getCopletType().getCopletAdapter();
+            if ( adapter instanceof AbstractCopletAdapter ) {
+                final PrefetchedContent content = ((AbstractCopletAdapter)adapter).prefetch(cid, timeout);
+                if ( content != null ) {
+                    jobs.add(content);
+                }
+            }
+        }
+
+        if ( !jobs.isEmpty() ) {
+            if ( this.getLogger().isDebugEnabled() ) {
+                this.getLogger().debug("Prefetching " + jobs.size() + " coplets.");
+            }
+            final int threads = Math.max(1, Math.min(maxConcurrent, jobs.size()));
+            for (int n = 0; n < threads; n++) {
+                this.runnableManager.execute(new Prefetcher(jobs));
+            }
+        }
+
+        try {
+            // start "real" rendering
+            context.invokeNext(ch, properties);
+        } finally {
+            // cancel the coplets the renderer did not reach
+            final Map contents = (Map)context.getPortalService().getRequestContext().getRequest().getAttribute(AbstractCopletAdapter.PREFETCHED_CONTENTS);
+            if ( contents != null ) {
+                final Iterator j = contents.values().iterator();
+                while ( j.hasNext() ) {
+                    ((PrefetchedContent)j.next()).cancel();
+                }
+                contents.clear();
+            }
+        }
+    }
+
+    /**
+     * Return the coplet instances which are about to be rendered.
+     */
+    protected List getVisibleCoplets(Properties properties) {
+        final List coplets = new LinkedList();
+        final ProfileManager profileManager = this.portalService.getProfileManager();
+        final String copletId = (properties == null ? null : properties.getProperty(PortalManager.PROPERTY_RENDER_COPLET, null));
+        final String layoutId = (properties == null ? null : properties.getProperty(PortalManager.PROPERTY_RENDER_LAYOUT, null));
+
+        if ( StringUtils.isNotEmpty(copletId) ) {
+            // a single coplet, nothing to gain
+            return coplets;
+        }
+        if ( StringUtils.isNotEmpty(layoutId) ) {
+            this.collectCoplets(profileManager.getLayout(layoutId), coplets);
+        } else if ( this.portalService.getRequestContext().isAjaxRequest() ) {
+            final Iterator i = CopletInstanceFeatures.getChangedCopletInstanceDataObjects(this.portalService).iterator();
+            while ( i.hasNext() ) {
+                final CopletInstance cid = (CopletInstance)i.next();
+                if ( this.isVisible(cid) ) {
+                    coplets.add(cid);
+                }
+            }
+        } else {
+            Layout portalLayout = LayoutFeatures.getFullScreenInfo(this.portalService);
+            if ( portalLayout == null ) {
+                portalLayout = profileManager.getLayout(null);
+            }
+            this.collectCoplets(portalLayout, coplets);
+        }
+        return coplets;
+    }
+
+    /**
+     * Collect the coplets of a layout which are rendered. Of tab layouts
+     * (composite layouts with named items) only the selected tab is rendered.
+     */
+    protected void collectCoplets(Layout layout, List coplets) {
+        if ( layout == null ) {
+            return;
+        }
+        if ( layout instanceof CopletLayout ) {
+            final CopletInstance cid = this.portalService.getProfileManager().getCopletInstance(((CopletLayout)layout).getCopletInstanceId());
+            if ( cid != null && this.isVisible(cid) ) {
+                coplets.add(cid);
+            }
+        } else if ( layout instanceof LinkLayout ) {
+            this.collectCoplets(this.portalService.getProfileManager().getLayout(((LinkLayout)layout).getLayoutId()), coplets);
+        } else if ( layout instanceof CompositeLayout ) {
+            final CompositeLayout compositeLayout = (CompositeLayout)layout;
+            final RenderInfo maximizedInfo = LayoutFeatures.getRenderInfo(this.portalService, layout);
+            final Item selectedTab = this.getSelectedTab(compositeLayout);
+            final Iterator i = compositeLayout.getItems().iterator();
+            while ( i.hasNext() ) {
+                final Item item = (Item)i.next();
+                if ( maximizedInfo != null && item.equals(maximizedInfo.item) ) {
+                    this.collectCoplets(maximizedInfo.layout, coplets);
+                } else if ( maximizedInfo != null && selectedTab == null ) {
+                    if ( item.getLayout() != null && item.getLayout().isStatic() ) {
+                        this.collectCoplets(item.getLayout(), coplets);
+                    }
+                } else if ( selectedTab == null || item == selectedTab ) {
+                    this.collectCoplets(item.getLayout(), coplets);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the selected tab of a tab layout, null if the layout is not a
+     * tab layout.
+     */
+    protected Item getSelectedTab(CompositeLayout layout) {
+        if ( layout.getSize() == 0 || !(layout.getItem(0) instanceof NamedItem) ) {
+            return null;
+        }
+        final String selected = LayoutFeatures.getSelectedTab(this.portalService, layout);
+        if ( selected == null ) {
+            return layout.getItem(0);
+        }
+        final Iterator i = layout.getItems().iterator();
+        while ( i.hasNext() ) {
+            final Item item = (Item)i.next();
+            if ( item instanceof NamedItem && selected.equalsIgnoreCase(((NamedItem)item).getName()) ) {
+                return item;
+            }
+        }
+        try {
+            final int index = Integer.parseInt(selected);
+            if ( index >= 0 && index < layout.getSize() ) {
+                return layout.getItem(index);
+            }
+        } catch (NumberFormatException ignore) {
+            // no tab index
+        }
+        return layout.getItem(0);
+    }
+
+    /**
+     * Check if the content of a coplet is rendered.
+     */
+    protected boolean isVisible(CopletInstance cid) {
+        return cid.getSize() != CopletInstance.SIZE_MINIMIZED
+               || CopletDefinitionFeatures.handlesSizing(cid.getCopletDefinition());
+    }
+
+    /**
+     * Loads prefetched contents until the list of jobs is empty.
+     */
+    protected static final class Prefetcher implements Runnable {
+
+        private final LinkedList jobs;
+
+        public Prefetcher(LinkedList jobs) {
+            this.jobs = jobs;
+        }
+
+        public void run() {
+            PrefetchedContent content;
+            while ( (content = this.next()) != null ) {
+                content.load();
+            }
+        }
+
+        private PrefetchedContent next() {
+            synchronized ( this.jobs ) {
+                return this.jobs.isEmpty() ? null : (PrefetchedContent)this.jobs.removeFirst();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.portal.coplet.adapter.impl;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.portal.PortalException;
+import org.apache.cocoon.portal.om.CopletInstance;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Test cases for loading, waiting for and cancelling a {@link PrefetchedContent}.
+ *
+ * @version $Id$
+ */
+public class PrefetchedContentTestCase extends TestCase {
+
+    private static final long TIMEOUT = 5000;
+
+    private TestAdapter adapter;
+    private CopletInstance coplet;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.adapter = new TestAdapter();
+        this.coplet = new CopletInstance("c1");
+    }
+
+    public void testCancelBeforeLoad() throws Exception {
+        final PrefetchedContent content = new PrefetchedContent(this.adapter, this.coplet, 0);
+        assertTrue(content.cancel());
+        // cancelling again still reports the prefetch as cancelled
+        assertTrue(content.cancel());
+
+        content.load();
+        assertEquals("A cancelled prefetch must not be loaded", 0, this.adapter.calls);
+        assertFalse(content.await());
+        assertNull(content.getException());
+    }
+
+    public void testLoadThenAwait() throws Exception {
+        final PrefetchedContent content = new PrefetchedContent(this.adapter, this.coplet, 0);
+        content.load();
+        // loading has been started, so the renderer has to use the content
+        assertFalse(content.cancel());
+        assertTrue(content.await());
+        assertEquals(1, this.adapter.calls);
+        assertEquals("content", text(content));
+        assertNull(content.getException());
+
+        // a second load is ignored
+        content.load();
+        assertEquals(1, this.adapter.calls);
+    }
+
+    /**
+     * The renderer waits for a coplet which is loaded by another thread.
+     */
+    public void testAwaitWhileLoading() throws Exception {
+        this.adapter.block = true;
+        final PrefetchedContent content = new PrefetchedContent(this.adapter, this.coplet, 0);
+        final Thread loader = load(content);
+        this.adapter.awaitStarted();
+        assertFalse(content.cancel());
+
+        this.adapter.release();
+        assertTrue(content.await());
+        assertEquals("content", text(content));
+        loader.join(TIMEOUT);
+        assertFalse(loader.isAlive());
+    }
+
+    public void testDeadlineExpiry() throws Exception {
+        this.adapter.block = true;
+        final PrefetchedContent content = new PrefetchedContent(this.adapter, this.coplet, 100);
+        final Thread loader = load(content);
+        this.adapter.awaitStarted();
+
+        final long start = System.currentTimeMillis();
+        assertFalse("The deadline must end the wait", content.await());
+        final long waited = System.currentTimeMillis() - start;
+        assertTrue("Waited " + waited + "ms", waited < TIMEOUT);
+
+        this.adapter.release();
+        loader.join(TIMEOUT);
+        assertFalse(loader.isAlive());
+        // the content completed after the deadline can be used
+        assertTrue(content.await());
+    }
+
+    public void testExceptionPropagation() throws Exception {
+        final SAXException error = new SAXException("broken");
+        this.adapter.error = error;
+        final PrefetchedContent content = new PrefetchedContent(this.adapter, this.coplet, 0);
+        content.load();
+        assertFalse(content.await());
+        assertSame(error, content.getException());
+    }
+
+    public void testRuntimeExceptionPropagation() throws Exception {
+        final RuntimeException error = new IllegalStateException("broken");
+        this.adapter.error = error;
+        final PrefetchedContent content = new PrefetchedContent(this.adapter, this.coplet, 0);
+        content.load();
+        assertFalse(content.await());
+        assertSame(error, content.getException());
+    }
+
+    /**
+     * A throwable escaping the loader runnable is wrapped.
+     */
+    public void testErrorPropagation() throws Exception {
+        final Error error = new LinkageError("broken");
+        this.adapter.error = error;
+        final PrefetchedContent content = new PrefetchedContent(this.adapter, this.coplet, 0);
+        content.load();
+        assertFalse(content.await());
+        assertTrue(content.getException() instanceof PortalException);
+        assertSame(error, content.getException().getCause());
+    }
+
+    private static Thread load(final PrefetchedContent content) {
+        final Thread loader = new Thread() {
+            public void run() {
+                content.load();
+            }
+        };
+        loader.start();
+        return loader;
+    }
+
+    private static String text(PrefetchedContent content) throws SAXException {
+        final StringBuffer text = new StringBuffer();
+        content.getBuffer().toSAX(new DefaultHandler() {
+            public void characters(char[] ch, int start, int length) {
+                text.append(ch, start, length);
+            }
+        });
+        return text.toString();
+    }
+
+    /**
+     * Streams a fixed text, fails or blocks until released.
+     */
+    static final class TestAdapter extends AbstractCopletAdapter {
+
+        int calls;
+        boolean block;
+        Throwable error;
+
+        private boolean started;
+        private boolean released;
+
+        protected void streamContent(CopletInstance coplet, ContentHandler contentHandler)
+        throws SAXException {
+            throw new UnsupportedOperationException();
+        }
+
+        public void streamContentAndCache(CopletInstance coplet, ContentHandler contentHandler)
+        throws SAXException {
+            synchronized (this) {
+                this.calls++;
+                this.started = true;
+                this.notifyAll();
+                while (this.block && !this.released) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            }
+            if (this.error instanceof SAXException) {
+                throw (SAXException) this.error;
+            }
+            if (this.error instanceof RuntimeException) {
+                throw (RuntimeException) this.error;
+            }
+            if (this.error instanceof Error) {
+                throw (Error) this.error;
+            }
+            contentHandler.startDocument();
+            contentHandler.characters("content".toCharArray(), 0, 7);
+            contentHandler.endDocument();
+        }
+
+        synchronized void awaitStarted() throws InterruptedException {
+            final long end = System.currentTimeMillis() + TIMEOUT;
+            while (!this.started && System.currentTimeMillis() < end) {
+                this.wait(TIMEOUT);
+            }
+            assertTrue("The loader must have started", this.started);
+        }
+
+        synchronized void release() {
+            this.released = true;
+            this.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.portal.services.aspects.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.portal.PortalService;
+import org.apache.cocoon.portal.RequestContext;
+import org.apache.cocoon.portal.coplet.adapter.impl.AbstractCopletAdapter;
+import org.apache.cocoon.portal.coplet.adapter.impl.PrefetchedContent;
+import org.apache.cocoon.portal.om.CopletDefinition;
+import org.apache.cocoon.portal.om.CopletInstance;
+import org.apache.cocoon.portal.om.CopletType;
+import org.apache.cocoon.portal.services.aspects.ResponseProcessorAspectContext;
+import org.apache.cocoon.thread.RunnableManager;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Test cases for prefetching the coplets of a page with the
+ * {@link PrefetchResponseProcessorAspect}.
+ *
+ * @version $Id$
+ */
+public class PrefetchResponseProcessorAspectTestCase extends TestCase {
+
+    private Map attributes;
+    private Properties config;
+    private List executed;
+    private boolean runInline;
+    private StreamingAdapter adapter;
+    private List coplets;
+    private TestAspect aspect;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.attributes = new HashMap();
+        this.config = new Properties();
+        this.executed = new ArrayList();
+
+        final PortalService portalService = (PortalService) newProxy(PortalService.class);
+        this.adapter = new StreamingAdapter();
+        this.adapter.setPortalService(portalService);
+        final CopletType type = new CopletType("type", this.adapter);
+        this.coplets = new ArrayList();
+        for (int i = 1; i <= 3; i++) {
+            final CopletDefinition definition = new CopletDefinition("def" + i, type);
+            definition.setAttribute("prefetch", Boolean.TRUE);
+            definition.setAttribute("cache-enabled", Boolean.FALSE);
+            this.coplets.add(new CopletInstance("c" + i, definition));
+        }
+
+        this.aspect = new TestAspect(this.coplets);
+        this.aspect.setPortalService(portalService);
+        this.aspect.setRunnableManager((RunnableManager) newProxy(RunnableManager.class));
+    }
+
+    /**
+     * Coplets loaded before the renderer reaches them are streamed from
+     * their buffers and not loaded again.
+     */
+    public void testLoadedBeforeRendering() throws Exception {
+        this.runInline = true;
+        final String text = render(this.coplets);
+        assertEquals("c1c2c3", text);
+        assertEquals(3, this.adapter.streamed.size());
+        assertTrue(contents().isEmpty());
+    }
+
+    /**
+     * Coplets the renderer did not reach are cancelled, so the prefetchers
+     * started too late do not load them any more.
+     */
+    public void testUnreachedCopletsCancelled() throws Exception {
+        final String text = render(this.coplets.subList(0, 1));
+        // the renderer cancels the pending prefetch and loads the coplet itself
+        assertEquals("c1", text);
+        assertEquals(1, this.adapter.streamed.size());
+        assertTrue(contents().isEmpty());
+
+        assertEquals(3, this.executed.size());
+        final Iterator i = this.executed.iterator();
+        while (i.hasNext()) {
+            ((Runnable) i.next()).run();
+        }
+        assertEquals(1, this.adapter.streamed.size());
+    }
+
+    public void testMaxConcurrent() throws Exception {
+        this.config.setProperty("max-concurrent", "2");
+        render(this.coplets);
+        assertEquals(2, this.executed.size());
+    }
+
+    /**
+     * Several prefetchers share the jobs and skip cancelled contents.
+     */
+    public void testPrefetchers() throws Exception {
+        final List contents = new ArrayList();
+        final Iterator i = this.coplets.iterator();
+        while (i.hasNext()) {
+            contents.add(this.adapter.prefetch((CopletInstance) i.next(), 0));
+        }
+        ((PrefetchedContent) contents.get(1)).cancel();
+
+        final LinkedList jobs = new LinkedList(contents);
+        new PrefetchResponseProcessorAspect.Prefetcher(jobs).run();
+        new PrefetchResponseProcessorAspect.Prefetcher(jobs).run();
+        assertTrue(jobs.isEmpty());
+        assertEquals(2, this.adapter.streamed.size());
+        assertEquals("c1", this.adapter.streamed.get(0));
+        assertEquals("c3", this.adapter.streamed.get(1));
+    }
+
+    /**
+     * Render the page, the renderer reaches the given coplets.
+     */
+    private String render(final List rendered) throws SAXException {
+        final StringBuffer text = new StringBuffer();
+        final ContentHandler handler = new DefaultHandler() {
+            public void characters(char[] ch, int start, int length) {
+                text.append(ch, start, length);
+            }
+        };
+        final PortalService portalService = (PortalService) newProxy(PortalService.class);
+        final ResponseProcessorAspectContext context = (ResponseProcessorAspectContext) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class[] { ResponseProcessorAspectContext.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getAspectProperties".equals(method.getName())) {
+                            return config;
+                        }
+                        if ("getPortalService".equals(method.getName())) {
+                            return portalService;
+                        }
+                        if ("invokeNext".equals(method.getName())) {
+                            final Iterator i = rendered.iterator();
+                            while (i.hasNext()) {
+                                adapter.toSAX((CopletInstance) i.next(), (ContentHandler) args[0]);
+                            }
+                        }
+                        return null;
+                    }
+                });
+        this.aspect.render(context, handler, null);
+        return text.toString();
+    }
+
+    private Map contents() {
+        final Map contents = (Map) this.attributes.get(AbstractCopletAdapter.PREFETCHED_CONTENTS);
+        return contents == null ? new HashMap() : contents;
+    }
+
+    /**
+     * Create the portal service, request context, request and runnable
+     * manager of the test.
+     */
+    private Object newProxy(Class type) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { type },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if ("getRequestContext".equals(name)) {
+                            return newProxy(RequestContext.class);
+                        }
+                        if ("getRequest".equals(name)) {
+                            return newProxy(HttpServletRequest.class);
+                        }
+                        if ("getAttribute".equals(name)) {
+                            return attributes.get(args[0]);
+                        }
+                        if ("setAttribute".equals(name)) {
+                            attributes.put(args[0], args[1]);
+                            return null;
+                        }
+                        if ("execute".equals(name)) {
+                            final Runnable runnable = (Runnable) args[args[0] instanceof String ? 1 : 0];
+                            executed.add(runnable);
+                            if (runInline) {
+                                runnable.run();
+                            }
+                            return null;
+                        }
+                        if ("isAjaxRequest".equals(name)) {
+                            return Boolean.FALSE;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Renders the given coplets instead of walking the layout.
+     */
+    static final class TestAspect extends PrefetchResponseProcessorAspect {
+
+        private final List coplets;
+
+        TestAspect(List coplets) {
+            this.coplets = coplets;
+        }
+
+        protected List getVisibleCoplets(Properties properties) {
+            return this.coplets;
+        }
+    }
+
+    /**
+     * Streams the id of a coplet and records the coplets streamed.
+     */
+    static final class StreamingAdapter extends AbstractCopletAdapter {
+
+        final List streamed = new ArrayList();
+
+        protected void streamContent(CopletInstance coplet, ContentHandler contentHandler)
+        throws SAXException {
+            synchronized (this.streamed) {
+                this.streamed.add(coplet.getId());
+            }
+            final char[] text = coplet.getId().toCharArray();
+            contentHandler.characters(text, 0, text.length);
+        }
+    }
+}
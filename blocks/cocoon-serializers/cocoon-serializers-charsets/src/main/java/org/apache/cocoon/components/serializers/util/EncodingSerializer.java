@@ -20,9 +20,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -43,6 +46,19 @@ import org.xml.sax.helpers.AttributesImpl;
  * This serializer is reusable. Inbetween uses, {@link #recycle()} should be
  * called, folled by {@link #setup(HttpServletRequest)} when starting a new serialization.
  *
+ * <p>The characters to be escaped are looked up in a table combining the
+ * <code>Charset</code> and the <code>Encoder</code>, built once for each pair.
+ * With {@link #setDirectEncoding(boolean) direct encoding} enabled, UTF-8 and
+ * single byte charsets are encoded straight into a byte buffer written to the
+ * output stream, instead of going through an <code>OutputStreamWriter</code>.
+ * This can be configured in the following way:</p>
+ *
+ * <pre>
+ * &lt;serializer class="org.apache.cocoon.components.serializers..." ... &gt;
+ *   &lt;direct-encoding&gt;true&lt;/direct-encoding&gt;
+ * &lt;/serializer&gt;
+ * </pre>
+ *
  * @version $Id: EncodingSerializer.java 1764605 2016-10-13 06:45:49Z ilgrosso $
  */
 public abstract class EncodingSerializer implements ContentHandler, LexicalHandler, Locator  {
@@ -50,6 +66,9 @@ public abstract class EncodingSerializer implements ContentHandler, LexicalHandl
     /** The line separator string */
     private static final char S_EOL[] = System.getProperty("line.separator").toCharArray();
 
+    /** The escape tables, by charset and encoder. */
+    private static final Map ESCAPE_TABLES = new ConcurrentHashMap();
+
     /* ====================================================================== */
 
     /** The position of the namespace URI in the attributes array. */
@@ -76,7 +95,19 @@ public abstract class EncodingSerializer implements ContentHandler, LexicalHandl
     private Locator locator;
 
     /** Our <code>Writer</code> instance. */
-    private OutputStreamWriter out;
+    private Writer out;
+
+    /** Our <code>EncodingWriter</code>, kept for reuse. */
+    private EncodingWriter encodingWriter;
+
+    /** Flag indicating if characters are encoded without a <code>OutputStreamWriter</code>. */
+    private boolean directEncoding;
+
+    /**
+     * The characters which need no escaping: a bit for each character,
+     * set if both the charset and the encoder allow it.
+     */
+    private byte[] escapeTable;
 
     /** Flag indicating if the document prolog is being processed. */
     private boolean prolog = true;
@@ -156,6 +187,9 @@ public abstract class EncodingSerializer implements ContentHandler, LexicalHandl
         this.namespaces = new Namespaces();
         this.locator = null;
         this.out = null;
+        if (this.encodingWriter != null) {
+            this.encodingWriter.recycle();
+        }
         this.prolog = true;
         if (this.encoder instanceof XMLEncoder) {
             ((XMLEncoder) this.encoder).reset();
@@ -172,12 +206,34 @@ public abstract class EncodingSerializer implements ContentHandler, LexicalHandl
     throws IOException {
         if (out == null) throw new NullPointerException("Null output");
 
-        this.out = new OutputStreamWriter(out, this.charset.getName());
+        final String name = this.charset.getName();
+        if (this.directEncoding && EncodingWriter.isSupported(name)) {
+            if (this.encodingWriter == null) {
+                this.encodingWriter = new EncodingWriter();
+            }
+            this.encodingWriter.setOutputStream(out, name);
+            this.out = this.encodingWriter;
+        } else {
+            this.out = new OutputStreamWriter(out, name);
+        }
     }
 
     public void setEncoding(String encoding)
     throws UnsupportedEncodingException {
         this.charset = CharsetFactory.newInstance().getCharset(encoding);
+        this.escapeTable = null;
+    }
+
+    /**
+     * Set whether characters are encoded straight into bytes, if the
+     * charset is supported.
+     */
+    public void setDirectEncoding(boolean directEncoding) {
+        this.directEncoding = directEncoding;
+    }
+
+    public boolean isDirectEncoding() {
+        return this.directEncoding;
     }
 
     public void setIndentPerLevel(int i) {
@@ -197,6 +253,28 @@ public abstract class EncodingSerializer implements ContentHandler, LexicalHandl
         return indentBuffer;
     }
 
+    /**
+     * Return the escape table for the current charset and encoder.
+     */
+    private byte[] getEscapeTable() {
+        if (this.escapeTable == null) {
+            final String key = this.charset.getName() + '/' + this.encoder.getClass().getName();
+            byte[] table = (byte[]) ESCAPE_TABLES.get(key);
+            if (table == null) {
+                table = new byte[(Character.MAX_VALUE + 1) >> 3];
+                for (int x = 0; x <= Character.MAX_VALUE; x++) {
+                    final char c = (char) x;
+                    if (this.charset.allows(c) && this.encoder.allows(c)) {
+                        table[x >> 3] |= (byte) (1 << (x & 0x07));
+                    }
+                }
+                ESCAPE_TABLES.put(key, table);
+            }
+            this.escapeTable = table;
+        }
+        return this.escapeTable;
+    }
+
     /**
      * Encode and write a <code>String</code>
      */
@@ -227,10 +305,11 @@ public abstract class EncodingSerializer implements ContentHandler, LexicalHandl
             throw new IndexOutOfBoundsException("Invalid data");
         if (length == 0) return;
 
+        final byte table[] = this.getEscapeTable();
         for (int x = start; x < end; x++) {
             char c = data[x];
 
-            if (this.charset.allows(c) && this.encoder.allows(c)) {
+            if ((table[c >> 3] & (1 << (c & 0x07))) != 0) {
                 continue;
             }
 
@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.serializers.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A <code>Writer</code> encoding characters straight into a reusable byte
+ * buffer which is written to an <code>OutputStream</code>.</p>
+ *
+ * <p>UTF-8 and ISO-8859-1 are encoded inline, copying runs of ASCII
+ * characters without any further checks. Other single byte charsets are
+ * encoded through a table mapping each character to its byte, the table is
+ * built once per charset. Characters which cannot be represented are
+ * replaced by a question mark, as the <code>OutputStreamWriter</code> does.
+ * Multi byte charsets other than UTF-8 are not supported, use
+ * {@link #isSupported(String)} to check a charset.</p>
+ *
+ * <p>This writer can be reused with another stream after calling
+ * {@link #recycle()}. It is not thread safe.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+final class EncodingWriter extends Writer {
+
+    /** The size of the byte buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The byte for characters which cannot be represented. */
+    private static final byte REPLACEMENT = (byte) '?';
+
+    private static final int MODE_UTF_8 = 0;
+    private static final int MODE_ISO_8859_1 = 1;
+    private static final int MODE_TABLE = 2;
+
+    /** Marks charsets without a byte table in the cache. */
+    private static final byte[] NO_TABLE = new byte[0];
+
+    /** The byte tables of the single byte charsets, by charset name. */
+    private static final Map TABLES = new ConcurrentHashMap();
+
+    /** The encoded bytes not yet written to the stream. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /** The number of bytes in the buffer. */
+    private int count;
+
+    /** Buffer for copying the characters of strings. */
+    private final char[] chars = new char[1024];
+
+    /** A high surrogate waiting for its low surrogate. */
+    private char highSurrogate;
+
+    private int mode;
+
+    /** The byte of each character (table mode only). */
+    private byte[] table;
+
+    private OutputStream out;
+
+    /**
+     * Check if this writer can encode the given charset.
+     */
+    public static boolean isSupported(String charsetName) {
+        if (charsetName == null) {
+            return false;
+        }
+        return isUTF8(charsetName) || isLatin1(charsetName) || getTable(charsetName) != null;
+    }
+
+    private static boolean isUTF8(String charsetName) {
+        return "UTF-8".equalsIgnoreCase(charsetName) || "UTF8".equalsIgnoreCase(charsetName);
+    }
+
+    private static boolean isLatin1(String charsetName) {
+        return "ISO-8859-1".equalsIgnoreCase(charsetName) || "ISO8859_1".equalsIgnoreCase(charsetName);
+    }
+
+    /**
+     * Return the byte table of a single byte charset, or <b>null</b> if
+     * the charset is unknown or not a single byte charset.
+     */
+    private static byte[] getTable(String charsetName) {
+        byte[] table = (byte[]) TABLES.get(charsetName);
+        if (table == null) {
+            table = buildTable(charsetName);
+            TABLES.put(charsetName, table);
+        }
+        return table == NO_TABLE ? null : table;
+    }
+
+    /**
+     * Build the byte table of a single byte charset by decoding each of its
+     * 256 bytes.
+     */
+    private static byte[] buildTable(String charsetName) {
+        final java.nio.charset.Charset charset;
+        try {
+            charset = java.nio.charset.Charset.forName(charsetName);
+        } catch (IllegalArgumentException e) {
+            return NO_TABLE;
+        }
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            return NO_TABLE;
+        }
+
+        final CharsetDecoder decoder = charset.newDecoder();
+        decoder.onMalformedInput(CodingErrorAction.REPORT);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        final byte[] table = new byte[Character.MAX_VALUE + 1];
+        Arrays.fill(table, REPLACEMENT);
+        final boolean[] mapped = new boolean[Character.MAX_VALUE + 1];
+        final ByteBuffer in = ByteBuffer.allocate(1);
+        final CharBuffer out = CharBuffer.allocate(2);
+        for (int b = 0; b < 256; b++) {
+            in.clear();
+            in.put((byte) b);
+            in.flip();
+            out.clear();
+            decoder.reset();
+            if (decoder.decode(in, out, true).isError() || out.position() != 1) {
+                continue;
+            }
+            final char c = out.get(0);
+            // the first byte decoding to a character wins
+            if (!mapped[c]) {
+                mapped[c] = true;
+                table[c] = (byte) b;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Start writing to the given stream using the given charset.
+     *
+     * @throws IllegalArgumentException if the charset is not supported
+     */
+    public void setOutputStream(OutputStream out, String charsetName) {
+        if (isUTF8(charsetName)) {
+            this.mode = MODE_UTF_8;
+            this.table = null;
+        } else if (isLatin1(charsetName)) {
+            this.mode = MODE_ISO_8859_1;
+            this.table = null;
+        } else {
+            this.table = getTable(charsetName);
+            if (this.table == null) {
+                throw new IllegalArgumentException("Unsupported charset: " + charsetName);
+            }
+            this.mode = MODE_TABLE;
+        }
+        this.out = out;
+        this.count = 0;
+        this.highSurrogate = 0;
+    }
+
+    /**
+     * Drop the stream and any buffered bytes.
+     */
+    public void recycle() {
+        this.out = null;
+        this.count = 0;
+        this.highSurrogate = 0;
+    }
+
+    public void write(int c) throws IOException {
+        if (this.count >= BUFFER_SIZE - 4) {
+            flushBuffer();
+        }
+        encode((char) c);
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, this.chars.length);
+            str.getChars(off, off + n, this.chars, 0);
+            write(this.chars, 0, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        final int end = off + len;
+        while (off < end) {
+            if (this.count >= BUFFER_SIZE - 4) {
+                flushBuffer();
+            }
+
+            // copy a run of ASCII characters, as far as the buffer allows
+            final int limit = Math.min(end, off + BUFFER_SIZE - 4 - this.count);
+            if (this.highSurrogate == 0) {
+                char c;
+                if (this.mode == MODE_TABLE) {
+                    final byte[] table = this.table;
+                    while (off < limit && !Character.isSurrogate(c = cbuf[off])) {
+                        this.buffer[this.count++] = table[c];
+                        off++;
+                    }
+                } else {
+                    while (off < limit && (c = cbuf[off]) < 0x80) {
+                        this.buffer[this.count++] = (byte) c;
+                        off++;
+                    }
+                }
+            }
+            if (off < limit) {
+                encode(cbuf[off++]);
+            }
+        }
+    }
+
+    /**
+     * Encode a single character, the buffer must have room for five bytes
+     * (an unpaired surrogate followed by a three byte character).
+     */
+    private void encode(char c) {
+        if (this.mode == MODE_UTF_8) {
+            encodeUTF8(c);
+            return;
+        }
+
+        if (this.highSurrogate != 0) {
+            this.highSurrogate = 0;
+            this.buffer[this.count++] = REPLACEMENT;
+            if (Character.isLowSurrogate(c)) {
+                // a surrogate pair is replaced as a whole
+                return;
+            }
+        }
+        if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (this.mode == MODE_ISO_8859_1) {
+            this.buffer[this.count++] = c < 0x100 ? (byte) c : REPLACEMENT;
+        } else {
+            this.buffer[this.count++] = this.table[c];
+        }
+    }
+
+    private void encodeUTF8(char c) {
+        final byte[] b = this.buffer;
+        if (this.highSurrogate != 0) {
+            final char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int cp = Character.toCodePoint(high, c);
+                b[this.count++] = (byte) (0xf0 | (cp >> 18));
+                b[this.count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[this.count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[this.count++] = (byte) (0x80 | (cp & 0x3f));
+                return;
+            }
+            // unpaired high surrogate
+            b[this.count++] = REPLACEMENT;
+        }
+
+        if (c < 0x80) {
+            b[this.count++] = (byte) c;
+        } else if (c < 0x800) {
+            b[this.count++] = (byte) (0xc0 | (c >> 6));
+            b[this.count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            // unpaired low surrogate
+            b[this.count++] = REPLACEMENT;
+        } else {
+            b[this.count++] = (byte) (0xe0 | (c >> 12));
+            b[this.count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            b[this.count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (this.out == null) {
+            throw new IOException("Writer has no output stream");
+        }
+        if (this.count > 0) {
+            this.out.write(this.buffer, 0, this.count);
+            this.count = 0;
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        this.out.flush();
+    }
+
+    public void close() throws IOException {
+        if (this.out != null) {
+            flush();
+            this.out.close();
+            this.out = null;
+        }
+    }
+}
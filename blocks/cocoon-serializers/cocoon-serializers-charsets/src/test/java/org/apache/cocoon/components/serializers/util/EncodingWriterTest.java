@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.serializers.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+
+import org.junit.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+public class EncodingWriterTest {
+
+    private static final String TEXT = "plain ASCII, café, € 10, Жз, "
+                                       + "🍀 & <tag> \"quoted\"";
+
+    private static String bulk() {
+        final StringBuffer buffer = new StringBuffer();
+        for (int i = 0; i < 2000; i++) {
+            buffer.append(TEXT).append(i);
+        }
+        return buffer.toString();
+    }
+
+    private static byte[] viaWriter(String text, String charset) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final OutputStreamWriter writer = new OutputStreamWriter(out, charset);
+        writer.write(text);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] direct(String text, String charset, int chunk) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final EncodingWriter writer = new EncodingWriter();
+        writer.setOutputStream(out, charset);
+        final char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i += chunk) {
+            writer.write(chars, i, Math.min(chunk, chars.length - i));
+        }
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static void assertSameBytes(String text, String charset) throws Exception {
+        final String expected = new String(viaWriter(text, charset), "ISO-8859-1");
+        assertEquals(charset, expected, new String(direct(text, charset, text.length()), "ISO-8859-1"));
+        // surrogate pairs split across writes
+        assertEquals(charset, expected, new String(direct(text, charset, 1), "ISO-8859-1"));
+        assertEquals(charset, expected, new String(direct(text, charset, 7), "ISO-8859-1"));
+    }
+
+    @Test
+    public void encodingMatchesOutputStreamWriter() throws Exception {
+        final String[] charsets = {"UTF-8", "ISO-8859-1", "US-ASCII", "windows-1252", "ISO-8859-5"};
+        for (int i = 0; i < charsets.length; i++) {
+            assertTrue(charsets[i], EncodingWriter.isSupported(charsets[i]));
+            assertSameBytes(TEXT, charsets[i]);
+            assertSameBytes(bulk(), charsets[i]);
+        }
+    }
+
+    @Test
+    public void multiByteCharsetsAreNotSupported() {
+        assertFalse(EncodingWriter.isSupported("Shift_JIS"));
+        assertFalse(EncodingWriter.isSupported("UTF-16"));
+        assertFalse(EncodingWriter.isSupported("no-such-charset"));
+    }
+
+    private static String serialize(String encoding, boolean direct) throws Exception {
+        final XMLSerializer serializer = new XMLSerializer();
+        serializer.setEncoding(encoding);
+        serializer.setDirectEncoding(direct);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.setOutputStream(out);
+
+        final AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute("", "title", "title", "CDATA", TEXT);
+        final char[] text = bulk().toCharArray();
+        serializer.startDocument();
+        serializer.startElement("", "root", "root", attributes);
+        serializer.characters(text, 0, text.length);
+        serializer.endElement("", "root", "root");
+        serializer.endDocument();
+        serializer.recycle();
+        return new String(out.toByteArray(), "ISO-8859-1");
+    }
+
+    @Test
+    public void directEncodingSerializesTheSame() throws Exception {
+        final String[] charsets = {"UTF-8", "ISO-8859-1", "US-ASCII"};
+        for (int i = 0; i < charsets.length; i++) {
+            assertEquals(charsets[i], serialize(charsets[i], false), serialize(charsets[i], true));
+        }
+    }
+}
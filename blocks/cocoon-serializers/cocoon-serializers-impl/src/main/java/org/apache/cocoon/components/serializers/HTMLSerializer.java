@@ -97,6 +97,7 @@ public class HTMLSerializer
         }
 
         this.setIndentPerLevel(conf.getChild("indent").getValueAsInteger(0));
+        this.setDirectEncoding(conf.getChild("direct-encoding").getValueAsBoolean(false));
         this.setDoctypeDefault(conf.getChild("doctype-default").getValue(null));
     }
 }
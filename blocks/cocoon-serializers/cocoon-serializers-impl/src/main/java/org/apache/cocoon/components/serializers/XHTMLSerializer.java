@@ -82,6 +82,7 @@ public class XHTMLSerializer extends org.apache.cocoon.components.serializers.ut
         }
 
         setIndentPerLevel(conf.getChild("indent").getValueAsInteger(0));
+        setDirectEncoding(conf.getChild("direct-encoding").getValueAsBoolean(false));
         setOmitXmlDeclaration(conf.getChild("omit-xml-declaration").getValue(null));
         setDoctypeDefault(conf.getChild("doctype-default").getValue(null));
     }
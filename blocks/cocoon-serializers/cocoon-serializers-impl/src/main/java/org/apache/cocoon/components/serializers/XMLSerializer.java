@@ -80,6 +80,7 @@ public class XMLSerializer
         }
 
         this.setIndentPerLevel(conf.getChild("indent").getValueAsInteger(0));
+        this.setDirectEncoding(conf.getChild("direct-encoding").getValueAsBoolean(false));
     }
 
 }
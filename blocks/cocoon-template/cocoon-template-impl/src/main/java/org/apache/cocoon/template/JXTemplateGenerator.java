@@ -35,6 +35,7 @@ import org.apache.cocoon.objectmodel.helper.ParametersMap;
 import org.apache.cocoon.template.environment.ExecutionContext;
 import org.apache.cocoon.template.environment.JXCacheKey;
 import org.apache.cocoon.template.environment.JXSourceValidity;
+import org.apache.cocoon.template.script.CompiledTemplate;
 import org.apache.cocoon.template.script.Invoker;
 import org.apache.cocoon.template.script.ScriptManager;
 import org.apache.cocoon.template.script.event.Event;
@@ -152,8 +153,16 @@ public class JXTemplateGenerator extends AbstractLogEnabled
         XMLConsumer consumer = new AttributeAwareXMLConsumerImpl(new RedundantNamespacesFilter(this.consumer));
         objectModel.putAt("cocoon/consumer", consumer);
 
-        Invoker.execute(consumer, this.objectModel, new ExecutionContext(this.definitions, this.scriptManager,
-                this.saxParser), null, namespaces, startEvent, null);
+        ExecutionContext executionContext = new ExecutionContext(this.definitions, this.scriptManager, this.saxParser);
+        CompiledTemplate compiledTemplate = null;
+        if (startEvent instanceof StartDocument && endEvent == null) {
+            compiledTemplate = ((StartDocument) startEvent).getCompiledTemplate();
+        }
+        if (compiledTemplate != null) {
+            compiledTemplate.execute(consumer, this.objectModel, executionContext, null, namespaces);
+        } else {
+            Invoker.execute(consumer, this.objectModel, executionContext, null, namespaces, startEvent, null);
+        }
 
         objectModel.cleanupLocalContext();
     }
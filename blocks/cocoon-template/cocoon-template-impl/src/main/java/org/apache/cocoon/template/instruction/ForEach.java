@@ -25,6 +25,7 @@ import org.apache.cocoon.el.parsing.Subst;
 import org.apache.cocoon.template.environment.ErrorHolder;
 import org.apache.cocoon.template.environment.ExecutionContext;
 import org.apache.cocoon.template.environment.ParsingContext;
+import org.apache.cocoon.template.script.Executable;
 import org.apache.cocoon.template.script.Invoker;
 import org.apache.cocoon.template.script.event.Event;
 import org.apache.cocoon.template.script.event.StartElement;
@@ -96,6 +97,20 @@ public class ForEach extends Instruction {
                          ObjectModel objectModel, ExecutionContext executionContext,
                          MacroContext macroContext, NamespacesTable namespaces, Event startEvent, Event endEvent)
         throws SAXException {
+        iterate(consumer, objectModel, executionContext, macroContext, namespaces, null);
+        return getEndInstruction().getNext();
+    }
+
+    /**
+     * Execute the body of the loop for each item.
+     *
+     * @param body the compiled body, or <code>null</code> to interpret the
+     *             events of the body
+     */
+    public void iterate(final XMLConsumer consumer,
+                        ObjectModel objectModel, ExecutionContext executionContext,
+                        MacroContext macroContext, NamespacesTable namespaces, Executable body)
+        throws SAXException {
         Iterator iter = null;
         int begin, end, step;
         String var = null, varStatus = null;
@@ -156,8 +171,12 @@ public class ForEach extends Instruction {
                 status.setCurrent(value);
                 status.setLast((i == end || !iter.hasNext()));
             }
-            Invoker.execute(consumer, objectModel, executionContext,
-                            macroContext, namespaces, getNext(), getEndInstruction());
+            if (body == null) {
+                Invoker.execute(consumer, objectModel, executionContext,
+                                macroContext, namespaces, getNext(), getEndInstruction());
+            } else {
+                body.execute(consumer, objectModel, executionContext, macroContext, namespaces);
+            }
             // Skip rows
             skipCounter = step;
             while (--skipCounter > 0 && iter.hasNext()) {
@@ -170,7 +189,5 @@ public class ForEach extends Instruction {
             objectModel.cleanupLocalContext();
         }
         objectModel.cleanupLocalContext();
-
-        return getEndInstruction().getNext();
     }
 }
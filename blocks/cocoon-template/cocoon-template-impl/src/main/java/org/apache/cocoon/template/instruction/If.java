@@ -54,6 +54,10 @@ public class If extends Instruction {
         }
     }
 
+    public Subst getTest() {
+        return test;
+    }
+
     public Event execute(final XMLConsumer consumer,
                          ObjectModel objectModel, ExecutionContext executionContext,
                          MacroContext macroContext, NamespacesTable namespaces, Event startEvent, Event endEvent) 
@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.template.script;
+
+import java.util.Map;
+
+import org.apache.cocoon.el.objectmodel.ObjectModel;
+import org.apache.cocoon.el.parsing.Subst;
+import org.apache.cocoon.template.environment.ErrorHolder;
+import org.apache.cocoon.template.environment.ExecutionContext;
+import org.apache.cocoon.template.environment.LocatorFacade;
+import org.apache.cocoon.template.expression.Substitutions;
+import org.apache.cocoon.template.instruction.Call;
+import org.apache.cocoon.template.instruction.Choose;
+import org.apache.cocoon.template.instruction.Define;
+import org.apache.cocoon.template.instruction.ForEach;
+import org.apache.cocoon.template.instruction.If;
+import org.apache.cocoon.template.instruction.MacroContext;
+import org.apache.cocoon.template.script.event.AttributeEvent;
+import org.apache.cocoon.template.script.event.Event;
+import org.apache.cocoon.template.script.event.StartElement;
+import org.apache.cocoon.xml.SaxBuffer;
+import org.apache.cocoon.xml.XMLConsumer;
+import org.apache.cocoon.xml.util.NamespacesTable;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * A template compiled by the {@link TemplateCompiler} into a tree of nodes.
+ *
+ * <p>Static parts of the template are prepared once: text without
+ * expressions is kept as a single character array, attributes without
+ * expressions as a ready made attribute list, and elements containing
+ * nothing but static content are recorded into a {@link SaxBuffer}.
+ * Elements, <code>jx:if</code>, <code>jx:choose</code> and
+ * <code>jx:forEach</code> execute their compiled children directly instead
+ * of walking the event list. All other events and instructions are executed
+ * as by the {@link Invoker}.</p>
+ *
+ * <p>A compiled template is immutable and can be executed by several
+ * threads at once.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class CompiledTemplate {
+
+    private final Locator location;
+
+    private final Node[] nodes;
+
+    CompiledTemplate(Locator location, Node[] nodes) {
+        this.location = location;
+        this.nodes = nodes;
+    }
+
+    public void execute(XMLConsumer consumer, ObjectModel objectModel, ExecutionContext executionContext,
+                        MacroContext macroContext, NamespacesTable namespaces)
+    throws SAXException {
+        LocatorFacade loc = new LocatorFacade(this.location);
+        consumer.setDocumentLocator(loc);
+        execute(this.nodes, consumer, objectModel, executionContext, macroContext, namespaces, loc);
+    }
+
+    static void execute(Node[] nodes, XMLConsumer consumer, ObjectModel objectModel,
+                        ExecutionContext executionContext, MacroContext macroContext,
+                        NamespacesTable namespaces, LocatorFacade loc)
+    throws SAXException {
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].execute(consumer, objectModel, executionContext, macroContext, namespaces, loc);
+        }
+    }
+
+    static boolean isTrue(Object val) {
+        if (val instanceof Boolean) {
+            return ((Boolean) val).booleanValue();
+        }
+        return val != null;
+    }
+
+    /**
+     * A node of a compiled template.
+     */
+    abstract static class Node {
+        abstract void execute(XMLConsumer consumer, ObjectModel objectModel,
+                              ExecutionContext executionContext, MacroContext macroContext,
+                              NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException;
+    }
+
+    /**
+     * Executes an event or instruction as the {@link Invoker} does.
+     */
+    static class EventNode extends Node {
+        final Event event;
+
+        EventNode(Event event) {
+            this.event = event;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException {
+            loc.setDocumentLocator(this.event.getLocation());
+            this.event.execute(consumer, objectModel, executionContext, macroContext, namespaces,
+                               this.event, null);
+        }
+    }
+
+    /**
+     * Text without expressions.
+     */
+    static class StaticTextNode extends Node {
+        final Locator location;
+        final char[] chars;
+
+        StaticTextNode(Locator location, char[] chars) {
+            this.location = location;
+            this.chars = chars;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException {
+            loc.setDocumentLocator(this.location);
+            consumer.characters(this.chars, 0, this.chars.length);
+        }
+    }
+
+    /**
+     * Text with expressions. The parts are either character arrays or
+     * expressions.
+     */
+    static class TextNode extends Node {
+        final Locator location;
+        final Object[] parts;
+
+        TextNode(Locator location, Object[] parts) {
+            this.location = location;
+            this.parts = parts;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException {
+            loc.setDocumentLocator(this.location);
+            for (int i = 0; i < this.parts.length; i++) {
+                final Object part = this.parts[i];
+                if (part instanceof char[]) {
+                    final char[] chars = (char[]) part;
+                    consumer.characters(chars, 0, chars.length);
+                } else {
+                    try {
+                        Object val = ((Subst) part).getNode(objectModel);
+                        Invoker.executeNode(consumer, val);
+                    } catch (Exception e) {
+                        throw new SAXParseException(e.getMessage(), this.location, e);
+                    } catch (Error err) {
+                        throw new SAXParseException(err.getMessage(), this.location, new ErrorHolder(err));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An element. The values of the attributes are either strings or
+     * {@link Substitutions}, if all of them are strings the attribute list
+     * is built only once.
+     */
+    static class ElementNode extends Node {
+        final StartElement startElement;
+        final AttributeEvent[] attributeEvents;
+        final Object[] attributeValues;
+        final AttributesImpl staticAttributes;
+        final Node[] children;
+
+        ElementNode(StartElement startElement, AttributeEvent[] attributeEvents,
+                    Object[] attributeValues, AttributesImpl staticAttributes, Node[] children) {
+            this.startElement = startElement;
+            this.attributeEvents = attributeEvents;
+            this.attributeValues = attributeValues;
+            this.staticAttributes = staticAttributes;
+            this.children = children;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException {
+            final StartElement startElement = this.startElement;
+            loc.setDocumentLocator(startElement.getLocation());
+
+            Define def = (Define) executionContext.getDefinitions().get(startElement.getQname());
+            if (def != null) {
+                Call call = new Call(def, startElement);
+                call.execute(consumer, objectModel, executionContext, macroContext, namespaces,
+                             startElement, null);
+                return;
+            }
+
+            AttributesImpl attrs = this.staticAttributes;
+            if (attrs == null) {
+                attrs = new AttributesImpl();
+                for (int i = 0; i < this.attributeEvents.length; i++) {
+                    final AttributeEvent attrEvent = this.attributeEvents[i];
+                    final Object value = this.attributeValues[i];
+                    attrs.addAttribute(attrEvent.getNamespaceURI(), attrEvent.getLocalName(),
+                                       attrEvent.getRaw(), attrEvent.getType(),
+                                       value instanceof String ? (String) value
+                                           : ((Substitutions) value).toString(startElement.getLocation(), objectModel));
+                }
+            }
+
+            // Send any pending startPrefixMapping events
+            namespaces.enterScope(consumer);
+            consumer.startElement(startElement.getNamespaceURI(), startElement.getLocalName(),
+                                  startElement.getRaw(), attrs);
+
+            CompiledTemplate.execute(this.children, consumer, objectModel, executionContext,
+                                     macroContext, namespaces, loc);
+
+            loc.setDocumentLocator(startElement.getEndElement().getLocation());
+            consumer.endElement(startElement.getNamespaceURI(), startElement.getLocalName(),
+                                startElement.getRaw());
+            // Send any pending endPrefixMapping events
+            namespaces.leaveScope(consumer);
+        }
+    }
+
+    /**
+     * An element with static content only, which is streamed from a buffer
+     * unless one of its elements is called as a macro.
+     */
+    static class StaticElementNode extends Node {
+        final ElementNode element;
+        final String[] qnames;
+        final SaxBuffer buffer;
+
+        StaticElementNode(ElementNode element, String[] qnames, SaxBuffer buffer) {
+            this.element = element;
+            this.qnames = qnames;
+            this.buffer = buffer;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException {
+            final Map definitions = executionContext.getDefinitions();
+            if (!definitions.isEmpty()) {
+                for (int i = 0; i < this.qnames.length; i++) {
+                    if (definitions.containsKey(this.qnames[i])) {
+                        this.element.execute(consumer, objectModel, executionContext, macroContext,
+                                             namespaces, loc);
+                        return;
+                    }
+                }
+            }
+
+            loc.setDocumentLocator(this.element.startElement.getLocation());
+            // The content declares no namespaces, so only the pending
+            // declarations of this element have to be sent
+            namespaces.enterScope(consumer);
+            this.buffer.toSAX(consumer);
+            namespaces.leaveScope(consumer);
+        }
+    }
+
+    static class IfNode extends Node {
+        final If instruction;
+        final Node[] body;
+
+        IfNode(If instruction, Node[] body) {
+            this.instruction = instruction;
+            this.body = body;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException {
+            loc.setDocumentLocator(this.instruction.getLocation());
+            Object val;
+            try {
+                val = this.instruction.getTest().getValue(objectModel);
+            } catch (Exception e) {
+                throw new SAXParseException(e.getMessage(), this.instruction.getLocation(), e);
+            } catch (Error err) {
+                throw new SAXParseException(err.getMessage(), this.instruction.getLocation(),
+                                            new ErrorHolder(err));
+            }
+            if (isTrue(val)) {
+                CompiledTemplate.execute(this.body, consumer, objectModel, executionContext,
+                                         macroContext, namespaces, loc);
+            }
+        }
+    }
+
+    /**
+     * A choose instruction, the tests of the when instructions are evaluated
+     * in order.
+     */
+    static class ChooseNode extends Node {
+        final Choose instruction;
+        final Subst[] tests;
+        final Node[][] bodies;
+        final Node[] otherwise;
+
+        ChooseNode(Choose instruction, Subst[] tests, Node[][] bodies, Node[] otherwise) {
+            this.instruction = instruction;
+            this.tests = tests;
+            this.bodies = bodies;
+            this.otherwise = otherwise;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, LocatorFacade loc)
+        throws SAXException {
+            loc.setDocumentLocator(this.instruction.getLocation());
+            for (int i = 0; i < this.tests.length; i++) {
+                Object val;
+                try {
+                    val = this.tests[i].getValue(objectModel);
+                } catch (Exception e) {
+                    throw new SAXParseException(e.getMessage(), this.instruction.getLocation(), e);
+                }
+                if (isTrue(val)) {
+                    CompiledTemplate.execute(this.bodies[i], consumer, objectModel, executionContext,
+                                             macroContext, namespaces, loc);
+                    return;
+                }
+            }
+            if (this.otherwise != null) {
+                CompiledTemplate.execute(this.otherwise, consumer, objectModel, executionContext,
+                                         macroContext, namespaces, loc);
+            }
+        }
+    }
+
+    /**
+     * A forEach instruction, the loop itself is run by the instruction.
+     */
+    static class ForEachNode extends Node {
+        final ForEach instruction;
+        final Node[] body;
+
+        ForEachNode(ForEach instruction, Node[] body) {
+            this.instruction = instruction;
+            this.body = body;
+        }
+
+        void execute(XMLConsumer consumer, ObjectModel objectModel,
+                     ExecutionContext executionContext, MacroContext macroContext,
+                     NamespacesTable namespaces, final LocatorFacade loc)
+        throws SAXException {
+            loc.setDocumentLocator(this.instruction.getLocation());
+            this.instruction.iterate(consumer, objectModel, executionContext, macroContext, namespaces,
+                                     new Executable() {
+                public void execute(XMLConsumer consumer, ObjectModel objectModel,
+                                    ExecutionContext executionContext, MacroContext macroContext,
+                                    NamespacesTable namespaces)
+                throws SAXException {
+                    CompiledTemplate.execute(body, consumer, objectModel, executionContext,
+                                             macroContext, namespaces, loc);
+                }
+            });
+        }
+    }
+}
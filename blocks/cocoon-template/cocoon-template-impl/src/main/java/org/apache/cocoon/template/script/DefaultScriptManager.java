@@ -42,6 +42,7 @@ public class DefaultScriptManager implements ScriptManager {
     private StringTemplateParser stringTemplateParser;
     private SourceResolver sourceResolver;
     private SAXParser saxParser;
+    private boolean compileTemplates;
 
     public Store getStore() {
         return store;
@@ -83,6 +84,18 @@ public class DefaultScriptManager implements ScriptManager {
         this.saxParser = saxParser;
     }
 
+    public boolean isCompileTemplates() {
+        return compileTemplates;
+    }
+
+    /**
+     * Compile the templates after parsing them, see {@link TemplateCompiler}.
+     * Defaults to <code>false</code>.
+     */
+    public void setCompileTemplates(boolean compileTemplates) {
+        this.compileTemplates = compileTemplates;
+    }
+
     public DefaultScriptManager() {
     }
 
@@ -131,6 +144,9 @@ public class DefaultScriptManager implements ScriptManager {
                 doc = parser.getStartEvent();
                 doc.setUri(input.getURI());
                 doc.setSourceValidity(validity);
+                if (this.compileTemplates) {
+                    doc.setCompiledTemplate(TemplateCompiler.compile(doc));
+                }
 
                 getStore().store(storeUri, doc);
             }
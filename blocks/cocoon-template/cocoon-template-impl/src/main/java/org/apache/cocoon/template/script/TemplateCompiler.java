@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.template.script;
+
+import java.io.CharArrayWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.cocoon.el.parsing.Subst;
+import org.apache.cocoon.template.expression.Literal;
+import org.apache.cocoon.template.expression.Substitutions;
+import org.apache.cocoon.template.instruction.Choose;
+import org.apache.cocoon.template.instruction.ForEach;
+import org.apache.cocoon.template.instruction.If;
+import org.apache.cocoon.template.instruction.Instruction;
+import org.apache.cocoon.template.instruction.Otherwise;
+import org.apache.cocoon.template.instruction.When;
+import org.apache.cocoon.template.script.CompiledTemplate.ChooseNode;
+import org.apache.cocoon.template.script.CompiledTemplate.ElementNode;
+import org.apache.cocoon.template.script.CompiledTemplate.EventNode;
+import org.apache.cocoon.template.script.CompiledTemplate.ForEachNode;
+import org.apache.cocoon.template.script.CompiledTemplate.IfNode;
+import org.apache.cocoon.template.script.CompiledTemplate.Node;
+import org.apache.cocoon.template.script.CompiledTemplate.StaticElementNode;
+import org.apache.cocoon.template.script.CompiledTemplate.StaticTextNode;
+import org.apache.cocoon.template.script.CompiledTemplate.TextNode;
+import org.apache.cocoon.template.script.event.AttributeEvent;
+import org.apache.cocoon.template.script.event.Characters;
+import org.apache.cocoon.template.script.event.CopyAttribute;
+import org.apache.cocoon.template.script.event.Event;
+import org.apache.cocoon.template.script.event.StartDocument;
+import org.apache.cocoon.template.script.event.StartElement;
+import org.apache.cocoon.template.script.event.SubstituteAttribute;
+import org.apache.cocoon.xml.SaxBuffer;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Compiles a parsed template into a {@link CompiledTemplate}.
+ *
+ * <p>Only elements, text, <code>jx:if</code>, <code>jx:choose</code> and
+ * <code>jx:forEach</code> are compiled. Any other event or instruction,
+ * including subclasses of the compiled instructions, is kept and executed
+ * by the interpreter. The parsed template is not modified.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class TemplateCompiler {
+
+    private static final Node[] NO_NODES = new Node[0];
+
+    private TemplateCompiler() {
+        // static methods only
+    }
+
+    public static CompiledTemplate compile(StartDocument startDocument) throws SAXException {
+        return new CompiledTemplate(startDocument.getLocation(), compile(startDocument, null));
+    }
+
+    /**
+     * Compile the events from <code>start</code> up to, but not including,
+     * <code>end</code>.
+     */
+    private static Node[] compile(Event start, Event end) throws SAXException {
+        List nodes = new ArrayList();
+        Event ev = start;
+        while (ev != end) {
+            if (ev instanceof StartElement) {
+                StartElement startElement = (StartElement) ev;
+                nodes.add(compileElement(startElement));
+                ev = startElement.getEndElement().getNext();
+            } else if (ev.getClass() == Characters.class) {
+                Node node = compileText((Characters) ev);
+                if (node != null) {
+                    nodes.add(node);
+                }
+                ev = ev.getNext();
+            } else if (ev.getClass() == If.class) {
+                If instruction = (If) ev;
+                nodes.add(new IfNode(instruction, compile(instruction.getNext(), instruction.getEndInstruction())));
+                ev = instruction.getEndInstruction().getNext();
+            } else if (ev.getClass() == Choose.class) {
+                nodes.add(compileChoose((Choose) ev));
+                ev = ((Choose) ev).getEndInstruction().getNext();
+            } else if (ev.getClass() == ForEach.class) {
+                ForEach instruction = (ForEach) ev;
+                nodes.add(new ForEachNode(instruction, compile(instruction.getNext(), instruction.getEndInstruction())));
+                ev = instruction.getEndInstruction().getNext();
+            } else if (ev instanceof Instruction) {
+                nodes.add(new EventNode(ev));
+                ev = ((Instruction) ev).getEndInstruction().getNext();
+            } else {
+                nodes.add(new EventNode(ev));
+                ev = ev.getNext();
+            }
+        }
+        return nodes.isEmpty() ? NO_NODES : (Node[]) nodes.toArray(new Node[nodes.size()]);
+    }
+
+    private static Node compileText(Characters characters) {
+        Substitutions substitutions = characters.getSubstitutions();
+        List parts = new ArrayList();
+        CharArrayWriter text = new CharArrayWriter();
+        for (Iterator i = substitutions.iterator(); i.hasNext();) {
+            Subst subst = (Subst) i.next();
+            if (subst instanceof Literal) {
+                char[] chars = ((Literal) subst).getCharArray();
+                text.write(chars, 0, chars.length);
+            } else {
+                if (text.size() > 0) {
+                    parts.add(text.toCharArray());
+                    text.reset();
+                }
+                parts.add(subst);
+            }
+        }
+        if (parts.isEmpty()) {
+            return text.size() > 0 ? new StaticTextNode(characters.getLocation(), text.toCharArray()) : null;
+        }
+        if (text.size() > 0) {
+            parts.add(text.toCharArray());
+        }
+        return new TextNode(characters.getLocation(), parts.toArray());
+    }
+
+    private static Node compileElement(StartElement startElement) throws SAXException {
+        List attributeEvents = startElement.getAttributeEvents();
+        AttributeEvent[] events = (AttributeEvent[]) attributeEvents.toArray(new AttributeEvent[attributeEvents.size()]);
+        Object[] values = new Object[events.length];
+        boolean staticAttributes = true;
+        for (int i = 0; i < events.length; i++) {
+            if (events[i] instanceof CopyAttribute) {
+                values[i] = ((CopyAttribute) events[i]).getValue();
+            } else {
+                Substitutions substitutions = ((SubstituteAttribute) events[i]).getSubstitutions();
+                StringBuffer value = new StringBuffer();
+                for (Iterator j = substitutions.iterator(); j.hasNext() && value != null;) {
+                    Object subst = j.next();
+                    if (subst instanceof Literal) {
+                        value.append(((Literal) subst).getRaw());
+                    } else {
+                        value = null;
+                    }
+                }
+                if (value != null) {
+                    values[i] = value.toString();
+                } else {
+                    values[i] = substitutions;
+                    staticAttributes = false;
+                }
+            }
+        }
+
+        AttributesImpl attrs = null;
+        if (staticAttributes) {
+            attrs = new AttributesImpl();
+            for (int i = 0; i < events.length; i++) {
+                attrs.addAttribute(events[i].getNamespaceURI(), events[i].getLocalName(),
+                                   events[i].getRaw(), events[i].getType(), (String) values[i]);
+            }
+        }
+
+        Node[] children = compile(startElement.getNext(), startElement.getEndElement());
+        ElementNode element = new ElementNode(startElement, events, values, attrs, children);
+        if (!staticAttributes) {
+            return element;
+        }
+
+        // Record the element if its content is static as well
+        List qnames = new ArrayList();
+        qnames.add(startElement.getQname());
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] instanceof StaticElementNode) {
+                String[] childQnames = ((StaticElementNode) children[i]).qnames;
+                for (int j = 0; j < childQnames.length; j++) {
+                    qnames.add(childQnames[j]);
+                }
+            } else if (!(children[i] instanceof StaticTextNode)) {
+                return element;
+            }
+        }
+        SaxBuffer buffer = new SaxBuffer();
+        buffer.startElement(startElement.getNamespaceURI(), startElement.getLocalName(),
+                            startElement.getRaw(), attrs);
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] instanceof StaticTextNode) {
+                char[] chars = ((StaticTextNode) children[i]).chars;
+                buffer.characters(chars, 0, chars.length);
+            } else {
+                StaticElementNode child = (StaticElementNode) children[i];
+                child.buffer.toSAX(buffer);
+                // The buffer of the child is only needed for the content of
+                // this element, which is replaced as a whole
+                children[i] = child.element;
+            }
+        }
+        buffer.endElement(startElement.getNamespaceURI(), startElement.getLocalName(),
+                          startElement.getRaw());
+        return new StaticElementNode(element, (String[]) qnames.toArray(new String[qnames.size()]), buffer);
+    }
+
+    private static Node compileChoose(Choose choose) throws SAXException {
+        List tests = new ArrayList();
+        List bodies = new ArrayList();
+        for (When when = choose.getFirstChoice(); when != null; when = when.getNextChoice()) {
+            tests.add(when.getTest());
+            bodies.add(compile(when.getNext(), when.getEndInstruction()));
+        }
+        Node[] otherwise = null;
+        Otherwise otherwiseInstruction = choose.getOtherwise();
+        if (otherwiseInstruction != null) {
+            otherwise = compile(otherwiseInstruction.getNext(), otherwiseInstruction.getEndInstruction());
+        }
+        return new ChooseNode(choose,
+                              (Subst[]) tests.toArray(new Subst[tests.size()]),
+                              (Node[][]) bodies.toArray(new Node[bodies.size()][]),
+                              otherwise);
+    }
+}
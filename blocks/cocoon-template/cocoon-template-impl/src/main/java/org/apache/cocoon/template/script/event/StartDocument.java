@@ -22,6 +22,7 @@ import java.util.Map;
 import org.apache.cocoon.el.objectmodel.ObjectModel;
 import org.apache.cocoon.template.environment.ExecutionContext;
 import org.apache.cocoon.template.instruction.MacroContext;
+import org.apache.cocoon.template.script.CompiledTemplate;
 import org.apache.cocoon.xml.XMLConsumer;
 import org.apache.cocoon.xml.util.NamespacesTable;
 import org.apache.excalibur.source.SourceValidity;
@@ -41,6 +42,7 @@ public class StartDocument extends Event {
     private String uri;
     private EndDocument endDocument; // null if document fragment
     private Map templateProperties;
+    private CompiledTemplate compiledTemplate;
 
     public EndDocument getEndDocument() {
         return endDocument;
@@ -77,6 +79,18 @@ public class StartDocument extends Event {
         return sourceValidity;
     }
 
+    /**
+     * @return the compiled template, or <code>null</code> if the template
+     *         is interpreted.
+     */
+    public CompiledTemplate getCompiledTemplate() {
+        return compiledTemplate;
+    }
+
+    public void setCompiledTemplate(CompiledTemplate compiledTemplate) {
+        this.compiledTemplate = compiledTemplate;
+    }
+
     /**
      * @param name
      */
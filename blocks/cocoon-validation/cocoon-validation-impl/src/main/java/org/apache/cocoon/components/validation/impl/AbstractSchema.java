@@ -16,18 +16,34 @@
  */
 package org.apache.cocoon.components.validation.impl;
 
+import java.util.LinkedList;
+
 import org.apache.cocoon.components.validation.Schema;
+import org.apache.cocoon.components.validation.ValidationHandler;
 import org.apache.excalibur.source.SourceValidity;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
 
 /**
  * <p>A simple implementation of the {@link Schema} interface.</p>
  *
+ * <p>The {@link ValidationHandler}s created by this instance are
+ * {@link PooledValidationHandler}s: once recycled they are kept for the next
+ * call to {@link #createValidator(ErrorHandler)}, up to the number specified
+ * by {@link #setMaxPooledHandlers(int)} (none by default).</p>
+ *
  */
 public abstract class AbstractSchema implements Schema {
     
     /** <p>The {@link SourceValidity} of this {@link Schema} instance.</p> */
     private final SourceValidity validity;
 
+    /** <p>The recycled {@link PooledValidationHandler}s ready for reuse.</p> */
+    private final LinkedList handlers = new LinkedList();
+
+    /** <p>The maximum number of recycled handlers kept.</p> */
+    private int maxPooledHandlers = 0;
+
     /**
      * <p>Create a new {@link AbstractSchema} instance.</p>
      */
@@ -43,4 +59,57 @@ public abstract class AbstractSchema implements Schema {
     public SourceValidity getValidity() {
         return this.validity;
     }
+
+    /**
+     * <p>Specify the maximum number of recycled {@link ValidationHandler}s kept
+     * for reuse by this {@link Schema}.</p>
+     */
+    public void setMaxPooledHandlers(int maxPooledHandlers) {
+        this.maxPooledHandlers = maxPooledHandlers;
+    }
+
+    /**
+     * <p>Return a {@link ValidationHandler} instance that can be used to
+     * validate an XML document by sending SAX events to it.</p>
+     *
+     * <p>A recycled handler is returned if one is available, otherwise a new one
+     * is created by {@link #newValidationHandler()}.</p>
+     *
+     * @param handler an {@link ErrorHandler} to notify of validation errors.
+     * @return a <b>non-null</b> {@link ValidationHandler} instance.
+     * @throws SAXException if an error occurred creating the validation handler.
+     */
+    public ValidationHandler createValidator(ErrorHandler handler)
+    throws SAXException {
+        if (handler == null) handler = DraconianErrorHandler.INSTANCE;
+        PooledValidationHandler validator = null;
+        synchronized (this.handlers) {
+            if (! this.handlers.isEmpty()) {
+                validator = (PooledValidationHandler) this.handlers.removeLast();
+            }
+        }
+        if (validator == null) validator = this.newValidationHandler();
+        validator.setErrorHandler(handler);
+        return validator;
+    }
+
+    /**
+     * <p>Create a new {@link PooledValidationHandler} wrapping a new validator
+     * for this {@link Schema}.</p>
+     *
+     * @throws SAXException if an error occurred creating the validation handler.
+     */
+    protected abstract PooledValidationHandler newValidationHandler()
+    throws SAXException;
+
+    /**
+     * <p>Keep a recycled {@link PooledValidationHandler} for reuse.</p>
+     */
+    void release(PooledValidationHandler handler) {
+        synchronized (this.handlers) {
+            if (this.handlers.size() < this.maxPooledHandlers) {
+                this.handlers.addLast(handler);
+            }
+        }
+    }
 }
@@ -17,10 +17,14 @@
 package org.apache.cocoon.components.validation.impl;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
 import org.apache.cocoon.components.validation.Schema;
 import org.apache.cocoon.components.validation.SchemaParser;
 import org.apache.cocoon.components.validation.ValidatorException;
+import org.apache.cocoon.thread.RunnableManager;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceValidity;
 import org.apache.excalibur.store.Store;
@@ -33,12 +37,37 @@ import org.xml.sax.SAXException;
  * <p>The {@link #getSchema(SchemaParser, Source, String)} method will manage
  * whether to return a cached or a freshly parsed {@link Schema} instance.</p>
  *
+ * <p>The following configuration elements are supported besides the ones of
+ * the {@link DefaultValidator}:</p>
+ *
+ * <ul>
+ *   <li><code>&lt;max-pooled-handlers&gt;</code>: the number of recycled
+ *     validation handlers kept for reuse by each cached schema (default 8).</li>
+ *   <li><code>&lt;revalidation-interval&gt;</code>: the number of milliseconds
+ *     the validity of a cached schema is trusted without being checked. When
+ *     the interval is over, the validity is checked in the background while the
+ *     cached schema keeps being used. With the default of 0 the validity is
+ *     checked by each request.</li>
+ * </ul>
+ *
  */
 public class CachingValidator extends DefaultValidator {
 
     /** <p>The {@link Store} used for caching {@link Schema}s (if enabled).</p> */
     private Store store;
 
+    /** <p>The {@link RunnableManager} checking validities in the background.</p> */
+    private RunnableManager runnableManager;
+
+    /** <p>The number of recycled handlers kept by each cached {@link Schema}.</p> */
+    private int maxPooledHandlers;
+
+    /** <p>The number of milliseconds validities are trusted without checks.</p> */
+    private long revalidationInterval;
+
+    /** <p>The time of the last validity check, by cache key.</p> */
+    private final ConcurrentHashMap checks = new ConcurrentHashMap();
+
     /**
      * <p>Create a new {@link CachingValidator} instance.</p>
      */
@@ -46,12 +75,25 @@ public class CachingValidator extends DefaultValidator {
         super();
     }
     
+    /**
+     * <p>Configure this instance.</p>
+     */
+    public void configure(Configuration conf)
+    throws ConfigurationException {
+        super.configure(conf);
+        this.maxPooledHandlers = conf.getChild("max-pooled-handlers").getValueAsInteger(8);
+        this.revalidationInterval = conf.getChild("revalidation-interval").getValueAsLong(0);
+    }
+
     /**
      * <p>Initialize this component instance.</p>
      */
     public void initialize()
     throws Exception {
         this.store = (Store) this.manager.lookup(Store.TRANSIENT_STORE);
+        if (this.revalidationInterval > 0) {
+            this.runnableManager = (RunnableManager) this.manager.lookup(RunnableManager.ROLE);
+        }
         super.initialize();
     }
     
@@ -65,6 +107,9 @@ public class CachingValidator extends DefaultValidator {
             if (this.store != null) {
                 this.manager.release(this.store);
             }
+            if (this.runnableManager != null) {
+                this.manager.release(this.runnableManager);
+            }
         }
     }
 
@@ -108,7 +153,7 @@ public class CachingValidator extends DefaultValidator {
                 getLogger().warn("Cached schema " + uri + " has null validity");
                 this.store.remove(key);
                 schema = null;
-            } else if (validity.isValid() != SourceValidity.VALID) {
+            } else if (! this.isValid(key, schema, validity)) {
                 if (getLogger().isDebugEnabled()) {
                     getLogger().debug("Cached schema " + uri + " no longer valid");
                 }
@@ -117,8 +162,11 @@ public class CachingValidator extends DefaultValidator {
             } else if (getLogger().isDebugEnabled()) {
                 getLogger().debug("Valid cached schema found for " + uri);
             }
-        } else if (getLogger().isDebugEnabled()) {
-            getLogger().debug("Schema " + uri + " not found in cache");
+        } else {
+            this.checks.remove(key);
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Schema " + uri + " not found in cache");
+            }
         }
 
         /* If the schema was not cached or was cleared, parse and cache it */
@@ -127,7 +175,11 @@ public class CachingValidator extends DefaultValidator {
             validity = schema.getValidity();
             if (validity != null) {
                 if (validity.isValid() == SourceValidity.VALID) {
+                    if (schema instanceof AbstractSchema) {
+                        ((AbstractSchema) schema).setMaxPooledHandlers(this.maxPooledHandlers);
+                    }
                     this.store.store(key, schema);
+                    this.checked(key);
                 }
             }
         }
@@ -164,7 +216,7 @@ public class CachingValidator extends DefaultValidator {
                 getLogger().warn("Grammar for " + uri + " has null validity");
                 this.store.remove(key);
                 grammar = null;
-            } else if (grammar.validity.isValid() != SourceValidity.VALID) {
+            } else if (! this.isValid(key, grammar, grammar.validity)) {
                 if (getLogger().isDebugEnabled()) {
                     getLogger().debug("Grammar for " + uri + " no longer valid");
                 }
@@ -173,6 +225,8 @@ public class CachingValidator extends DefaultValidator {
             } else if (getLogger().isDebugEnabled()) {
                 getLogger().debug("Valid cached grammar " + grammar + " for " + uri);
             }
+        } else {
+            this.checks.remove(key);
         }
 
         /* If the schema was not cached or was cleared, parse and cache it */
@@ -184,12 +238,84 @@ public class CachingValidator extends DefaultValidator {
             if (validity != null) {
                 if (validity.isValid() == SourceValidity.VALID) {
                     this.store.store(key, new CachedGrammar(validity, language));
+                    this.checked(key);
                 }
             }
             return language;
         }
     }
     
+    /**
+     * <p>Check whether the specified cached object can still be used.</p>
+     *
+     * <p>Without a revalidation interval its {@link SourceValidity} is checked
+     * right away. Otherwise the validity is trusted for the interval, and then
+     * checked in the background while the cached object keeps being used.</p>
+     */
+    private boolean isValid(String key, Object cached, SourceValidity validity) {
+        if (this.revalidationInterval <= 0) {
+            return validity.isValid() == SourceValidity.VALID;
+        }
+
+        final Long checked = (Long) this.checks.get(key);
+        if (checked == null) {
+            /* We don't know when it was checked, do it now */
+            if (validity.isValid() != SourceValidity.VALID) return false;
+            this.checked(key);
+            return true;
+        }
+
+        /* Only one thread schedules the check */
+        final Long now = new Long(System.currentTimeMillis());
+        if (now.longValue() - checked.longValue() >= this.revalidationInterval
+                && this.checks.replace(key, checked, now)) {
+            this.runnableManager.execute(new Revalidation(key, cached, validity));
+        }
+        return true;
+    }
+
+    /**
+     * <p>Record that the cached object with the specified key has just been
+     * checked.</p>
+     */
+    private void checked(String key) {
+        if (this.revalidationInterval > 0) {
+            this.checks.put(key, new Long(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * <p>Check the validity of a cached object in the background, and remove
+     * the object from the cache if it is no longer valid.</p>
+     */
+    private final class Revalidation implements Runnable {
+        private final String key;
+        private final Object cached;
+        private final SourceValidity validity;
+
+        private Revalidation(String key, Object cached, SourceValidity validity) {
+            this.key = key;
+            this.cached = cached;
+            this.validity = validity;
+        }
+
+        public void run() {
+            try {
+                if (this.validity.isValid() == SourceValidity.VALID) return;
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Cached entry " + this.key + " no longer valid");
+                }
+                /* Don't remove an entry cached again in the meantime */
+                if (store.get(this.key) == this.cached) {
+                    store.remove(this.key);
+                }
+                checks.remove(this.key);
+            } catch (Exception exception) {
+                getLogger().warn("Unable to check validity of " + this.key, exception);
+            }
+        }
+    }
+
     /**
      * <p>A simple inner class associating grammar languages and source validity
      * for caching of schema grammar detection.</p>
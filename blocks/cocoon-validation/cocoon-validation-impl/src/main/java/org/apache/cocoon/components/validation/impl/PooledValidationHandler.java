@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.validation.impl;
+
+import org.apache.avalon.excalibur.pool.Recyclable;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * <p>A {@link DefaultValidationHandler} which can be reused to validate more
+ * than one document against the same {@link AbstractSchema}.</p>
+ *
+ * <p>The wrapped validator reports its errors to this instance, which forwards
+ * them to the {@link ErrorHandler} of the current user. Once {@link #recycle()
+ * recycled} the handler is returned to the pool of its schema; it must not be
+ * used afterwards.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class PooledValidationHandler extends DefaultValidationHandler
+implements ErrorHandler, Recyclable {
+
+    /** <p>The {@link AbstractSchema} this handler is returned to.</p> */
+    private final AbstractSchema schema;
+
+    /** <p>The {@link ErrorHandler} of the current user.</p> */
+    private ErrorHandler errorHandler;
+
+    /**
+     * <p>Create a new {@link PooledValidationHandler} instance.</p>
+     *
+     * <p>The validator must be set with {@link #setContentHandler(org.xml.sax.ContentHandler)}
+     * and configured to report errors to this instance.</p>
+     */
+    public PooledValidationHandler(AbstractSchema schema) {
+        super(schema.getValidity(), null);
+        this.schema = schema;
+    }
+
+    /**
+     * <p>Specify the {@link ErrorHandler} to notify of validation errors.</p>
+     */
+    void setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * <p>Reset the wrapped validator before the handler is reused.</p>
+     */
+    protected void reset() {
+        // the JAXP validators reset themselves when a new document starts
+    }
+
+    /**
+     * <p>Return this handler to the pool of its schema.</p>
+     */
+    public void recycle() {
+        if (this.errorHandler == null) {
+            // already recycled
+            return;
+        }
+        this.errorHandler = null;
+        this.reset();
+        this.schema.release(this);
+    }
+
+    /**
+     * <p>Forward the warning to the current {@link ErrorHandler}.</p>
+     */
+    public void warning(SAXParseException exception)
+    throws SAXException {
+        this.errorHandler.warning(exception);
+    }
+
+    /**
+     * <p>Forward the error to the current {@link ErrorHandler}.</p>
+     */
+    public void error(SAXParseException exception)
+    throws SAXException {
+        this.errorHandler.error(exception);
+    }
+
+    /**
+     * <p>Forward the fatal error to the current {@link ErrorHandler}.</p>
+     */
+    public void fatalError(SAXParseException exception)
+    throws SAXException {
+        this.errorHandler.fatalError(exception);
+    }
+}
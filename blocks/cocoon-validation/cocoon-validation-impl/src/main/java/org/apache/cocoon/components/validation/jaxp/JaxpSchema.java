@@ -19,12 +19,9 @@ package org.apache.cocoon.components.validation.jaxp;
 import javax.xml.validation.Schema;
 import javax.xml.validation.ValidatorHandler;
 
-import org.apache.cocoon.components.validation.ValidationHandler;
 import org.apache.cocoon.components.validation.impl.AbstractSchema;
-import org.apache.cocoon.components.validation.impl.DefaultValidationHandler;
-import org.apache.cocoon.components.validation.impl.DraconianErrorHandler;
+import org.apache.cocoon.components.validation.impl.PooledValidationHandler;
 import org.apache.excalibur.source.SourceValidity;
-import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 
 /**
@@ -49,26 +46,21 @@ public class JaxpSchema extends AbstractSchema {
     }
 
     /**
-     * <p>Return a new {@link ValidationHandler} instance that can be used to
-     * validate an XML document by sending SAX events to it.</p>
+     * <p>Create a new {@link PooledValidationHandler} wrapping a JAXP
+     * {@link ValidatorHandler}.</p>
      *
-     * <p>The specified {@link ErrorHandler} will be notified of all warnings or
-     * errors encountered validating the SAX events sent to the returned
-     * {@link ValidationHandler}, and <b>must not</b> be <b>null</b>.</p>
+     * <p>The JAXP {@link ValidatorHandler} resets itself when a new document
+     * starts, so the returned handler can be reused once recycled.</p>
      *
-     * <p>The returned {@link ValidationHandler} can be used to validate <b>only
-     * one</b> XML document. To validate more than one document, this method should
-     * be called once for each document to validate.</p>
-     *
-     * @param handler an {@link ErrorHandler} to notify of validation errors.
-     * @return a <b>non-null</b> {@link ValidationHandler} instance.
+     * @return a <b>non-null</b> {@link PooledValidationHandler} instance.
      * @throws SAXException if an error occurred creating the validation handler.
      */
-    public ValidationHandler createValidator(ErrorHandler handler)
+    protected PooledValidationHandler newValidationHandler()
     throws SAXException {
-        if (handler == null) handler = DraconianErrorHandler.INSTANCE;
+        PooledValidationHandler handler = new PooledValidationHandler(this);
         ValidatorHandler validator = this.schema.newValidatorHandler();
         validator.setErrorHandler(handler);
-        return new DefaultValidationHandler(this.getValidity(), validator);
+        handler.setContentHandler(validator);
+        return handler;
     }
 }
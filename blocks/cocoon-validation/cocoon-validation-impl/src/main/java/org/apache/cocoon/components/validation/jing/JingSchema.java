@@ -16,13 +16,9 @@
  */
 package org.apache.cocoon.components.validation.jing;
 
-import org.apache.cocoon.components.validation.ValidationHandler;
 import org.apache.cocoon.components.validation.impl.AbstractSchema;
-import org.apache.cocoon.components.validation.impl.DefaultValidationHandler;
-import org.apache.cocoon.components.validation.impl.DraconianErrorHandler;
+import org.apache.cocoon.components.validation.impl.PooledValidationHandler;
 import org.apache.excalibur.source.SourceValidity;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 
 import com.thaiopensource.util.PropertyMap;
@@ -53,25 +49,36 @@ public class JingSchema extends AbstractSchema {
     }
 
     /**
-     * <p>Return a new {@link ValidationHandler} instance that can be used to send
-     * SAX events to for proper validation.</p>
+     * <p>Create a new {@link PooledValidationHandler} wrapping a JING
+     * {@link Validator}, which is reset when the handler is recycled.</p>
      *
-     * <p>The specified {@link ErrorHandler} will be notified of all warnings or
-     * errors encountered validating the SAX events sent to the returned
-     * {@link ValidationHandler}.</p>
-     * 
-     * @param errorHandler an {@link ErrorHandler} to notify of validation errors.
-     * @return a <b>non-null</b> {@link ValidationHandler} instance.
+     * @return a <b>non-null</b> {@link PooledValidationHandler} instance.
      * @throws SAXException if an error occurred creating the validation handler.
      */
-    public ValidationHandler createValidator(ErrorHandler errorHandler)
+    protected PooledValidationHandler newValidationHandler()
     throws SAXException {
-        if (errorHandler == null) errorHandler = DraconianErrorHandler.INSTANCE;
+        final JingValidationHandler handler = new JingValidationHandler(this);
         final PropertyMapBuilder builder = new PropertyMapBuilder();
-        ValidateProperty.ERROR_HANDLER.put(builder, errorHandler);
+        ValidateProperty.ERROR_HANDLER.put(builder, handler);
         final PropertyMap properties = builder.toPropertyMap();
-        final Validator validator = this.schema.createValidator(properties);
-        final ContentHandler handler = validator.getContentHandler();
-        return new DefaultValidationHandler(this.getValidity(), handler);
+        handler.validator = this.schema.createValidator(properties);
+        handler.setContentHandler(handler.validator.getContentHandler());
+        return handler;
+    }
+
+    /**
+     * <p>A {@link PooledValidationHandler} resetting the JING {@link Validator}
+     * it wraps when recycled.</p>
+     */
+    private static final class JingValidationHandler extends PooledValidationHandler {
+        private Validator validator;
+
+        private JingValidationHandler(JingSchema schema) {
+            super(schema);
+        }
+
+        protected void reset() {
+            this.validator.reset();
+        }
     }
 }
\ No newline at end of file
@@ -23,6 +23,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.avalon.excalibur.pool.Recyclable;
 import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.configuration.Configurable;
 import org.apache.avalon.framework.configuration.Configuration;
@@ -223,6 +224,10 @@ implements Configurable, Serviceable, Disposable, CacheableProcessingComponent {
      * <p>Recycle this component instance at the end of request processing.</p>
      */
     public void recycle() {
+        /* Return a pooled validation handler to its schema */
+        if (this.handler instanceof Recyclable) {
+            ((Recyclable) this.handler).recycle();
+        }
         this.consumer = null;
         this.handler = null;
         this.report = null;
@@ -63,6 +63,8 @@ public class Main {
     protected static final String LOAD_CLASS_OPT =         "L";
     protected static final String DEFAULT_FILENAME_OPT =   "D";
     protected static final String URI_GROUP_NAME_OPT =     "n";
+    protected static final String THREADS_OPT =            "t";
+    protected static final String INCREMENTAL_OPT =        "i";
 
     protected static final String HELP_LONG =               "help";
     protected static final String VERSION_LONG =            "version";
@@ -85,6 +87,8 @@ public class Main {
     protected static final String DEFAULT_FILENAME_LONG =   "defaultFilename";
     protected static final String URI_LONG =                "uri";
     protected static final String URI_GROUP_NAME_LONG =     "uris";
+    protected static final String THREADS_LONG =            "threads";
+    protected static final String INCREMENTAL_LONG =        "incremental";
     
     private static Options options;
     private static OutputStreamListener listener;
@@ -198,6 +202,14 @@ public class Main {
                                      true,
                                      "specify which <uris> element to process in the configuration"
                                      + " file specified with the -x parameter"));
+        options.addOption(new Option(THREADS_OPT,
+                                     THREADS_LONG,
+                                     true,
+                                     "number of threads processing the pages (default is 1)"));
+        options.addOption(new Option(INCREMENTAL_OPT,
+                                     INCREMENTAL_LONG,
+                                     false,
+                                     "only generate the pages which changed since the last run"));
     }
 
     /**
@@ -287,6 +299,12 @@ public class Main {
             if (line.hasOption(CONFIRM_EXTENSIONS_OPT)) {
                 cocoon.setConfirmExtensions(BooleanUtils.toBoolean(line.getOptionValue(CONFIRM_EXTENSIONS_OPT, "yes")));
             }
+            if (line.hasOption(THREADS_OPT)) {
+                cocoon.setThreads(Integer.parseInt(line.getOptionValue(THREADS_OPT)));
+            }
+            if (line.hasOption(INCREMENTAL_OPT)) {
+                cocoon.setIncremental(true);
+            }
             if (line.hasOption(LOAD_CLASS_OPT)){
                 cocoon.addLoadedClasses(Arrays.asList(line.getOptionValues(LOAD_CLASS_OPT)));
             }
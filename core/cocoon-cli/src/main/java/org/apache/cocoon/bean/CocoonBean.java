@@ -20,6 +20,7 @@ import org.apache.cocoon.Constants;
 import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.bean.helpers.Crawler;
 import org.apache.cocoon.bean.helpers.DelayedOutputStream;
+import org.apache.cocoon.bean.helpers.PageValidity;
 import org.apache.cocoon.components.notification.SimpleNotifyingBean;
 import org.apache.cocoon.components.notification.Notifier;
 import org.apache.cocoon.components.notification.DefaultNotifyingBuilder;
@@ -33,10 +34,17 @@ import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceNotFoundException;
 import org.apache.excalibur.source.SourceUtil;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
@@ -45,6 +53,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -56,6 +66,11 @@ import java.util.TreeMap;
  * configure Cocoon instance and process requests, one by one or multiple
  * with link traversal.</p>
  *
+ * <p>The targets can be processed by several threads at once, see
+ * {@link #setThreads(int)}. In incremental mode the validities of the
+ * generated pages are kept in the working directory, and pages whose
+ * validity has not changed since the last run are not generated again.</p>
+ *
  * <p><b>WARNING:</b> This interface is not stable and could be changed in
  * backward incompatible way without prior notice.</p>
 
@@ -73,6 +88,8 @@ public class CocoonBean extends CocoonWrapper {
     private List excludePatterns = new ArrayList();
     private List includePatterns = new ArrayList();
     private List includeLinkExtensions = null;
+    private int threads = 1;
+    private boolean incremental = false;
 
     // Internal Objects
     private boolean initialized;
@@ -83,6 +100,15 @@ public class CocoonBean extends CocoonWrapper {
     private String checksumsURI = null;
     private Map checksums;
 
+    /** The name of the file keeping the page validities in the working directory */
+    private static final String VALIDITIES_FILE = "cli-validities.ser";
+
+    /** The page validities of the last run, by source URI */
+    private Map oldValidities;
+
+    /** The page validities of this run, by source URI */
+    private Map validities;
+
     public CocoonBean() {
         this.crawler = new Crawler();
     }
@@ -141,6 +167,21 @@ public class CocoonBean extends CocoonWrapper {
     public void setChecksumURI(String uri) {
         this.checksumsURI = uri;
     }
+
+    /**
+     * Set the number of threads processing the targets (default is 1).
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Skip the pages whose validity has not changed since the last run?
+     * (default is false)
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
     
     public boolean followLinks() {
         return followLinks;
@@ -250,7 +291,9 @@ public class CocoonBean extends CocoonWrapper {
     }
 
     public void addListener(BeanListener listener) {
-        this.listeners.add(listener);
+        synchronized (this.listeners) {
+            this.listeners.add(listener);
+        }
     }
 
     public void pageGenerated(String sourceURI,
@@ -261,57 +304,69 @@ public class CocoonBean extends CocoonWrapper {
                               int pagesRemaining,
                               int pagesComplete,
                               long timeTaken) {
-        Iterator i = listeners.iterator();
-        while (i.hasNext()) {
-            BeanListener l = (BeanListener) i.next();
-            l.pageGenerated(sourceURI,
-                            destURI,
-                            pageSize,
-                            linksInPage,
-                            newLinksInPage,
-                            pagesRemaining,
-                            pagesComplete,
-                            timeTaken);
+        synchronized (listeners) {
+            Iterator i = listeners.iterator();
+            while (i.hasNext()) {
+                BeanListener l = (BeanListener) i.next();
+                l.pageGenerated(sourceURI,
+                                destURI,
+                                pageSize,
+                                linksInPage,
+                                newLinksInPage,
+                                pagesRemaining,
+                                pagesComplete,
+                                timeTaken);
+            }
         }
     }
 
     public void sendMessage(String msg) {
-        Iterator i = listeners.iterator();
-        while (i.hasNext()) {
-            BeanListener l = (BeanListener) i.next();
-            l.messageGenerated(msg);
+        synchronized (listeners) {
+            Iterator i = listeners.iterator();
+            while (i.hasNext()) {
+                BeanListener l = (BeanListener) i.next();
+                l.messageGenerated(msg);
+            }
         }
     }
 
     public void sendWarning(String uri, String warning) {
-        Iterator i = listeners.iterator();
-        while (i.hasNext()) {
-            BeanListener l = (BeanListener) i.next();
-            l.warningGenerated(uri, warning);
+        synchronized (listeners) {
+            Iterator i = listeners.iterator();
+            while (i.hasNext()) {
+                BeanListener l = (BeanListener) i.next();
+                l.warningGenerated(uri, warning);
+            }
         }
     }
 
     public void sendBrokenLinkWarning(String uri, String warning) {
-        Iterator i = listeners.iterator();
-        while (i.hasNext()) {
-            BeanListener l = (BeanListener) i.next();
-            l.brokenLinkFound(uri, "", warning, null);
+        synchronized (listeners) {
+            Iterator i = listeners.iterator();
+            while (i.hasNext()) {
+                BeanListener l = (BeanListener) i.next();
+                l.brokenLinkFound(uri, "", warning, null);
+            }
         }
     }
 
     public void sendBrokenLinkWarning(Target target, Throwable t) {
-        Iterator i = listeners.iterator();
-        while (i.hasNext()) {
-            BeanListener l = (BeanListener) i.next();
-            l.brokenLinkFound(target, t);
+        synchronized (listeners) {
+            Iterator i = listeners.iterator();
+            while (i.hasNext()) {
+                BeanListener l = (BeanListener) i.next();
+                l.brokenLinkFound(target, t);
+            }
         }
     }
 
     public void pageSkipped(String uri, String message) {
-        Iterator i = listeners.iterator();
-        while (i.hasNext()) {
-            BeanListener l = (BeanListener) i.next();
-            l.pageSkipped(uri, message);
+        synchronized (listeners) {
+            Iterator i = listeners.iterator();
+            while (i.hasNext()) {
+                BeanListener l = (BeanListener) i.next();
+                l.pageSkipped(uri, message);
+            }
         }
     }
 
@@ -343,8 +398,13 @@ public class CocoonBean extends CocoonWrapper {
         if (this.checksumsURI != null) {
             readChecksumFile();
         }
+        if (this.incremental && !precompileOnly) {
+            readValidities();
+        }
         
-        if (crawler.getRemainingCount()>=0) {
+        if (this.threads > 1 && !precompileOnly) {
+            processTargets();
+        } else if (crawler.getRemainingCount()>=0) {
             Iterator iterator = crawler.iterator();
             while (iterator.hasNext()) {
                 Target target = (Target) iterator.next();
@@ -357,6 +417,9 @@ public class CocoonBean extends CocoonWrapper {
         if (this.checksumsURI != null) {
             writeChecksumFile();
         }
+        if (this.incremental && !precompileOnly) {
+            writeValidities();
+        }
         
         if (log.isInfoEnabled()) {
               log.info(
@@ -373,6 +436,56 @@ public class CocoonBean extends CocoonWrapper {
           }
     }
 
+    /**
+     * Process the targets with several threads. Each thread takes the next
+     * target from the crawler until all targets have been processed.
+     */
+    private void processTargets() throws Exception {
+        // the workers load classes like the calling thread
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        final Worker[] workers = new Worker[this.threads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("cocoon-cli-" + (i + 1), classLoader);
+            workers[i].start();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].join();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i].exception != null) {
+                throw workers[i].exception;
+            }
+        }
+    }
+
+    /**
+     * A thread processing the targets of the crawler.
+     */
+    private class Worker extends Thread {
+        Exception exception;
+
+        public Worker(String name, ClassLoader classLoader) {
+            super(name);
+            setContextClassLoader(classLoader);
+        }
+
+        public void run() {
+            try {
+                Target target;
+                while ((target = crawler.take()) != null) {
+                    try {
+                        processTarget(crawler, target);
+                    } finally {
+                        crawler.done(target);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Worker " + getName() + " stopped.", e);
+                this.exception = e;
+            }
+        }
+    }
+
     /**
      * Processes the given Target and return all links.
      *
@@ -427,53 +540,32 @@ public class CocoonBean extends CocoonWrapper {
         //    return new ArrayList();
         //}
 
-        // Process links
-        final HashMap translatedLinks = new HashMap();
-        if (target.followLinks() && target.confirmExtensions() && isCrawlablePage(target)) {
-            final Iterator i =
-                this.getLinks(target.getDeparameterizedSourceURI(), target.getParameters()).iterator();
-
-            while (i.hasNext()) {
-                String linkURI = (String) i.next();
-                Target linkTarget = target.getDerivedTarget(linkURI);
-
-                if (linkTarget == null) {
-                    pageSkipped(linkURI, "link does not share same root as parent");
-                    continue;
-                }
-
-                if (!isIncluded(linkTarget.getSourceURI())) {
-                    pageSkipped(linkTarget.getSourceURI(), "matched include/exclude rules");
-                    continue;
-                }
-
-                if (!crawler.hasTranslatedLink(linkTarget)) {
-                    try {
-                        final String mimeType =
-                                getType(linkTarget.getDeparameterizedSourceURI(), linkTarget.getParameters());
-                        linkTarget.setMimeType(mimeType);
-                        crawler.addTranslatedLink(linkTarget);
-                        log.info("  Link translated: " + linkTarget.getSourceURI());
-                        if (crawler.addTarget(linkTarget)) {
-                            newLinkCount++;
-                        }
-                    } catch (ProcessingException pe) {
-                        this.sendBrokenLinkWarning(linkTarget, pe);
-                        if (this.brokenLinkGenerate) {
-                           if (crawler.addTarget(linkTarget)) {
-                               newLinkCount++;
-                           }
-                        }
+        // Skip the page if it has not changed since the last run
+        PageValidity validity = null;
+        if (this.incremental) {
+            validity = getValidity(target.getDeparameterizedSourceURI(), target.getParameters());
+            final PageValidity oldValidity = (PageValidity) this.oldValidities.get(target.getSourceURI());
+            if (oldValidity != null && oldValidity.isValid(validity) && exists(target)) {
+                // the links of the page may have changed
+                if (target.followLinks() && isCrawlablePage(target)) {
+                    if (target.confirmExtensions()) {
+                        translateLinks(crawler, target, oldValidity.getLinks(), new HashMap());
+                    } else {
+                        addLinks(crawler, target, oldValidity.getLinks());
                     }
-                } else {
-                    String originalURI = linkTarget.getOriginalSourceURI();
-                    linkTarget = crawler.getTranslatedLink(linkTarget);
-                    linkTarget.setOriginalURI(originalURI);
                 }
-
-                translatedLinks.put(linkTarget.getOriginalSourceURI(), linkTarget.getTranslatedURI(target.getPath()));
+                this.validities.put(target.getSourceURI(), oldValidity);
+                pageSkipped(target.getSourceURI(), "Page not changed");
+                return;
             }
+        }
 
+        // Process links
+        final HashMap translatedLinks = new HashMap();
+        Collection links = Collections.EMPTY_LIST;
+        if (target.followLinks() && target.confirmExtensions() && isCrawlablePage(target)) {
+            links = this.getLinks(target.getDeparameterizedSourceURI(), target.getParameters());
+            newLinkCount = translateLinks(crawler, target, links, translatedLinks);
             linkCount = translatedLinks.size();
         }
 
@@ -507,24 +599,9 @@ public class CocoonBean extends CocoonWrapper {
                 }
 
                 if (gatheredLinks != null) {
-                    for (Iterator it = gatheredLinks.iterator();it.hasNext();) {
-                        String linkURI = (String) it.next();
-                        Target linkTarget = target.getDerivedTarget(linkURI);
-
-                        if (linkTarget == null) {
-                            pageSkipped(linkURI, "link does not share same root as parent");
-                            continue;
-                        }
-
-                        if (!isIncluded(linkTarget.getSourceURI())) {
-                            pageSkipped(linkTarget.getSourceURI(), "matched include/exclude rules");
-                            continue;
-                        }
-                        if (crawler.addTarget(linkTarget)) {
-                            newLinkCount++;
-                        }
-                    }
+                    newLinkCount = addLinks(crawler, target, gatheredLinks);
                     linkCount = gatheredLinks.size();
+                    links = gatheredLinks;
                 }
 
             } catch (ProcessingException pe) {
@@ -557,6 +634,10 @@ public class CocoonBean extends CocoonWrapper {
                             output.close();
                             pageSkipped(target.getSourceURI(), "Page not changed");
                         }
+                        if (validity != null) {
+                            validity.setLinks(new ArrayList(links));
+                            this.validities.put(target.getSourceURI(), validity);
+                        }
                     } catch (IOException ioex) {
                         log.warn(ioex.toString());
                     } finally {
@@ -571,6 +652,90 @@ public class CocoonBean extends CocoonWrapper {
         }
     }
 
+    /**
+     * Translate the links of a page, adding the targets not translated yet
+     * to the crawler.
+     *
+     * @param links the links found in the page
+     * @param translatedLinks the map receiving the translated links
+     * @return the number of new targets
+     */
+    private int translateLinks(Crawler crawler, Target target, Collection links, Map translatedLinks)
+    throws Exception {
+        int newLinkCount = 0;
+        final Iterator i = links.iterator();
+        while (i.hasNext()) {
+            String linkURI = (String) i.next();
+            Target linkTarget = target.getDerivedTarget(linkURI);
+
+            if (linkTarget == null) {
+                pageSkipped(linkURI, "link does not share same root as parent");
+                continue;
+            }
+
+            if (!isIncluded(linkTarget.getSourceURI())) {
+                pageSkipped(linkTarget.getSourceURI(), "matched include/exclude rules");
+                continue;
+            }
+
+            final String originalURI = linkTarget.getOriginalSourceURI();
+            if (!crawler.hasTranslatedLink(linkTarget)) {
+                try {
+                    final String mimeType =
+                            getType(linkTarget.getDeparameterizedSourceURI(), linkTarget.getParameters());
+                    linkTarget.setMimeType(mimeType);
+                    crawler.addTranslatedLink(linkTarget);
+                    log.info("  Link translated: " + linkTarget.getSourceURI());
+                    if (crawler.addTarget(linkTarget)) {
+                        newLinkCount++;
+                    }
+                } catch (ProcessingException pe) {
+                    this.sendBrokenLinkWarning(linkTarget, pe);
+                    if (this.brokenLinkGenerate) {
+                       if (crawler.addTarget(linkTarget)) {
+                           newLinkCount++;
+                       }
+                    }
+                }
+            } else {
+                // the translated target is shared with the other threads,
+                // it is not changed
+                linkTarget = crawler.getTranslatedLink(linkTarget);
+            }
+
+            translatedLinks.put(originalURI, linkTarget.getTranslatedURI(target.getPath()));
+        }
+        return newLinkCount;
+    }
+
+    /**
+     * Add the links gathered while generating a page to the crawler.
+     *
+     * @param links the links found in the page
+     * @return the number of new targets
+     */
+    private int addLinks(Crawler crawler, Target target, Collection links) {
+        int newLinkCount = 0;
+        for (Iterator it = links.iterator();it.hasNext();) {
+            String linkURI = (String) it.next();
+            Target linkTarget = target.getDerivedTarget(linkURI);
+
+            if (linkTarget == null) {
+                pageSkipped(linkURI, "link does not share same root as parent");
+                continue;
+            }
+
+            if (!isIncluded(linkTarget.getSourceURI())) {
+                pageSkipped(linkTarget.getSourceURI(), "matched include/exclude rules");
+                continue;
+            }
+            if (crawler.addTarget(linkTarget)) {
+                newLinkCount++;
+            }
+        }
+        return newLinkCount;
+    }
+
     /**
      * Generate a <code>resourceUnavailable</code> message.
      *
@@ -632,6 +797,16 @@ public class CocoonBean extends CocoonWrapper {
     public void releaseSource(Source source) {
         sourceResolver.release(source);
     }
+
+    private boolean exists(Target target) throws IOException, ProcessingException {
+        Source src = getSource(target);
+        try {
+            return src.exists();
+        } finally {
+            this.releaseSource(src);
+        }
+    }
+
     private boolean isIncluded(String uri) {
         boolean included;
         Iterator i;
@@ -672,7 +847,7 @@ public class CocoonBean extends CocoonWrapper {
      *     in the XML 'report' file, along with details of what pages were created, etc. 
      */ 
     private void readChecksumFile() throws Exception {
-        checksums = new HashMap();
+        checksums = Collections.synchronizedMap(new HashMap());
         InputStream is = null;
         InputStreamReader isr = null;
         BufferedReader reader = null;
@@ -712,15 +887,59 @@ public class CocoonBean extends CocoonWrapper {
         }
         ModifiableSource source = (ModifiableSource) checksumSource;
         PrintWriter writer = new PrintWriter(new OutputStreamWriter(source.getOutputStream()));
-        Iterator i = checksums.keySet().iterator();
+        // sorted, the order of the pages depends on the threads
+        final Map sorted = new TreeMap(checksums);
+        Iterator i = sorted.keySet().iterator();
         while (i.hasNext()){
             String key = (String) i.next();
-            String checksum = (String) checksums.get(key);
+            String checksum = (String) sorted.get(key);
             writer.println(key + "\t" + checksum);
         }
         writer.close();
     }
 
+    /**
+     * Read the page validities of the last run from the working directory.
+     */
+    private void readValidities() {
+        this.oldValidities = new HashMap();
+        this.validities = Collections.synchronizedMap(new TreeMap());
+        final File file = new File(getWorkDirectory(), VALIDITIES_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.oldValidities = (Map) in.readObject();
+        } catch (Exception e) {
+            // generate all pages
+            log.warn("Unable to read page validities from " + file + ": " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the validities of the pages of this run to the working directory.
+     */
+    private void writeValidities() throws IOException {
+        final File file = new File(getWorkDirectory(), VALIDITIES_FILE);
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            synchronized (this.validities) {
+                out.writeObject(new TreeMap(this.validities));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
     private boolean isSameContent(DelayedOutputStream stream, Target target) {
         try {
             MessageDigest md5 = MessageDigest.getInstance("MD5");
@@ -36,6 +36,8 @@ import org.apache.cocoon.Cocoon;
 import org.apache.cocoon.Constants;
 import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.Processor;
+import org.apache.cocoon.bean.helpers.PageValidity;
+import org.apache.cocoon.components.pipeline.impl.AbstractCachingProcessingPipeline;
 import org.apache.cocoon.core.BootstrapEnvironment;
 import org.apache.cocoon.core.CoreUtil;
 import org.apache.cocoon.core.MutableSettings;
@@ -49,6 +51,7 @@ import org.apache.cocoon.util.NetUtils;
 import org.apache.cocoon.xml.ContentHandlerWrapper;
 import org.apache.cocoon.xml.XMLConsumer;
 import org.apache.commons.lang.SystemUtils;
+import org.apache.excalibur.source.SourceValidity;
 import org.xml.sax.ContentHandler;
 
 /**
@@ -272,6 +275,13 @@ public class CocoonWrapper {
         this.workDir = workDir;
     }
 
+    /**
+     * Get the working directory, once initialized.
+     */
+    protected File getWorkDirectory() {
+        return this.work;
+    }
+
     public void setConfigFile(String configFile) {
         this.configFile = configFile;
     }
@@ -469,6 +479,57 @@ public class CocoonWrapper {
         return status;
     }
 
+    /**
+     * Get the validity of the pipeline for an URI, without processing it.
+     * The key and the validity are those of the complete pipeline, they do
+     * not depend on whether the response is already in the cache.
+     *
+     * @param deparameterizedURI a <code>String</code> value of the URI
+     * @param parameters a <code>Map</code> value containing request parameters
+     * @return the validity, or <code>null</code> if the pipeline is not cacheable
+     * @exception Exception if an error occurs
+     */
+    protected PageValidity getValidity(String deparameterizedURI, Map parameters)
+    throws Exception {
+
+        final TreeMap headers = new TreeMap();
+        headers.put("user-agent", userAgent);
+        headers.put("accept", accept);
+
+        FileSavingEnvironment env =
+            new FileSavingEnvironment(deparameterizedURI, context, null,
+                                      parameters, headers, empty, null, cliContext,
+                                      new NullOutputStream(), log);
+
+        Processor.InternalPipelineDescription pipeline = null;
+        try {
+            pipeline = cocoon.buildPipeline(env);
+            if (!(pipeline.processingPipeline instanceof AbstractCachingProcessingPipeline)) {
+                return null;
+            }
+            final AbstractCachingProcessingPipeline processingPipeline =
+                (AbstractCachingProcessingPipeline) pipeline.processingPipeline;
+            EnvironmentHelper.enterProcessor(pipeline.processor, env);
+            try {
+                processingPipeline.prepareInternal(env);
+                final String key = processingPipeline.getKeyForCompletePipeline();
+                final SourceValidity validity = processingPipeline.getValidityForCompletePipeline();
+                if (key == null || validity == null) {
+                    return null;
+                }
+                return new PageValidity(key, validity);
+            } finally {
+                EnvironmentHelper.leaveProcessor();
+            }
+        } catch (ProcessingException pe) {
+            return null;
+        } finally {
+            if (pipeline != null) {
+                pipeline.release();
+            }
+        }
+    }
+
     /** Class <code>NullOutputStream</code> here. */
     static class NullOutputStream extends OutputStream {
         public void write(int b) throws IOException {
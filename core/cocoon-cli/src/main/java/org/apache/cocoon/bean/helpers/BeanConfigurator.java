@@ -77,6 +77,8 @@ public class BeanConfigurator {
     private static final String ATTR_FOLLOW_LINKS = "follow-links";
     private static final String ATTR_PRECOMPILE_ONLY = "precompile-only";
     private static final String ATTR_CONFIRM_EXTENSIONS = "confirm-extensions";
+    private static final String ATTR_THREADS = "threads";
+    private static final String ATTR_INCREMENTAL = "incremental";
     private static final String NODE_LOAD_CLASS = "load-class";
     private static final String NODE_DEFAULT_FILENAME = "default-filename";
 
@@ -113,6 +115,12 @@ public class BeanConfigurator {
         if (hasAttribute(root, ATTR_CONFIRM_EXTENSIONS)) {
             cocoon.setConfirmExtensions(getBooleanAttributeValue(root, ATTR_CONFIRM_EXTENSIONS));
         }
+        if (hasAttribute(root, ATTR_THREADS)) {
+            cocoon.setThreads(Integer.parseInt(getAttributeValue(root, ATTR_THREADS)));
+        }
+        if (hasAttribute(root, ATTR_INCREMENTAL)) {
+            cocoon.setIncremental(getBooleanAttributeValue(root, ATTR_INCREMENTAL));
+        }
         if (hasAttribute(root, ATTR_CONTEXT_DIR)) {
             cocoon.setContextDir(getAttributeValue(root, ATTR_CONTEXT_DIR));
         }
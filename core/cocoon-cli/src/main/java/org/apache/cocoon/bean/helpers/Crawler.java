@@ -18,6 +18,7 @@ package org.apache.cocoon.bean.helpers;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.cocoon.bean.Target;
@@ -25,6 +26,10 @@ import org.apache.cocoon.bean.Target;
 /**
  * A simple Cocoon crawler.
  *
+ * <p>The targets are handed out in the order they were added. The crawler
+ * is thread safe: several workers can take targets with {@link #take()}
+ * and add the links they find, each target is only handed out once.</p>
+ *
  * @version $Id$
  */
 
@@ -33,21 +38,25 @@ public class Crawler {
     private Map allTranslatedLinks;
     private Map stillNotVisited;
     private Map visitedAlready;
+
+    /** The number of targets taken but not done yet */
+    private int active;
     
     public Crawler() {
         visitedAlready = new HashMap();
-        stillNotVisited = new HashMap();
+        stillNotVisited = new LinkedHashMap();
         allTranslatedLinks = new HashMap();
     }
     
     /**
      * Add a target for future processing
      */
-    public boolean addTarget(Target target) {
+    public synchronized boolean addTarget(Target target) {
         String targetString = target.toString();
         if (!visitedAlready.containsKey(targetString)) {
             if (!stillNotVisited.containsKey(targetString)) {
                 stillNotVisited.put(targetString, target);
+                notifyAll();
                 return true;
             }
             Target existingTarget = (Target)stillNotVisited.get(targetString);
@@ -63,29 +72,68 @@ public class Crawler {
     /**
      * Returns the number of targets for processing
      */
-    public int getRemainingCount() {
+    public synchronized int getRemainingCount() {
         return stillNotVisited.size();
     }
     
-    public int getProcessedCount() {
+    public synchronized int getProcessedCount() {
         return visitedAlready.size();
     }
     
-    public int getTranslatedCount() {
+    public synchronized int getTranslatedCount() {
         return allTranslatedLinks.size();
     }
     
-    public void addTranslatedLink(Target target) {
+    public synchronized void addTranslatedLink(Target target) {
         allTranslatedLinks.put(target.getSourceURI(), target);
     }
     
-    public boolean hasTranslatedLink(Target link) {
+    public synchronized boolean hasTranslatedLink(Target link) {
         return allTranslatedLinks.get(link.getSourceURI())!=null;
     }
     
-    public Target getTranslatedLink(Target link) {
+    public synchronized Target getTranslatedLink(Target link) {
         return (Target) allTranslatedLinks.get(link.getSourceURI());
     }
+
+    /**
+     * Take the next target for processing, waiting while there are no
+     * targets left but other targets are still being processed, as these
+     * may add new targets. Each target taken must be passed to
+     * {@link #done(Target)} once it has been processed.
+     *
+     * @return the next target, or <code>null</code> if all targets have
+     *         been processed
+     */
+    public synchronized Target take() throws InterruptedException {
+        while (stillNotVisited.isEmpty() && active > 0) {
+            wait();
+        }
+        if (stillNotVisited.isEmpty()) {
+            return null;
+        }
+        active++;
+        return next();
+    }
+
+    /**
+     * A target taken with {@link #take()} has been processed.
+     */
+    public synchronized void done(Target target) {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Move the first not visited target to the visited ones.
+     */
+    synchronized Target next() {
+        final Iterator i = stillNotVisited.entrySet().iterator();
+        final Map.Entry entry = (Map.Entry) i.next();
+        i.remove();
+        visitedAlready.put(entry.getKey(), entry.getValue());
+        return (Target) entry.getValue();
+    }
     
     /**
      * Returns an iterator for reading targets
@@ -93,6 +141,12 @@ public class Crawler {
     public CrawlingIterator iterator() {
         return new CrawlingIterator(visitedAlready, stillNotVisited);
     }
+
+    /**
+     * Iterates over the targets not visited yet. Unlike {@link Crawler#take()}
+     * it does not wait for targets which other workers may still add, so it
+     * only suits a crawler used by one thread.
+     */
     
     public class CrawlingIterator implements Iterator {
 
@@ -110,7 +164,9 @@ public class Crawler {
          * @return    boolean true iff list of not visited URIs is not empty
          */
         public boolean hasNext() {
-            return !stillNotVisited.isEmpty();
+            synchronized (Crawler.this) {
+                return !stillNotVisited.isEmpty();
+            }
         }
 
         /**
@@ -128,11 +184,7 @@ public class Crawler {
          *   to set of visited URIs
          */
         public Object next() {
-            // could this be simpler:
-            Object nextKey = stillNotVisited.keySet().toArray()[0];
-            Object nextElement = stillNotVisited.remove(nextKey);
-            visitedAlready.put(nextKey, nextElement);
-            return nextElement;
+            return Crawler.this.next();
         }
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.bean.helpers;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+
+/**
+ * The validity of a generated page, kept between two runs of the CLI in
+ * incremental mode. It holds the cache key and the validity of the pipeline
+ * which generated the page, and the links found in the page, so that the
+ * links of a page which is not generated again can still be followed.
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class PageValidity implements Serializable {
+
+    private final String key;
+    private final SourceValidity validity;
+    private Collection links;
+
+    public PageValidity(String key, SourceValidity validity) {
+        this.key = key;
+        this.validity = validity;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public SourceValidity getValidity() {
+        return this.validity;
+    }
+
+    public Collection getLinks() {
+        return this.links;
+    }
+
+    public void setLinks(Collection links) {
+        this.links = links;
+    }
+
+    /**
+     * Check if the page is still the same as when this validity was stored.
+     *
+     * @param current the validity of the pipeline for the page now
+     * @return true if the page has not changed
+     */
+    public boolean isValid(PageValidity current) {
+        if (current == null || this.validity instanceof NOPValidity || !this.key.equals(current.key)) {
+            return false;
+        }
+        int valid = this.validity.isValid();
+        if (valid == SourceValidity.UNKNOWN) {
+            valid = this.validity.isValid(current.validity);
+        }
+        return valid == SourceValidity.VALID;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.bean.helpers;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.bean.Target;
+
+/**
+ * Test cases for handing out the targets of the {@link Crawler} to several
+ * workers with {@link Crawler#take()} and {@link Crawler#done(Target)}.
+ *
+ * @version $Id$
+ */
+public class CrawlerTestCase extends TestCase {
+
+    private static final long TIMEOUT = 5000;
+
+    private Crawler crawler;
+    private Target index;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.crawler = new Crawler();
+        this.index = new Target("index.html", "build/");
+        this.index.addReferringURI("");
+    }
+
+    public void testOrder() throws Exception {
+        assertTrue(this.crawler.addTarget(this.index));
+        assertTrue(this.crawler.addTarget(this.index.getDerivedTarget("a.html")));
+        assertTrue(this.crawler.addTarget(this.index.getDerivedTarget("b.html")));
+        // a target is only handed out once
+        assertFalse(this.crawler.addTarget(this.index.getDerivedTarget("a.html")));
+
+        Target first = this.crawler.take();
+        Target second = this.crawler.take();
+        Target third = this.crawler.take();
+        assertEquals("index.html", first.getSourceURI());
+        assertEquals("a.html", second.getSourceURI());
+        assertEquals("b.html", third.getSourceURI());
+        assertEquals(0, this.crawler.getRemainingCount());
+        assertEquals(3, this.crawler.getProcessedCount());
+
+        // a visited target is not added again
+        assertFalse(this.crawler.addTarget(this.index.getDerivedTarget("index.html")));
+
+        this.crawler.done(first);
+        this.crawler.done(second);
+        this.crawler.done(third);
+        assertNull(this.crawler.take());
+    }
+
+    public void testNoTargets() throws Exception {
+        assertNull(this.crawler.take());
+    }
+
+    /**
+     * A worker waits for the links of a target still being processed, and
+     * ends once the last target is done.
+     */
+    public void testTermination() throws Exception {
+        this.crawler.addTarget(this.index);
+        final Target taken = this.crawler.take();
+
+        final Worker worker = new Worker();
+        worker.start();
+        Thread.sleep(200);
+        assertTrue("The worker must wait while a target is processed", worker.isAlive());
+
+        // the link found in the page is handed out to the waiting worker
+        this.crawler.addTarget(taken.getDerivedTarget("page.html"));
+        Thread.sleep(200);
+        assertTrue("The worker must wait while its target is processed", worker.isAlive());
+        this.crawler.done(taken);
+
+        worker.join(TIMEOUT);
+        assertFalse("The worker must end once all targets are done", worker.isAlive());
+        assertNull(worker.error);
+        assertEquals(1, worker.processed);
+        assertEquals(0, this.crawler.getRemainingCount());
+        assertEquals(2, this.crawler.getProcessedCount());
+    }
+
+    public void testSeveralWorkers() throws Exception {
+        this.crawler.addTarget(this.index);
+        final Worker[] workers = new Worker[4];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(10);
+            workers[i].start();
+        }
+
+        int processed = 0;
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].join(TIMEOUT);
+            assertFalse("All workers must end", workers[i].isAlive());
+            assertNull(workers[i].error);
+            processed += workers[i].processed;
+        }
+        // the index and the ten pages it links to
+        assertEquals(11, processed);
+        assertEquals(11, this.crawler.getProcessedCount());
+    }
+
+    /**
+     * Processes targets until the crawler has none left. A worker with links
+     * adds that many links from the index page.
+     */
+    private class Worker extends Thread {
+
+        private final int links;
+
+        int processed;
+        Throwable error;
+
+        Worker() {
+            this(0);
+        }
+
+        Worker(int links) {
+            this.links = links;
+        }
+
+        public void run() {
+            try {
+                Target target;
+                while ((target = crawler.take()) != null) {
+                    try {
+                        if ("index.html".equals(target.getSourceURI())) {
+                            for (int i = 0; i < this.links; i++) {
+                                crawler.addTarget(target.getDerivedTarget("page" + i + ".html"));
+                            }
+                        }
+                        this.processed++;
+                    } finally {
+                        crawler.done(target);
+                    }
+                }
+            } catch (Throwable t) {
+                this.error = t;
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.avalon.framework.context.Context;
+import org.apache.avalon.framework.context.ContextException;
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceResolver;
+
+import org.apache.cocoon.Constants;
+import org.apache.cocoon.Processor;
+import org.apache.cocoon.caching.Cache;
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.caching.ResponseRevalidator;
+import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Request;
+import org.apache.cocoon.environment.background.BackgroundEnvironment;
+import org.apache.cocoon.environment.internal.EnvironmentHelper;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.util.AbstractLogEnabled;
+
+/**
+ * Default implementation of the {@link ResponseRevalidator}. The stale
+ * response is regenerated by requesting its URI from the root sitemap in a
+ * {@link BackgroundEnvironment}, using a thread of the {@link RunnableManager}.
+ * Each response is scheduled at most once until its regeneration finished.
+ *
+ * <p>The background request has the URI, query string and headers of the
+ * original request. Requests with a body, cookies or a session cannot be
+ * replayed and are not revalidated. If the regeneration still did not replace
+ * the stale response, e.g. because its key depends on the locale, the stale
+ * response is removed from the cache so that the next request generates it.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class BackgroundRevalidator extends AbstractLogEnabled
+                                   implements ResponseRevalidator {
+
+    /** Is the current thread regenerating a response? */
+    private static final ThreadLocal REVALIDATING = new ThreadLocal();
+
+    protected Context context;
+    protected ServiceManager manager;
+    protected SourceResolver resolver;
+    protected RunnableManager runnable;
+    protected String threadPool;
+
+    /** The keys of the scheduled responses */
+    protected final ConcurrentMap scheduled = new ConcurrentHashMap();
+
+    /**
+     * @see org.apache.cocoon.caching.ResponseRevalidator#revalidate(org.apache.cocoon.caching.Cache, java.io.Serializable, org.apache.cocoon.caching.CachedResponse, org.apache.cocoon.environment.Environment)
+     */
+    public boolean revalidate(Cache cache, Serializable key, CachedResponse response,
+                              Environment environment) {
+        final Request request = ObjectModelHelper.getRequest(environment.getObjectModel());
+        if (!isReplayable(request)) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Request for " + environment.getURI() + " cannot be replayed");
+            }
+            return false;
+        }
+
+        String uri = environment.getURIPrefix() + environment.getURI();
+        if (request.getQueryString() != null) {
+            uri = uri + '?' + request.getQueryString();
+        }
+        final RevalidatorTask task = new RevalidatorTask(cache, key, response.getLastModified(),
+                                                         uri, getHeaders(request));
+        if (this.scheduled.putIfAbsent(key, task) != null) {
+            return true;
+        }
+
+        try {
+            if (this.threadPool != null) {
+                this.runnable.execute(this.threadPool, task);
+            } else {
+                this.runnable.execute(task);
+            }
+        } catch (RuntimeException e) {
+            this.scheduled.remove(key, task);
+            getLogger().warn("Unable to schedule the regeneration of " + uri, e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Can the request be replayed from its URI and headers? This is not the
+     * case for requests with a body, cookies or a session.
+     */
+    protected boolean isReplayable(Request request) {
+        if (request == null) {
+            return false;
+        }
+        final String method = request.getMethod();
+        if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) {
+            return false;
+        }
+        final Cookie[] cookies = request.getCookies();
+        if (cookies != null && cookies.length > 0) {
+            return false;
+        }
+        return request.getSession(false) == null;
+    }
+
+    /**
+     * Copy the headers of the request, keyed by their lower case name.
+     */
+    protected Map getHeaders(Request request) {
+        final Map headers = new HashMap();
+        final Enumeration names = request.getHeaderNames();
+        while (names != null && names.hasMoreElements()) {
+            final String name = (String) names.nextElement();
+            headers.put(name.toLowerCase(), request.getHeader(name));
+        }
+        return headers;
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.ResponseRevalidator#isRevalidating()
+     */
+    public boolean isRevalidating() {
+        return REVALIDATING.get() != null;
+    }
+
+    /**
+     * Regenerate a response by requesting its URI from the root sitemap.
+     * The caching pipeline stores the new response.
+     *
+     * @param uri the URI relative to the root sitemap, including the query string
+     * @param headers the request headers, keyed by their lower case name
+     */
+    protected void regenerate(String uri, Map headers) throws Exception {
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Regenerating " + uri);
+        }
+
+        // Setup Environment
+        final BackgroundEnvironment env;
+        try {
+            org.apache.cocoon.environment.Context ctx =
+                    (org.apache.cocoon.environment.Context) context.get(Constants.CONTEXT_ENVIRONMENT_CONTEXT);
+            env = new BackgroundEnvironment(ctx, headers);
+        } catch (ContextException e) {
+            throw new ServiceException(Processor.ROLE, "No context found", e);
+        }
+        final Processor processor = (Processor) manager.lookup(Processor.ROLE);
+
+        env.startingProcessing();
+        EnvironmentHelper.enterProcessor(processor, env);
+        try {
+            // Process the pipeline, the caching pipeline stores the new response
+            Source source = null;
+            try {
+                source = resolver.resolveURI("cocoon://" + uri);
+                final InputStream is = source.getInputStream();
+                try {
+                    final byte[] buffer = new byte[8192];
+                    while (is.read(buffer) != -1) {
+                        // discard
+                    }
+                } finally {
+                    is.close();
+                }
+            } catch (IOException e) {
+                getLogger().error("Error regenerating " + uri, e);
+            } finally {
+                if (source != null) {
+                    resolver.release(source);
+                }
+            }
+        } finally {
+            EnvironmentHelper.leaveProcessor();
+            env.finishingProcessing();
+            manager.release(processor);
+        }
+    }
+
+    /**
+     * Task which regenerates one response.
+     */
+    protected class RevalidatorTask implements Runnable {
+        private final Cache cache;
+        private final Serializable key;
+        private final long lastModified;
+        private final String uri;
+        private final Map headers;
+
+        public RevalidatorTask(Cache cache, Serializable key, long lastModified,
+                               String uri, Map headers) {
+            this.cache = cache;
+            this.key = key;
+            this.lastModified = lastModified;
+            this.uri = uri;
+            this.headers = headers;
+        }
+
+        public void run() {
+            REVALIDATING.set(Boolean.TRUE);
+            try {
+                regenerate(this.uri, this.headers);
+            } catch (Exception e) {
+                getLogger().error("Error regenerating " + this.uri, e);
+            } finally {
+                REVALIDATING.set(null);
+                try {
+                    removeIfNotReplaced();
+                } finally {
+                    scheduled.remove(this.key, this);
+                }
+            }
+        }
+
+        /**
+         * The regeneration did not store a response under the same key if it
+         * depends on request data which has not been replayed. The stale
+         * response must not be used any longer then.
+         */
+        private void removeIfNotReplaced() {
+            final CachedResponse current = this.cache.get(this.key);
+            if (current != null && current.getLastModified() == this.lastModified) {
+                this.cache.remove(this.key);
+                if (getLogger().isInfoEnabled()) {
+                    getLogger().info("Regeneration of " + this.uri +
+                                     " did not replace the stale response, removed it from the cache");
+                }
+            }
+        }
+    }
+
+    // ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ set dependencies ~~~~~
+
+    public void setServiceManager(ServiceManager manager) {
+        this.manager = manager;
+    }
+
+    public void setSourceResolver(SourceResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public void setRunnableManager(RunnableManager runnable) {
+        this.runnable = runnable;
+    }
+
+    /**
+     * The thread pool of the {@link RunnableManager} to use. If not set, the
+     * default pool is used.
+     */
+    public void setThreadPool(String threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    public void setAvalonContext(Context context) {
+        this.context = context;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.excalibur.source.SourceValidity;
+
+/**
+ * An {@link EntryCodec} which stores {@link CachedResponse}s in their raw
+ * form: the response bytes are written as they are, only the validity
+ * objects are serialized. This avoids serializing (and copying) the
+ * potentially large response through an <code>ObjectOutputStream</code>.
+ * All other values are handled by the default codec, usually the
+ * <code>SerializingEntryCodec</code> of the store implementation:
+ * <pre>
+ *   &lt;bean class="org.apache.cocoon.components.store.CachedResponseCodec"&gt;
+ *     &lt;property name="defaultCodec"&gt;
+ *       &lt;bean class="org.apache.cocoon.components.store.impl.SerializingEntryCodec"/&gt;
+ *     &lt;/property&gt;
+ *   &lt;/bean&gt;
+ * </pre>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class CachedResponseCodec implements EntryCodec {
+
+    /**
+     * Marks a raw cached response. The first byte of the data of the
+     * default codec must never have this value.
+     */
+    protected static final byte TYPE_RESPONSE = 2;
+
+    private EntryCodec defaultCodec;
+
+
+    /**
+     * The codec of all values other than cached responses. If not set, only
+     * cached responses can be encoded.
+     *
+     * @param defaultCodec
+     */
+    public void setDefaultCodec(EntryCodec defaultCodec) {
+        this.defaultCodec = defaultCodec;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.store.EntryCodec#encode(java.lang.Object)
+     */
+    public byte[] encode(Object value) throws IOException {
+        // Subclasses carry more state, serialize them
+        if (value == null || value.getClass() != CachedResponse.class) {
+            return this.defaultCodec == null ? null : this.defaultCodec.encode(value);
+        }
+
+        final CachedResponse response = (CachedResponse) value;
+        final byte[] bytes = response.getResponse();
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length + 512);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(TYPE_RESPONSE);
+        out.writeLong(response.getExpires() == null ? -1 : response.getExpires().longValue());
+        out.writeLong(response.getLastModified());
+        out.writeBoolean(response.getContentType() != null);
+        if (response.getContentType() != null) {
+            out.writeUTF(response.getContentType());
+        }
+
+        final ByteArrayOutputStream validities = new ByteArrayOutputStream(256);
+        final ObjectOutputStream oos = new ObjectOutputStream(validities);
+        oos.writeObject(response.getValidityObjects());
+        oos.flush();
+        out.writeInt(validities.size());
+        validities.writeTo(out);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @see org.apache.cocoon.components.store.EntryCodec#decode(byte[])
+     */
+    public Object decode(byte[] data) throws IOException {
+        if (data.length == 0 || data[0] != TYPE_RESPONSE) {
+            if (this.defaultCodec == null) {
+                throw new IOException("No codec for entries of type " + (data.length == 0 ? -1 : data[0]));
+            }
+            return this.defaultCodec.decode(data);
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+        final long expires = in.readLong();
+        final long lastModified = in.readLong();
+        final String contentType = in.readBoolean() ? in.readUTF() : null;
+
+        final int validitiesLength = in.readInt();
+        final int validitiesOffset = data.length - in.available();
+        final SourceValidity[] validities =
+            deserializeValidities(data, validitiesOffset, validitiesLength);
+        in.skipBytes(validitiesLength);
+
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        final CachedResponse response =
+            new CachedResponse(validities, bytes, expires == -1 ? null : new Long(expires), lastModified);
+        response.setContentType(contentType);
+        return response;
+    }
+
+    private static SourceValidity[] deserializeValidities(byte[] data, int offset, int length)
+    throws IOException {
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            return (SourceValidity[]) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to deserialize the validities: " + e.getMessage());
+        } finally {
+            ois.close();
+        }
+    }
+}
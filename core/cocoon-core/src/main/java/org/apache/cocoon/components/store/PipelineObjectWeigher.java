@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store;
+
+import java.util.Iterator;
+
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.caching.PipelineCacheKey;
+import org.apache.cocoon.xml.SaxBuffer;
+import org.xml.sax.Attributes;
+
+/**
+ * Estimates the heap size of the objects the pipelines put into a store:
+ * {@link CachedResponse}s with their {@link PipelineCacheKey}, recorded
+ * {@link SaxBuffer}s and the compiled SAX fragments of the
+ * <code>XMLByteStreamCompiler</code> (which are byte arrays).
+ *
+ * <p>Use it as the weigher of a store with a byte budget:
+ * <pre>
+ *   &lt;property name="maxWeight" value="67108864"/&gt;
+ *   &lt;property name="weigher" ref="org.apache.cocoon.components.store.Weigher"/&gt;
+ * </pre>
+ * All other objects are weighed by the default weigher, usually the
+ * <code>ObjectSizeWeigher</code> of the store implementation.</p>
+ *
+ * <p>The estimates include the object headers of a 64 bit JVM with
+ * compressed references.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class PipelineObjectWeigher implements Weigher {
+
+    /** Size of an object header. */
+    private static final int OBJECT_HEADER = 16;
+
+    /** Size of an array header. */
+    private static final int ARRAY_HEADER = 16;
+
+    /** Size of a reference. */
+    private static final int REFERENCE = 4;
+
+    /** Size assumed for other objects if there is no default weigher. */
+    private static final int DEFAULT_OBJECT_SIZE = 256;
+
+    /** Estimated size of a single component key of a pipeline key. */
+    private static final int COMPONENT_KEY_SIZE = 160;
+
+    /** Estimated size of a source validity. */
+    private static final int VALIDITY_SIZE = 64;
+
+    /** Estimated size of a SAX event without its strings. */
+    private static final int SAX_BIT_SIZE = 32;
+
+    private Weigher defaultWeigher;
+
+
+    /**
+     * The weigher of all other objects. If not set, they count with 256 bytes.
+     *
+     * @param defaultWeigher
+     */
+    public void setDefaultWeigher(Weigher defaultWeigher) {
+        this.defaultWeigher = defaultWeigher;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.store.Weigher#weigh(java.lang.Object, java.lang.Object)
+     */
+    public int weigh(Object key, Object value) {
+        long size = estimate(key) + estimate(value);
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(1, size);
+    }
+
+    /**
+     * Estimate the heap size of the object in bytes.
+     *
+     * @param object the object, may be <code>null</code>
+     * @return the estimated size in bytes
+     */
+    protected long estimate(Object object) {
+        if (object == null) {
+            return 0;
+        }
+        if (object instanceof byte[]) {
+            return align(ARRAY_HEADER + ((byte[]) object).length);
+        }
+        if (object instanceof CachedResponse) {
+            return estimate((CachedResponse) object);
+        }
+        if (object instanceof SaxBuffer) {
+            return estimate((SaxBuffer) object);
+        }
+        if (object instanceof PipelineCacheKey) {
+            return OBJECT_HEADER + 32 + (long) COMPONENT_KEY_SIZE * ((PipelineCacheKey) object).size();
+        }
+        if (this.defaultWeigher != null) {
+            return this.defaultWeigher.weigh(null, object);
+        }
+        return DEFAULT_OBJECT_SIZE;
+    }
+
+    private long estimate(CachedResponse response) {
+        long size = OBJECT_HEADER + 48;
+        size += estimate(response.getResponse());
+        size += sizeOf(response.getContentType());
+        if (response.getValidityObjects() != null) {
+            size += align(ARRAY_HEADER + (long) REFERENCE * response.getValidityObjects().length);
+            size += (long) VALIDITY_SIZE * response.getValidityObjects().length;
+        }
+        return size;
+    }
+
+    private long estimate(SaxBuffer buffer) {
+        long size = OBJECT_HEADER + 32;
+        for (Iterator i = buffer.getBits().iterator(); i.hasNext();) {
+            Object bit = i.next();
+            size += REFERENCE + SAX_BIT_SIZE;
+            if (bit instanceof SaxBuffer.Characters) {
+                size += sizeOf(((SaxBuffer.Characters) bit).ch);
+            } else if (bit instanceof SaxBuffer.IgnorableWhitespace) {
+                size += sizeOf(((SaxBuffer.IgnorableWhitespace) bit).ch);
+            } else if (bit instanceof SaxBuffer.Comment) {
+                size += sizeOf(((SaxBuffer.Comment) bit).ch);
+            } else if (bit instanceof SaxBuffer.StartElement) {
+                SaxBuffer.StartElement start = (SaxBuffer.StartElement) bit;
+                // Names are usually interned by the parser, count them only once per event
+                size += estimate(start.attrs);
+            }
+        }
+        return size;
+    }
+
+    private long estimate(Attributes attrs) {
+        if (attrs == null) {
+            return 0;
+        }
+        long size = OBJECT_HEADER + 32;
+        for (int i = 0; i < attrs.getLength(); i++) {
+            size += 5 * REFERENCE + sizeOf(attrs.getValue(i));
+        }
+        return size;
+    }
+
+    private static long sizeOf(char[] chars) {
+        return chars == null ? 0 : align(ARRAY_HEADER + 2L * chars.length);
+    }
+
+    private static long sizeOf(String string) {
+        if (string == null) {
+            return 0;
+        }
+        return OBJECT_HEADER + 8 + align(ARRAY_HEADER + 2L * string.length());
+    }
+
+    /**
+     * Round up to the 8 byte object alignment.
+     */
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -19,6 +19,7 @@ package org.apache.cocoon.environment.background;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.cocoon.environment.AbstractEnvironment;
 import org.apache.cocoon.environment.Context;
@@ -37,6 +38,15 @@ import org.apache.cocoon.util.NullOutputStream;
 public class BackgroundEnvironment extends AbstractEnvironment {
 
     public BackgroundEnvironment(Context ctx) {
+        this(ctx, Collections.EMPTY_MAP);
+    }
+
+    /**
+     * Creates an environment whose request has the given headers.
+     *
+     * @param headers the request headers, keyed by their lower case name
+     */
+    public BackgroundEnvironment(Context ctx, Map headers) {
         super("", null, null);
         this.outputStream = new NullOutputStream();
 
@@ -48,7 +58,7 @@ public class BackgroundEnvironment extends AbstractEnvironment {
                 "",                    // path info
                 new HashMap(),         // attributes
                 Collections.EMPTY_MAP, // parameters
-                Collections.EMPTY_MAP  // headers
+                headers                // headers
         );
         this.objectModel.put(ObjectModelHelper.REQUEST_OBJECT, request);
         this.objectModel.put(ObjectModelHelper.RESPONSE_OBJECT,
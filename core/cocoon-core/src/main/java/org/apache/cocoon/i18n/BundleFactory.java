@@ -57,6 +57,14 @@ public interface BundleFactory {
          * @since 2.1.8
          */
         public static final String RELOAD_INTERVAL = "reload-interval";
+
+        /**
+         * Configuration element specifying whether changed bundles are
+         * reloaded in the background, while requests keep using the
+         * previously loaded messages.
+         * @since 2.2
+         */
+        public static final String BACKGROUND_RELOAD = "background-reload";
     }
 
     /**
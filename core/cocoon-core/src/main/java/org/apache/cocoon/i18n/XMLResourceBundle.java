@@ -61,6 +61,15 @@ import org.xml.sax.SAXException;
  *
  * <p>
  * If value for a key is not present in this bundle, parent bundle will be queried.
+ * Lookups go to a table merging the values of this bundle and of all its parents
+ * (<code>messages_fr_CA</code>, <code>messages_fr</code>, <code>messages</code>),
+ * which is built once and rebuilt only after one of the bundles has been reloaded.
+ *
+ * <p>
+ * Reloading replaces the values of the bundle as a whole, the bundle keeps
+ * serving the previous values until the new ones are loaded. The messages are
+ * {@link ParamSaxBuffer#compile() compiled} when they are loaded and must not be
+ * modified by the users of the bundle.
  *
  * @version $Id$
  */
@@ -90,7 +99,7 @@ public class XMLResourceBundle extends AbstractLogEnabled
     /**
      * Bundle validity
      */
-    private SourceValidity validity;
+    private volatile SourceValidity validity;
 
     /**
      * Locale of the bundle
@@ -105,7 +114,41 @@ public class XMLResourceBundle extends AbstractLogEnabled
     /**
      * Objects stored in the bundle
      */
-    protected Map values;
+    protected volatile Map values;
+
+    /**
+     * Lookup table of this bundle and its parents
+     */
+    private volatile LookupTable table;
+
+    /**
+     * Is a reload of this bundle in progress?
+     */
+    private boolean reloading;
+
+
+    /**
+     * Merged values of a bundle and its parents. The table is immutable,
+     * it remembers the values it has been built from to detect reloads.
+     */
+    private static final class LookupTable {
+        final Map values;
+        final LookupTable parent;
+        final Map merged;
+
+        LookupTable(Map values, LookupTable parent) {
+            this.values = values;
+            this.parent = parent;
+            if (parent == null) {
+                this.merged = values;
+            } else if (values.isEmpty()) {
+                this.merged = parent.merged;
+            } else {
+                this.merged = new HashMap(parent.merged);
+                this.merged.putAll(values);
+            }
+        }
+    }
 
 
     /**
@@ -198,6 +241,7 @@ public class XMLResourceBundle extends AbstractLogEnabled
                 case 2:
                     if (this.namespace.equals(ns) && EL_MESSAGE.equals(localName)) {
                         // </i18n:message>
+                        this.buffer.compile();
                         this.buffer = null;
                         this.state--;
                     } else {
@@ -249,16 +293,66 @@ public class XMLResourceBundle extends AbstractLogEnabled
         this.values = Collections.EMPTY_MAP;
     }
 
+    /**
+     * Checks if the bundle needs to be reloaded. This is a cheap check which
+     * does not resolve the source, unless the validity requires it.
+     * @return true if the bundle should be reloaded
+     * @since 2.2
+     */
+    protected boolean isReloadNeeded() {
+        final SourceValidity validity = this.validity;
+        return validity == null || validity.isValid() != SourceValidity.VALID;
+    }
+
+    /**
+     * Marks the start of a reload which runs in the background.
+     * @return false if a reload is already in progress
+     * @since 2.2
+     */
+    protected synchronized boolean startReload() {
+        if (this.reloading) {
+            return false;
+        }
+        this.reloading = true;
+        return true;
+    }
+
+    /**
+     * Marks the end of a reload started with {@link #startReload()}.
+     * @since 2.2
+     */
+    protected synchronized void endReload() {
+        this.reloading = false;
+    }
+
     /**
      * (Re)Loads the XML bundle if necessary, based on the source URI.
      * @return true if reloaded successfully
      */
     protected boolean reload(SourceResolver resolver, long interval) {
+        return reload(resolver, interval, false);
+    }
+
+    /**
+     * (Re)Loads the XML bundle if necessary, based on the source URI.
+     * @param checked true if {@link #isReloadNeeded()} has already been called,
+     *                the source is then compared with the current validity
+     * @return true if reloaded successfully
+     * @since 2.2
+     */
+    protected boolean reload(SourceResolver resolver, long interval, boolean checked) {
         Source newSource = null;
         Map newValues;
 
         try {
-            int valid = this.validity == null ? SourceValidity.INVALID : this.validity.isValid();
+            int valid;
+            if (this.validity == null) {
+                valid = SourceValidity.INVALID;
+            } else if (checked) {
+                valid = SourceValidity.UNKNOWN;
+            } else {
+                valid = this.validity.isValid();
+            }
             if (valid != SourceValidity.VALID) {
                 // Saved validity is not valid, get new source and validity
                 newSource = resolver.resolveURI(this.sourceURI);
@@ -376,12 +470,12 @@ public class XMLResourceBundle extends AbstractLogEnabled
             return null;
         }
 
-        Object value = this.values.get(key);
+        Object value = getLookupTable().merged.get(key);
         if (value != null) {
             return value;
         }
 
-        if (this.parent != null) {
+        if (this.parent != null && !(this.parent instanceof XMLResourceBundle)) {
             return this.parent.getObject(key);
         }
 
@@ -399,15 +493,35 @@ public class XMLResourceBundle extends AbstractLogEnabled
             return null;
         }
 
-        Object value = this.values.get(key);
+        Object value = getLookupTable().merged.get(key);
         if (value != null) {
             return value.toString();
         }
 
-        if (this.parent != null) {
+        if (this.parent != null && !(this.parent instanceof XMLResourceBundle)) {
             return this.parent.getString(key);
         }
 
         return null;
     }
+
+    /**
+     * Returns the lookup table of this bundle, rebuilding it if this bundle or
+     * one of its parents has been reloaded since it was built.
+     */
+    private LookupTable getLookupTable() {
+        LookupTable parentTable = null;
+        if (this.parent instanceof XMLResourceBundle) {
+            parentTable = ((XMLResourceBundle) this.parent).getLookupTable();
+        }
+
+        final Map values = this.values;
+        LookupTable table = this.table;
+        if (table == null || table.values != values || table.parent != parentTable) {
+            // Concurrent rebuilds produce equal tables, the last one wins
+            table = new LookupTable(values, parentTable);
+            this.table = table;
+        }
+        return table;
+    }
 }
@@ -36,6 +36,7 @@ import org.apache.excalibur.source.SourceNotFoundException;
 import org.apache.excalibur.source.SourceResolver;
 import org.apache.excalibur.store.Store;
 
+import org.apache.cocoon.thread.RunnableManager;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.util.NetUtils;
 
@@ -62,6 +63,12 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
      */
     private long interval;
 
+    /**
+     * Reload changed bundles in the background? Defaults to true,
+     * requires a {@link RunnableManager}.
+     */
+    private boolean backgroundReload;
+
     /**
      * Service Manager
      */
@@ -77,6 +84,11 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
      */
     protected Store cache;
 
+    /**
+     * Runs the background reloads, if available
+     */
+    protected RunnableManager runnableManager;
+
 
     //
     // Lifecycle
@@ -85,6 +97,9 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
     public void service(ServiceManager manager) throws ServiceException {
         this.manager = manager;
         this.resolver = (SourceResolver) this.manager.lookup(SourceResolver.ROLE);
+        if (this.manager.hasService(RunnableManager.ROLE)) {
+            this.runnableManager = (RunnableManager) this.manager.lookup(RunnableManager.ROLE);
+        }
     }
 
     /**
@@ -103,10 +118,13 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
         }
 
         this.interval = configuration.getChild(ConfigurationKeys.RELOAD_INTERVAL).getValueAsLong(60000L);
+        this.backgroundReload = configuration.getChild(ConfigurationKeys.BACKGROUND_RELOAD).getValueAsBoolean(true)
+                                && this.runnableManager != null;
 
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("Bundle directory '" + this.directory + "'");
             getLogger().debug("Store role '" + cacheRole + "'");
+            getLogger().debug("Background reload " + this.backgroundReload);
         }
     }
 
@@ -116,7 +134,9 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
     public void dispose() {
         this.manager.release(this.resolver);
         this.manager.release(this.cache);
+        this.manager.release(this.runnableManager);
         this.resolver = null;
+        this.runnableManager = null;
         this.cache = null;
         this.manager = null;
     }
@@ -406,13 +426,30 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
         if (bundle != null && this.interval != -1) {
             // Reload this bundle and all parent bundles, as necessary
             for (XMLResourceBundle b = bundle; b != null; b = (XMLResourceBundle) b.parent) {
-                b.reload(this.resolver, this.interval);
+                if (this.backgroundReload && isBackgroundReloadable(b)) {
+                    if (b.isReloadNeeded() && b.startReload()) {
+                        this.runnableManager.execute(new Reloader(b));
+                    }
+                } else {
+                    b.reload(this.resolver, this.interval);
+                }
             }
         }
 
         return bundle;
     }
 
+    /**
+     * Checks if a bundle can be reloaded in the background. Sources of the
+     * <code>cocoon:</code> protocol need the environment of a request and
+     * are reloaded by the request thread.
+     * @param bundle      the bundle
+     * @return            true if the bundle can be reloaded in the background
+     */
+    protected boolean isBackgroundReloadable(XMLResourceBundle bundle) {
+        return !bundle.getSourceURI().startsWith("cocoon:");
+    }
+
     /**
      * Stores bundle in the cache.
      *
@@ -426,4 +463,27 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
             getLogger().error("Bundle <" + bundle.getSourceURI() + ">: unable to store.", e);
         }
     }
+
+    /**
+     * Reloads a bundle in the background. The bundle keeps serving its
+     * previous values until the new ones are loaded.
+     */
+    private class Reloader implements Runnable {
+        private final XMLResourceBundle bundle;
+
+        public Reloader(XMLResourceBundle bundle) {
+            this.bundle = bundle;
+        }
+
+        public void run() {
+            try {
+                final SourceResolver resolver = XMLResourceBundleFactory.this.resolver;
+                if (resolver != null) {
+                    this.bundle.reload(resolver, XMLResourceBundleFactory.this.interval, true);
+                }
+            } finally {
+                this.bundle.endReload();
+            }
+        }
+    }
 }
@@ -25,6 +25,7 @@ import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.caching.CacheableProcessingComponent;
+import org.apache.cocoon.components.sax.SlabBuffer;
 import org.apache.cocoon.components.sax.XMLByteStreamCompiler;
 import org.apache.cocoon.components.sax.XMLByteStreamInterpreter;
 import org.apache.cocoon.components.source.SourceUtil;
@@ -41,6 +42,7 @@ import org.apache.excalibur.source.SourceException;
 import org.apache.excalibur.source.SourceParameters;
 import org.apache.excalibur.source.SourceValidity;
 import org.apache.excalibur.xml.dom.DOMParser;
+import org.apache.excalibur.xml.sax.XMLizable;
 import org.apache.excalibur.xml.xpath.XPathProcessor;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
@@ -376,7 +378,15 @@ public class CIncludeTransformer extends AbstractSAXTransformer
                         deserializer = new XMLByteStreamInterpreter();
                         SourceUtil.toSAX(source, serializer, this.configurationParameters, true);
                         deserializer.setConsumer( this.xmlConsumer );
-                        deserializer.deserialize( serializer.getSAXFragment() );
+                        // The events are replayed at once, no need to copy them
+                        final SlabBuffer buffer = serializer.getSlabBuffer();
+                        try {
+                            deserializer.deserialize( buffer );
+                        } finally {
+                            if (buffer != null) {
+                                buffer.release();
+                            }
+                        }
                     } else {
                         SourceUtil.toSAX(source, this.xmlConsumer, this.configurationParameters, true);
                     }
@@ -536,9 +546,14 @@ public class CIncludeTransformer extends AbstractSAXTransformer
                     parser = (DOMParser)this.manager.lookup(DOMParser.ROLE);
                     processor = (XPathProcessor)this.manager.lookup(XPathProcessor.ROLE);
 
-                    InputSource input = SourceUtil.getInputSource(source);
-
-                    Document document = parser.parseDocument(input);
+                    Document document;
+                    if (source instanceof XMLizable) {
+                        // cocoon: sources stream their events, no need to parse their output
+                        document = SourceUtil.toDOM(source);
+                    } else {
+                        InputSource input = SourceUtil.getInputSource(source);
+                        document = parser.parseDocument(input);
+                    }
                     NodeList list = processor.selectNodeList(document, select);
                     int length = list.getLength();
                     for (int i=0; i<length; i++) {
@@ -1517,6 +1517,9 @@ public class I18nTransformer extends AbstractTransformer
             case STATE_INSIDE_TRANSLATE:
                 if (tr_text_recorder == null) {
                     tr_text_recorder = new ParamSaxBuffer();
+                } else if (tr_text_recorder.isCompiled()) {
+                    // Messages of the catalogues are shared, copy before writing
+                    tr_text_recorder = new ParamSaxBuffer(tr_text_recorder);
                 }
                 buffer = tr_text_recorder;
                 break;
@@ -2174,16 +2177,21 @@ public class I18nTransformer extends AbstractTransformer
     /**
      * Helper method to retrieve a message from the current dictionary.
      * A default value is returned if message is not found.
+     * Compiled messages are shared and returned as is, they are copied
+     * before being modified.
      *
      * @return SaxBuffer containing message, or defaultValue if not found.
      */
     private ParamSaxBuffer getMessage(String key, ParamSaxBuffer defaultValue) {
-        SaxBuffer value = getMessage(currentCatalogueId, key);
+        ParamSaxBuffer value = getMessage(currentCatalogueId, key);
         if (value == null) {
         	getLogger().debug("Untranslated key: '" + key + "'");
             return defaultValue;
         }
 
+        if (value.isCompiled()) {
+            return value;
+        }
         return new ParamSaxBuffer(value);
     }
 
@@ -16,7 +16,9 @@
  */
 package org.apache.cocoon.xml;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.io.Writer;
 import java.io.IOException;
@@ -32,6 +34,11 @@ import org.xml.sax.Attributes;
  * replaced by the content of another SaxBuffer if it is present in the map
  * passed to the {@link #toSAX(ContentHandler, Map)} method.
  *
+ * <p>Buffers which are replayed many times, like the messages of a
+ * catalogue, can be {@link #compile() compiled} once they are complete.
+ * A compiled buffer keeps its bits in an array, with adjacent character
+ * events merged into one segment, and caches its string value.</p>
+ *
  * @version $Id$
  */
 public class ParamSaxBuffer extends SaxBuffer {
@@ -44,6 +51,22 @@ public class ParamSaxBuffer extends SaxBuffer {
     */
     private char[] previous_ch = null;
 
+    /**
+     * The segments of a compiled buffer, <code>null</code> if the buffer is
+     * not compiled.
+     */
+    private SaxBit[] segments;
+
+    /**
+     * Does the compiled buffer contain any parameter?
+     */
+    private boolean parameterized;
+
+    /**
+     * The string value of the compiled buffer.
+     */
+    private String text;
+
     /**
      * Creates empty SaxBuffer
      */
@@ -57,6 +80,56 @@ public class ParamSaxBuffer extends SaxBuffer {
         super(saxBuffer);
     }
 
+    /**
+     * Compiles the buffer for repeated replay. Adjacent character events are
+     * merged and the bits are copied into an array. The buffer must not be
+     * modified afterwards, except by {@link #recycle()}; use the copy
+     * constructor to get a modifiable copy.
+     *
+     * @since 2.2
+     */
+    public void compile() {
+        flushChars();
+
+        final List compiled = new ArrayList(this.saxbits.size());
+        boolean parameterized = false;
+        StringBuffer chars = null;
+        for (Iterator i = bits(); i.hasNext();) {
+            final SaxBit saxbit = (SaxBit) i.next();
+            if (saxbit instanceof Characters) {
+                if (chars == null) {
+                    chars = new StringBuffer();
+                }
+                ((Characters) saxbit).toString(chars);
+                continue;
+            }
+            if (chars != null) {
+                compiled.add(new Characters(chars.toString().toCharArray(), 0, chars.length()));
+                chars = null;
+            }
+            if (saxbit instanceof Parameter) {
+                parameterized = true;
+            }
+            compiled.add(saxbit);
+        }
+        if (chars != null) {
+            compiled.add(new Characters(chars.toString().toCharArray(), 0, chars.length()));
+        }
+
+        this.saxbits = compiled;
+        this.segments = (SaxBit[]) compiled.toArray(new SaxBit[compiled.size()]);
+        this.parameterized = parameterized;
+        this.text = super.toString();
+    }
+
+    /**
+     * @return true if the buffer has been compiled
+     * @since 2.2
+     */
+    public boolean isCompiled() {
+        return this.segments != null;
+    }
+
     /**
      * Parses text and extracts <code>{name}</code> parameters for later
      * substitution.
@@ -159,6 +232,33 @@ public class ParamSaxBuffer extends SaxBuffer {
         super.startDTD(name, publicId, systemId);
     }
 
+    public void recycle() {
+        super.recycle();
+        this.previous_ch = null;
+        this.segments = null;
+        this.parameterized = false;
+        this.text = null;
+    }
+
+    public void toSAX(ContentHandler contentHandler) throws SAXException {
+        final SaxBit[] segments = this.segments;
+        if (segments == null) {
+            super.toSAX(contentHandler);
+            return;
+        }
+
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].send(contentHandler);
+        }
+    }
+
+    public String toString() {
+        if (this.text != null) {
+            return this.text;
+        }
+        return super.toString();
+    }
+
     private void flushChars() {
         // Handle saved chars (in case we had a '{' with no matching '}').
         if (previous_ch != null) {
@@ -171,6 +271,23 @@ public class ParamSaxBuffer extends SaxBuffer {
      * @param parameters map containing SaxBuffers
      */
     public void toSAX(ContentHandler contentHandler, Map parameters) throws SAXException {
+        final SaxBit[] segments = this.segments;
+        if (segments != null) {
+            if (!this.parameterized) {
+                toSAX(contentHandler);
+                return;
+            }
+            for (int i = 0; i < segments.length; i++) {
+                final SaxBit saxbit = segments[i];
+                if (saxbit instanceof Parameter) {
+                    ((Parameter) saxbit).send(contentHandler, parameters);
+                } else {
+                    saxbit.send(contentHandler);
+                }
+            }
+            return;
+        }
+
         for (Iterator i = bits(); i.hasNext();) {
             SaxBit saxbit = (SaxBit)i.next();
             if (saxbit instanceof Parameter) {
@@ -185,6 +302,10 @@ public class ParamSaxBuffer extends SaxBuffer {
      * @param parameters map containing SaxBuffers
      */
     public String toString(Map parameters) throws SAXException {
+        if (this.segments != null && !this.parameterized) {
+            return this.text;
+        }
+
         final StringBuffer buffer = new StringBuffer();
         for (Iterator i = bits(); i.hasNext();) {
             SaxBit saxbit = (SaxBit)i.next();
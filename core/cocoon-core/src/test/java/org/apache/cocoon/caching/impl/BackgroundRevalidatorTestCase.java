@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.Cache;
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.mock.MockEnvironment;
+import org.apache.cocoon.environment.mock.MockRequest;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+
+/**
+ * Test cases for the {@link BackgroundRevalidator}.
+ *
+ * @version $Id$
+ */
+public class BackgroundRevalidatorTestCase extends TestCase {
+
+    private static final String KEY = "key";
+
+    private MemoryCache cache;
+    private CachedResponse stale;
+    private List tasks;
+    private TestRevalidator revalidator;
+    private MockRequest request;
+    private MockEnvironment environment;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.cache = new MemoryCache();
+        this.stale = new CachedResponse(new SourceValidity[] { NOPValidity.SHARED_INSTANCE },
+                                        "stale".getBytes(), null, 1000L);
+        this.cache.store(KEY, this.stale);
+
+        this.tasks = new ArrayList();
+        this.revalidator = new TestRevalidator();
+        this.revalidator.setRunnableManager(newRunnableManager(this.tasks));
+
+        this.request = new MockRequest();
+        this.environment = new MockEnvironment();
+        this.environment.setURI("sub/", "page");
+        final Map objectModel = new HashMap();
+        objectModel.put(ObjectModelHelper.REQUEST_OBJECT, this.request);
+        this.environment.setObjectModel(objectModel);
+    }
+
+    public void testReplaysUriAndHeaders() {
+        this.request.setQueryString("a=1");
+        this.request.setHeader("Accept-Language", "de");
+
+        assertTrue(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        runTasks();
+
+        assertEquals("sub/page?a=1", this.revalidator.uri);
+        assertEquals("de", this.revalidator.headers.get("accept-language"));
+        assertTrue("Regeneration must run as revalidation", this.revalidator.revalidating);
+        assertFalse(this.revalidator.isRevalidating());
+        assertEquals("fresh", new String(this.cache.get(KEY).getResponse()));
+    }
+
+    public void testScheduledOnce() {
+        assertTrue(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        assertTrue(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        assertEquals(1, this.tasks.size());
+
+        runTasks();
+        assertTrue(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        assertEquals(1, this.tasks.size());
+    }
+
+    public void testPostIsNotReplayed() {
+        this.request.setMethod("POST");
+        assertFalse(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        assertTrue(this.tasks.isEmpty());
+    }
+
+    public void testCookiesAreNotReplayed() {
+        this.request.getCookieMap().put("id", new Cookie("id", "42"));
+        assertFalse(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        assertTrue(this.tasks.isEmpty());
+    }
+
+    public void testSessionIsNotReplayed() {
+        this.request.getSession(true);
+        assertFalse(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        assertTrue(this.tasks.isEmpty());
+    }
+
+    public void testStaleResponseRemovedIfNotReplaced() {
+        this.revalidator.replace = false;
+        assertTrue(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+        runTasks();
+
+        assertFalse("Stale response must be removed", this.cache.containsKey(KEY));
+    }
+
+    public void testSchedulingFailure() {
+        this.revalidator.setRunnableManager(newRunnableManager(null));
+        assertFalse(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+
+        // not blocked by the failed attempt
+        this.revalidator.setRunnableManager(newRunnableManager(this.tasks));
+        assertTrue(this.revalidator.revalidate(this.cache, KEY, this.stale, this.environment));
+    }
+
+    private void runTasks() {
+        while (!this.tasks.isEmpty()) {
+            ((Runnable) this.tasks.remove(0)).run();
+        }
+    }
+
+    /**
+     * A runnable manager queueing the tasks, or failing if there is no queue.
+     */
+    private static RunnableManager newRunnableManager(final List tasks) {
+        return (RunnableManager) Proxy.newProxyInstance(
+                RunnableManager.class.getClassLoader(),
+                new Class[] { RunnableManager.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (tasks == null) {
+                            throw new IllegalStateException("Pool exhausted");
+                        }
+                        for (int i = 0; i < args.length; i++) {
+                            if (args[i] instanceof Runnable) {
+                                tasks.add(args[i]);
+                            }
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private class TestRevalidator extends BackgroundRevalidator {
+        String uri;
+        Map headers;
+        boolean revalidating;
+        boolean replace = true;
+
+        protected void regenerate(String uri, Map headers) throws Exception {
+            this.uri = uri;
+            this.headers = headers;
+            this.revalidating = isRevalidating();
+            if (this.replace) {
+                cache.store(KEY, new CachedResponse(new SourceValidity[] { NOPValidity.SHARED_INSTANCE },
+                                                    "fresh".getBytes(), null, 2000L));
+            }
+        }
+    }
+
+    private static class MemoryCache implements Cache {
+        private final Map responses = new HashMap();
+
+        public void store(Serializable key, CachedResponse response) {
+            this.responses.put(key, response);
+        }
+
+        public CachedResponse get(Serializable key) {
+            return (CachedResponse) this.responses.get(key);
+        }
+
+        public void remove(Serializable key) {
+            this.responses.remove(key);
+        }
+
+        public void clear() {
+            this.responses.clear();
+        }
+
+        public boolean containsKey(Serializable key) {
+            return this.responses.containsKey(key);
+        }
+    }
+}
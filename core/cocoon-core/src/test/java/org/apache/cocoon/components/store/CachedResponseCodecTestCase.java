@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.components.store.impl.SerializingEntryCodec;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+
+/**
+ * Testcase for CachedResponseCodec
+ *
+ * @version $Id$
+ */
+public class CachedResponseCodecTestCase extends TestCase {
+
+    public void testResponseRoundTrip() throws Exception {
+        byte[] bytes = "<html>cached</html>".getBytes("UTF-8");
+        CachedResponse response = new CachedResponse(new SourceValidity[] { NOPValidity.SHARED_INSTANCE },
+                                                     bytes, new Long(12345), 1000000L);
+        response.setContentType("text/html");
+
+        CachedResponseCodec codec = new CachedResponseCodec();
+        CachedResponse decoded = (CachedResponse) codec.decode(codec.encode(response));
+
+        assertTrue(Arrays.equals(bytes, decoded.getResponse()));
+        assertEquals(new Long(12345), decoded.getExpires());
+        assertEquals(1000000L, decoded.getLastModified());
+        assertEquals("text/html", decoded.getContentType());
+        assertEquals(1, decoded.getValidityObjects().length);
+        assertEquals(SourceValidity.VALID, decoded.getValidityObjects()[0].isValid());
+    }
+
+    public void testOtherValues() throws Exception {
+        CachedResponseCodec codec = new CachedResponseCodec();
+        codec.setDefaultCodec(new SerializingEntryCodec());
+
+        assertEquals("value", codec.decode(codec.encode("value")));
+        assertTrue(Arrays.equals(new byte[] { 1, 2 }, (byte[]) codec.decode(codec.encode(new byte[] { 1, 2 }))));
+        assertNull(codec.encode(new Object()));
+    }
+
+    public void testWithoutDefaultCodec() throws Exception {
+        CachedResponseCodec codec = new CachedResponseCodec();
+        assertNull(codec.encode("value"));
+
+        byte[] data = new SerializingEntryCodec().encode("value");
+        try {
+            codec.decode(data);
+            fail("Only cached responses can be decoded without a default codec");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
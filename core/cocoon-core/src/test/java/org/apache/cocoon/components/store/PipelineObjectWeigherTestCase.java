@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.components.store.impl.ObjectSizeWeigher;
+import org.apache.cocoon.xml.AttributesImpl;
+import org.apache.cocoon.xml.SaxBuffer;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+
+/**
+ * Testcase for PipelineObjectWeigher
+ *
+ * @version $Id$
+ */
+public class PipelineObjectWeigherTestCase extends TestCase {
+
+    private PipelineObjectWeigher weigher;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.weigher = new PipelineObjectWeigher();
+    }
+
+    public void testCachedResponse() {
+        int small = this.weigher.weigh("key", newResponse(1000));
+        int large = this.weigher.weigh("key", newResponse(100000));
+        assertTrue("The response counts", small > 1000);
+        assertEquals("The weight grows with the response", 99000, large - small);
+    }
+
+    public void testSaxBuffer() throws Exception {
+        int empty = this.weigher.weigh(null, new SaxBuffer());
+        int small = this.weigher.weigh(null, newBuffer(10));
+        int large = this.weigher.weigh(null, newBuffer(1000));
+        assertTrue(empty < small);
+        // two bytes per character
+        assertTrue("The characters count", large - small >= 2 * 990 * 8);
+    }
+
+    public void testByteArray() {
+        assertEquals(16 + 1000, this.weigher.weigh(null, new byte[1000]));
+    }
+
+    public void testDefaultWeigher() {
+        assertEquals(256, this.weigher.weigh(null, new StringBuffer()));
+        assertEquals(256, this.weigher.weigh(null, "a string"));
+
+        this.weigher.setDefaultWeigher(new ObjectSizeWeigher());
+        String string = "a string which is longer than 256 bytes on the heap. "
+                        + "a string which is longer than 256 bytes on the heap. "
+                        + "a string which is longer than 256 bytes on the heap.";
+        assertTrue(this.weigher.weigh(null, string) > 2 * string.length());
+        // the pipeline objects are still weighed by the pipeline weigher
+        assertEquals(16 + 1000, this.weigher.weigh(null, new byte[1000]));
+    }
+
+    private CachedResponse newResponse(int length) {
+        CachedResponse response = new CachedResponse(new SourceValidity[] { NOPValidity.SHARED_INSTANCE },
+                                                     new byte[length]);
+        response.setContentType("text/html");
+        return response;
+    }
+
+    private SaxBuffer newBuffer(int elements) throws Exception {
+        SaxBuffer buffer = new SaxBuffer();
+        AttributesImpl attrs = new AttributesImpl();
+        attrs.addCDATAAttribute("a", "value");
+        char[] text = "some text".toCharArray();
+        buffer.startDocument();
+        for (int i = 0; i < elements; i++) {
+            buffer.startElement("", "e", "e", attrs);
+            buffer.characters(text, 0, text.length);
+            buffer.endElement("", "e", "e");
+        }
+        buffer.endDocument();
+        return buffer;
+    }
+}
@@ -17,8 +17,23 @@
 
 package org.apache.cocoon.transformation;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.avalon.framework.configuration.DefaultConfiguration;
 import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.avalon.framework.service.Serviceable;
+import org.apache.avalon.framework.thread.ThreadSafe;
 import org.apache.cocoon.SitemapComponentTestCase;
+import org.apache.cocoon.components.source.impl.XMLizableSource;
+import org.apache.cocoon.core.container.spring.avalon.ComponentInfo;
+import org.apache.cocoon.core.container.spring.avalon.ConfigurationInfo;
+import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceFactory;
+import org.apache.excalibur.source.SourceResolver;
 
 /**
  * A simple testcase for FilterTransformer.
@@ -36,6 +51,20 @@ public class CIncludeTransformerTestCase extends SitemapComponentTestCase {
                              "cinclude"};
     }
 
+    /**
+     * @see org.apache.cocoon.SitemapComponentTestCase#addComponents(org.apache.cocoon.core.container.spring.avalon.ConfigurationInfo)
+     */
+    protected void addComponents(ConfigurationInfo info) throws Exception {
+        super.addComponents(info);
+
+        // register the factory for XMLizable sources
+        ComponentInfo component = new ComponentInfo();
+        component.setComponentClassName(StreamingSourceFactory.class.getName());
+        component.setRole(SourceFactory.ROLE + "/" + XMLizableSource.SCHEME);
+        component.setConfiguration(new DefaultConfiguration("-"));
+        info.addComponent(component);
+    }
+
     /** Testcase for cinclude simple include
      *
      * @throws Exception if ServiceManager enterEnvironment fails
@@ -91,4 +120,62 @@ public class CIncludeTransformerTestCase extends SitemapComponentTestCase {
         assertEqual( load(result),
         transform("cinclude", src, parameters, load(input)));
     }
+
+    /**
+     * Testcase for cinclude specifying select attribute on an XMLizable source,
+     * the selection is done on the events of the source, it is not parsed
+     *
+     * @throws Exception if  enterEnvironment fails
+     */
+    public void testCInclude4() throws Exception {
+        getLogger().debug("testCInclude4");
+
+        Parameters parameters = new Parameters();
+        parameters.setParameter( "support-caching", "false" );
+
+        String input = "resource://org/apache/cocoon/transformation/cinclude-input-4.xml";
+        String result = "resource://org/apache/cocoon/transformation/cinclude-result-3.xml";
+        String src =  null;
+
+        assertEqual( load(result),
+        transform("cinclude", src, parameters, load(input)));
+    }
+
+    /**
+     * Creates XMLizable sources which can not be read as a stream.
+     */
+    public static class StreamingSourceFactory implements SourceFactory, Serviceable, ThreadSafe {
+
+        private ServiceManager manager;
+
+        public void service(ServiceManager manager) throws ServiceException {
+            this.manager = manager;
+        }
+
+        public Source getSource(String location, Map parameters) throws IOException {
+            final String uri = location.substring(XMLizableSource.SCHEME.length() + 1);
+            final SourceResolver resolver = (SourceResolver) lookup(SourceResolver.ROLE);
+            try {
+                return new XMLizableSource(resolver.resolveURI(uri, null, parameters), this.manager) {
+                    public InputStream getInputStream() throws IOException {
+                        throw new IOException("Use toSAX() for " + getURI());
+                    }
+                };
+            } finally {
+                this.manager.release(resolver);
+            }
+        }
+
+        public void release(Source source) {
+            // nothing to do
+        }
+
+        private Object lookup(String role) throws IOException {
+            try {
+                return this.manager.lookup(role);
+            } catch (ServiceException e) {
+                throw new IOException("Missing service dependency: " + role);
+            }
+        }
+    }
 }
@@ -62,4 +62,27 @@ public class ParamSaxBufferTestCase extends AbstractXMLTestCase {
         assertEquals("test {param test", sb.toString(params));
     }
 
+    public void testCompile() throws Exception {
+        char[] chars = "test {param} test".toCharArray();
+        Map params = new HashMap();
+        params.put("param", "test");
+
+        ParamSaxBuffer sb = new ParamSaxBuffer();
+        sb.characters(chars, 0, 3);
+        sb.characters(chars, 3, chars.length - 3);
+        sb.compile();
+
+        assertTrue(sb.isCompiled());
+        // "tes", "t " merged, the parameter and " test"
+        assertEquals(3, sb.getBits().size());
+        assertEquals("test test test", sb.toString(params));
+        assertEquals("test  test", sb.toString());
+
+        ParamSaxBuffer copy = new ParamSaxBuffer(sb);
+        assertFalse(copy.isCompiled());
+        copy.characters(chars, 0, 4);
+        assertEquals("test test testtest", copy.toString(params));
+        assertEquals("test test test", sb.toString(params));
+    }
+
 }
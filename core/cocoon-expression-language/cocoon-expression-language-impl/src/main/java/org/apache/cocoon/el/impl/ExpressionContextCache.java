@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.el.impl;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.cocoon.el.Expression;
+import org.apache.cocoon.el.impl.objectmodel.ObjectModelImpl;
+import org.apache.cocoon.el.objectmodel.ObjectModel;
+
+/**
+ * Keeps the evaluation contexts of the expression languages for one
+ * {@link ObjectModel}, so that they are created once per request instead of
+ * once per evaluation.
+ *
+ * <p>Each language stores its context under its own name. The cache has a
+ * version which is incremented by the object model whenever its content
+ * changes; contexts which copy values from the object model have to be
+ * rebuilt when the version has changed.</p>
+ *
+ * <p>If memoization is turned on, the results of {@link Expression#evaluate}
+ * are kept as well until the object model changes. This is only correct for
+ * pure expressions, i.e. expressions whose result depends on the content of
+ * the object model only, which is why it is off by default.</p>
+ *
+ * <p>Like the object model this cache is not thread safe.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class ExpressionContextCache {
+
+    /** Returned by {@link #getResult(Expression)} if there is no memoized result. */
+    public static final Object NO_RESULT = new Object();
+
+    /** Marks a memoized <code>null</code> result. */
+    private static final Object NULL = new Object();
+
+    private final Map contexts = new HashMap();
+
+    private final Map results = new IdentityHashMap();
+
+    private boolean memoize;
+
+    private int version;
+
+    private long hits;
+
+    private long reusedContexts;
+
+    /**
+     * Return the cache of the given object model, or <code>null</code> if
+     * the object model does not provide one.
+     */
+    public static ExpressionContextCache getCache(ObjectModel objectModel) {
+        if (objectModel instanceof ObjectModelImpl) {
+            return ((ObjectModelImpl) objectModel).getExpressionContextCache();
+        }
+        return null;
+    }
+
+    public boolean isMemoize() {
+        return this.memoize;
+    }
+
+    public void setMemoize(boolean memoize) {
+        this.memoize = memoize;
+        this.results.clear();
+    }
+
+    /**
+     * Return the version of the content of the object model.
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Called by the object model whenever its content changes.
+     */
+    public void objectModelChanged() {
+        this.version++;
+        if (!this.results.isEmpty()) {
+            this.results.clear();
+        }
+    }
+
+    /**
+     * Return the context stored under the given name, or <code>null</code>.
+     */
+    public Object getContext(String name) {
+        return this.contexts.get(name);
+    }
+
+    public void setContext(String name, Object context) {
+        this.contexts.put(name, context);
+    }
+
+    /**
+     * Record that a context has been reused instead of being created.
+     */
+    public void contextReused() {
+        this.reusedContexts++;
+    }
+
+    /**
+     * Return the memoized result of an expression, or {@link #NO_RESULT} if
+     * there is none.
+     */
+    public Object getResult(Expression expression) {
+        if (!this.memoize) {
+            return NO_RESULT;
+        }
+        final Object result = this.results.get(expression);
+        if (result == null) {
+            return NO_RESULT;
+        }
+        this.hits++;
+        return result == NULL ? null : result;
+    }
+
+    public void setResult(Expression expression, Object result) {
+        if (this.memoize) {
+            this.results.put(expression, result == null ? NULL : result);
+        }
+    }
+
+    /**
+     * Return the number of evaluations answered with a memoized result.
+     */
+    public long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Return the number of contexts which have been reused instead of being
+     * created.
+     */
+    public long getReusedContexts() {
+        return this.reusedContexts;
+    }
+}
@@ -21,6 +21,7 @@ import java.util.Map;
 
 import org.apache.cocoon.el.ExpressionException;
 import org.apache.cocoon.el.impl.AbstractExpression;
+import org.apache.cocoon.el.impl.ExpressionContextCache;
 import org.apache.cocoon.el.impl.jexl.JSIntrospector;
 import org.apache.cocoon.el.objectmodel.ObjectModel;
 import org.apache.commons.jexl.util.introspection.Info;
@@ -36,6 +37,9 @@ import org.mozilla.javascript.Wrapper;
  */
 public class JavaScriptExpression extends AbstractExpression {
 
+    /** The name of the scope in the {@link ExpressionContextCache}. */
+    private static final String CONTEXT = "javascript";
+
     private Script script;
     private JSIntrospector introspector;
     private Scriptable rootScope;
@@ -56,24 +60,58 @@ public class JavaScriptExpression extends AbstractExpression {
     }
 
     public Object evaluate(ObjectModel objectModel) throws ExpressionException {
+        final ExpressionContextCache cache = ExpressionContextCache.getCache(objectModel);
+        Object result = cache == null ? ExpressionContextCache.NO_RESULT : cache.getResult(this);
+        if (result != ExpressionContextCache.NO_RESULT) {
+            return result;
+        }
+
         Context ctx = Context.enter();
         try {
-            Scriptable scope = ctx.newObject(getScope(rootScope));
-
-            // Populate the scope
-            Iterator iter = objectModel.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry entry = (Map.Entry) iter.next();
-                String key = (String) entry.getKey();
-                Object value = entry.getValue();
-                scope.put(key, scope, Context.toObject(value, scope));
+            Scriptable scope;
+            if (cache == null) {
+                scope = createScope(ctx, objectModel);
+            } else {
+                // The populated scope is kept until the object model changes.
+                // Scripts run in a scope of their own inheriting from it, so
+                // that their assignments don't change the shared scope.
+                CachedScope cached = (CachedScope) cache.getContext(CONTEXT);
+                if (cached != null && cached.rootScope == this.rootScope && cached.version == cache.getVersion()) {
+                    cache.contextReused();
+                } else {
+                    cached = new CachedScope(this.rootScope, cache.getVersion(), createScope(ctx, objectModel));
+                    cache.setContext(CONTEXT, cached);
+                }
+                scope = ctx.newObject(cached.scope);
+                scope.setPrototype(cached.scope);
+                scope.setParentScope(cached.scope);
             }
 
-            Object result = this.script.exec(ctx, scope);
-            return unwrap(result);
+            result = unwrap(this.script.exec(ctx, scope));
         } finally {
             Context.exit();
         }
+        if (cache != null) {
+            cache.setResult(this, result);
+        }
+        return result;
+    }
+
+    /**
+     * Create a scope containing the entries of the object model.
+     */
+    private Scriptable createScope(Context ctx, ObjectModel objectModel) {
+        Scriptable scope = ctx.newObject(getScope(rootScope));
+
+        // Populate the scope
+        Iterator iter = objectModel.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            String key = (String) entry.getKey();
+            Object value = entry.getValue();
+            scope.put(key, scope, Context.toObject(value, scope));
+        }
+        return scope;
     }
 
     public Iterator iterate(ObjectModel objectModel) throws ExpressionException {
@@ -123,6 +161,18 @@ public class JavaScriptExpression extends AbstractExpression {
         return scope;
     }
     
+    private static class CachedScope {
+        final Scriptable rootScope;
+        final int version;
+        final Scriptable scope;
+
+        public CachedScope(Scriptable rootScope, int version, Scriptable scope) {
+            this.rootScope = rootScope;
+            this.version = version;
+            this.scope = scope;
+        }
+    }
+
     /**
      * Unwrap a Rhino object (getting the raw java object) and convert undefined to null
      */
@@ -22,6 +22,7 @@ import java.util.Map;
 
 import org.apache.cocoon.el.ExpressionException;
 import org.apache.cocoon.el.impl.AbstractExpression;
+import org.apache.cocoon.el.impl.ExpressionContextCache;
 import org.apache.cocoon.el.objectmodel.ObjectModel;
 import org.apache.commons.jexl.JexlContext;
 import org.apache.commons.jexl.util.Introspector;
@@ -32,6 +33,9 @@ import org.apache.commons.jexl.util.introspection.Info;
  */
 public class JexlExpression extends AbstractExpression {
 
+    /** The name of the context in the {@link ExpressionContextCache}. */
+    private static final String CONTEXT = "jexl";
+
     private final org.apache.commons.jexl.Expression compiledExpression;
 
     public JexlExpression(String language, String expression) throws ExpressionException {
@@ -44,8 +48,31 @@ public class JexlExpression extends AbstractExpression {
     }
 
     public Object evaluate(ObjectModel objectModel) throws ExpressionException {
+        final ExpressionContextCache cache = ExpressionContextCache.getCache(objectModel);
+        if (cache == null) {
+            return evaluate(new ContextAdapter(objectModel));
+        }
+
+        Object result = cache.getResult(this);
+        if (result == ExpressionContextCache.NO_RESULT) {
+            // The adapter gives access to the object model itself, so it
+            // can be kept as long as the object model
+            JexlContext context = (JexlContext) cache.getContext(CONTEXT);
+            if (context == null) {
+                context = new ContextAdapter(objectModel);
+                cache.setContext(CONTEXT, context);
+            } else {
+                cache.contextReused();
+            }
+            result = evaluate(context);
+            cache.setResult(this, result);
+        }
+        return result;
+    }
+
+    private Object evaluate(JexlContext context) throws ExpressionException {
         try {
-            return this.compiledExpression.evaluate(new ContextAdapter(objectModel));
+            return this.compiledExpression.evaluate(context);
         } catch (Exception e) {
             throw new ExpressionException("Couldn't evaluate expression " + getExpression(), e);
         }
@@ -22,6 +22,7 @@ import java.util.List;
 
 import org.apache.cocoon.el.Expression;
 import org.apache.cocoon.el.ExpressionException;
+import org.apache.cocoon.el.impl.ExpressionContextCache;
 import org.apache.cocoon.el.impl.jexl.JSIntrospector;
 import org.apache.cocoon.el.objectmodel.ObjectModel;
 import org.apache.cocoon.xml.util.NamespacesTable;
@@ -43,6 +44,9 @@ public class JXPathExpression implements Expression {
 
     public static final String LENIENT = "lenient";
 
+    /** The name of the context in the {@link ExpressionContextCache}. */
+    private static final String CONTEXT = "jxpath";
+
     public JXPathExpression(String language, String expression)
         throws ExpressionException {
         this.language = language;
@@ -52,7 +56,16 @@ public class JXPathExpression implements Expression {
 
     public Object evaluate(ObjectModel objectModel)
         throws ExpressionException{
-        return this.compiledExpression.getValue(getContext(objectModel));
+        final ExpressionContextCache cache = ExpressionContextCache.getCache(objectModel);
+        if (cache == null) {
+            return this.compiledExpression.getValue(getContext(objectModel));
+        }
+        Object result = cache.getResult(this);
+        if (result == ExpressionContextCache.NO_RESULT) {
+            result = this.compiledExpression.getValue(getContext(objectModel, cache));
+            cache.setResult(this, result);
+        }
+        return result;
     }
 
     public Iterator iterate(ObjectModel objectModel)
@@ -130,14 +143,46 @@ public class JXPathExpression implements Expression {
     }
 
     private JXPathContext getContext(ObjectModel objectModel) {
-        // This could be made more efficient by caching the
-        // JXPathContext within the Context object.
-        
-        JXPathContext jxobjectModel = JXPathContext.newContext(objectModel.get(ObjectModel.CONTEXTBEAN));
-        jxobjectModel.setVariables(new VariableAdapter(objectModel));
-        jxobjectModel.setLenient(this.lenient);
-        jxobjectModel.setNamespaceContextPointer(new NamespacesTablePointer((NamespacesTable)objectModel.get(ObjectModel.NAMESPACE)));
-        return jxobjectModel;
+        return getContext(objectModel, ExpressionContextCache.getCache(objectModel));
+    }
+
+    /**
+     * Return the context for evaluating this expression. The context is
+     * reused as long as the context bean of the object model does not
+     * change, the variables are looked up in the object model anyway.
+     */
+    private JXPathContext getContext(ObjectModel objectModel, ExpressionContextCache cache) {
+        final Object contextBean = objectModel.get(ObjectModel.CONTEXTBEAN);
+        final NamespacesTable namespaces = (NamespacesTable) objectModel.get(ObjectModel.NAMESPACE);
+
+        CachedContext cached = cache == null ? null : (CachedContext) cache.getContext(CONTEXT);
+        if (cached != null && cached.context.getContextBean() == contextBean) {
+            cache.contextReused();
+            if (cached.namespaces != namespaces) {
+                cached.context.setNamespaceContextPointer(new NamespacesTablePointer(namespaces));
+                cached.namespaces = namespaces;
+            }
+        } else {
+            JXPathContext jxobjectModel = JXPathContext.newContext(contextBean);
+            jxobjectModel.setVariables(new VariableAdapter(objectModel));
+            jxobjectModel.setNamespaceContextPointer(new NamespacesTablePointer(namespaces));
+            cached = new CachedContext(jxobjectModel, namespaces);
+            if (cache != null) {
+                cache.setContext(CONTEXT, cached);
+            }
+        }
+        cached.context.setLenient(this.lenient);
+        return cached.context;
+    }
+
+    private static class CachedContext {
+        final JXPathContext context;
+        NamespacesTable namespaces;
+
+        public CachedContext(JXPathContext context, NamespacesTable namespaces) {
+            this.context = context;
+            this.namespaces = namespaces;
+        }
     }
 
     private static class VariableAdapter implements Variables {
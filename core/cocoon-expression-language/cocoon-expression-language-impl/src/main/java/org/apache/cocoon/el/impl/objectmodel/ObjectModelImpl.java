@@ -23,6 +23,7 @@ import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Map;
 
+import org.apache.cocoon.el.impl.ExpressionContextCache;
 import org.apache.cocoon.el.util.MultiMap;
 import org.apache.cocoon.el.util.MultiValueMap;
 import org.apache.cocoon.el.objectmodel.ObjectModel;
@@ -54,6 +55,8 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
     //FIXME: This is a temporary solution
     private boolean modified;
 
+    private final ExpressionContextCache expressionContextCache = new ExpressionContextCache();
+
 
     public ObjectModelImpl() {
         singleValueMap = new HashMap();
@@ -85,12 +88,39 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
         return super.get(key);
     }
 
+    /**
+     * Return the cache of the expression contexts used with this object model.
+     */
+    public ExpressionContextCache getExpressionContextCache() {
+        return expressionContextCache;
+    }
+
+    /**
+     * Memoize the results of expressions until this object model changes. Only
+     * correct if the results of the expressions depend on the content of the
+     * object model only. Defaults to <code>false</code>.
+     */
+    public void setMemoizeExpressions(boolean memoizeExpressions) {
+        expressionContextCache.setMemoize(memoizeExpressions);
+    }
+
+    public Object remove(Object key) {
+        expressionContextCache.objectModelChanged();
+        return super.remove(key);
+    }
+
+    public void clear() {
+        expressionContextCache.objectModelChanged();
+        super.clear();
+    }
+
     public MultiMap getAll() {
         return UnmodifiableMultiMap.decorate(multiValueMap);
     }
 
     public Object put(Object key, Object value) {
         modified = true;
+        expressionContextCache.objectModelChanged();
         if (!localContexts.empty()) {
             ((ArrayStack) localContexts.peek()).push(new DefaultKeyValue(key, value));
         }
@@ -103,6 +133,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
 
     public void putAll(Map mapToCopy) {
         modified = true;
+        expressionContextCache.objectModelChanged();
         if (!localContexts.empty()) {
             ArrayStack entries = (ArrayStack)localContexts.peek();
             for (Iterator keysIterator = mapToCopy.keySet().iterator(); keysIterator.hasNext();) {
@@ -162,6 +193,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
             throw new IllegalArgumentException("Path cannot be empty");
         }
 
+        expressionContextCache.objectModelChanged();
         Map map = locateMapAt(path, true);
         String key = path.substring(path.lastIndexOf(SEGMENT_SEPARATOR) + 1, path.length());
         if (!localContexts.empty()) {
@@ -197,6 +229,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
             throw new IllegalStateException("Local contexts stack is empty");
         }
 
+        expressionContextCache.objectModelChanged();
         ArrayStack removeEntries = (ArrayStack)localContexts.pop();
         while (!removeEntries.isEmpty()) {
             if (removeEntries.peek() instanceof PathValue) {
@@ -218,6 +251,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
     }
 
     public void markLocalContext() {
+        expressionContextCache.objectModelChanged();
         localContexts.push(new ArrayStack());
     }
 
@@ -312,6 +346,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
             throw new IllegalStateException("Setting parent may occur only if Object Model is empty.");
         }
 
+        expressionContextCache.objectModelChanged();
         singleValueMap.putAll(parentObjectModel);
         multiValueMap.putAll(parentObjectModel.getAll());
     }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.el.impl;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.el.Expression;
+import org.apache.cocoon.el.impl.helpers.RhinoScopeFactory;
+import org.apache.cocoon.el.impl.javascript.JavaScriptCompiler;
+import org.apache.cocoon.el.impl.jexl.JexlCompiler;
+import org.apache.cocoon.el.impl.jxpath.JXPathCompiler;
+import org.apache.cocoon.el.impl.objectmodel.ObjectModelImpl;
+import org.apache.cocoon.el.objectmodel.ObjectModel;
+
+/**
+ * @version $Id$
+ */
+public class ExpressionContextCacheTestCase extends TestCase {
+
+    public void testJXPathContextReuse() throws Exception {
+        ObjectModelImpl objectModel = new ObjectModelImpl();
+        objectModel.put("a", new Long(1));
+        Expression expression = new JXPathCompiler().compile("jxpath", "$a+1");
+        ExpressionContextCache cache = objectModel.getExpressionContextCache();
+
+        assertEquals(new Double(2), expression.evaluate(objectModel));
+        assertEquals(0, cache.getReusedContexts());
+        assertEquals(new Double(2), expression.evaluate(objectModel));
+        assertEquals(1, cache.getReusedContexts());
+
+        // Variables are looked up in the object model
+        objectModel.put("a", new Long(2));
+        assertEquals(new Double(3), expression.evaluate(objectModel));
+        assertEquals(2, cache.getReusedContexts());
+
+        // A new context bean needs a new context
+        objectModel.put(ObjectModel.CONTEXTBEAN, new Object());
+        assertEquals(new Double(3), expression.evaluate(objectModel));
+        assertEquals(2, cache.getReusedContexts());
+    }
+
+    public void testJexlContextReuse() throws Exception {
+        ObjectModelImpl objectModel = new ObjectModelImpl();
+        objectModel.put("a", "foo");
+        Expression expression = new JexlCompiler().compile("jexl", "a");
+
+        assertEquals("foo", expression.evaluate(objectModel));
+        objectModel.put("a", "bar");
+        assertEquals("bar", expression.evaluate(objectModel));
+        assertEquals(1, objectModel.getExpressionContextCache().getReusedContexts());
+    }
+
+    public void testJavaScriptScopeReuse() throws Exception {
+        JavaScriptCompiler compiler = new JavaScriptCompiler();
+        compiler.setRootScope(RhinoScopeFactory.createRhinoScope());
+        ObjectModelImpl objectModel = new ObjectModelImpl();
+        objectModel.put("a", new Long(1));
+        Expression expression = compiler.compile("js", "a+1");
+
+        assertEquals(new Double(2), expression.evaluate(objectModel));
+        assertEquals(new Double(2), expression.evaluate(objectModel));
+        assertEquals(1, objectModel.getExpressionContextCache().getReusedContexts());
+
+        // Assignments don't change the shared scope
+        assertEquals(new Integer(5), compiler.compile("js", "a = 5").evaluate(objectModel));
+        assertEquals(new Double(2), expression.evaluate(objectModel));
+
+        // The scope is rebuilt after a change of the object model
+        objectModel.put("a", new Long(2));
+        assertEquals(new Double(3), expression.evaluate(objectModel));
+    }
+
+    public void testMemoization() throws Exception {
+        ObjectModelImpl objectModel = new ObjectModelImpl();
+        objectModel.setMemoizeExpressions(true);
+        objectModel.put("a", "foo");
+        Expression expression = new JexlCompiler().compile("jexl", "a");
+        ExpressionContextCache cache = objectModel.getExpressionContextCache();
+
+        assertEquals("foo", expression.evaluate(objectModel));
+        assertEquals("foo", expression.evaluate(objectModel));
+        assertEquals(1, cache.getHits());
+
+        objectModel.markLocalContext();
+        objectModel.put("a", "bar");
+        assertEquals("bar", expression.evaluate(objectModel));
+        assertEquals(1, cache.getHits());
+
+        objectModel.cleanupLocalContext();
+        assertEquals("foo", expression.evaluate(objectModel));
+        assertEquals(1, cache.getHits());
+
+        // null results are memoized as well
+        Expression missing = new JexlCompiler().compile("jexl", "b");
+        assertNull(missing.evaluate(objectModel));
+        assertNull(missing.evaluate(objectModel));
+        assertEquals(2, cache.getHits());
+    }
+
+    public void testNoMemoizationByDefault() throws Exception {
+        ObjectModelImpl objectModel = new ObjectModelImpl();
+        objectModel.put("a", "foo");
+        Expression expression = new JexlCompiler().compile("jexl", "a");
+
+        expression.evaluate(objectModel);
+        expression.evaluate(objectModel);
+        assertEquals(0, objectModel.getExpressionContextCache().getHits());
+    }
+}
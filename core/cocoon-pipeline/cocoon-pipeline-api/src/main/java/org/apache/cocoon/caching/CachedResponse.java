@@ -74,10 +74,29 @@ public class CachedResponse
     public CachedResponse(SourceValidity[] validityObjects,
                           byte[]           response,
                           Long expires) {
+        this(validityObjects, response, expires, System.currentTimeMillis());
+    }
+
+    /**
+     * Create an entry for the cache with a known last modification date,
+     * for example when restoring it from a persistent store.
+     *
+     * @param validityObjects The SourceValidity objects in the order
+     *                        they occured in the pipeline
+     * @param response        The cached sax stream or character stream
+     * @param expires         The configured expires, or null if no
+     *                        expires was defined.
+     * @param lastModified    The last modification date
+     * @since 2.2
+     */
+    public CachedResponse(SourceValidity[] validityObjects,
+                          byte[]           response,
+                          Long expires,
+                          long lastModified) {
         this.validityObjects = validityObjects;
         this.response = response;
         this.expires = expires;
-        this.lastModified = this.setLastModified(System.currentTimeMillis());
+        this.lastModified = this.setLastModified(lastModified);
     }
 
     /**
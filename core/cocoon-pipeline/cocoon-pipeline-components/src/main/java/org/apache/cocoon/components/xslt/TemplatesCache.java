@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of compiled stylesheets, shared by all {@link TraxProcessor}
+ * instances. Unlike the transient store, the entries of this cache do not
+ * compete with other cached objects and are not freed by the store janitor;
+ * once the cache is full the least recently used stylesheet is dropped.
+ *
+ * <p>The cache also hands out a lock per stylesheet, so that a stylesheet
+ * requested by several threads at once is only compiled once. A lock is
+ * dropped as soon as no thread holds or waits for it any more.</p>
+ *
+ * <p>With <code>precompile</code> turned on, the stylesheets used by the
+ * <code>map:transform</code> statements of a sitemap are compiled when the
+ * sitemap is loaded.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class TemplatesCache {
+
+    /** The role of this component. */
+    public static final String ROLE = TemplatesCache.class.getName();
+
+    /** The maximum number of stylesheets kept (default is 200) */
+    private int maxEntries = 200;
+
+    /** Precompile the stylesheets of a sitemap when it is loaded? (default is off) */
+    private boolean precompile;
+
+    /** The number of stylesheets compiled at once when precompiling (default is 4) */
+    private int precompileThreads = 4;
+
+    /** The entries, in access order */
+    private final Map entries = new LinkedHashMap(16, 0.75f, true);
+
+    /** The compilation locks in use, by key */
+    private final Map locks = new HashMap();
+
+    private long hits;
+
+    private long misses;
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isPrecompile() {
+        return this.precompile;
+    }
+
+    public void setPrecompile(boolean precompile) {
+        this.precompile = precompile;
+    }
+
+    public int getPrecompileThreads() {
+        return this.precompileThreads;
+    }
+
+    public void setPrecompileThreads(int precompileThreads) {
+        this.precompileThreads = precompileThreads;
+    }
+
+    /**
+     * Return the entry stored under the given key, or <code>null</code>.
+     */
+    public synchronized Object get(String key) {
+        final Object value = this.entries.get(key);
+        if (value == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Store an entry, dropping the least recently used entries if the cache
+     * is full.
+     */
+    public synchronized void put(String key, Object value) {
+        this.entries.put(key, value);
+        final Iterator i = this.entries.keySet().iterator();
+        while (this.entries.size() > this.maxEntries && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        this.entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Return the lock to hold while compiling the stylesheet with the given
+     * key. Each call has to be followed by a call to
+     * {@link #releaseLock(String, Object)}, once the lock is not needed any
+     * more.
+     */
+    public Object acquireLock(String key) {
+        synchronized (this.locks) {
+            CompileLock lock = (CompileLock) this.locks.get(key);
+            if (lock == null) {
+                lock = new CompileLock();
+                this.locks.put(key, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    /**
+     * Release a lock returned by {@link #acquireLock(String)}.
+     */
+    public void releaseLock(String key, Object lock) {
+        synchronized (this.locks) {
+            if (--((CompileLock) lock).users == 0) {
+                this.locks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Return the number of stylesheets currently compiled or waited for.
+     */
+    public int getLockCount() {
+        synchronized (this.locks) {
+            return this.locks.size();
+        }
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * The lock of a stylesheet, with the number of threads holding or
+     * waiting for it.
+     */
+    private static final class CompileLock {
+        int users;
+    }
+}
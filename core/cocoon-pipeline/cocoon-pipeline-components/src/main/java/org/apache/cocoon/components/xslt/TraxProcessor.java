@@ -31,6 +31,7 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TemplatesHandler;
 import javax.xml.transform.sax.TransformerHandler;
@@ -57,13 +58,22 @@ import org.apache.excalibur.xml.xslt.XSLTProcessor;
 import org.apache.excalibur.xml.xslt.XSLTProcessorException;
 
 import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.sax.XMLByteStreamCompiler;
+import org.apache.cocoon.components.sax.XMLByteStreamInterpreter;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.util.AbstractLogEnabled;
 
 import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
 import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
 
 /**
  * Adaptation of Excalibur's XSLTProcessor implementation to allow for better
@@ -79,6 +89,9 @@ public class TraxProcessor extends AbstractLogEnabled
     /** The store service instance */
     protected Store m_store;
 
+    /** The shared cache of compiled stylesheets */
+    protected TemplatesCache m_templatesCache;
+
     /** The configured transformer factory to use */
     protected String m_transformerFactory;
 
@@ -91,6 +104,9 @@ public class TraxProcessor extends AbstractLogEnabled
     /** Is the store turned on? (default is off) */
     protected boolean m_useStore;
 
+    /** Is the templates cache turned on? (default is on, if available) */
+    protected boolean m_useTemplatesCache = true;
+
     /** Is incremental processing turned on? (default for Xalan: no) */
     protected boolean m_incrementalProcessing;
 
@@ -114,6 +130,7 @@ public class TraxProcessor extends AbstractLogEnabled
      * @avalon.service interface="XMLizer"
      * @avalon.service interface="SourceResolver"
      * @avalon.service interface="Store/TransientStore" optional="true"
+     * @avalon.service interface="TemplatesCache" optional="true"
      */
     public void service(final ServiceManager manager) throws ServiceException {
         m_manager = manager;
@@ -123,6 +140,9 @@ public class TraxProcessor extends AbstractLogEnabled
         if (m_manager.hasService(Store.TRANSIENT_STORE)) {
             m_store = (Store) m_manager.lookup(Store.TRANSIENT_STORE);
         }
+        if (m_manager.hasService(TemplatesCache.ROLE)) {
+            m_templatesCache = (TemplatesCache) m_manager.lookup(TemplatesCache.ROLE);
+        }
     }
 
     /**
@@ -139,11 +159,13 @@ public class TraxProcessor extends AbstractLogEnabled
     public void dispose() {
         if (null != m_manager) {
             m_manager.release(m_store);
+            m_manager.release(m_templatesCache);
             m_manager.release(m_resolver);
             m_manager = null;
         }
         saxParser = null;
         m_store = null;
+        m_templatesCache = null;
         m_resolver = null;
     }
 
@@ -152,6 +174,7 @@ public class TraxProcessor extends AbstractLogEnabled
      */
     public void parameterize(final Parameters params) throws ParameterException {
         m_useStore = params.getParameterAsBoolean("use-store", this.m_useStore);
+        m_useTemplatesCache = params.getParameterAsBoolean("use-templates-cache", this.m_useTemplatesCache);
         m_incrementalProcessing = params.getParameterAsBoolean("incremental-processing", this.m_incrementalProcessing);
         m_transformerFactory = params.getParameter("transformer-factory", null);
         m_checkIncludes = params.getParameterAsBoolean("check-includes", true);
@@ -163,6 +186,10 @@ public class TraxProcessor extends AbstractLogEnabled
             final String message = "XSLTProcessor: use-store is set to true, " + "but unable to aquire the Store.";
             throw new ParameterException(message);
         }
+        if (!m_useTemplatesCache) {
+            m_manager.release(m_templatesCache);
+            m_templatesCache = null;
+        }
     }
 
     /**
@@ -211,6 +238,42 @@ public class TraxProcessor extends AbstractLogEnabled
             throw new XSLTProcessorException("Error retrieving template", e);
         }
 
+        // Stylesheets without a validity are not cached, so there is no
+        // result to wait for
+        if (m_templatesCache == null || stylesheet.getValidity() == null) {
+            return createTransformerHandlerAndValidity(stylesheet, filter, id);
+        }
+
+        // Compile each stylesheet only once, other threads requesting it
+        // meanwhile wait for the result
+        final String key = getTemplatesKey(id);
+        final Object lock = m_templatesCache.acquireLock(key);
+        try {
+            synchronized (lock) {
+                try {
+                    handlerAndValidity = getTemplates(stylesheet, id);
+                    if (handlerAndValidity != null) {
+                        if (getLogger().isDebugEnabled()) {
+                            getLogger().debug("Reusing Templates for " + id + " compiled concurrently");
+                        }
+                        return handlerAndValidity;
+                    }
+                } catch (Exception e) {
+                    throw new XSLTProcessorException("Error retrieving template", e);
+                }
+
+                return createTransformerHandlerAndValidity(stylesheet, filter, id);
+            }
+        } finally {
+            m_templatesCache.releaseLock(key, lock);
+        }
+    }
+
+    private TransformerHandlerAndValidity createTransformerHandlerAndValidity(Source stylesheet, XMLFilter filter,
+                                                                            String id)
+    throws XSLTProcessorException {
+        TransformerHandlerAndValidity handlerAndValidity;
+
         TraxErrorListener errorListener = new TraxErrorListener(stylesheet.getURI());
         try {
             if (getLogger().isDebugEnabled()) {
@@ -414,16 +477,38 @@ public class TraxProcessor extends AbstractLogEnabled
         return _factory;
     }
 
+    /**
+     * Return the key of the templates compiled from the given stylesheet.
+     */
+    private String getTemplatesKey(String id) {
+        // we must augment the template ID with the factory classname since one
+        // transformer implementation cannot handle the instances of a
+        // template created by another one.
+        return "XSLTTemplate: " + id + '(' + m_factory.getClass().getName() + ')';
+    }
+
+    private Object retrieveTemplates(String key) {
+        if (m_templatesCache != null) {
+            return m_templatesCache.get(key);
+        }
+        return m_store.get(key);
+    }
+
+    private void removeTemplates(String key) {
+        if (m_templatesCache != null) {
+            m_templatesCache.remove(key);
+        } else {
+            m_store.remove(key);
+        }
+    }
+
     private TransformerHandlerAndValidity getTemplates(Source stylesheet, String id)
     throws IOException, TransformerException {
-        if (!m_useStore) {
+        if (!m_useStore && m_templatesCache == null) {
             return null;
         }
 
-        // we must augment the template ID with the factory classname since one
-        // transformer implementation cannot handle the instances of a
-        // template created by another one.
-        String key = "XSLTTemplate: " + id + '(' + m_factory.getClass().getName() + ')';
+        String key = getTemplatesKey(id);
 
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("getTemplates: stylesheet " + id);
@@ -431,7 +516,7 @@ public class TraxProcessor extends AbstractLogEnabled
 
         // Stored is an array of the templates and the caching time and list of
         // includes
-        Object[] templateAndValidityAndIncludes = (Object[]) m_store.get(key);
+        Object[] templateAndValidityAndIncludes = (Object[]) retrieveTemplates(key);
         if (templateAndValidityAndIncludes == null) {
             // Templates not found in cache
             return null;
@@ -449,7 +534,7 @@ public class TraxProcessor extends AbstractLogEnabled
 
         // Only valid stylesheets are stored
         if (valid != SourceValidity.VALID) {
-            m_store.remove(key);
+            removeTemplates(key);
             return null;
         }
 
@@ -481,7 +566,7 @@ public class TraxProcessor extends AbstractLogEnabled
                         }
                     }
                     if (valid != SourceValidity.VALID) {
-                        m_store.remove(key);
+                        removeTemplates(key);
                         return null;
                     }
                 }
@@ -496,14 +581,11 @@ public class TraxProcessor extends AbstractLogEnabled
     }
 
     private void putTemplates(Templates templates, Source stylesheet, String id) throws IOException {
-        if (!m_useStore) {
+        if (!m_useStore && m_templatesCache == null) {
             return;
         }
 
-        // we must augment the template ID with the factory classname since one
-        // transformer implementation cannot handle the instances of a
-        // template created by another one.
-        String key = "XSLTTemplate: " + id + '(' + m_factory.getClass().getName() + ')';
+        String key = getTemplatesKey(id);
 
         // only stylesheets with a last modification date are stored
         SourceValidity validity = stylesheet.getValidity();
@@ -515,7 +597,11 @@ public class TraxProcessor extends AbstractLogEnabled
             if (m_checkIncludes) {
                 templateAndValidityAndIncludes[2] = m_includesMap.get(id);
             }
-            m_store.store(key, templateAndValidityAndIncludes);
+            if (m_templatesCache != null) {
+                m_templatesCache.put(key, templateAndValidityAndIncludes);
+            } else {
+                m_store.store(key, templateAndValidityAndIncludes);
+            }
         }
     }
 
@@ -566,7 +652,18 @@ public class TraxProcessor extends AbstractLogEnabled
                 }
             }
 
-            InputSource is = getInputSource(xslSource);
+            final javax.xml.transform.Source result;
+            if (xslSource instanceof XMLizable) {
+                // Record the events of cocoon: sources and alike, instead of
+                // parsing their serialized output again
+                final XMLByteStreamCompiler compiler = new XMLByteStreamCompiler();
+                ((XMLizable) xslSource).toSAX(compiler);
+                result = new SAXSource(new CompiledSAXReader(compiler.getSAXFragment()),
+                                       new InputSource(xslSource.getURI()));
+            } else {
+                InputSource is = getInputSource(xslSource);
+                result = new StreamSource(is.getByteStream(), is.getSystemId());
+            }
 
             if (getLogger().isDebugEnabled()) {
                 getLogger().debug("xslSource = " + xslSource + ", system id = " + xslSource.getURI());
@@ -586,7 +683,7 @@ public class TraxProcessor extends AbstractLogEnabled
                 }
             }
 
-            return new StreamSource(is.getByteStream(), is.getSystemId());
+            return result;
         } catch (SourceException e) {
             if (getLogger().isDebugEnabled()) {
                 getLogger().debug("Failed to resolve " + href + "(base = " + base + "), return null", e);
@@ -606,6 +703,12 @@ public class TraxProcessor extends AbstractLogEnabled
                 getLogger().debug("Failed to resolve " + href + "(base = " + base + "), return null", ioe);
             }
 
+            return null;
+        } catch (SAXException se) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Failed to resolve " + href + "(base = " + base + "), return null", se);
+            }
+
             return null;
         } finally {
             m_resolver.release(xslSource);
@@ -647,4 +750,109 @@ public class TraxProcessor extends AbstractLogEnabled
             super(handler, validity);
         }
     }
+
+    /**
+     * An <code>XMLReader</code> replaying a compiled SAX fragment, used to
+     * pass the events of an {@link XMLizable} source to the XSLT processor.
+     */
+    private static final class CompiledSAXReader implements XMLReader {
+
+        private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+        private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+        private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+        private final Object saxFragment;
+
+        private ContentHandler contentHandler;
+        private LexicalHandler lexicalHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+
+        public CompiledSAXReader(Object saxFragment) {
+            this.saxFragment = saxFragment;
+        }
+
+        public boolean getFeature(String name) throws SAXNotRecognizedException {
+            if (NAMESPACES.equals(name)) {
+                return true;
+            }
+            if (NAMESPACE_PREFIXES.equals(name)) {
+                return false;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        public void setFeature(String name, boolean value)
+        throws SAXNotRecognizedException, SAXNotSupportedException {
+            if (getFeature(name) != value) {
+                throw new SAXNotSupportedException(name);
+            }
+        }
+
+        public Object getProperty(String name) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER.equals(name)) {
+                return this.lexicalHandler;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER.equals(name)) {
+                this.lexicalHandler = (LexicalHandler) value;
+            } else {
+                throw new SAXNotRecognizedException(name);
+            }
+        }
+
+        public void setEntityResolver(EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        public EntityResolver getEntityResolver() {
+            return this.entityResolver;
+        }
+
+        public void setDTDHandler(DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        public DTDHandler getDTDHandler() {
+            return this.dtdHandler;
+        }
+
+        public void setContentHandler(ContentHandler handler) {
+            this.contentHandler = handler;
+        }
+
+        public ContentHandler getContentHandler() {
+            return this.contentHandler;
+        }
+
+        public void setErrorHandler(ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        public ErrorHandler getErrorHandler() {
+            return this.errorHandler;
+        }
+
+        public void parse(InputSource input) throws SAXException {
+            if (this.saxFragment == null) {
+                throw new SAXException("No content for " + input.getSystemId());
+            }
+            final XMLByteStreamInterpreter interpreter = new XMLByteStreamInterpreter();
+            if (this.contentHandler != null) {
+                interpreter.setContentHandler(this.contentHandler);
+            }
+            if (this.lexicalHandler != null) {
+                interpreter.setLexicalHandler(this.lexicalHandler);
+            }
+            interpreter.deserialize(this.saxFragment);
+        }
+
+        public void parse(String systemId) throws SAXException {
+            parse(new InputSource(systemId));
+        }
+    }
 }
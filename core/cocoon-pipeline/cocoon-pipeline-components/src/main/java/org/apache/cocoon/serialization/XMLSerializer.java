@@ -22,16 +22,55 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.configuration.ConfigurationException;
+import org.apache.avalon.framework.parameters.Parameters;
 import org.apache.cocoon.CascadingIOException;
+import org.apache.cocoon.components.sax.XMLByteStreamConstants;
+import org.apache.cocoon.components.sax.XMLOutputStreamCompiler;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Request;
+import org.apache.cocoon.environment.Response;
+import org.apache.cocoon.environment.SourceResolver;
+import org.apache.cocoon.sitemap.SitemapModelComponent;
+import org.xml.sax.SAXException;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Map;
 
 /**
+ * Serializes the SAX stream to XML text.
+ *
+ * <p>If the request has the attribute
+ * {@link XMLByteStreamConstants#REQUEST_ATTRIBUTE} set, as the
+ * <code>servlet:</code> source does when its caller streams the response
+ * to SAX, the SAX stream is written in the compiled SAX format instead. The
+ * caller then replays the events without parsing the XML again. Any other
+ * request, whatever its <code>Accept</code> header, gets XML text with the
+ * configured output properties and <code>Content-Type</code>, the response
+ * is not touched.</p>
+ *
  * @version $Id$
  */
 
-public class XMLSerializer extends AbstractTextSerializer {
+public class XMLSerializer extends AbstractTextSerializer
+                           implements SitemapModelComponent {
+
+    /** Write the compiled SAX stream instead of XML text? */
+    private boolean xmlByteStream;
+
+    private Response response;
+
+    /**
+     * @see org.apache.cocoon.sitemap.SitemapModelComponent#setup(org.apache.cocoon.environment.SourceResolver, java.util.Map, java.lang.String, org.apache.avalon.framework.parameters.Parameters)
+     */
+    public void setup(SourceResolver resolver, Map objectModel, String src, Parameters par) {
+        final Request request = ObjectModelHelper.getRequest(objectModel);
+        this.xmlByteStream = request != null
+                && Boolean.TRUE.equals(request.getAttribute(XMLByteStreamConstants.REQUEST_ATTRIBUTE));
+        this.response = ObjectModelHelper.getResponse(objectModel);
+    }
 
     /* (non-Javadoc)
      * @see org.apache.cocoon.serialization.AbstractTextSerializer#init()
@@ -55,6 +94,16 @@ public class XMLSerializer extends AbstractTextSerializer {
      * be serialized.
      */
     public void setOutputStream(OutputStream out) throws IOException {
+        if (this.xmlByteStream) {
+            // the compiler writes single bytes
+            super.setOutputStream(new BufferedOutputStream(out));
+            this.setConsumer(new XMLOutputStreamCompiler(this.output));
+            if (this.response != null) {
+                this.response.setHeader("Content-Type", XMLByteStreamConstants.MIME_TYPE);
+            }
+            return;
+        }
+
         super.setOutputStream(out);
         try {
             TransformerHandler handler = this.getTransformerHandler();
@@ -68,4 +117,37 @@ public class XMLSerializer extends AbstractTextSerializer {
         }
     }
 
+    public void endDocument() throws SAXException {
+        super.endDocument();
+        if (this.xmlByteStream) {
+            try {
+                this.output.flush();
+            } catch (IOException e) {
+                throw new SAXException("Unable to flush the compiled SAX stream.", e);
+            }
+        }
+    }
+
+    /**
+     * The compiled SAX stream is cached separately from the XML text.
+     *
+     * @see org.apache.cocoon.serialization.AbstractTextSerializer#getKey()
+     */
+    public Serializable getKey() {
+        final Serializable key = super.getKey();
+        if (this.xmlByteStream && key != null) {
+            return key + ";" + XMLByteStreamConstants.MIME_TYPE;
+        }
+        return key;
+    }
+
+    /**
+     * @see org.apache.cocoon.serialization.AbstractTextSerializer#recycle()
+     */
+    public void recycle() {
+        super.recycle();
+        this.xmlByteStream = false;
+        this.response = null;
+    }
+
 }
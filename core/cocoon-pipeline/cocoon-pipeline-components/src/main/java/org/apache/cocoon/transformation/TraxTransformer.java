@@ -181,6 +181,9 @@ public class TraxTransformer extends AbstractTransformer
     /** The XSLTProcessor */
     private XSLTProcessor xsltProcessor;
 
+    /** The role of the XSLTProcessor */
+    private String xsltProcessorRole;
+
     /** Did we finish the processing (is endDocument() called) */
     private boolean finishedDocument = false;
 
@@ -213,9 +216,9 @@ public class TraxTransformer extends AbstractTransformer
         this._useSessionInfo = this.useSessionInfo;
 
         child = conf.getChild("xslt-processor-role");
-        String xsltProcessorRole = child.getValue(XSLTProcessor.ROLE);
-        if (!xsltProcessorRole.startsWith(XSLTProcessor.ROLE)) {
-            xsltProcessorRole = XSLTProcessor.ROLE + '/' + xsltProcessorRole;
+        this.xsltProcessorRole = child.getValue(XSLTProcessor.ROLE);
+        if (!this.xsltProcessorRole.startsWith(XSLTProcessor.ROLE)) {
+            this.xsltProcessorRole = XSLTProcessor.ROLE + '/' + this.xsltProcessorRole;
         }
 
         child = conf.getChild("check-includes");
@@ -230,13 +233,13 @@ public class TraxTransformer extends AbstractTransformer
             getLogger().debug("Use parameters is " + this.useParameters);
             getLogger().debug("Use cookies is " + this.useCookies);
             getLogger().debug("Use session info is " + this.useSessionInfo);
-            getLogger().debug("Use TrAX Processor " + xsltProcessorRole);
+            getLogger().debug("Use TrAX Processor " + this.xsltProcessorRole);
             getLogger().debug("Check for included stylesheets is " + this.checkIncludes);
             getLogger().debug("Default source = " + this.defaultSrc);
         }
 
         try {
-            this.xsltProcessor = (XSLTProcessor) this.manager.lookup(xsltProcessorRole);
+            this.xsltProcessor = (XSLTProcessor) this.manager.lookup(this.xsltProcessorRole);
         } catch (ServiceException e) {
             throw new ConfigurationException("Cannot load XSLT processor", e);
         }
@@ -252,6 +255,13 @@ public class TraxTransformer extends AbstractTransformer
         }
     }
 
+    /**
+     * Return the role of the XSLT processor used by this transformer.
+     */
+    public String getXSLTProcessorRole() {
+        return this.xsltProcessorRole;
+    }
+
     /**
      * Set the current <code>ServiceManager</code> instance used by this
      * <code>Serviceable</code>.
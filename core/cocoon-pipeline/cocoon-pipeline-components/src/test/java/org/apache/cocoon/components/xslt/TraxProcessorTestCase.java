@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceResolver;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+import org.apache.excalibur.xml.sax.XMLizable;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Test case for the compilation of stylesheets shared through the
+ * {@link TemplatesCache}, and for resolving <code>xsl:include</code> and
+ * <code>document()</code> against {@link XMLizable} sources.
+ *
+ * @version $Id$
+ */
+public class TraxProcessorTestCase extends TestCase {
+
+    private static final String STYLESHEET =
+        "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+        "<xsl:template match='/'><out/></xsl:template>" +
+        "</xsl:stylesheet>";
+
+    private TemplatesCache cache;
+
+    private ServiceManager manager;
+
+    /** The sources resolved by the processor, by URI. */
+    private Map sources;
+
+    protected void setUp() throws Exception {
+        this.cache = new TemplatesCache();
+        this.sources = new HashMap();
+        final SourceResolver resolver = (SourceResolver) Proxy.newProxyInstance(SourceResolver.class.getClassLoader(),
+                                                                                new Class[] { SourceResolver.class },
+                                                                                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                if ("resolveURI".equals(method.getName())) {
+                    // relative URIs are resolved against the directory of the stylesheets
+                    String uri = (String) args[0];
+                    if (uri.indexOf(':') == -1) {
+                        uri = "test:/xsl/" + uri;
+                    }
+                    final Source source = (Source) sources.get(uri);
+                    if (source == null) {
+                        throw new IOException("Unknown source: " + uri);
+                    }
+                    return source;
+                }
+                return null;
+            }
+        });
+        this.manager = (ServiceManager) Proxy.newProxyInstance(ServiceManager.class.getClassLoader(),
+                                                               new Class[] { ServiceManager.class },
+                                                               new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("hasService".equals(method.getName())) {
+                    return Boolean.valueOf(TemplatesCache.ROLE.equals(args[0]));
+                }
+                if ("lookup".equals(method.getName()) && TemplatesCache.ROLE.equals(args[0])) {
+                    return cache;
+                }
+                if ("lookup".equals(method.getName()) && SourceResolver.ROLE.equals(args[0])) {
+                    return resolver;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A stylesheet requested by several threads at once is compiled once,
+     * the other threads wait for it and reuse the result.
+     */
+    public void testSingleFlight() throws Exception {
+        final TestSource stylesheet = new TestSource(new NOPValidity()) {
+            protected void parsing() throws InterruptedException {
+                // give the other threads time to ask for the stylesheet
+                Thread.sleep(200);
+            }
+        };
+
+        run(stylesheet, 4);
+
+        assertEquals(1, stylesheet.parsed.size());
+        assertEquals(1, this.cache.getSize());
+        assertEquals(0, this.cache.getLockCount());
+    }
+
+    /**
+     * Stylesheets without a validity are not cached, so threads compiling
+     * them must not wait for each other.
+     */
+    public void testUncacheableNotSerialized() throws Exception {
+        final CountDownLatch parsing = new CountDownLatch(2);
+        final TestSource stylesheet = new TestSource(null) {
+            protected void parsing() throws InterruptedException {
+                parsing.countDown();
+                if (!parsing.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Compilations have been serialized");
+                }
+            }
+        };
+
+        run(stylesheet, 2);
+
+        assertEquals(2, stylesheet.parsed.size());
+        assertEquals(0, this.cache.getSize());
+        assertEquals(0, this.cache.getLockCount());
+    }
+
+    /**
+     * Once compiled, a stylesheet is taken from the cache.
+     */
+    public void testReuse() throws Exception {
+        final TestSource stylesheet = new TestSource(new NOPValidity());
+
+        assertNotNull(newProcessor().getTransformerHandler(stylesheet));
+        assertNotNull(newProcessor().getTransformerHandler(stylesheet));
+
+        assertEquals(1, stylesheet.parsed.size());
+        assertEquals(1, this.cache.getHits());
+        assertEquals(0, this.cache.getLockCount());
+    }
+
+    /**
+     * An XMLizable source is handed to the XSLT processor as recorded SAX
+     * events, its input stream is not read.
+     */
+    public void testResolveXMLizable() throws Exception {
+        addSource("test:/xsl/data.xml", "<data a='1'>text</data>");
+
+        final javax.xml.transform.Source resolved = newProcessor().resolve("data.xml", "test:/xsl/main.xsl");
+        assertTrue(resolved instanceof SAXSource);
+        assertEquals("test:/xsl/data.xml", resolved.getSystemId());
+        // the events have been recorded, the source may be released
+        assertEquals(1, ((TestSource) this.sources.get("test:/xsl/data.xml")).parsed.size());
+
+        final StringWriter writer = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(resolved, new StreamResult(writer));
+        assertTrue(writer.toString(), writer.toString().endsWith("<data a=\"1\">text</data>"));
+    }
+
+    /**
+     * Included stylesheets and documents read with document() are streamed
+     * from XMLizable sources.
+     */
+    public void testIncludeAndDocument() throws Exception {
+        final TestSource main = addSource("test:/xsl/main.xsl",
+            "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+            "<xsl:include href='included.xsl'/>" +
+            "<xsl:template match='/'>" +
+            "<out><xsl:value-of select=\"document('test:/xsl/data.xml')/data\"/><xsl:call-template name='included'/></out>" +
+            "</xsl:template>" +
+            "</xsl:stylesheet>");
+        addSource("test:/xsl/included.xsl",
+            "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+            "<xsl:template name='included'>-included</xsl:template>" +
+            "</xsl:stylesheet>");
+        addSource("test:/xsl/data.xml", "<data>data</data>");
+
+        final TransformerHandler handler = newProcessor().getTransformerHandler(main);
+        final StringWriter writer = new StringWriter();
+        handler.setResult(new StreamResult(writer));
+        handler.startDocument();
+        handler.startElement("", "in", "in", new AttributesImpl());
+        handler.endElement("", "in", "in");
+        handler.endDocument();
+
+        assertTrue(writer.toString(), writer.toString().endsWith("<out>data-included</out>"));
+        assertEquals(1, ((TestSource) this.sources.get("test:/xsl/included.xsl")).parsed.size());
+        assertEquals(1, ((TestSource) this.sources.get("test:/xsl/data.xml")).parsed.size());
+    }
+
+    private TestSource addSource(String uri, String content) {
+        final TestSource source = new TestSource(uri, content, null);
+        this.sources.put(uri, source);
+        return source;
+    }
+
+    private TraxProcessor newProcessor() throws Exception {
+        final TraxProcessor processor = new TraxProcessor();
+        processor.service(this.manager);
+        processor.parameterize(new Parameters());
+        processor.initialize();
+        return processor;
+    }
+
+    /**
+     * Request the stylesheet from the given number of threads at once, each
+     * with its own processor.
+     */
+    private void run(final Source stylesheet, int threads) throws Exception {
+        final List errors = Collections.synchronizedList(new ArrayList());
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final TraxProcessor processor = newProcessor();
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        processor.getTransformerHandler(stylesheet);
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < threads; i++) {
+            workers[i].join(10000);
+        }
+        if (!errors.isEmpty()) {
+            final Throwable t = (Throwable) errors.get(0);
+            throw new AssertionError(t.toString());
+        }
+    }
+
+    /**
+     * An XMLizable source which records how often it is parsed.
+     */
+    private static class TestSource implements Source, XMLizable {
+
+        final List parsed = Collections.synchronizedList(new ArrayList());
+
+        private final String uri;
+
+        private final String content;
+
+        private final SourceValidity validity;
+
+        public TestSource(SourceValidity validity) {
+            this("test:stylesheet.xsl", STYLESHEET, validity);
+        }
+
+        public TestSource(String uri, String content, SourceValidity validity) {
+            this.uri = uri;
+            this.content = content;
+            this.validity = validity;
+        }
+
+        /**
+         * Called before the stylesheet is streamed.
+         */
+        protected void parsing() throws InterruptedException {
+            // nothing to do
+        }
+
+        public void toSAX(ContentHandler handler) throws SAXException {
+            this.parsed.add(Thread.currentThread().getName());
+            try {
+                parsing();
+                final SAXParserFactory factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                final XMLReader reader = factory.newSAXParser().getXMLReader();
+                reader.setContentHandler(handler);
+                reader.parse(new InputSource(new StringReader(this.content)));
+            } catch (SAXException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SAXException(e);
+            }
+        }
+
+        public boolean exists() {
+            return true;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("Use toSAX()");
+        }
+
+        public String getURI() {
+            return this.uri;
+        }
+
+        public String getScheme() {
+            return "test";
+        }
+
+        public SourceValidity getValidity() {
+            return this.validity;
+        }
+
+        public void refresh() {
+            // nothing to do
+        }
+
+        public String getMimeType() {
+            return "text/xsl";
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        public long getLastModified() {
+            return 0;
+        }
+    }
+}
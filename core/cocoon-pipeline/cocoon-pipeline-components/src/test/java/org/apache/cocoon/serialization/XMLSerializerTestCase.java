@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.components.sax.XMLByteStreamConstants;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Request;
+import org.apache.cocoon.environment.Response;
+import org.apache.cocoon.xml.AttributesImpl;
+
+/**
+ * Test cases for the choice between XML text and the compiled SAX format
+ * of the {@link XMLSerializer}.
+ *
+ * @version $Id$
+ */
+public class XMLSerializerTestCase extends TestCase {
+
+    private Map headers;
+    private Map attributes;
+    private Map responseHeaders;
+    private Map objectModel;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.headers = new HashMap();
+        this.attributes = new HashMap();
+        this.responseHeaders = new HashMap();
+        this.objectModel = new HashMap();
+        this.objectModel.put(ObjectModelHelper.REQUEST_OBJECT,
+                newProxy(Request.class, this.headers, this.attributes));
+        this.objectModel.put(ObjectModelHelper.RESPONSE_OBJECT,
+                newProxy(Response.class, this.responseHeaders, null));
+    }
+
+    /**
+     * A client asking for the compiled format with the <code>Accept</code>
+     * header still gets XML text.
+     */
+    public void testAcceptHeader() throws Exception {
+        this.headers.put("Accept", XMLByteStreamConstants.MIME_TYPE + ", text/xml");
+        final String text = new String(serialize(), "UTF-8");
+        assertTrue(text, text.indexOf("<root a=\"1\">text</root>") != -1);
+        assertNull(this.responseHeaders.get("Content-Type"));
+    }
+
+    /**
+     * The request attribute set by the <code>servlet:</code> source selects
+     * the compiled format.
+     */
+    public void testRequestAttribute() throws Exception {
+        this.attributes.put(XMLByteStreamConstants.REQUEST_ATTRIBUTE, Boolean.TRUE);
+        final byte[] compiled = serialize();
+        assertEquals("CXML", new String(compiled, 0, 4, "ISO-8859-1"));
+        assertEquals(XMLByteStreamConstants.MIME_TYPE, this.responseHeaders.get("Content-Type"));
+
+        this.attributes.put(XMLByteStreamConstants.REQUEST_ATTRIBUTE, Boolean.FALSE);
+        final String text = new String(serialize(), "UTF-8");
+        assertTrue(text, text.indexOf("<root a=\"1\">text</root>") != -1);
+    }
+
+    private byte[] serialize() throws Exception {
+        final XMLSerializer serializer = new XMLSerializer();
+        serializer.init();
+        serializer.setup(null, this.objectModel, null, null);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.setOutputStream(out);
+
+        final AttributesImpl atts = new AttributesImpl();
+        atts.addCDATAAttribute("a", "1");
+        serializer.startDocument();
+        serializer.startElement("", "root", "root", atts);
+        serializer.characters("text".toCharArray(), 0, 4);
+        serializer.endElement("", "root", "root");
+        serializer.endDocument();
+        return out.toByteArray();
+    }
+
+    /**
+     * Create a request or response which reads headers from and writes them
+     * to a map, and reads attributes from another one.
+     */
+    private static Object newProxy(Class type, final Map headers, final Map attributes) {
+        return Proxy.newProxyInstance(type.getClassLoader(),
+                new Class[] { type },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getHeader".equals(method.getName())) {
+                            return headers.get(args[0]);
+                        }
+                        if ("setHeader".equals(method.getName())) {
+                            headers.put(args[0], args[1]);
+                            return null;
+                        }
+                        if ("getAttribute".equals(method.getName())) {
+                            return attributes.get(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -22,7 +22,8 @@ import java.io.OutputStream;
 /**
  * This is an {@link OutputStream} which forwards all received bytes to another
  * output stream and in addition caches all bytes, thus acting like a
- * TeeOutputStream.
+ * TeeOutputStream. The cached bytes can be shared with concurrent requests
+ * through a {@link PendingResponse}.
  *
  * @version $Id$
  */
@@ -31,34 +32,30 @@ extends OutputStream {
 
     private OutputStream receiver;
 
-    /** The buffer for the compile xml byte stream. */
-    private byte buf[];
-
-    /** The number of valid bytes in the buffer. */
-    private int bufCount;
+    /** The buffer for the cached bytes. */
+    private PendingResponse buffer;
 
     public CachingOutputStream(OutputStream os) {
+        this(os, null);
+    }
+
+    /**
+     * @param os the stream to forward to
+     * @param buffer the buffer to cache the bytes in, <code>null</code> to
+     *        use a private one
+     */
+    public CachingOutputStream(OutputStream os, PendingResponse buffer) {
         this.receiver = os;
-        this.buf = new byte[1024];
-        this.bufCount = 0;
+        this.buffer = buffer != null ? buffer : new PendingResponse();
     }
 
     public byte[] getContent() {
-        byte newbuf[] = new byte[this.bufCount];
-        System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-        return newbuf;
+        return this.buffer.getContent();
     }
 
     public void write(int b) throws IOException {
         this.receiver.write(b);
-        int newcount = this.bufCount + 1;
-        if (newcount > this.buf.length) {
-            byte newbuf[] = new byte[this.buf.length << 1];
-            System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-            this.buf = newbuf;
-        }
-        this.buf[this.bufCount] = (byte)b;
-        this.bufCount = newcount;
+        this.buffer.write(b);
     }
 
     public void write( byte b[] ) throws IOException {
@@ -67,15 +64,7 @@ extends OutputStream {
 
     public void write(byte b[], int off, int len) throws IOException {
         this.receiver.write(b, off, len);
-        if (len == 0) return;
-        int newcount = this.bufCount + len;
-        if (newcount > this.buf.length) {
-            byte newbuf[] = new byte[Math.max(this.buf.length << 1, newcount)];
-            System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-            this.buf = newbuf;
-        }
-        System.arraycopy(b, off, this.buf, this.bufCount, len);
-        this.bufCount = newcount;
+        this.buffer.write(b, off, len);
     }
 
     public void flush() throws IOException {
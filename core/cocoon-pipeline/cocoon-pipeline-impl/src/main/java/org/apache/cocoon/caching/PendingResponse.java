@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The bytes of a response which are still being generated. The request
+ * generating the response appends to it through a {@link CachingOutputStream},
+ * concurrent requests for the same response read the bytes as they are
+ * produced instead of generating the response again.
+ *
+ * <p>The buffer only grows, bytes once written are never modified. Readers
+ * therefore copy to their output streams without holding the monitor.</p>
+ *
+ * <p>A pending response belongs to the request generating it. A request
+ * must not wait for its own response (see JIRA COCOON-1985), which would
+ * happen for a nested request for the same response.</p>
+ *
+ * @see PendingResponseRegistry
+ * @version $Id$
+ */
+public final class PendingResponse {
+
+    private static final int GENERATING = 0;
+    private static final int COMPLETED  = 1;
+    private static final int FAILED     = 2;
+
+    /** The buffer for the response. */
+    private byte buf[];
+
+    /** The number of valid bytes in the buffer. */
+    private int bufCount;
+
+    private int state;
+
+    /** The number of readers waiting for more bytes. */
+    private int waiting;
+
+    /** The cached response, available after completion. */
+    private CachedResponse response;
+
+    /** The request generating the response. */
+    private final Object owner;
+
+    /** The content type of the response. */
+    private String contentType;
+
+    public PendingResponse() {
+        this(null);
+    }
+
+    /**
+     * @param owner the request generating the response
+     */
+    public PendingResponse(Object owner) {
+        this.buf = new byte[1024];
+        this.bufCount = 0;
+        this.state = GENERATING;
+        this.owner = owner;
+    }
+
+    /**
+     * The request generating the response, or <code>null</code> if unknown.
+     */
+    public Object getOwner() {
+        return this.owner;
+    }
+
+    public synchronized String getContentType() {
+        return this.contentType;
+    }
+
+    public synchronized void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    synchronized void write(int b) {
+        int newcount = this.bufCount + 1;
+        if (newcount > this.buf.length) {
+            byte newbuf[] = new byte[this.buf.length << 1];
+            System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
+            this.buf = newbuf;
+        }
+        this.buf[this.bufCount] = (byte)b;
+        this.bufCount = newcount;
+        if (this.waiting > 0) {
+            notifyAll();
+        }
+    }
+
+    synchronized void write(byte b[], int off, int len) {
+        if (len == 0) return;
+        int newcount = this.bufCount + len;
+        if (newcount > this.buf.length) {
+            byte newbuf[] = new byte[Math.max(this.buf.length << 1, newcount)];
+            System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
+            this.buf = newbuf;
+        }
+        System.arraycopy(b, off, this.buf, this.bufCount, len);
+        this.bufCount = newcount;
+        if (this.waiting > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns a copy of the bytes written so far.
+     */
+    public synchronized byte[] getContent() {
+        byte newbuf[] = new byte[this.bufCount];
+        System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
+        return newbuf;
+    }
+
+    /**
+     * Marks the response as completely generated.
+     *
+     * @param response the response as it has been cached, may be <code>null</code>
+     */
+    public synchronized void complete(CachedResponse response) {
+        if (this.state == GENERATING) {
+            this.state = COMPLETED;
+            this.response = response;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the generation of the response as failed. Has no effect if the
+     * response is already complete.
+     */
+    public synchronized void fail() {
+        if (this.state == GENERATING) {
+            this.state = FAILED;
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isCompleted() {
+        return this.state == COMPLETED;
+    }
+
+    public synchronized boolean isFailed() {
+        return this.state == FAILED;
+    }
+
+    /**
+     * The response as it has been cached by the generating request, or
+     * <code>null</code> if it is not complete or has not been cached.
+     */
+    public synchronized CachedResponse getCachedResponse() {
+        return this.response;
+    }
+
+    /**
+     * Writes the response to the output stream while it is being generated
+     * and returns when it is complete. The stream is not flushed, so a
+     * buffering stream can still be reset if the generation fails.
+     *
+     * @param os the stream to write to
+     * @param timeout the maximum time in milliseconds to wait for more bytes,
+     *        <code>0</code> to wait forever
+     * @return the number of bytes written
+     * @throws PendingResponseException if the generation failed or did not
+     *         make any progress within the timeout
+     * @throws IOException if writing to the stream failed
+     */
+    public long writeTo(OutputStream os, long timeout) throws IOException {
+        int written = 0;
+        while (true) {
+            byte[] b;
+            int count;
+            boolean done;
+            synchronized (this) {
+                waitFor(written, timeout, written);
+                b = this.buf;
+                count = this.bufCount;
+                done = this.state == COMPLETED;
+            }
+
+            if (count > written) {
+                os.write(b, written, count - written);
+                written = count;
+            }
+            if (done) {
+                return written;
+            }
+        }
+    }
+
+    /**
+     * Waits until the response is complete.
+     *
+     * @param timeout the maximum time in milliseconds to wait for more bytes,
+     *        <code>0</code> to wait forever
+     * @return the complete response
+     * @throws PendingResponseException if the generation failed or did not
+     *         make any progress within the timeout
+     */
+    public synchronized byte[] await(long timeout) throws PendingResponseException {
+        while (this.state == GENERATING) {
+            waitFor(this.bufCount, timeout, 0);
+        }
+        if (this.state == FAILED) {
+            throw new PendingResponseException("Generation of the shared response failed.", 0);
+        }
+        return getContent();
+    }
+
+    /**
+     * Wait until there are more than <code>count</code> bytes or the
+     * generation is finished. Must be called holding the monitor.
+     *
+     * @param written the number of bytes the caller has already written
+     */
+    private void waitFor(int count, long timeout, long written) throws PendingResponseException {
+        final long end = System.currentTimeMillis() + timeout;
+        while (this.bufCount == count && this.state == GENERATING) {
+            long wait = 0;
+            if (timeout > 0) {
+                wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new PendingResponseException("Shared response did not make progress within "
+                                                       + timeout + "ms.", written);
+                }
+            }
+            this.waiting++;
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PendingResponseException("Interrupted while waiting for the shared response.",
+                                                   written);
+            } finally {
+                this.waiting--;
+            }
+        }
+        if (this.state == FAILED) {
+            throw new PendingResponseException("Generation of the shared response failed.", written);
+        }
+    }
+}
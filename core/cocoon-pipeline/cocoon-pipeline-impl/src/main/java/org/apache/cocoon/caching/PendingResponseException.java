@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link PendingResponse} if the response could not be shared
+ * because its generation failed or did not make progress in time. The
+ * reading request can generate the response itself if it has not written
+ * any bytes yet, or if it can reset its response.
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class PendingResponseException extends IOException {
+
+    private final long written;
+
+    public PendingResponseException(String message, long written) {
+        super(message);
+        this.written = written;
+    }
+
+    /**
+     * The number of bytes of the shared response which have already been
+     * written.
+     */
+    public long getWritten() {
+        return this.written;
+    }
+}
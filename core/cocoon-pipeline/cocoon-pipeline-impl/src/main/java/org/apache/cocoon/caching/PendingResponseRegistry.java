@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the responses which are currently being generated, so that
+ * concurrent requests for the same uncached response are coalesced: the
+ * first request generates the response, all others read it from the
+ * {@link PendingResponse} as it is produced.
+ *
+ * <p>The registry counts how many responses have been generated and how
+ * many requests have been coalesced, which can be used to monitor its
+ * effect.</p>
+ *
+ * @version $Id$
+ */
+public class PendingResponseRegistry {
+
+    public static final String ROLE = PendingResponseRegistry.class.getName();
+
+    private final ConcurrentMap pending = new ConcurrentHashMap();
+
+    private final AtomicLong generated = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+
+    /**
+     * Register a response which is about to be generated.
+     *
+     * @param key the key of the response
+     * @param response the response which will be generated by the caller
+     * @return <code>null</code> if the caller has to generate the response,
+     *         otherwise the response which is already being generated. The
+     *         caller must not wait for a response of its own request, see
+     *         {@link #isOwnResponse(PendingResponse, PendingResponse)}.
+     */
+    public PendingResponse register(Object key, PendingResponse response) {
+        PendingResponse current = (PendingResponse) this.pending.putIfAbsent(key, response);
+        if (current == null) {
+            this.generated.incrementAndGet();
+        } else if (!isOwnResponse(current, response)) {
+            this.coalesced.incrementAndGet();
+        }
+        return current;
+    }
+
+    /**
+     * Check if a response is generated by the same request as another one.
+     */
+    public static boolean isOwnResponse(PendingResponse current, PendingResponse response) {
+        return current.getOwner() != null && current.getOwner() == response.getOwner();
+    }
+
+    /**
+     * Remove a registered response. If it has not been completed, it is
+     * marked as failed so that all readers stop waiting for it.
+     *
+     * @param key the key of the response
+     * @param response the response which has been registered
+     */
+    public void unregister(Object key, PendingResponse response) {
+        if (!response.isCompleted()) {
+            response.fail();
+            this.failed.incrementAndGet();
+        }
+        this.pending.remove(key, response);
+    }
+
+    /**
+     * Record that a request generated the response itself, as the shared
+     * response failed or timed out.
+     */
+    public void fallback() {
+        this.fallbacks.incrementAndGet();
+    }
+
+    /**
+     * The number of responses currently being generated.
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * The number of responses which have been generated by a registered
+     * request.
+     */
+    public long getGeneratedCount() {
+        return this.generated.get();
+    }
+
+    /**
+     * The number of requests which joined a response generated by a
+     * concurrent request. Requests falling back to generating the response
+     * themselves are included.
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * The number of registered responses whose generation failed.
+     */
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * The number of requests which generated the response themselves as the
+     * shared response failed or timed out.
+     */
+    public long getFallbackCount() {
+        return this.fallbacks.get();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.io.Serializable;
+
+import org.apache.cocoon.environment.Environment;
+
+/**
+ * Regenerates stale cached responses in the background. Caching pipelines
+ * running in <code>stale-while-revalidate</code> mode use the stale
+ * response for the current request and let the revalidator request the
+ * same URI again, which replaces the stale response in the cache.
+ * Only requests which can be replayed from their URI and headers are
+ * revalidated; a stale response the regeneration did not replace is removed
+ * from the cache, as it depends on request data which was not replayed.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface ResponseRevalidator {
+
+    String ROLE = ResponseRevalidator.class.getName();
+
+    /**
+     * Schedule the regeneration of a stale response. A response which is
+     * already scheduled is not scheduled again. The request data needed for
+     * the regeneration is captured before this method returns.
+     *
+     * @param cache the cache holding the stale response
+     * @param key the cache key of the stale response
+     * @param response the stale response
+     * @param environment the environment of the current request
+     * @return true if the response is being regenerated, false if the
+     *         request cannot be replayed and the stale response must not be
+     *         used
+     */
+    boolean revalidate(Cache cache, Serializable key, CachedResponse response,
+                       Environment environment);
+
+    /**
+     * Is the current thread regenerating a stale response? Pipelines must not
+     * use stale responses while this is the case.
+     */
+    boolean isRevalidating();
+}
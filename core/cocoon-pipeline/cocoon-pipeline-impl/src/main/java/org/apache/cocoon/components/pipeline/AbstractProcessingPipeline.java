@@ -51,7 +51,7 @@ import org.apache.cocoon.transformation.Transformer;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.util.location.Locatable;
 import org.apache.cocoon.util.location.Location;
-import org.apache.cocoon.xml.SaxBuffer;
+import org.apache.cocoon.xml.CompactSaxBuffer;
 import org.apache.cocoon.xml.XMLConsumer;
 import org.apache.cocoon.xml.XMLProducer;
 
@@ -759,9 +759,10 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
             return this.errorPipeline.process(environment, consumer);
         }
 
-        // Have to buffer events if error handler is specified.
-        SaxBuffer buffer = null;
-        this.lastConsumer = this.errorHandler == null? consumer: (buffer = new SaxBuffer());
+        // Have to buffer events if error handler is specified. The buffer
+        // holds the complete output, so keep it compact.
+        CompactSaxBuffer buffer = null;
+        this.lastConsumer = this.errorHandler == null? consumer: (buffer = new CompactSaxBuffer());
         try {
             connectPipeline(environment);
             return processXMLPipeline(environment);
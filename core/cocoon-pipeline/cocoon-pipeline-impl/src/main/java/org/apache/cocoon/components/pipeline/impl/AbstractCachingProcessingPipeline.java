@@ -34,6 +34,9 @@ import org.apache.cocoon.caching.CacheableProcessingComponent;
 import org.apache.cocoon.caching.CachedResponse;
 import org.apache.cocoon.caching.CachingOutputStream;
 import org.apache.cocoon.caching.ComponentCacheKey;
+import org.apache.cocoon.caching.PendingResponse;
+import org.apache.cocoon.caching.PendingResponseException;
+import org.apache.cocoon.caching.PendingResponseRegistry;
 import org.apache.cocoon.caching.PipelineCacheKey;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.environment.Environment;
@@ -51,6 +54,18 @@ import org.springframework.web.context.request.RequestContextHolder;
  * This is the base class for all caching pipeline implementations
  * that check different pipeline components.
  *
+ * <p>If the <code>locking</code> parameter is enabled (the default),
+ * concurrent requests for the same uncached complete response are
+ * coalesced: the first request generates the response, the others write
+ * the bytes as they are produced (see {@link PendingResponseRegistry}).
+ * The <code>coalescing-timeout</code> parameter limits how long such a
+ * request waits for more bytes, in milliseconds (Default: the
+ * <code>locking-timeout</code>). If the shared response fails or times out
+ * before the request has sent any bytes, it generates the response itself.
+ * Nested requests never wait for a response of their own request.
+ * Responses which are only partially cached still use the lock in the
+ * transient store.</p>
+ *
  * @since 2.1
  * @version $Id$
  * @noinspection SynchronizeOnNonFinalField
@@ -102,6 +117,21 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
     /** Maximum wait time on a pipeline lock */
     protected long lockTimeout;
 
+    /** Registry for responses being generated (optional) */
+    protected PendingResponseRegistry pendingResponses;
+
+    /** Maximum wait time for progress of a response generated by a concurrent request */
+    protected long pendingResponseTimeout;
+
+    /** The response this pipeline generates for concurrent requests */
+    protected PendingResponse generatingResponse;
+
+    /** The response generated by a concurrent request which this pipeline writes */
+    protected PendingResponse sharedResponse;
+
+    /** The key under which the pending response is registered */
+    private PipelineCacheKey pendingResponseKey;
+
 
     /**
      * Abstract method defined in subclasses.
@@ -138,6 +168,14 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                     getLogger().debug("Transient store '" + storeRole + "' not available. Pipeline locking will not work.", e);
                 }
              }
+            pendingResponseTimeout = params.getParameterAsLong("coalescing-timeout", lockTimeout);
+            try {
+                pendingResponses = (PendingResponseRegistry) manager.lookup(PendingResponseRegistry.ROLE);
+            } catch (ServiceException e) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Pending response registry not available. Concurrent requests will not be coalesced.", e);
+                }
+            }
          }
     }
 
@@ -289,6 +327,103 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
         }
     }
 
+    /**
+     * Registers the response of this pipeline as being generated. If a
+     * concurrent request is already generating the same response, this
+     * pipeline does not generate it but writes the shared one. Must be
+     * called when the response is about to be generated, after the content
+     * type has been set.
+     *
+     * @return true if this pipeline has to generate the response
+     */
+    protected boolean registerPendingResponse(PipelineCacheKey key, Environment environment) {
+        if (pendingResponses == null || key == null) {
+            return true;
+        }
+
+        final PendingResponse response = new PendingResponse(RequestContextHolder.getRequestAttributes());
+        response.setContentType(environment.getContentType());
+        final PendingResponse current = pendingResponses.register(key, response);
+        if (current == null) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Generating pending response for key " + key);
+            }
+            this.generatingResponse = response;
+            this.pendingResponseKey = key;
+            return true;
+        }
+
+        // Avoid deadlock with self (see JIRA COCOON-1985).
+        if (PendingResponseRegistry.isOwnResponse(current, response)) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Pending response for key " + key + " is generated by this request");
+            }
+            return true;
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Joining pending response for key " + key);
+        }
+        this.sharedResponse = current;
+        return false;
+    }
+
+    /**
+     * Unregisters the response generated by this pipeline. Requests still
+     * waiting for it fail if it has not been completed.
+     */
+    protected void releasePendingResponse() {
+        if (this.generatingResponse != null) {
+            pendingResponses.unregister(this.pendingResponseKey, this.generatingResponse);
+            this.generatingResponse = null;
+            this.pendingResponseKey = null;
+        }
+    }
+
+    /**
+     * Writes the response generated by a concurrent request as it is
+     * produced.
+     *
+     * @return false if the shared response failed or timed out before
+     *         anything was sent, the response has to be generated then
+     */
+    protected boolean writeSharedResponse(Environment environment, boolean setContentLength)
+    throws IOException {
+        final PendingResponse response = this.sharedResponse;
+        this.sharedResponse = null;
+        if (response.getContentType() != null) {
+            environment.setContentType(response.getContentType());
+        }
+        try {
+            if (setContentLength) {
+                final byte[] content = response.await(this.pendingResponseTimeout);
+                final OutputStream outputStream = environment.getOutputStream(0);
+                if (content.length > 0) {
+                    environment.setContentLength(content.length);
+                    outputStream.write(content);
+                }
+            } else {
+                response.writeTo(environment.getOutputStream(this.outputBufferSize),
+                                 this.pendingResponseTimeout);
+            }
+        } catch (PendingResponseException e) {
+            if (e.getWritten() > 0 && !environment.tryResetResponse()) {
+                throw e;
+            }
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Shared response not available, generating it: " + e.getMessage());
+            }
+            pendingResponses.fallback();
+            return false;
+        }
+
+        final CachedResponse completeCachedResponse = response.getCachedResponse();
+        if (completeCachedResponse != null) {
+            environment.isResponseModified(completeCachedResponse.getLastModified());
+        }
+        return true;
+    }
+
     /**
      * Process the given <code>Environment</code>, producing the output.
      */
@@ -298,6 +433,7 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
         }
 
         if (this.cachedResponse != null && this.completeResponseIsCached) {
+            setStaleResponseHeaders(environment);
 
             // Allow for 304 (not modified) responses in dynamic content
             if (checkIfModified(environment, this.cachedResponse.getLastModified())) {
@@ -324,18 +460,37 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
             }
         } else {
             setMimeTypeForSerializer(environment);
+
+            // Coalesce with a concurrent request generating the same response
+            if (this.cacheCompleteResponse && this.toCacheKey != null
+                    && super.serializer == super.lastConsumer
+                    && !registerPendingResponse(this.toCacheKey.copy(), environment)) {
+                try {
+                    if (writeSharedResponse(environment, this.serializer.shouldSetContentLength())) {
+                        environment.setStatus(HttpServletResponse.SC_OK);
+                        return true;
+                    }
+                } catch (Exception e) {
+                    handleException(e);
+                }
+                setMimeTypeForSerializer(environment);
+            }
+
             if (getLogger().isDebugEnabled() && this.toCacheKey != null) {
                 getLogger().debug("processXMLPipeline: caching content for further" +
                                   " requests of '" + environment.getURI() +
                                   "' using key " + this.toCacheKey);
             }
 
-            generateLock(this.toCacheKey);
+            if (this.generatingResponse == null) {
+                generateLock(this.toCacheKey);
+            }
             try {
                 OutputStream os = null;
 
                 if (this.cacheCompleteResponse && this.toCacheKey != null) {
-                    os = new CachingOutputStream(environment.getOutputStream(this.outputBufferSize));
+                    os = new CachingOutputStream(environment.getOutputStream(this.outputBufferSize),
+                                                 this.generatingResponse);
                 }
 
                 if (super.serializer != super.lastConsumer) {
@@ -399,10 +554,18 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                 	environment.isResponseModified(completeCachedResponse.getLastModified());
                 }
 
+                if (this.generatingResponse != null) {
+                    this.generatingResponse.complete(completeCachedResponse);
+                }
+
             } catch (Exception e) {
                 handleException(e);
             } finally {
-                releaseLock(this.toCacheKey);
+                if (this.generatingResponse != null) {
+                    releasePendingResponse();
+                } else {
+                    releaseLock(this.toCacheKey);
+                }
             }
 
             //Request has been succesfully processed, set approporiate status code
@@ -615,11 +778,13 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                 SourceValidity[] fromCacheValidityObjects = response.getValidityObjects();
 
                 int i = 0;
+                boolean unknown = false;
                 while (responseIsValid && i < fromCacheValidityObjects.length) {
                     // BH Check if validities[i] is null, may happen
                     //    if exception was thrown due to malformed content
                     SourceValidity validity = fromCacheValidityObjects[i];
                     int valid = validity == null ? SourceValidity.INVALID : validity.isValid();
+                    unknown = valid == SourceValidity.UNKNOWN;
                     if (valid == SourceValidity.UNKNOWN) {
                         // Don't know if valid, make second test
                         validity = getValidityForInternalPipeline(i);
@@ -660,6 +825,12 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                     // we are valid, ok that's it
                     this.cachedResponse = response;
                     this.toCacheSourceValidities = fromCacheValidityObjects;
+                } else if (responseIsUsable && this.completeResponseIsCached
+                           && useStaleResponse(environment, this.fromCacheKey.copy(), response,
+                                               response.getLastModified(), unknown)) {
+                    // use the stale response, it is regenerated in the background
+                    this.cachedResponse = response;
+                    this.toCacheSourceValidities = fromCacheValidityObjects;
                 } else {
                     if (getLogger().isDebugEnabled()) {
                         getLogger().debug("validatePipeline: cached content is invalid for '" +
@@ -856,19 +1027,30 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                 // make sure lock will be released
                 try {
                     if (pcKey != null) {
+                        if (readerValidity == null) {
+                            readerValidity = ((CacheableProcessingComponent)super.reader).getValidity();
+                        }
+
+                        if (readerValidity != null) {
+                            setMimeTypeForReader(environment);
+                            if (!registerPendingResponse(pcKey, environment)
+                                    && writeSharedResponse(environment, this.reader.shouldSetContentLength())) {
+                                environment.setStatus(HttpServletResponse.SC_OK);
+                                return true;
+                            }
+                        }
+
                         if (getLogger().isDebugEnabled()) {
                             getLogger().debug("processReader: caching content for further requests of '" +
                                     environment.getURI() + "'.");
                         }
-                        generateLock(pcKey);
-
-                        if (readerValidity == null) {
-                            readerValidity = ((CacheableProcessingComponent)super.reader).getValidity();
+                        if (this.generatingResponse == null) {
+                            generateLock(pcKey);
                         }
 
                         if (readerValidity != null) {
                             outputStream = environment.getOutputStream(this.outputBufferSize);
-                            outputStream = new CachingOutputStream(outputStream);
+                            outputStream = new CachingOutputStream(outputStream, this.generatingResponse);
                         }
                     }
 
@@ -908,10 +1090,18 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                                 ((CachingOutputStream)outputStream).getContent());
                         res.setContentType(environment.getContentType());
                         this.cache.store(pcKey, res);
+
+                        if (this.generatingResponse != null) {
+                            this.generatingResponse.complete(res);
+                        }
                     }
 
                 } finally {
-                    releaseLock(pcKey);
+                    if (this.generatingResponse != null) {
+                        releasePendingResponse();
+                    } else {
+                        releaseLock(pcKey);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -1005,6 +1195,101 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
         return null;
     }
 
+    /**
+     * Return the key of the complete pipeline, built from the keys of all of
+     * its components including the serializer. Unlike
+     * {@link #getKeyForEventPipeline()} it does not depend on the content of
+     * the cache, so it can be compared with the key of an earlier run.
+     *
+     * @return the key, or <code>null</code> if a component is not cacheable
+     */
+    public String getKeyForCompletePipeline() {
+        if (isInternalError()) {
+            return null;
+        }
+
+        final PipelineCacheKey key = new PipelineCacheKey();
+        if (super.reader != null) {
+            if (!addComponentKey(key, ComponentCacheKey.ComponentType_Reader, this.readerRole, super.reader)) {
+                return null;
+            }
+        } else {
+            if (!addComponentKey(key, ComponentCacheKey.ComponentType_Generator, this.generatorRole, super.generator)) {
+                return null;
+            }
+            for (int i = 0; i < super.transformers.size(); i++) {
+                if (!addComponentKey(key, ComponentCacheKey.ComponentType_Transformer,
+                                     (String) this.transformerRoles.get(i), super.transformers.get(i))) {
+                    return null;
+                }
+            }
+            if (!addComponentKey(key, ComponentCacheKey.ComponentType_Serializer, this.serializerRole, super.serializer)) {
+                return null;
+            }
+        }
+
+        return String.valueOf(HashUtil.hash(key.toString()));
+    }
+
+    /**
+     * Return the validity of the complete pipeline, aggregated from the
+     * validities of all of its components including the serializer. Like
+     * {@link #getKeyForCompletePipeline()} it does not depend on the content
+     * of the cache.
+     *
+     * @return the validity, or <code>null</code> if a component is not cacheable
+     */
+    public SourceValidity getValidityForCompletePipeline() {
+        if (isInternalError()) {
+            return null;
+        }
+
+        final AggregatedValidity validity = new AggregatedValidity();
+        if (super.reader != null) {
+            if (!addComponentValidity(validity, super.reader)) {
+                return null;
+            }
+        } else {
+            if (!addComponentValidity(validity, super.generator)) {
+                return null;
+            }
+            for (int i = 0; i < super.transformers.size(); i++) {
+                if (!addComponentValidity(validity, super.transformers.get(i))) {
+                    return null;
+                }
+            }
+            if (!addComponentValidity(validity, super.serializer)) {
+                return null;
+            }
+        }
+
+        return validity;
+    }
+
+    private boolean addComponentKey(PipelineCacheKey key, int type, String role, Object component) {
+        Serializable componentKey = null;
+        if (component instanceof CacheableProcessingComponent) {
+            componentKey = ((CacheableProcessingComponent) component).getKey();
+        }
+        if (componentKey == null) {
+            return false;
+        }
+        key.addKey(newComponentCacheKey(type, role, componentKey));
+        return true;
+    }
+
+    private boolean addComponentValidity(AggregatedValidity validity, Object component) {
+        SourceValidity componentValidity = null;
+        if (component instanceof CacheableProcessingComponent) {
+            componentValidity = ((CacheableProcessingComponent) component).getValidity();
+        }
+        if (componentValidity == null) {
+            return false;
+        }
+        validity.add(componentValidity);
+        return true;
+    }
+
     SourceValidity getValidityForInternalPipeline(int index) {
         final SourceValidity validity;
 
@@ -1050,8 +1335,22 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
         this.toCacheKey = null;
         this.toCacheSourceValidities = null;
 
+        releasePendingResponse();
+        this.sharedResponse = null;
+
         super.recycle();
     }
+
+    /**
+     * Disposable Interface
+     */
+    public void dispose() {
+        if (null != this.manager) {
+            this.manager.release(this.pendingResponses);
+        }
+        this.pendingResponses = null;
+        super.dispose();
+    }
 }
 
 final class DeferredPipelineValidity implements DeferredValidity {
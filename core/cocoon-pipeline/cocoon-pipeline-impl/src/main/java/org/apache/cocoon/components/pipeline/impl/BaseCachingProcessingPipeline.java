@@ -16,20 +16,46 @@
  */
 package org.apache.cocoon.components.pipeline.impl;
 
+import java.io.Serializable;
+
 import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.parameters.ParameterException;
 import org.apache.avalon.framework.parameters.Parameters;
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.cocoon.caching.Cache;
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.caching.ResponseRevalidator;
 import org.apache.cocoon.components.pipeline.AbstractProcessingPipeline;
 import org.apache.cocoon.components.sax.XMLByteStreamCompiler;
 import org.apache.cocoon.components.sax.XMLByteStreamInterpreter;
+import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Response;
 
 /**
  * This is the base class for all caching pipeline implementations.
  * The pipeline can be configured with the {@link Cache} to use
  * by specifying the <code>cache-role</code> parameter.
  *
+ * <p>With the <code>stale-while-revalidate</code> parameter set to true, a
+ * cached response which is no longer valid is still used for the current
+ * request, while the {@link ResponseRevalidator} regenerates it in the
+ * background. Additional parameters are:
+ * <ul>
+ *  <li><b>stale-window</b>: How long a response may be used after it became
+ *      stale, in seconds. If the time it became stale is not known, the time
+ *      it has been cached is used instead. A negative value means no limit.
+ *      (Default: 300)</li>
+ *  <li><b>stale-policy</b>: <code>always</code> uses all stale responses,
+ *      <code>unknown</code> only those whose validity could not be decided
+ *      without asking the pipeline components for their current validity,
+ *      which is the case for expensive sources. (Default: always)</li>
+ * </ul>
+ * Only requests which the revalidator can replay use stale responses. A
+ * stale response is sent with an immediate expiration and a
+ * <code>Warning: 110</code> header, so that it is not cached downstream as
+ * if it were fresh.</p>
+ *
  * @since 2.1
  * @version $Id$
  */
@@ -45,6 +71,21 @@ public abstract class BaseCachingProcessingPipeline extends AbstractProcessingPi
     /** The serializer */
     protected XMLByteStreamCompiler xmlSerializer;
 
+    /** Use stale responses while they are regenerated */
+    protected boolean staleWhileRevalidate;
+
+    /** How long a stale response may be used in milliseconds, negative for no limit */
+    protected long staleWindow;
+
+    /** Use stale responses only if their validity could not be decided by themselves */
+    protected boolean staleOnlyIfUnknown;
+
+    /** The revalidator regenerating stale responses */
+    protected ResponseRevalidator revalidator;
+
+    /** Is a stale response used for the current request? */
+    protected boolean staleResponse;
+
     /**
      * Parameterizable Interface - Configuration
      */
@@ -62,6 +103,76 @@ public abstract class BaseCachingProcessingPipeline extends AbstractProcessingPi
         } catch (ServiceException ce) {
             throw new ParameterException("Unable to lookup cache: " + cacheRole, ce);
         }
+
+        this.staleWhileRevalidate = params.getParameterAsBoolean("stale-while-revalidate", false);
+        if (this.staleWhileRevalidate) {
+            this.staleWindow = params.getParameterAsLong("stale-window", 300) * 1000;
+
+            final String policy = params.getParameter("stale-policy", "always");
+            if ("unknown".equals(policy)) {
+                this.staleOnlyIfUnknown = true;
+            } else if (!"always".equals(policy)) {
+                throw new ParameterException("Unknown stale-policy: " + policy);
+            }
+
+            try {
+                this.revalidator = (ResponseRevalidator) this.manager.lookup(ResponseRevalidator.ROLE);
+            } catch (ServiceException ce) {
+                throw new ParameterException("Unable to lookup revalidator: " + ResponseRevalidator.ROLE, ce);
+            }
+        }
+    }
+
+    /**
+     * Decide whether a stale cached response can be used for the current
+     * request. If so, its regeneration is scheduled.
+     *
+     * @param key the cache key of the response
+     * @param response the stale response
+     * @param staleSince the time the response became stale, or the time it
+     *                   has been cached if this is not known
+     * @param unknown true if the validity of the response could not be
+     *                decided without the current validity of the components
+     * @return true if the stale response should be used
+     */
+    protected boolean useStaleResponse(Environment environment, Serializable key,
+                                       CachedResponse response, long staleSince,
+                                       boolean unknown) {
+        if (!this.staleWhileRevalidate || this.revalidator.isRevalidating()) {
+            return false;
+        }
+        if (this.staleOnlyIfUnknown && !unknown) {
+            return false;
+        }
+        if (this.staleWindow >= 0 && System.currentTimeMillis() - staleSince > this.staleWindow) {
+            return false;
+        }
+        if (!this.revalidator.revalidate(this.cache, key, response, environment)) {
+            return false;
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Using stale response for '" + environment.getURI() +
+                              "' while it is regenerated, key: " + key);
+        }
+        this.staleResponse = true;
+        return true;
+    }
+
+    /**
+     * Replace the freshness headers of the response if a stale response is
+     * used. Must be called after the pipeline has set its headers and
+     * before the response is written.
+     */
+    protected void setStaleResponseHeaders(Environment environment) {
+        if (this.staleResponse) {
+            final long now = System.currentTimeMillis();
+            final Response res = ObjectModelHelper.getResponse(environment.getObjectModel());
+            res.setDateHeader("Expires", now);
+            res.setHeader("Cache-Control", "max-age=0, must-revalidate");
+            res.setHeader("Warning", "110 - \"Response is Stale\"");
+            environment.getObjectModel().put(ObjectModelHelper.EXPIRES_OBJECT, new Long(now));
+        }
     }
 
     /**
@@ -70,6 +181,7 @@ public abstract class BaseCachingProcessingPipeline extends AbstractProcessingPi
     public void recycle() {
         this.xmlDeserializer = null;
         this.xmlSerializer = null;
+        this.staleResponse = false;
 
         super.recycle();
     }
@@ -80,8 +192,10 @@ public abstract class BaseCachingProcessingPipeline extends AbstractProcessingPi
     public void dispose() {
         if (null != this.manager) {
             this.manager.release(this.cache);
+            this.manager.release(this.revalidator);
         }
         this.cache = null;
+        this.revalidator = null;
         this.manager = null;
     }
 }
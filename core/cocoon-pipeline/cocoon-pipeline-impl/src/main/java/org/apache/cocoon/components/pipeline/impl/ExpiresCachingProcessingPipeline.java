@@ -56,6 +56,9 @@ import javax.servlet.http.HttpServletResponse;
  * indefinite caching. In this case, you should use an external mechanism to invalidate the
  * cache entry.
  *
+ * With the stale-while-revalidate parameter, an expired response is still delivered while it
+ * is regenerated in the background (see {@link BaseCachingProcessingPipeline}).
+ *
  * @since 2.1
  * @version $Id$
  */
@@ -100,6 +103,7 @@ public class ExpiresCachingProcessingPipeline
                 byte[] content = cachedResponse.getResponse();
 
                 if ( this.serializer == this.lastConsumer ) {
+                    this.setStaleResponseHeaders(environment);
                     if ( cachedResponse.getContentType() != null ) {
                         environment.setContentType(cachedResponse.getContentType());
                     } else {
@@ -251,8 +255,15 @@ public class ExpiresCachingProcessingPipeline
             final SourceValidity sv = cachedResponse.getValidityObjects()[0];
             if ( purge
                  || (this.cacheExpires != -1 && sv.isValid() != SourceValidity.VALID) ) {
-                this.cache.remove( this.cacheKey );
-                this.cachedResponse = null;
+                // expiration is decided by time only, so an expired response
+                // always qualifies as unknown for the stale policy
+                if ( purge || this.cacheExpires <= 0
+                     || !useStaleResponse(environment, this.cacheKey, this.cachedResponse,
+                                          this.cachedResponse.getLastModified() + this.cacheExpires * 1000,
+                                          true) ) {
+                    this.cache.remove( this.cacheKey );
+                    this.cachedResponse = null;
+                }
             }
         }
         if ( this.cacheExpires > 0
@@ -300,6 +311,7 @@ public class ExpiresCachingProcessingPipeline
     throws ProcessingException {
         try {
             if (this.cachedResponse != null) {
+                this.setStaleResponseHeaders(environment);
                 if ( cachedResponse.getContentType() != null ) {
                     environment.setContentType(cachedResponse.getContentType());
                 } else {
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.sax;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * A byte buffer made of a chain of fixed size slabs. Growing the buffer
+ * never copies the bytes written so far, it just appends another slab.
+ * The slabs are taken from a small pool kept per thread, and are returned
+ * to the pool of the current thread by {@link #release()}. The pool is only
+ * softly referenced, so the garbage collector frees the pooled slabs of
+ * idle threads when memory runs low.
+ *
+ * <p>This class is not thread safe. A buffer must not be used after it
+ * has been released.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public final class SlabBuffer {
+
+    /** The size of a slab. */
+    public static final int SLAB_SIZE = 8192;
+
+    /** The maximum number of slabs pooled per thread. */
+    static final int MAX_POOLED = 8;
+
+    /** The slabs pooled per thread, as a soft reference to a {@link SlabPool}. */
+    private static final ThreadLocal POOL = new ThreadLocal();
+
+    /** The slabs of this buffer, only the first slabCount are used. */
+    private byte[][] slabs;
+
+    private int slabCount;
+
+    /** The slab currently written to. */
+    private byte[] current;
+
+    /** The number of valid bytes in the current slab. */
+    private int currentCount;
+
+    public SlabBuffer() {
+        this.slabs = new byte[4][];
+    }
+
+    public void write(int b) {
+        if (this.current == null || this.currentCount == SLAB_SIZE) {
+            nextSlab();
+        }
+        this.current[this.currentCount++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (this.current == null || this.currentCount == SLAB_SIZE) {
+                nextSlab();
+            }
+            final int n = Math.min(len, SLAB_SIZE - this.currentCount);
+            System.arraycopy(b, off, this.current, this.currentCount, n);
+            this.currentCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void nextSlab() {
+        if (this.slabCount == this.slabs.length) {
+            byte[][] newslabs = new byte[this.slabs.length << 1][];
+            System.arraycopy(this.slabs, 0, newslabs, 0, this.slabCount);
+            this.slabs = newslabs;
+        }
+        this.current = getPool().acquire();
+        this.currentCount = 0;
+        this.slabs[this.slabCount++] = this.current;
+    }
+
+    /**
+     * The number of bytes in this buffer.
+     */
+    public int getLength() {
+        return this.slabCount == 0 ? 0 : (this.slabCount - 1) * SLAB_SIZE + this.currentCount;
+    }
+
+    /**
+     * The number of slabs in use.
+     */
+    public int getSlabCount() {
+        return this.slabCount;
+    }
+
+    /**
+     * Returns the slab with the given index. The slab is not copied and
+     * must not be modified.
+     */
+    public byte[] getSlab(int index) {
+        if (index >= this.slabCount) {
+            throw new IndexOutOfBoundsException("Slab " + index + " of " + this.slabCount);
+        }
+        return this.slabs[index];
+    }
+
+    /**
+     * The number of valid bytes in the slab with the given index.
+     */
+    public int getSlabLength(int index) {
+        if (index >= this.slabCount) {
+            throw new IndexOutOfBoundsException("Slab " + index + " of " + this.slabCount);
+        }
+        return index == this.slabCount - 1 ? this.currentCount : SLAB_SIZE;
+    }
+
+    /**
+     * Returns a copy of the content as one byte array.
+     */
+    public byte[] toByteArray() {
+        final byte[] result = new byte[getLength()];
+        int pos = 0;
+        for (int i = 0; i < this.slabCount; i++) {
+            final int len = getSlabLength(i);
+            System.arraycopy(this.slabs[i], 0, result, pos, len);
+            pos += len;
+        }
+        return result;
+    }
+
+    /**
+     * Empties the buffer and returns its slabs to the pool of the current
+     * thread.
+     */
+    public void release() {
+        final SlabPool pool = getPool();
+        for (int i = 0; i < this.slabCount; i++) {
+            pool.release(this.slabs[i]);
+            this.slabs[i] = null;
+        }
+        this.slabCount = 0;
+        this.current = null;
+        this.currentCount = 0;
+    }
+
+    /**
+     * Drops the slabs pooled for the current thread.
+     */
+    public static void clearPool() {
+        POOL.set(null);
+    }
+
+    /**
+     * The number of slabs pooled for the current thread.
+     */
+    static int getPooledCount() {
+        final SoftReference ref = (SoftReference) POOL.get();
+        final SlabPool pool = ref == null ? null : (SlabPool) ref.get();
+        return pool == null ? 0 : pool.count;
+    }
+
+    private static SlabPool getPool() {
+        final SoftReference ref = (SoftReference) POOL.get();
+        SlabPool pool = ref == null ? null : (SlabPool) ref.get();
+        if (pool == null) {
+            pool = new SlabPool();
+            POOL.set(new SoftReference(pool));
+        }
+        return pool;
+    }
+
+    /**
+     * A bounded stack of free slabs.
+     */
+    private static final class SlabPool {
+        private final byte[][] free = new byte[MAX_POOLED][];
+        private int count;
+
+        byte[] acquire() {
+            if (this.count == 0) {
+                return new byte[SLAB_SIZE];
+            }
+            final byte[] slab = this.free[--this.count];
+            this.free[this.count] = null;
+            return slab;
+        }
+
+        void release(byte[] slab) {
+            if (this.count < MAX_POOLED) {
+                this.free[this.count++] = slab;
+            }
+        }
+    }
+}
@@ -22,59 +22,53 @@ package org.apache.cocoon.components.sax;
  * If you want to reuse this instance, make sure to call {@link #recycle()}
  * inbetween two compilation tasks.
  *
+ * <p>The compiled events are written to a {@link SlabBuffer}, so the buffer
+ * is never copied while it grows. {@link #getSAXFragment()} returns a byte
+ * array for compatibility, use {@link #getSlabBuffer()} to take over the
+ * buffer without copying it.</p>
+ *
  * @version $Id$
  */
 public final class XMLByteStreamCompiler extends AbstractXMLByteStreamCompiler {
 
     /** The buffer for the compile xml byte stream. */
-    private byte buf[];
-
-    /** The number of valid bytes in the buffer. */
-    private int bufCount;
-
-    private int bufCountAverage;
+    private SlabBuffer buf;
 
 
     public XMLByteStreamCompiler() {
         super();
-        this.bufCountAverage = 2000;
-        this.initOutput();
-    }
-
-    private void initOutput() {
-        this.buf = new byte[bufCountAverage];
-        this.bufCount = 0;
+        this.buf = new SlabBuffer();
     }
 
     public void recycle() {
-        bufCountAverage = (bufCountAverage + bufCount) / 2;
-        initOutput();
+        this.buf.release();
         super.recycle();
     }
 
-
     public Object getSAXFragment() {
-        if (this.bufCount == 0) { // no event arrived yet
+        if (this.buf.getLength() == 0) { // no event arrived yet
             return null;
         }
-        byte newbuf[] = new byte[this.bufCount];
-        System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-        return newbuf;
+        return this.buf.toByteArray();
     }
 
-    protected void write( final int b ) {
-        int newcount = this.bufCount + 1;
-        assure(newcount);
-        this.buf[this.bufCount] = (byte)b;
-        this.bufCount = newcount;
+    /**
+     * Hands out the compiled events without copying them. The caller takes
+     * over the buffer and should {@link SlabBuffer#release()} it when it is
+     * not needed any more, the compiler continues with an empty buffer.
+     *
+     * @return the buffer or <code>null</code> if no event arrived yet
+     */
+    public SlabBuffer getSlabBuffer() {
+        if (this.buf.getLength() == 0) {
+            return null;
+        }
+        final SlabBuffer result = this.buf;
+        this.buf = new SlabBuffer();
+        return result;
     }
 
-    private void assure( final int size ) {
-        if (size > this.buf.length) {
-            byte newbuf[] = new byte[Math.max(this.buf.length << 1, size)];
-            System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-            this.buf = newbuf;
-        }
+    protected void write( final int b ) {
+        this.buf.write(b);
     }
 }
-
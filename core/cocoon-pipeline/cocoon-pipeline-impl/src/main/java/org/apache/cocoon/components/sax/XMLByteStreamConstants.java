@@ -23,6 +23,21 @@ package org.apache.cocoon.components.sax;
   */
 public interface XMLByteStreamConstants {
 
+    /**
+     * The MIME type of a compiled SAX stream, used to negotiate this format
+     * instead of XML text between servlet services.
+     * @since 2.2
+     */
+    String MIME_TYPE = "application/x-cocoon-xml-bytestream";
+
+    /**
+     * The request attribute set to {@link Boolean#TRUE} on a call to a servlet
+     * service whose response is read as a compiled SAX stream. Unlike a
+     * header, a request attribute can't be set by a client.
+     * @since 2.2
+     */
+    String REQUEST_ATTRIBUTE = "org.apache.cocoon.components.sax.XMLByteStream";
+
     int START_DOCUMENT         = 0;
     int END_DOCUMENT           = 1;
     int START_PREFIX_MAPPING   = 2;
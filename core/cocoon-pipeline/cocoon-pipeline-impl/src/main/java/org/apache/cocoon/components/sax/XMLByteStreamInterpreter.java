@@ -23,37 +23,81 @@ import org.xml.sax.SAXException;
  * If you want to reuse this interpreter make sure to call first {@link #recycle()}
  * and then set the new consumer for the sax events.
  *
+ * <p>Besides byte arrays, the {@link SlabBuffer} of an
+ * {@link XMLByteStreamCompiler} is read directly, without copying it.</p>
+ *
  * @version $Id$
  */
 public final class XMLByteStreamInterpreter extends AbstractXMLByteStreamInterpreter {
 
+    /** The slabs of the input, a byte array is a single slab */
+    private byte[][] slabs;
+    private int[] slabLengths;
+    private int slabIndex;
+
     private byte[] input;
+    private int inputLength;
     private int currentPos;
 
     public void recycle() {
+        this.slabs = null;
+        this.slabLengths = null;
         this.input = null;
         super.recycle();
     }
 
     public void deserialize(Object saxFragment) throws SAXException {
-        if (!(saxFragment instanceof byte[])) {
-            throw new SAXException("XMLDeserializer needs byte array for deserialization.");
+        if (saxFragment instanceof byte[]) {
+            this.slabs = new byte[][] { (byte[]) saxFragment };
+            this.slabLengths = new int[] { ((byte[]) saxFragment).length };
+        } else if (saxFragment instanceof SlabBuffer) {
+            final SlabBuffer buffer = (SlabBuffer) saxFragment;
+            final int count = buffer.getSlabCount();
+            this.slabs = new byte[count][];
+            this.slabLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                this.slabs[i] = buffer.getSlab(i);
+                this.slabLengths[i] = buffer.getSlabLength(i);
+            }
+        } else {
+            throw new SAXException("XMLDeserializer needs byte array or slab buffer for deserialization.");
         }
-        this.input = (byte[])saxFragment;
-        this.currentPos = 0;
+        this.slabIndex = -1;
+        nextSlab();
         super.parse();
     }
 
+    private boolean nextSlab() {
+        if (this.slabIndex + 1 >= this.slabs.length) {
+            return false;
+        }
+        this.slabIndex++;
+        this.input = this.slabs[this.slabIndex];
+        this.inputLength = this.slabLengths[this.slabIndex];
+        this.currentPos = 0;
+        return true;
+    }
+
     protected int read() throws SAXException {
-        if (currentPos >= input.length)
-            return -1;
-        return input[currentPos++] & 0xff;
+        while (this.currentPos >= this.inputLength) {
+            if (!nextSlab()) {
+                return -1;
+            }
+        }
+        return this.input[this.currentPos++] & 0xff;
     }
 
     protected int read(byte[] b) throws SAXException {
-        final int bytesRead = (this.currentPos + b.length > this.input.length ? this.input.length - this.currentPos : b.length);
-        System.arraycopy(this.input, this.currentPos, b, 0, bytesRead);
-        this.currentPos += bytesRead;
+        int bytesRead = 0;
+        while (bytesRead < b.length) {
+            if (this.currentPos >= this.inputLength && !nextSlab()) {
+                break;
+            }
+            final int n = Math.min(b.length - bytesRead, this.inputLength - this.currentPos);
+            System.arraycopy(this.input, this.currentPos, b, bytesRead, n);
+            this.currentPos += n;
+            bytesRead += n;
+        }
         return bytesRead;
     }
 }
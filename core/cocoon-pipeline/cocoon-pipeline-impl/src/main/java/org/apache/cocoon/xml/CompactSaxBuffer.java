@@ -0,0 +1,509 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.xml;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avalon.excalibur.pool.Recyclable;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * A class that can record SAX events and replay them later, like
+ * {@link SaxBuffer}, but stores the events in a compact binary encoding
+ * instead of one object per event.
+ *
+ * <p>Element and attribute names, namespace URIs, prefixes and the other
+ * names of the events are kept once in a string table and referenced by
+ * their index. Text is stored inline. Numbers and characters are written
+ * as variable length integers, so ASCII text takes one byte per
+ * character.</p>
+ *
+ * <p>Use this class instead of {@link SaxBuffer} for larger documents which
+ * are kept for some time, e.g. the output of a pipeline which is held back
+ * until the pipeline completes. As with {@link SaxBuffer}, the
+ * setDocumentLocator event is not recorded.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class CompactSaxBuffer extends AbstractSAXFragment
+                              implements XMLConsumer, Recyclable, Serializable {
+
+    private static final int START_DOCUMENT         = 1;
+    private static final int END_DOCUMENT           = 2;
+    private static final int START_PREFIX_MAPPING   = 3;
+    private static final int END_PREFIX_MAPPING     = 4;
+    private static final int START_ELEMENT          = 5;
+    private static final int END_ELEMENT            = 6;
+    private static final int CHARACTERS             = 7;
+    private static final int IGNORABLE_WHITESPACE   = 8;
+    private static final int PROCESSING_INSTRUCTION = 9;
+    private static final int SKIPPED_ENTITY         = 10;
+    private static final int START_DTD              = 11;
+    private static final int END_DTD                = 12;
+    private static final int START_ENTITY           = 13;
+    private static final int END_ENTITY             = 14;
+    private static final int START_CDATA            = 15;
+    private static final int END_CDATA              = 16;
+    private static final int COMMENT                = 17;
+
+    /** The encoded events. */
+    private transient byte[] data;
+
+    /** The number of valid bytes in data. */
+    private transient int length;
+
+    /** The string table, index 0 stands for <code>null</code>. */
+    private List strings;
+
+    /** The index of each string in the string table, built lazily. */
+    private transient Map stringIndex;
+
+
+    /**
+     * Creates empty CompactSaxBuffer
+     */
+    public CompactSaxBuffer() {
+        this.data = new byte[256];
+        this.strings = new ArrayList();
+        this.strings.add(null);
+    }
+
+    //
+    // ContentHandler Interface
+    //
+
+    public void setDocumentLocator(Locator locator) {
+        // Don't record this event
+    }
+
+    public void startDocument() throws SAXException {
+        writeInt(START_DOCUMENT);
+    }
+
+    public void endDocument() throws SAXException {
+        writeInt(END_DOCUMENT);
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        writeInt(START_PREFIX_MAPPING);
+        writeName(prefix);
+        writeName(uri);
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        writeInt(END_PREFIX_MAPPING);
+        writeName(prefix);
+    }
+
+    public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
+        writeInt(START_ELEMENT);
+        writeName(namespaceURI);
+        writeName(localName);
+        writeName(qName);
+        final int count = atts.getLength();
+        writeInt(count);
+        for (int i = 0; i < count; i++) {
+            writeName(atts.getURI(i));
+            writeName(atts.getLocalName(i));
+            writeName(atts.getQName(i));
+            writeName(atts.getType(i));
+            writeText(atts.getValue(i));
+        }
+    }
+
+    public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+        writeInt(END_ELEMENT);
+        writeName(namespaceURI);
+        writeName(localName);
+        writeName(qName);
+    }
+
+    public void characters(char ch[], int start, int length) throws SAXException {
+        writeInt(CHARACTERS);
+        writeChars(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char ch[], int start, int length) throws SAXException {
+        writeInt(IGNORABLE_WHITESPACE);
+        writeChars(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        writeInt(PROCESSING_INSTRUCTION);
+        writeName(target);
+        writeText(data);
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        writeInt(SKIPPED_ENTITY);
+        writeName(name);
+    }
+
+    //
+    // LexicalHandler Interface
+    //
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        writeInt(START_DTD);
+        writeName(name);
+        writeName(publicId);
+        writeName(systemId);
+    }
+
+    public void endDTD() throws SAXException {
+        writeInt(END_DTD);
+    }
+
+    public void startEntity(String name) throws SAXException {
+        writeInt(START_ENTITY);
+        writeName(name);
+    }
+
+    public void endEntity(String name) throws SAXException {
+        writeInt(END_ENTITY);
+        writeName(name);
+    }
+
+    public void startCDATA() throws SAXException {
+        writeInt(START_CDATA);
+    }
+
+    public void endCDATA() throws SAXException {
+        writeInt(END_CDATA);
+    }
+
+    public void comment(char ch[], int start, int length) throws SAXException {
+        writeInt(COMMENT);
+        writeChars(ch, start, length);
+    }
+
+    //
+    // Public Methods
+    //
+
+    /**
+     * @return true if buffer is empty
+     */
+    public boolean isEmpty() {
+        return this.length == 0;
+    }
+
+    /**
+     * @return the number of bytes used by the encoded events, not counting
+     *         the string table
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Stream this buffer into the provided content handler.
+     * If contentHandler object implements LexicalHandler, it will get lexical
+     * events as well.
+     */
+    public void toSAX(ContentHandler contentHandler) throws SAXException {
+        final LexicalHandler lexicalHandler =
+                contentHandler instanceof LexicalHandler ? (LexicalHandler) contentHandler : null;
+        final Reader reader = new Reader();
+        final AttributesImpl atts = new AttributesImpl();
+
+        while (reader.pos < this.length) {
+            final int event = reader.readInt();
+            switch (event) {
+                case START_DOCUMENT:
+                    contentHandler.startDocument();
+                    break;
+                case END_DOCUMENT:
+                    contentHandler.endDocument();
+                    break;
+                case START_PREFIX_MAPPING:
+                    contentHandler.startPrefixMapping(reader.readName(), reader.readName());
+                    break;
+                case END_PREFIX_MAPPING:
+                    contentHandler.endPrefixMapping(reader.readName());
+                    break;
+                case START_ELEMENT:
+                    final String uri = reader.readName();
+                    final String localName = reader.readName();
+                    final String qName = reader.readName();
+                    atts.clear();
+                    final int count = reader.readInt();
+                    for (int i = 0; i < count; i++) {
+                        atts.addAttribute(reader.readName(), reader.readName(), reader.readName(),
+                                          reader.readName(), reader.readText());
+                    }
+                    contentHandler.startElement(uri, localName, qName, atts);
+                    break;
+                case END_ELEMENT:
+                    contentHandler.endElement(reader.readName(), reader.readName(), reader.readName());
+                    break;
+                case CHARACTERS:
+                    reader.readChars();
+                    contentHandler.characters(reader.chars, 0, reader.charCount);
+                    break;
+                case IGNORABLE_WHITESPACE:
+                    reader.readChars();
+                    contentHandler.ignorableWhitespace(reader.chars, 0, reader.charCount);
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    contentHandler.processingInstruction(reader.readName(), reader.readText());
+                    break;
+                case SKIPPED_ENTITY:
+                    contentHandler.skippedEntity(reader.readName());
+                    break;
+                case START_DTD:
+                    final String name = reader.readName();
+                    final String publicId = reader.readName();
+                    final String systemId = reader.readName();
+                    if (lexicalHandler != null) {
+                        lexicalHandler.startDTD(name, publicId, systemId);
+                    }
+                    break;
+                case END_DTD:
+                    if (lexicalHandler != null) {
+                        lexicalHandler.endDTD();
+                    }
+                    break;
+                case START_ENTITY:
+                    final String startEntity = reader.readName();
+                    if (lexicalHandler != null) {
+                        lexicalHandler.startEntity(startEntity);
+                    }
+                    break;
+                case END_ENTITY:
+                    final String endEntity = reader.readName();
+                    if (lexicalHandler != null) {
+                        lexicalHandler.endEntity(endEntity);
+                    }
+                    break;
+                case START_CDATA:
+                    if (lexicalHandler != null) {
+                        lexicalHandler.startCDATA();
+                    }
+                    break;
+                case END_CDATA:
+                    if (lexicalHandler != null) {
+                        lexicalHandler.endCDATA();
+                    }
+                    break;
+                case COMMENT:
+                    reader.readChars();
+                    if (lexicalHandler != null) {
+                        lexicalHandler.comment(reader.chars, 0, reader.charCount);
+                    }
+                    break;
+                default:
+                    throw new SAXException("Unknown event " + event + " at position " + reader.pos);
+            }
+        }
+    }
+
+    /**
+     * @return String value of the buffer
+     */
+    public String toString() {
+        final StringBuffer value = new StringBuffer();
+        try {
+            toSAX(new AbstractXMLPipe() {
+                public void characters(char[] ch, int start, int len) {
+                    value.append(ch, start, len);
+                }
+            });
+        } catch (SAXException e) {
+            // cannot happen, the pipe does not throw
+        }
+        return value.toString();
+    }
+
+    /**
+     * Clear this buffer
+     */
+    public void recycle() {
+        this.length = 0;
+        this.strings.clear();
+        this.strings.add(null);
+        this.stringIndex = null;
+    }
+
+    //
+    // Implementation Methods
+    //
+
+    private void ensureCapacity(int size) {
+        if (size > this.data.length) {
+            byte[] newdata = new byte[Math.max(this.data.length << 1, size)];
+            System.arraycopy(this.data, 0, newdata, 0, this.length);
+            this.data = newdata;
+        }
+    }
+
+    /**
+     * Writes a non negative integer using seven bits per byte.
+     */
+    private void writeInt(int value) {
+        ensureCapacity(this.length + 5);
+        while ((value & ~0x7F) != 0) {
+            this.data[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.data[this.length++] = (byte) value;
+    }
+
+    private void writeName(String name) {
+        if (name == null) {
+            writeInt(0);
+            return;
+        }
+        if (this.stringIndex == null) {
+            this.stringIndex = new HashMap();
+            for (int i = 1; i < this.strings.size(); i++) {
+                this.stringIndex.put(this.strings.get(i), new Integer(i));
+            }
+        }
+        Integer index = (Integer) this.stringIndex.get(name);
+        if (index == null) {
+            index = new Integer(this.strings.size());
+            this.strings.add(name);
+            this.stringIndex.put(name, index);
+        }
+        writeInt(index.intValue());
+    }
+
+    private void writeText(String text) {
+        if (text == null) {
+            writeInt(0);
+            return;
+        }
+        final int len = text.length();
+        writeInt(len + 1);
+        ensureCapacity(this.length + len);
+        for (int i = 0; i < len; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                this.data[this.length++] = (byte) c;
+            } else {
+                writeNonASCII(c, len - i - 1);
+            }
+        }
+    }
+
+    private void writeChars(char[] ch, int start, int len) {
+        writeInt(len);
+        ensureCapacity(this.length + len);
+        final int end = start + len;
+        for (int i = start; i < end; i++) {
+            final char c = ch[i];
+            if (c < 0x80) {
+                this.data[this.length++] = (byte) c;
+            } else {
+                writeNonASCII(c, end - i - 1);
+            }
+        }
+    }
+
+    /**
+     * Writes a character which takes more than one byte. The capacity
+     * reserved for the text assumes one byte per character, so reserve the
+     * up to three bytes of this character plus one byte for each of the
+     * remaining characters.
+     */
+    private void writeNonASCII(char c, int remaining) {
+        ensureCapacity(this.length + 3 + remaining);
+        int value = c;
+        while ((value & ~0x7F) != 0) {
+            this.data[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.data[this.length++] = (byte) value;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(this.length);
+        out.write(this.data, 0, this.length);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.length = in.readInt();
+        this.data = new byte[Math.max(this.length, 256)];
+        in.readFully(this.data, 0, this.length);
+    }
+
+    /**
+     * Decodes the events, one reader is used per {@link CompactSaxBuffer#toSAX(ContentHandler)}.
+     */
+    private final class Reader {
+        int pos;
+
+        /** Holds the characters of the last text event. */
+        char[] chars = new char[64];
+        int charCount;
+
+        int readInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[this.pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        String readName() {
+            return (String) strings.get(readInt());
+        }
+
+        String readText() {
+            final int len = readInt();
+            if (len == 0) {
+                return null;
+            }
+            readChars(len - 1);
+            return new String(this.chars, 0, this.charCount);
+        }
+
+        void readChars() {
+            readChars(readInt());
+        }
+
+        private void readChars(int len) {
+            if (len > this.chars.length) {
+                this.chars = new char[len];
+            }
+            for (int i = 0; i < len; i++) {
+                this.chars[i] = (char) readInt();
+            }
+            this.charCount = len;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PendingResponseTestCase extends TestCase {
+
+    public void testSharedWhileGenerating() throws Exception {
+        final PendingResponse response = new PendingResponse();
+        final byte[] data = new byte[10000];
+        new Random().nextBytes(data);
+
+        final ByteArrayOutputStream shared = new ByteArrayOutputStream();
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    response.writeTo(shared, 10000);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+
+        ByteArrayOutputStream generated = new ByteArrayOutputStream();
+        CachingOutputStream os = new CachingOutputStream(generated, response);
+        for (int i = 0; i < 10; i++) {
+            os.write(data, i * 1000, 1000);
+            Thread.sleep(5);
+        }
+        response.complete(null);
+        reader.join(10000);
+
+        assertNull("Reader failed", error[0]);
+        assertTrue("Shared content differs", Arrays.equals(data, shared.toByteArray()));
+        assertTrue("Cached content differs", Arrays.equals(data, os.getContent()));
+        assertTrue("Awaited content differs", Arrays.equals(data, response.await(0)));
+    }
+
+    public void testFailure() throws Exception {
+        PendingResponseRegistry registry = new PendingResponseRegistry();
+        PendingResponse response = new PendingResponse();
+        assertNull(registry.register("key", response));
+        assertSame(response, registry.register("key", new PendingResponse()));
+
+        new CachingOutputStream(new ByteArrayOutputStream(), response).write(1);
+        registry.unregister("key", response);
+        assertTrue(response.isFailed());
+        try {
+            response.writeTo(new ByteArrayOutputStream(), 0);
+            fail("Failed response must not be written");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(0, registry.getPendingCount());
+        assertEquals(1, registry.getGeneratedCount());
+        assertEquals(1, registry.getCoalescedCount());
+        assertEquals(1, registry.getFailedCount());
+    }
+
+    public void testTimeout() throws Exception {
+        PendingResponse response = new PendingResponse();
+        try {
+            response.await(50);
+            fail("Response without progress must time out");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
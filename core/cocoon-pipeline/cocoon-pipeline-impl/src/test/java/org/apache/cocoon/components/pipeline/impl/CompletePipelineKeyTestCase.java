@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.CacheableProcessingComponent;
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.generation.Generator;
+import org.apache.cocoon.serialization.Serializer;
+import org.apache.cocoon.transformation.Transformer;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+
+/**
+ * Test cases for the key and validity of the complete pipeline of the
+ * {@link AbstractCachingProcessingPipeline}.
+ *
+ * @version $Id$
+ */
+public class CompletePipelineKeyTestCase extends TestCase {
+
+    private TestPipeline pipeline;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.pipeline = new TestPipeline();
+        this.pipeline.setGeneratorComponent("file", newComponent(Generator.class, "page.xml"));
+        this.pipeline.addTransformerComponent("xslt", newComponent(Transformer.class, "page.xsl"));
+        this.pipeline.setSerializerComponent("html", newComponent(Serializer.class, "1"));
+    }
+
+    public void testKey() {
+        final String key = this.pipeline.getKeyForCompletePipeline();
+        assertNotNull(key);
+        assertEquals(key, this.pipeline.getKeyForCompletePipeline());
+        assertNotNull(this.pipeline.getValidityForCompletePipeline());
+
+        // the serializer is part of the key
+        this.pipeline.setSerializerComponent("html", newComponent(Serializer.class, "2"));
+        assertFalse(key.equals(this.pipeline.getKeyForCompletePipeline()));
+    }
+
+    /**
+     * The key and the validity do not depend on a cached complete response,
+     * which hides the key of the event pipeline.
+     */
+    public void testCachedResponse() {
+        final String key = this.pipeline.getKeyForCompletePipeline();
+        this.pipeline.cacheCompleteResponse = true;
+        this.pipeline.completeResponseIsCached = true;
+        this.pipeline.cachedResponse =
+            new CachedResponse(new SourceValidity[] { NOPValidity.SHARED_INSTANCE }, new byte[0]);
+
+        assertNull(this.pipeline.getKeyForEventPipeline());
+        assertEquals(key, this.pipeline.getKeyForCompletePipeline());
+        assertNotNull(this.pipeline.getValidityForCompletePipeline());
+    }
+
+    public void testNotCacheable() {
+        this.pipeline.addTransformerComponent("sql", newComponent(Transformer.class, null));
+        assertNull(this.pipeline.getKeyForCompletePipeline());
+        assertNull(this.pipeline.getValidityForCompletePipeline());
+    }
+
+    /**
+     * A pipeline whose components are set directly, without looking them up.
+     */
+    private static class TestPipeline extends CachingProcessingPipeline {
+
+        void setGeneratorComponent(String role, Object component) {
+            this.generatorRole = role;
+            this.generator = (Generator) component;
+        }
+
+        void addTransformerComponent(String role, Object component) {
+            this.transformerRoles.add(role);
+            this.transformers.add(component);
+        }
+
+        void setSerializerComponent(String role, Object component) {
+            this.serializerRole = role;
+            this.serializer = (Serializer) component;
+        }
+    }
+
+    /**
+     * Create a cacheable component with the key, or without a key and
+     * validity if the key is <code>null</code>.
+     */
+    private static Object newComponent(Class type, final String key) {
+        return Proxy.newProxyInstance(type.getClassLoader(),
+                new Class[] { type, CacheableProcessingComponent.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getKey".equals(method.getName())) {
+                            return key;
+                        }
+                        if ("getValidity".equals(method.getName())) {
+                            return key == null ? null : NOPValidity.SHARED_INSTANCE;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
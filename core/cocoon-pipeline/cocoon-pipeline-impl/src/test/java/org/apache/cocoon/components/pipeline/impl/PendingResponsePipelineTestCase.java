@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.caching.Cache;
+import org.apache.cocoon.caching.CacheableProcessingComponent;
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.caching.PendingResponseRegistry;
+import org.apache.cocoon.environment.AbstractEnvironment;
+import org.apache.cocoon.environment.SourceResolver;
+import org.apache.cocoon.reading.Reader;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * Test cases for the coalescing of concurrent requests for the same
+ * response in {@link AbstractCachingProcessingPipeline}.
+ *
+ * @version $Id$
+ */
+public class PendingResponsePipelineTestCase extends TestCase {
+
+    private MemoryCache cache;
+    private PendingResponseRegistry registry;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.cache = new MemoryCache();
+        this.registry = new PendingResponseRegistry();
+    }
+
+    protected void tearDown() throws Exception {
+        RequestContextHolder.resetRequestAttributes();
+        super.tearDown();
+    }
+
+    public void testSharedResponse() throws Exception {
+        final TestReader generating = new TestReader("text/css", "shared content");
+        generating.blocking = true;
+        final RequestThread first = new RequestThread(newPipeline(generating));
+        first.start();
+        generating.waitForStart();
+
+        final TestReader joining = new TestReader("text/plain", "other content");
+        final RequestThread second = new RequestThread(newPipeline(joining));
+        second.start();
+        waitForCoalesced(1);
+        generating.release();
+
+        first.join(10000);
+        second.join(10000);
+        assertNull(first.error);
+        assertNull(second.error);
+        assertEquals("shared content", first.environment.getContent());
+        assertEquals("shared content", second.environment.getContent());
+        assertEquals("text/css", second.environment.getContentType());
+        assertFalse("Joining reader must not generate", joining.generated);
+        assertEquals(0, this.registry.getFallbackCount());
+    }
+
+    public void testFailurePropagation() throws Exception {
+        final TestReader failing = new TestReader("text/plain", "partial");
+        failing.blocking = true;
+        failing.failure = new IOException("Generation failed");
+        final RequestThread first = new RequestThread(newPipeline(failing));
+        first.start();
+        failing.waitForStart();
+
+        final TestReader joining = new TestReader("text/plain", "generated by joiner");
+        final RequestThread second = new RequestThread(newPipeline(joining));
+        second.start();
+        waitForCoalesced(1);
+        failing.release();
+
+        first.join(10000);
+        second.join(10000);
+        assertTrue("Failure must reach the generating request",
+                   first.error instanceof ProcessingException);
+        assertNull("Joining request must fall back to generation", second.error);
+        assertTrue(joining.generated);
+        assertEquals("generated by joiner", second.environment.getContent());
+        assertEquals(1, this.registry.getFailedCount());
+        assertEquals(1, this.registry.getFallbackCount());
+    }
+
+    public void testTimeoutFallsBackToGeneration() throws Exception {
+        final TestReader slow = new TestReader("text/plain", "slow content");
+        slow.blocking = true;
+        final RequestThread first = new RequestThread(newPipeline(slow));
+        first.start();
+        slow.waitForStart();
+
+        final TestReader joining = new TestReader("text/plain", "fast content");
+        final TestPipeline pipeline = newPipeline(joining);
+        pipeline.pendingResponseTimeout = 50;
+        final RequestThread second = new RequestThread(pipeline);
+        second.start();
+        second.join(10000);
+        slow.release();
+        first.join(10000);
+
+        assertNull(second.error);
+        assertEquals("fast content", second.environment.getContent());
+        assertEquals("slow content", first.environment.getContent());
+        assertEquals(1, this.registry.getFallbackCount());
+    }
+
+    public void testNestedRequest() throws Exception {
+        final TestReader inner = new TestReader("text/plain", "inner");
+        final TestPipeline innerPipeline = newPipeline(inner);
+        final TestEnvironment innerEnvironment = new TestEnvironment();
+
+        final TestReader outer = new TestReader("text/plain", "outer") {
+            protected void generateContent() throws Exception {
+                // Includes the same resource while generating it (COCOON-1985)
+                innerPipeline.processReader(innerEnvironment);
+                innerEnvironment.commitResponse();
+            }
+        };
+        final TestPipeline outerPipeline = newPipeline(outer);
+        outerPipeline.pendingResponseTimeout = 0;
+        innerPipeline.pendingResponseTimeout = 0;
+
+        final RequestThread request = new RequestThread(outerPipeline);
+        request.start();
+        request.join(10000);
+        assertFalse("Nested request waits for itself", request.isAlive());
+        assertNull(request.error);
+        assertEquals("outer", request.environment.getContent());
+        assertEquals("inner", innerEnvironment.getContent());
+        assertEquals(0, this.registry.getCoalescedCount());
+    }
+
+    private TestPipeline newPipeline(TestReader reader) {
+        final TestPipeline pipeline = new TestPipeline();
+        pipeline.setUp(reader, this.cache, this.registry);
+        return pipeline;
+    }
+
+    private void waitForCoalesced(long count) throws InterruptedException {
+        for (int i = 0; i < 1000 && this.registry.getCoalescedCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, this.registry.getCoalescedCount());
+    }
+
+    private static RequestAttributes newRequestAttributes() {
+        return (RequestAttributes) Proxy.newProxyInstance(
+                RequestAttributes.class.getClassLoader(),
+                new Class[] { RequestAttributes.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("equals".equals(method.getName())) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        } else if ("hashCode".equals(method.getName())) {
+                            return new Integer(System.identityHashCode(proxy));
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Processes a pipeline as a request of its own.
+     */
+    private static class RequestThread extends Thread {
+        final TestPipeline pipeline;
+        final TestEnvironment environment = new TestEnvironment();
+        volatile Exception error;
+
+        RequestThread(TestPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        public void run() {
+            RequestContextHolder.setRequestAttributes(newRequestAttributes());
+            try {
+                this.pipeline.processReader(this.environment);
+                this.environment.commitResponse();
+            } catch (Exception e) {
+                this.error = e;
+            } finally {
+                RequestContextHolder.resetRequestAttributes();
+            }
+        }
+    }
+
+    private static class TestPipeline extends CachingProcessingPipeline {
+        void setUp(Reader reader, Cache cache, PendingResponseRegistry registry) {
+            this.reader = reader;
+            this.readerRole = "test";
+            this.readerParam = Parameters.EMPTY_PARAMETERS;
+            this.outputBufferSize = 1024;
+            this.cache = cache;
+            this.pendingResponses = registry;
+            this.pendingResponseTimeout = 10000;
+        }
+
+        protected boolean processReader(org.apache.cocoon.environment.Environment environment)
+        throws ProcessingException {
+            return super.processReader(environment);
+        }
+    }
+
+    private static class TestReader implements Reader, CacheableProcessingComponent {
+        private final String mimeType;
+        private final String content;
+        private final Object lock = new Object();
+        private boolean started;
+        private boolean released;
+        private OutputStream out;
+        boolean blocking;
+        IOException failure;
+        volatile boolean generated;
+
+        TestReader(String mimeType, String content) {
+            this.mimeType = mimeType;
+            this.content = content;
+        }
+
+        public void setup(SourceResolver resolver, Map objectModel, String src, Parameters par) {
+        }
+
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        public void generate() throws IOException, ProcessingException {
+            this.generated = true;
+            this.out.write(this.content.getBytes());
+            this.out.flush();
+            try {
+                generateContent();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ProcessingException(e);
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+
+        protected void generateContent() throws Exception {
+            synchronized (this.lock) {
+                this.started = true;
+                this.lock.notifyAll();
+                while (this.blocking && !this.released) {
+                    this.lock.wait();
+                }
+            }
+        }
+
+        void waitForStart() throws InterruptedException {
+            synchronized (this.lock) {
+                while (!this.started) {
+                    this.lock.wait(10000);
+                }
+            }
+        }
+
+        void release() {
+            synchronized (this.lock) {
+                this.released = true;
+                this.lock.notifyAll();
+            }
+        }
+
+        public long getLastModified() {
+            return 0;
+        }
+
+        public String getMimeType() {
+            return this.mimeType;
+        }
+
+        public boolean shouldSetContentLength() {
+            return false;
+        }
+
+        public Serializable getKey() {
+            return "resource";
+        }
+
+        public SourceValidity getValidity() {
+            return NOPValidity.SHARED_INSTANCE;
+        }
+    }
+
+    private static class TestEnvironment extends AbstractEnvironment {
+        private String contentType;
+
+        TestEnvironment() {
+            super("resource", null);
+            this.outputStream = new ByteArrayOutputStream();
+        }
+
+        String getContent() {
+            return this.outputStream.toString();
+        }
+
+        public void redirect(String url, boolean global, boolean permanent) {
+        }
+
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        public void setContentLength(int length) {
+        }
+
+        public boolean isExternal() {
+            return true;
+        }
+    }
+
+    private static class MemoryCache implements Cache {
+        private final Map responses = new HashMap();
+
+        public synchronized void store(Serializable key, CachedResponse response) {
+            this.responses.put(key, response);
+        }
+
+        public synchronized CachedResponse get(Serializable key) {
+            return (CachedResponse) this.responses.get(key);
+        }
+
+        public synchronized void remove(Serializable key) {
+            this.responses.remove(key);
+        }
+
+        public synchronized void clear() {
+            this.responses.clear();
+        }
+
+        public synchronized boolean containsKey(Serializable key) {
+            return this.responses.containsKey(key);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.Cache;
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.caching.ResponseRevalidator;
+import org.apache.cocoon.environment.AbstractEnvironment;
+import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Response;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.NOPValidity;
+
+/**
+ * Test cases for the stale-while-revalidate mode of the
+ * {@link BaseCachingProcessingPipeline}.
+ *
+ * @version $Id$
+ */
+public class StaleResponseTestCase extends TestCase {
+
+    private TestRevalidator revalidator;
+    private CachingProcessingPipeline pipeline;
+    private TestEnvironment environment;
+    private CachedResponse stale;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.revalidator = new TestRevalidator();
+        this.pipeline = new CachingProcessingPipeline();
+        this.pipeline.staleWhileRevalidate = true;
+        this.pipeline.staleWindow = 300000;
+        this.pipeline.revalidator = this.revalidator;
+        this.environment = new TestEnvironment();
+        this.stale = new CachedResponse(new SourceValidity[] { NOPValidity.SHARED_INSTANCE },
+                                        "stale".getBytes());
+    }
+
+    public void testStaleResponseHeaders() {
+        this.environment.headers.put("Cache-Control", "max-age=3600, public");
+        assertTrue(this.pipeline.useStaleResponse(this.environment, "key", this.stale,
+                                                  System.currentTimeMillis(), false));
+        assertEquals(1, this.revalidator.scheduled);
+
+        this.pipeline.setStaleResponseHeaders(this.environment);
+        assertEquals("max-age=0, must-revalidate", this.environment.headers.get("Cache-Control"));
+        assertEquals("110 - \"Response is Stale\"", this.environment.headers.get("Warning"));
+        assertNotNull(this.environment.headers.get("Expires"));
+    }
+
+    public void testFreshResponseHeadersUnchanged() {
+        this.pipeline.setStaleResponseHeaders(this.environment);
+        assertTrue(this.environment.headers.isEmpty());
+    }
+
+    public void testRefusedRevalidation() {
+        this.revalidator.accept = false;
+        assertFalse(this.pipeline.useStaleResponse(this.environment, "key", this.stale,
+                                                   System.currentTimeMillis(), false));
+        this.pipeline.setStaleResponseHeaders(this.environment);
+        assertTrue(this.environment.headers.isEmpty());
+    }
+
+    public void testStaleWindow() {
+        assertFalse(this.pipeline.useStaleResponse(this.environment, "key", this.stale,
+                                                   System.currentTimeMillis() - 400000, false));
+        assertEquals(0, this.revalidator.scheduled);
+    }
+
+    public void testStalePolicyUnknown() {
+        this.pipeline.staleOnlyIfUnknown = true;
+        assertFalse(this.pipeline.useStaleResponse(this.environment, "key", this.stale,
+                                                   System.currentTimeMillis(), false));
+        assertTrue(this.pipeline.useStaleResponse(this.environment, "key", this.stale,
+                                                  System.currentTimeMillis(), true));
+    }
+
+    public void testNotUsedWhileRevalidating() {
+        this.revalidator.revalidating = true;
+        assertFalse(this.pipeline.useStaleResponse(this.environment, "key", this.stale,
+                                                   System.currentTimeMillis(), false));
+    }
+
+    public void testRecycle() {
+        assertTrue(this.pipeline.useStaleResponse(this.environment, "key", this.stale,
+                                                  System.currentTimeMillis(), false));
+        this.pipeline.recycle();
+        this.pipeline.setStaleResponseHeaders(this.environment);
+        assertTrue(this.environment.headers.isEmpty());
+    }
+
+    private static class TestRevalidator implements ResponseRevalidator {
+        boolean accept = true;
+        boolean revalidating;
+        int scheduled;
+
+        public boolean revalidate(Cache cache, Serializable key, CachedResponse response,
+                                  Environment environment) {
+            if (this.accept) {
+                this.scheduled++;
+            }
+            return this.accept;
+        }
+
+        public boolean isRevalidating() {
+            return this.revalidating;
+        }
+    }
+
+    private static class TestEnvironment extends AbstractEnvironment {
+        final Map headers = new HashMap();
+
+        TestEnvironment() {
+            super("page", null);
+            final Response response = (Response) Proxy.newProxyInstance(
+                    Response.class.getClassLoader(),
+                    new Class[] { Response.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().startsWith("set")
+                                    && args != null && args.length == 2) {
+                                headers.put(args[0], String.valueOf(args[1]));
+                            }
+                            return null;
+                        }
+                    });
+            this.objectModel.put(ObjectModelHelper.RESPONSE_OBJECT, response);
+        }
+
+        public void redirect(String url, boolean global, boolean permanent) {
+        }
+
+        public void setContentType(String contentType) {
+        }
+
+        public String getContentType() {
+            return null;
+        }
+
+        public void setContentLength(int length) {
+        }
+
+        public boolean isExternal() {
+            return true;
+        }
+    }
+}
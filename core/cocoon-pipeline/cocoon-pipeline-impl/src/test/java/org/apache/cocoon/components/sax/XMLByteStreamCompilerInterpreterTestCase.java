@@ -77,6 +77,52 @@ public final class XMLByteStreamCompilerInterpreterTestCase extends AbstractXMLT
         }
     }
 
+    public void testSlabBuffer() throws Exception {
+        // reference
+        XMLByteStreamCompiler sa = new XMLByteStreamCompiler();
+        generateLargeSAX(sa);
+        byte[] aa = (byte[]) sa.getSAXFragment();
+
+        // hand out the slabs and read them directly
+        XMLByteStreamCompiler sb = new XMLByteStreamCompiler();
+        generateLargeSAX(sb);
+        SlabBuffer slabs = sb.getSlabBuffer();
+        assertTrue(slabs.getSlabCount() > 1);
+        assertNull(sb.getSAXFragment());
+
+        XMLByteStreamCompiler sc = new XMLByteStreamCompiler();
+        XMLByteStreamInterpreter xmli = new XMLByteStreamInterpreter();
+        xmli.setConsumer(sc);
+        xmli.deserialize(slabs);
+        slabs.release();
+
+        byte[] ac = (byte[]) sc.getSAXFragment();
+        assertEquals(aa.length, ac.length);
+        for (int i=0;i<aa.length;i++) {
+            assertEquals(aa[i],ac[i]);
+        }
+    }
+
+    public void testSlabPoolBounded() throws Exception {
+        SlabBuffer.clearPool();
+        SlabBuffer buffer = new SlabBuffer();
+        byte[] bytes = new byte[SlabBuffer.SLAB_SIZE];
+        for (int i = 0; i < SlabBuffer.MAX_POOLED * 2; i++) {
+            buffer.write(bytes, 0, bytes.length);
+        }
+        assertEquals(SlabBuffer.MAX_POOLED * 2, buffer.getSlabCount());
+        buffer.release();
+        assertEquals(SlabBuffer.MAX_POOLED, SlabBuffer.getPooledCount());
+
+        // the pooled slabs are reused
+        buffer.write(1);
+        assertEquals(SlabBuffer.MAX_POOLED - 1, SlabBuffer.getPooledCount());
+        buffer.release();
+
+        SlabBuffer.clearPool();
+        assertEquals(0, SlabBuffer.getPooledCount());
+    }
+
     public void testStressLoop() throws Exception {
         XMLByteStreamCompiler xmlc = new XMLByteStreamCompiler();
 
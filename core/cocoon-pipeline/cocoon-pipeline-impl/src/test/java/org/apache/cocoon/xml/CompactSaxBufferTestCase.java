@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.cocoon.xml.dom.DOMBuilder;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Testcase for CompactSaxBuffer
+ *
+ */
+public final class CompactSaxBufferTestCase extends AbstractXMLTestCase {
+    public CompactSaxBufferTestCase(String s) {
+        super(s);
+    }
+
+    public void testCompareDOM() throws Exception {
+        DOMBuilder in = new DOMBuilder();
+        generateLargeSAX(in);
+
+        CompactSaxBuffer sb = new CompactSaxBuffer();
+        generateLargeSAX(sb);
+
+        DOMBuilder out = new DOMBuilder();
+        sb.toSAX(out);
+
+        assertXMLEqual(in.getDocument(), out.getDocument());
+    }
+
+    public void testSerialization() throws Exception {
+        DOMBuilder in = new DOMBuilder();
+        generateSmallSAX(in);
+
+        CompactSaxBuffer sb = new CompactSaxBuffer();
+        generateSmallSAX(sb);
+        assertEquals("test", sb.toString());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(sb);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        CompactSaxBuffer copy = (CompactSaxBuffer) ois.readObject();
+
+        DOMBuilder out = new DOMBuilder();
+        copy.toSAX(out);
+        assertXMLEqual(in.getDocument(), out.getDocument());
+
+        sb.recycle();
+        assertTrue(sb.isEmpty());
+    }
+
+    /**
+     * Runs of non-ASCII characters take more than one byte per character,
+     * at any position of the text and for any length of the buffer.
+     */
+    public void testNonASCII() throws Exception {
+        final String[] chunks = { "\u00e9", "a\u00e9", "\u20acb", "\u00e9\u00e8\u00ea" };
+        for (int c = 0; c < chunks.length; c++) {
+            for (int n = 1; n < 600; n++) {
+                StringBuffer text = new StringBuffer();
+                while (text.length() < n) {
+                    text.append(chunks[c]);
+                }
+                text.setLength(n);
+                char[] ch = ("xx" + text + "yy").toCharArray();
+
+                CompactSaxBuffer sb = new CompactSaxBuffer();
+                AttributesImpl attributes = new AttributesImpl();
+                attributes.addAttribute("", "a", "a", "CDATA", text.toString());
+                sb.startDocument();
+                sb.startElement("", "root", "root", attributes);
+                sb.characters(ch, 2, n);
+                sb.endElement("", "root", "root");
+                sb.endDocument();
+
+                assertEquals(text.toString(), sb.toString());
+                SaxBuffer out = new SaxBuffer();
+                sb.toSAX(out);
+                assertEquals(text.toString(), out.toString());
+            }
+        }
+    }
+}
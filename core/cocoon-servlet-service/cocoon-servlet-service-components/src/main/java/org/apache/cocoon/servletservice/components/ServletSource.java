@@ -27,12 +27,15 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.cocoon.CascadingIOException;
+import org.apache.cocoon.components.sax.XMLByteStreamConstants;
+import org.apache.cocoon.core.xml.SAXParser;
 import org.apache.cocoon.servletservice.AbsoluteServletConnection;
 import org.apache.cocoon.servletservice.Absolutizable;
 import org.apache.cocoon.servletservice.CallStackHelper;
 import org.apache.cocoon.servletservice.NoCallingServletServiceRequestAvailableException;
 import org.apache.cocoon.servletservice.ServletConnection;
 import org.apache.cocoon.servletservice.postable.PostableSource;
+import org.apache.cocoon.servletservice.postable.XMLByteStreamHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.excalibur.source.Source;
@@ -41,15 +44,24 @@ import org.apache.excalibur.source.SourceNotFoundException;
 import org.apache.excalibur.source.SourceValidity;
 import org.apache.excalibur.source.impl.AbstractSource;
 import org.apache.excalibur.store.Store;
+import org.apache.excalibur.xml.sax.XMLizable;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 /**
  * Implementation of a {@link Source} that gets its content by invoking a servlet service.
  *
+ * <p>If the response is streamed with {@link #toSAX(ContentHandler)}, the service
+ * is asked for a compiled SAX stream, see {@link XMLByteStreamHelper}, which is
+ * replayed without parsing. {@link #getInputStream()} asks for the service's
+ * own output, but converts a compiled SAX stream to XML text if it gets one
+ * anyway.</p>
+ *
  * @version $Id$
  * @since 1.0.0
  */
 public class ServletSource extends AbstractSource
-                           implements PostableSource {
+                           implements PostableSource, XMLizable {
 
     private transient Log logger = LogFactory.getLog(getClass());
 
@@ -61,21 +73,53 @@ public class ServletSource extends AbstractSource
      */
     private Store store;
 
+    /** The parser for XML text responses, the JAXP parser is used if not set. */
+    private SAXParser saxParser;
+
     private String location;
 
     private ServletConnection servletConnection;
 
     private boolean connected;
 
+    /** Ask the service for a compiled SAX stream? */
+    private boolean xmlByteStream;
+
 
     public ServletSource(String location, Store store) throws IOException {
+        this(location, store, null);
+    }
+
+    public ServletSource(String location, Store store, SAXParser saxParser) throws IOException {
         this.store = store;
+        this.saxParser = saxParser;
         this.location = location;
         this.servletConnection = createServletConnection(location);
         this.setSystemId(this.servletConnection.getURI().toASCIIString());
     }
 
     public InputStream getInputStream() throws IOException, SourceException {
+        return XMLByteStreamHelper.toXML(getResponseBody());
+    }
+
+    /**
+     * @see org.apache.excalibur.xml.sax.XMLizable#toSAX(org.xml.sax.ContentHandler)
+     */
+    public void toSAX(ContentHandler handler) throws SAXException {
+        if (!this.connected) {
+            this.xmlByteStream = true;
+        }
+        try {
+            XMLByteStreamHelper.toSAX(getResponseBody(), getURI(), this.saxParser, handler);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Return the body of the response, either XML text or a compiled SAX stream.
+     */
+    private InputStream getResponseBody() throws IOException, SourceException {
         try {
             connect();
             
@@ -95,15 +139,28 @@ public class ServletSource extends AbstractSource
                 //
 
                 servletConnection = createServletConnection(location);
+                requestFormat();
                 servletConnection.connect();
+                XMLByteStreamHelper.setPostAccepted(getURI(),
+                        servletConnection.getHeaderField(XMLByteStreamHelper.ACCEPT_POST));
             }
 
-            return this.servletConnection.getInputStream();
+            return XMLByteStreamHelper.markable(this.servletConnection.getInputStream());
         } catch (ServletException e) {
             throw new CascadingIOException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Tell the service whether the response is read as a compiled SAX stream.
+     * The attribute is always set, so that it is not taken from a calling
+     * request which asked for the compiled format.
+     */
+    private void requestFormat() {
+        servletConnection.setRequestAttribute(XMLByteStreamConstants.REQUEST_ATTRIBUTE,
+                Boolean.valueOf(this.xmlByteStream));
+    }
+
     /**
      * Factory method that creates either a {@link ServletConnection}.
      *
@@ -191,11 +248,16 @@ public class ServletSource extends AbstractSource
     /**
      * The mime-type of the content described by this object. If the source is
      * not able to determine the mime-type by itself this can be null.
+     * A compiled SAX stream is reported as XML, as it is read as XML text.
      */
     public String getMimeType() {
         try {
             connect();
-            return servletConnection.getContentType();
+            final String mimeType = servletConnection.getContentType();
+            if (mimeType != null && mimeType.startsWith(XMLByteStreamConstants.MIME_TYPE)) {
+                return "text/xml; charset=UTF-8";
+            }
+            return mimeType;
         } catch (Exception e) {
             if (logger.isDebugEnabled())
                 logger.debug("Exception occured while making servlet request", e);
@@ -240,9 +302,14 @@ public class ServletSource extends AbstractSource
             servletConnection.setIfModifiedSince(lastModified);
         }
 
+        requestFormat();
         servletConnection.connect();
         connected = true;
 
+        // Remember if the service reads compiled request bodies
+        XMLByteStreamHelper.setPostAccepted(getURI(),
+                servletConnection.getHeaderField(XMLByteStreamHelper.ACCEPT_POST));
+
         // If header is present, Last-Modified value will be stored for further
         // use in conditional gets
         setStoredLastModified(servletConnection.getLastModified());
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.Map;
 
+import org.apache.cocoon.core.xml.SAXParser;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.excalibur.source.Source;
@@ -54,6 +55,11 @@ public final class ServletSourceFactory implements SourceFactory, URIAbsolutizer
      */
     private Store store;
 
+    /**
+     * Parser that will be used by {@link ServletSource} for XML responses.
+     */
+    private SAXParser saxParser;
+
     private Log getLogger() {
         return this.logger;
     }
@@ -66,12 +72,20 @@ public final class ServletSourceFactory implements SourceFactory, URIAbsolutizer
         this.store = store;
     }
 
+    public SAXParser getSaxParser() {
+        return saxParser;
+    }
+
+    public void setSaxParser(SAXParser saxParser) {
+        this.saxParser = saxParser;
+    }
+
     public Source getSource(String location, Map parameters) throws MalformedURLException, IOException {
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("Creating source object for " + location);
         }
 
-        return new ServletSource(location, store);
+        return new ServletSource(location, store, saxParser);
     }
 
     public void release(Source source) {
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.servletservice.postable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.cocoon.CascadingIOException;
+import org.apache.cocoon.components.sax.XMLByteStreamConstants;
+import org.apache.cocoon.components.sax.XMLInputStreamInterpreter;
+import org.apache.cocoon.core.xml.SAXParser;
+import org.apache.cocoon.xml.XMLConsumer;
+import org.apache.cocoon.xml.XMLUtils;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Helper for passing XML between servlet services as a compiled SAX stream
+ * (see {@link XMLByteStreamConstants}) instead of XML text.
+ *
+ * <p>A caller which streams the response to SAX asks for the compiled format
+ * with the request attribute {@link XMLByteStreamConstants#REQUEST_ATTRIBUTE},
+ * the called service may answer with either format. A header is not used, as
+ * a client could send it to get the compiled format from a pipeline. The formats are
+ * told apart by the prolog of the compiled stream, which can't start an XML
+ * document, so the <code>Content-Type</code> header is not required.</p>
+ *
+ * <p>A request body is posted in the compiled format only to services which
+ * have declared that they read it, by answering an earlier call with
+ * {@link XMLByteStreamConstants#MIME_TYPE} in the {@link #ACCEPT_POST}
+ * response header. Until then the body is posted as XML text.</p>
+ *
+ * @version $Id$
+ * @since 1.1.0
+ */
+public final class XMLByteStreamHelper {
+
+    /** The response header listing the formats a service reads from a request body. */
+    public static final String ACCEPT_POST = "Accept-Post";
+
+    /** The prolog of a compiled SAX stream. */
+    private static final byte[] PROLOG = { 'C', 'X', 'M', 'L', 1 };
+
+    /** The maximum number of services remembered to read compiled request bodies. */
+    private static final int MAX_POST_ACCEPTED = 1000;
+
+    /** The services which read compiled request bodies, keyed by their URI without query. */
+    private static final Map POST_ACCEPTED = new LinkedHashMap() {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_POST_ACCEPTED;
+        }
+    };
+
+    private XMLByteStreamHelper() {
+        // static methods only
+    }
+
+    /**
+     * Check if a header lists the compiled SAX format.
+     *
+     * @param header An {@link #ACCEPT_POST} header or <code>null</code>.
+     */
+    public static boolean accepts(String header) {
+        return header != null && header.indexOf(XMLByteStreamConstants.MIME_TYPE) != -1;
+    }
+
+    /**
+     * Remember whether a service reads compiled request bodies, as declared
+     * by the {@link #ACCEPT_POST} header of its last response.
+     *
+     * @param uri The URI of the service call.
+     * @param acceptPost The {@link #ACCEPT_POST} header or <code>null</code>.
+     */
+    public static void setPostAccepted(String uri, String acceptPost) {
+        final String key = getServiceKey(uri);
+        synchronized (POST_ACCEPTED) {
+            if (accepts(acceptPost)) {
+                POST_ACCEPTED.put(key, Boolean.TRUE);
+            } else {
+                POST_ACCEPTED.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Check if a service has declared that it reads compiled request bodies.
+     *
+     * @param uri The URI of the service call.
+     */
+    public static boolean isPostAccepted(String uri) {
+        final String key = getServiceKey(uri);
+        synchronized (POST_ACCEPTED) {
+            return POST_ACCEPTED.containsKey(key);
+        }
+    }
+
+    private static String getServiceKey(String uri) {
+        final int query = uri.indexOf('?');
+        return query == -1 ? uri : uri.substring(0, query);
+    }
+
+    /**
+     * Return a stream which supports {@link InputStream#mark(int)}.
+     */
+    public static InputStream markable(InputStream in) {
+        return in.markSupported() ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * Check if the stream starts with a compiled SAX stream, without consuming
+     * it. The stream has to support {@link InputStream#mark(int)}.
+     */
+    public static boolean isXMLByteStream(InputStream in) throws IOException {
+        in.mark(PROLOG.length);
+        try {
+            for (int i = 0; i < PROLOG.length; i++) {
+                if (in.read() != PROLOG[i]) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Stream the content of a compiled SAX stream or of an XML document to the
+     * handler.
+     *
+     * @param in The content, it has to support {@link InputStream#mark(int)}.
+     * @param systemId The system id of XML documents.
+     * @param parser The parser for XML documents, if <code>null</code> the
+     *               JAXP parser is used.
+     */
+    public static void toSAX(InputStream in, String systemId, SAXParser parser, ContentHandler handler)
+    throws SAXException, IOException {
+        if (isXMLByteStream(in)) {
+            final XMLInputStreamInterpreter interpreter = new XMLInputStreamInterpreter();
+            if (handler instanceof XMLConsumer) {
+                interpreter.setConsumer((XMLConsumer) handler);
+            } else {
+                interpreter.setContentHandler(handler);
+                if (handler instanceof LexicalHandler) {
+                    interpreter.setLexicalHandler((LexicalHandler) handler);
+                }
+            }
+            interpreter.deserialize(in);
+            return;
+        }
+
+        final InputSource source = new InputSource(in);
+        source.setSystemId(systemId);
+        if (parser != null) {
+            parser.parse(source, handler);
+            return;
+        }
+
+        try {
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            final XMLReader reader = factory.newSAXParser().getXMLReader();
+            reader.setContentHandler(handler);
+            if (handler instanceof LexicalHandler) {
+                reader.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+            }
+            reader.parse(source);
+        } catch (ParserConfigurationException e) {
+            throw new SAXException("Unable to create a parser.", e);
+        }
+    }
+
+    /**
+     * Return the content as XML text, converting a compiled SAX stream to
+     * UTF-8 encoded XML.
+     *
+     * @param in The content, it has to support {@link InputStream#mark(int)}.
+     */
+    public static InputStream toXML(InputStream in) throws IOException {
+        if (!isXMLByteStream(in)) {
+            return in;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final TransformerHandler handler =
+                ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+            final Properties format = XMLUtils.createPropertiesForXML(false);
+            format.setProperty(OutputKeys.ENCODING, "UTF-8");
+            handler.getTransformer().setOutputProperties(format);
+            handler.setResult(new StreamResult(out));
+            toSAX(in, null, null, handler);
+        } catch (TransformerException e) {
+            throw new CascadingIOException("Unable to serialize the compiled SAX stream.", e);
+        } catch (SAXException e) {
+            throw new CascadingIOException("Unable to serialize the compiled SAX stream.", e);
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+}
@@ -21,29 +21,45 @@ import java.io.InputStream;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.cocoon.core.xml.SAXParser;
+import org.apache.cocoon.servletservice.postable.XMLByteStreamHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.excalibur.source.SourceException;
 import org.apache.excalibur.source.impl.AbstractSource;
+import org.apache.excalibur.xml.sax.XMLizable;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 /**
  * The <code>ServletServiceConsumerSource</code> makes available the data that has been passed to a sitemap service.
  * In a sitemap the source should be referenced with <code>service-consumer:</code> syntax.<br>
  *
+ * The data is either XML text or a compiled SAX stream, see {@link XMLByteStreamHelper}. A compiled SAX stream
+ * is replayed by {@link #toSAX(ContentHandler)} and converted to XML text by {@link #getInputStream()}.<br>
+ *
  * FIXME: Provide a link to the documents discussing servlet (and sitemap) services.
  *
  * @version $Id$
  * @since 1.0.0
  */
-public class ServletServiceConsumerSource extends AbstractSource {
+public class ServletServiceConsumerSource extends AbstractSource
+                                          implements XMLizable {
 
 	private Log logger = LogFactory.getLog(getClass());
 
 	private InputStream requestBody;
 
+	private SAXParser saxParser;
+
 	public ServletServiceConsumerSource(HttpServletRequest request) {
+		this(request, null);
+	}
+
+	public ServletServiceConsumerSource(HttpServletRequest request, SAXParser saxParser) {
+		this.saxParser = saxParser;
 		try {
-			requestBody = request.getInputStream();
+			requestBody = XMLByteStreamHelper.markable(request.getInputStream());
 		} catch (Exception e) {
 			logger.error("Error during obtaining request's body (POST data)", e);
 		}
@@ -55,7 +71,16 @@ public class ServletServiceConsumerSource extends AbstractSource {
 
 	public InputStream getInputStream() throws IOException, SourceException {
 		if (!exists()) throw new SourceException("POST data does not exists for request. Make sure you are processing service call.");
-		return requestBody;
+		return XMLByteStreamHelper.toXML(requestBody);
+	}
+
+	public void toSAX(ContentHandler handler) throws SAXException {
+		if (!exists()) throw new SAXException("POST data does not exists for request. Make sure you are processing service call.");
+		try {
+			XMLByteStreamHelper.toSAX(requestBody, getURI(), saxParser, handler);
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
 	}
 
 }
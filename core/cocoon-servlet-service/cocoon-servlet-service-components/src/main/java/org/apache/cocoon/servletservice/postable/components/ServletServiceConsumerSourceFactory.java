@@ -21,14 +21,22 @@ import java.net.MalformedURLException;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.apache.cocoon.components.sax.XMLByteStreamConstants;
+import org.apache.cocoon.core.xml.SAXParser;
 import org.apache.cocoon.processing.ProcessInfoProvider;
+import org.apache.cocoon.servletservice.postable.XMLByteStreamHelper;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceFactory;
 
 /**
  * A factory for <code>service-consumer:</code> source.
  *
+ * <p>As the source reads compiled SAX streams, the response declares this in
+ * the {@link XMLByteStreamHelper#ACCEPT_POST} header, so the caller can post
+ * the compiled format on its next call.</p>
+ *
  * @see ServletServiceConsumerSource
  * @version $Id$
  * @since 1.0.0
@@ -37,13 +45,20 @@ public class ServletServiceConsumerSourceFactory implements SourceFactory {
 
     private ProcessInfoProvider processInfoProvider;
 
+    private SAXParser saxParser;
+
     public Source getSource(String location, Map parameters) throws IOException, MalformedURLException {
         HttpServletRequest request = processInfoProvider.getRequest();
         if (!"POST".equals(request.getMethod())) {
             throw new MalformedURLException("Cannot create consumer source for request that is not POST.");
         }
 
-        return new ServletServiceConsumerSource(request);
+        HttpServletResponse response = processInfoProvider.getResponse();
+        if (response != null && !response.isCommitted()) {
+            response.setHeader(XMLByteStreamHelper.ACCEPT_POST, XMLByteStreamConstants.MIME_TYPE);
+        }
+
+        return new ServletServiceConsumerSource(request, saxParser);
     }
 
     public void release(Source source) {
@@ -56,4 +71,12 @@ public class ServletServiceConsumerSourceFactory implements SourceFactory {
     public void setProcessInfoProvider(ProcessInfoProvider processInfoProvider) {
         this.processInfoProvider = processInfoProvider;
     }
+
+    public SAXParser getSaxParser() {
+        return saxParser;
+    }
+
+    public void setSaxParser(SAXParser saxParser) {
+        this.saxParser = saxParser;
+    }
 }
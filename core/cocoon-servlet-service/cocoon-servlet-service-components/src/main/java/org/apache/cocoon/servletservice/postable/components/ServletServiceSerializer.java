@@ -16,7 +16,9 @@
  */
 package org.apache.cocoon.servletservice.postable.components;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.Writer;
@@ -28,12 +30,14 @@ import org.apache.commons.io.IOUtils;
 import org.apache.excalibur.source.SourceException;
 
 import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.sax.XMLOutputStreamCompiler;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.environment.ObjectModelHelper;
 import org.apache.cocoon.environment.Response;
 import org.apache.cocoon.environment.SourceResolver;
 import org.apache.cocoon.serialization.AbstractSerializer;
 import org.apache.cocoon.servletservice.postable.PostableSource;
+import org.apache.cocoon.servletservice.postable.XMLByteStreamHelper;
 import org.apache.cocoon.sitemap.SitemapModelComponent;
 import org.apache.cocoon.xml.SaxBuffer;
 import org.apache.cocoon.xml.XMLUtils;
@@ -46,6 +50,11 @@ import org.xml.sax.SAXException;
  *
  * <p>Use <code>servlet:</code> source for that purpose.</p>
  *
+ * <p>If <code>binaryTransport</code> is turned on, the input data is posted as a compiled
+ * SAX stream to services which have declared that they read it, see
+ * {@link org.apache.cocoon.servletservice.postable.XMLByteStreamHelper}. Other services
+ * get XML text.</p>
+ *
  * <p>FIXME: Provide a link to the documents discussing servlet (and sitemap) services.</p>
  *
  * @cocoon.sitemap.component.documentation
@@ -66,6 +75,19 @@ public class ServletServiceSerializer extends AbstractSerializer
 
 	private SaxBuffer saxBuffer;
 
+	/** Post the input data as a compiled SAX stream, if the service reads it? (default is off) */
+	private boolean binaryTransport;
+
+	/** The stream receiving the compiled SAX stream. */
+	private OutputStream compiledOutput;
+
+    public boolean isBinaryTransport() {
+        return binaryTransport;
+    }
+
+    public void setBinaryTransport(boolean binaryTransport) {
+        this.binaryTransport = binaryTransport;
+    }
 
     public void setup(SourceResolver resolver, Map objectModel, String src, Parameters par)
     throws ProcessingException, SAXException, IOException {
@@ -88,8 +110,13 @@ public class ServletServiceSerializer extends AbstractSerializer
 			getLogger().debug("Source " + service + " resolved to " + servletSource.getURI());
 		}
 
-		saxBuffer = new SaxBuffer();
-		setConsumer(saxBuffer);
+		if (binaryTransport && XMLByteStreamHelper.isPostAccepted(servletSource.getURI())) {
+			compiledOutput = new BufferedOutputStream(servletSource.getOutputStream());
+			setConsumer(new XMLOutputStreamCompiler(compiledOutput));
+		} else {
+			saxBuffer = new SaxBuffer();
+			setConsumer(saxBuffer);
+		}
 
 		response = ObjectModelHelper.getResponse(objectModel);
 	}
@@ -97,6 +124,27 @@ public class ServletServiceSerializer extends AbstractSerializer
 	public void endDocument() throws SAXException {
 		super.endDocument();
 
+		if (compiledOutput != null) {
+			try {
+				compiledOutput.flush();
+			} catch (IOException e) {
+				throw new SAXException("Exception occured while writing to the output stream of source '" + servletSource.getURI() + "'", e);
+			}
+		} else {
+			postSerializedXML();
+		}
+
+        try {
+			//here real mime type is set, see Spring bean's configuration comment
+			response.setHeader("Content-Type", servletSource.getMimeType());
+
+			IOUtils.copy(servletSource.getInputStream(), super.output);
+		} catch (Exception e) {
+			throw new SAXException("Exception occured while copying response from the service to the output stream", e);
+		}
+	}
+
+	private void postSerializedXML() throws SAXException {
 		String serializedXML;
 		try {
 			serializedXML = XMLUtils.serialize(saxBuffer, XMLUtils.createPropertiesForXML(false));
@@ -114,14 +162,5 @@ public class ServletServiceSerializer extends AbstractSerializer
         } catch (IOException e) {
 			throw new SAXException("Exception occured while writing to the output stream of source '" + servletSource.getURI() + "'", e);
         }
-
-        try {
-			//here real mime type is set, see Spring bean's configuration comment
-			response.setHeader("Content-Type", servletSource.getMimeType());
-
-			IOUtils.copy(servletSource.getInputStream(), super.output);
-		} catch (Exception e) {
-			throw new SAXException("Exception occured while copying response from the service to the output stream", e);
-		}
 	}
 }
@@ -16,7 +16,9 @@
  */
 package org.apache.cocoon.servletservice.postable.components;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 
 import org.apache.avalon.framework.parameters.ParameterException;
@@ -24,9 +26,11 @@ import org.apache.commons.io.IOUtils;
 import org.apache.excalibur.source.SourceException;
 
 import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.sax.XMLOutputStreamCompiler;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.core.xml.SAXParser;
 import org.apache.cocoon.servletservice.postable.PostableSource;
+import org.apache.cocoon.servletservice.postable.XMLByteStreamHelper;
 import org.apache.cocoon.sitemap.DisposableSitemapComponent;
 import org.apache.cocoon.transformation.AbstractSAXTransformer;
 
@@ -36,6 +40,11 @@ import org.xml.sax.SAXException;
  * <p>The generator takes only <code>service</code> parameter that should contain the URL of the called service.<br>
  * Use <code>servlet:</code> source for that purpose.</p>
  *
+ * <p>If <code>binaryTransport</code> is turned on, the input data is posted as a compiled
+ * SAX stream to services which have declared that they read it, see
+ * {@link org.apache.cocoon.servletservice.postable.XMLByteStreamHelper}. Other services
+ * get XML text.</p>
+ *
  * <p>FIXME: Provide a link to the documents discussing servlet (and sitemap) services.</p>
  *
  * @cocoon.sitemap.component.documentation
@@ -54,6 +63,12 @@ public class ServletServiceTransformer extends AbstractSAXTransformer
 
 	private PostableSource servletSource;
 
+	/** Post the input data as a compiled SAX stream, if the service reads it? (default is off) */
+	private boolean binaryTransport;
+
+	/** The stream receiving the compiled SAX stream. */
+	private OutputStream compiledOutput;
+
 
     public SAXParser getSaxParser() {
         return saxParser;
@@ -63,6 +78,14 @@ public class ServletServiceTransformer extends AbstractSAXTransformer
         this.saxParser = saxParser;
     }
 
+    public boolean isBinaryTransport() {
+        return binaryTransport;
+    }
+
+    public void setBinaryTransport(boolean binaryTransport) {
+        this.binaryTransport = binaryTransport;
+    }
+
 
 	public void setupTransforming() throws IOException, ProcessingException, SAXException {
 		super.setupTransforming();
@@ -86,16 +109,28 @@ public class ServletServiceTransformer extends AbstractSAXTransformer
         	getLogger().debug("Source " + service + " resolved to " + servletSource.getURI());
         }
 
-		startSerializedXMLRecording(null);
+		if (binaryTransport && XMLByteStreamHelper.isPostAccepted(servletSource.getURI())) {
+			compiledOutput = new BufferedOutputStream(servletSource.getOutputStream());
+			addRecorder(new XMLOutputStreamCompiler(compiledOutput));
+			sendStartPrefixMapping();
+		} else {
+			startSerializedXMLRecording(null);
+		}
 	}
 
 	public void endDocument() throws SAXException {
 		super.endDocument();
 
         try {
-			String xml = endSerializedXMLRecording();
-			//FIXME: Not sure if UTF-8 should always be used, do we have defined this encoding somewhere in Cocoon?
-			IOUtils.copy(new StringReader(xml), servletSource.getOutputStream(), "UTF-8");
+			if (compiledOutput != null) {
+				sendEndPrefixMapping();
+				removeRecorder();
+				compiledOutput.flush();
+			} else {
+				String xml = endSerializedXMLRecording();
+				//FIXME: Not sure if UTF-8 should always be used, do we have defined this encoding somewhere in Cocoon?
+				IOUtils.copy(new StringReader(xml), servletSource.getOutputStream(), "UTF-8");
+			}
 			SourceUtil.parse(saxParser, servletSource, contentHandler);
 		} catch (Exception e) {
 			throw new SAXException("Exception occured while calling servlet service", e);
@@ -106,6 +141,8 @@ public class ServletServiceTransformer extends AbstractSAXTransformer
 		if (servletSource != null) {
 			resolver.release(servletSource);
         }
+        servletSource = null;
+        compiledOutput = null;
 
         super.dispose();
 	}
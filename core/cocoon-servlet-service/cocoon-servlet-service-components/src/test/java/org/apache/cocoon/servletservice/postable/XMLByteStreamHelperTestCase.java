@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.servletservice.postable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.components.sax.XMLByteStreamConstants;
+import org.apache.cocoon.components.sax.XMLOutputStreamCompiler;
+import org.apache.cocoon.xml.AttributesImpl;
+import org.apache.cocoon.xml.SaxBuffer;
+
+/**
+ * @version $Id$
+ */
+public class XMLByteStreamHelperTestCase extends TestCase {
+
+    private static final String XML = "<root xmlns=\"urn:test\" a=\"1\">text</root>";
+
+    private byte[] compile() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XMLOutputStreamCompiler compiler = new XMLOutputStreamCompiler(out);
+        final AttributesImpl attributes = new AttributesImpl();
+        attributes.addCDATAAttribute("a", "1");
+        compiler.startDocument();
+        compiler.startPrefixMapping("", "urn:test");
+        compiler.startElement("urn:test", "root", "root", attributes);
+        compiler.characters("text".toCharArray(), 0, 4);
+        compiler.endElement("urn:test", "root", "root");
+        compiler.endPrefixMapping("");
+        compiler.endDocument();
+        return out.toByteArray();
+    }
+
+    private InputStream stream(byte[] bytes) {
+        return XMLByteStreamHelper.markable(new ByteArrayInputStream(bytes));
+    }
+
+    public void testPostAccepted() {
+        final String uri = "servlet:test+:/transform";
+        assertFalse(XMLByteStreamHelper.isPostAccepted(uri));
+
+        XMLByteStreamHelper.setPostAccepted(uri + "?a=1", XMLByteStreamConstants.MIME_TYPE);
+        // the query is not part of the service
+        assertTrue(XMLByteStreamHelper.isPostAccepted(uri));
+        assertTrue(XMLByteStreamHelper.isPostAccepted(uri + "?b=2"));
+        assertFalse(XMLByteStreamHelper.isPostAccepted("servlet:test+:/other"));
+
+        // a service which stops declaring it gets XML text again
+        XMLByteStreamHelper.setPostAccepted(uri, "text/xml");
+        assertFalse(XMLByteStreamHelper.isPostAccepted(uri));
+        XMLByteStreamHelper.setPostAccepted(uri, XMLByteStreamConstants.MIME_TYPE);
+        XMLByteStreamHelper.setPostAccepted(uri, null);
+        assertFalse(XMLByteStreamHelper.isPostAccepted(uri));
+    }
+
+    public void testDetection() throws Exception {
+        final InputStream compiled = stream(compile());
+        assertTrue(XMLByteStreamHelper.isXMLByteStream(compiled));
+        // the stream is not consumed
+        assertEquals('C', compiled.read());
+
+        assertFalse(XMLByteStreamHelper.isXMLByteStream(stream(XML.getBytes("UTF-8"))));
+        assertFalse(XMLByteStreamHelper.isXMLByteStream(stream(new byte[0])));
+    }
+
+    public void testToSAX() throws Exception {
+        final SaxBuffer fromCompiled = new SaxBuffer();
+        XMLByteStreamHelper.toSAX(stream(compile()), null, null, fromCompiled);
+        final SaxBuffer fromText = new SaxBuffer();
+        XMLByteStreamHelper.toSAX(stream(XML.getBytes("UTF-8")), null, null, fromText);
+        assertEquals("text", fromCompiled.toString());
+        assertEquals("text", fromText.toString());
+    }
+
+    public void testToXML() throws Exception {
+        final InputStream xml = XMLByteStreamHelper.toXML(stream(compile()));
+        final SaxBuffer buffer = new SaxBuffer();
+        XMLByteStreamHelper.toSAX(stream(toBytes(xml)), null, null, buffer);
+        assertEquals("text", buffer.toString());
+
+        // XML text is passed on unchanged
+        final byte[] text = XML.getBytes("UTF-8");
+        assertEquals(XML, new String(toBytes(XMLByteStreamHelper.toXML(stream(text))), "UTF-8"));
+    }
+
+    private byte[] toBytes(InputStream in) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+}
@@ -53,7 +53,7 @@ public abstract class AbstractServletConnection implements ServletConnection {
     /** If already connected */
     protected boolean connected;
 
-    protected ByteArrayOutputStream requestBody;
+    protected BufferOutputStream requestBody;
 
     protected InputStream responseBody;
 
@@ -69,16 +69,16 @@ public abstract class AbstractServletConnection implements ServletConnection {
 
         if (this.requestBody != null) {
             this.request.setMethod("POST");
-            this.request.setInputStream(new ByteArrayInputStream(this.requestBody.toByteArray()));
+            this.request.setInputStream(this.requestBody.toInputStream());
         }
 
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BufferOutputStream os = new BufferOutputStream();
         this.response.setOutputStream(os);
 
         try {
             this.performConnect();
             this.response.flushBuffer();
-            this.responseBody = new ByteArrayInputStream(os.toByteArray());
+            this.responseBody = os.toInputStream();
         } finally {
             os.close();
         }
@@ -113,6 +113,26 @@ public abstract class AbstractServletConnection implements ServletConnection {
         this.request.setDateHeader("If-Modified-Since", ifmodifiedsince);
     }
 
+    public void setRequestProperty(String key, String value) {
+        if (this.connected) {
+            throw new IllegalStateException("Already connected");
+        }
+
+        this.request.setHeader(key, value);
+    }
+
+    public String getRequestProperty(String key) {
+        return this.request.getHeader(key);
+    }
+
+    public void setRequestAttribute(String name, Object value) {
+        if (this.connected) {
+            throw new IllegalStateException("Already connected");
+        }
+
+        this.request.setAttribute(name, value);
+    }
+
     public long getLastModified() {
         return this.getDateHeader("Last-Modified", 0);
     }
@@ -185,7 +205,7 @@ public abstract class AbstractServletConnection implements ServletConnection {
         }
 
         if (this.requestBody == null) {
-            this.requestBody = new ByteArrayOutputStream();
+            this.requestBody = new BufferOutputStream();
         }
         return this.requestBody;
 
@@ -195,6 +215,17 @@ public abstract class AbstractServletConnection implements ServletConnection {
         return this.uri;
     }
 
+    /**
+     * A <code>ByteArrayOutputStream</code> which is read without copying its
+     * buffer, the request and response bodies are only held once.
+     */
+    protected static class BufferOutputStream extends ByteArrayOutputStream {
+
+        public InputStream toInputStream() {
+            return new ByteArrayInputStream(this.buf, 0, this.count);
+        }
+    }
+
     /**
      * A special exception indicating that there is no servlet context available.
      */
@@ -56,6 +56,32 @@ public interface ServletConnection {
      */
     OutputStream getOutputStream();
 
+    /**
+     * Set a header of the request to the servlet service. Headers which are
+     * not set are taken from the calling request.
+     * 
+     * @param key The name of the header.
+     * @param value The value of the header.
+     */
+    void setRequestProperty(String key, String value);
+
+    /**
+     * Get a header of the request to the servlet service.
+     * 
+     * @param key The name of the header.
+     * @return The value of the header or <code>null</code>.
+     */
+    String getRequestProperty(String key);
+
+    /**
+     * Set an attribute of the request to the servlet service. Attributes which
+     * are not set are taken from the calling request.
+     * 
+     * @param name The name of the attribute.
+     * @param value The value of the attribute, not <code>null</code>.
+     */
+    void setRequestAttribute(String name, Object value);
+
     // ~~~~~~~~~~~~~~~~~~~~~~~~ connect method ~~~~~~~~~~~~~~~~~~
 
     /**
@@ -312,6 +312,14 @@ public class ServletServiceRequest implements HttpServletRequest {
             public int read() throws IOException {
                 return inputStream.read();
             }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return inputStream.read(b, off, len);
+            }
+
+            public int available() throws IOException {
+                return inputStream.available();
+            }
         };
     }
 
@@ -658,7 +666,8 @@ public class ServletServiceRequest implements HttpServletRequest {
     private class Headers extends Values {
 
         public Object getValueOfCaller(String name) {
-            return this.getRequest().parentRequest.getHeader(name);
+            final HttpServletRequest parentRequest = this.getRequest().parentRequest;
+            return parentRequest == null ? null : parentRequest.getHeader(name);
         }
 
         public Enumeration getValues(String name) {
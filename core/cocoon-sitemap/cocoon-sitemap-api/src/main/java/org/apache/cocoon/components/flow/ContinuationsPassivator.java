@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link ContinuationsDisposer} which is also able to write the
+ * continuation objects of its interpreter to a stream and to read them back.
+ * <p>
+ * The {@link ContinuationsManager} may use this to move continuations which
+ * have not been accessed for some time out of memory. Continuations are
+ * always passivated together with all other continuations of their tree, as
+ * the continuation objects of a tree usually share some of their state.
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public interface ContinuationsPassivator extends ContinuationsDisposer {
+
+    /**
+     * Write the continuation objects of the passed continuations to a stream.
+     *
+     * @param continuations the continuations to passivate, all created by
+     *        this passivator's interpreter
+     * @param out the stream to write to
+     * @return an object needed to read the continuation objects back, it is
+     *         kept in memory while the continuations are passivated, may be null
+     * @throws Exception if a continuation object can't be written, the
+     *         continuations are kept in memory then
+     */
+    Object passivateContinuations(WebContinuation[] continuations, OutputStream out)
+    throws Exception;
+
+    /**
+     * Read back the continuation objects written by
+     * {@link #passivateContinuations(WebContinuation[], OutputStream)}.
+     *
+     * @param continuations the passivated continuations
+     * @param in the stream to read from
+     * @param context the object returned when the continuations were passivated
+     * @return the continuation objects, in the order of the continuations
+     */
+    Object[] activateContinuations(WebContinuation[] continuations, InputStream in, Object context)
+    throws Exception;
+}
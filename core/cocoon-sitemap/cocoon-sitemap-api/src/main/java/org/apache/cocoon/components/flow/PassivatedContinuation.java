@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+/**
+ * The continuation object of a {@link WebContinuation} while it is
+ * passivated by the {@link ContinuationsManager}.
+ *
+ * @see ContinuationsPassivator
+ * @version $Id$
+ * @since 2.2
+ */
+public interface PassivatedContinuation {
+
+    /**
+     * Read back the continuation object of the passed continuation and of
+     * all continuations passivated together with it.
+     */
+    void activate(WebContinuation wk) throws Exception;
+
+    /**
+     * The passed continuation has been disposed and doesn't need its
+     * continuation object anymore.
+     */
+    void discard(WebContinuation wk);
+}
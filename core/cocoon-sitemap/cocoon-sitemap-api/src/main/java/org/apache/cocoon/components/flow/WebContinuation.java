@@ -20,10 +20,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.avalon.framework.CascadingRuntimeException;
 import org.apache.commons.collections.iterators.IteratorEnumeration;
 import org.apache.commons.lang.StringUtils;
 
@@ -49,6 +49,12 @@ public class WebContinuation implements Comparable, Cloneable {
      */
     protected Object continuation;
 
+    /**
+     * The continuation object while it is passivated, null while it is in
+     * memory.
+     */
+    protected volatile PassivatedContinuation passivated;
+
     /**
      * The parent <code>WebContinuation</code> from which processing
      * last started. If null, there is no parent continuation
@@ -65,8 +71,14 @@ public class WebContinuation implements Comparable, Cloneable {
      * The children continuations. These are continuations created by
      * resuming the processing from the point stored by
      * <code>continuation</code>.
+     *
+     * <p>The list is synchronized, as children are added by request threads
+     * and removed by the expiration task. Iterate over a copy taken with
+     * <code>toArray()</code>. The continuations manager also synchronizes on
+     * the list to check that a continuation has no children and to dispose
+     * it in one step.</p>
      */
-    protected List children = new ArrayList();
+    protected List children = Collections.synchronizedList(new ArrayList());
 
     /**
      * The continuation id used to represent this instance in Web pages.
@@ -91,7 +103,7 @@ public class WebContinuation implements Comparable, Cloneable {
      * continuation is accessed, this time is set to the time of the
      * access.
      */
-    protected long lastAccessTime;
+    protected volatile long lastAccessTime;
 
     /**
      * Indicates how long does this continuation will live (in
@@ -195,14 +207,56 @@ public class WebContinuation implements Comparable, Cloneable {
     }
 
     /**
-     * Return the continuation object.
+     * Return the continuation object. A passivated continuation object is
+     * read back first.
      *
      * @return an <code>Object</code> value
      */
     public Object getContinuation() {
+        final PassivatedContinuation passivated = this.passivated;
+        if (passivated != null) {
+            try {
+                passivated.activate(this);
+            } catch (Exception e) {
+                throw new CascadingRuntimeException("Unable to activate continuation " + this.id, e);
+            }
+        }
         return continuation;
     }
 
+    /**
+     * Replace the continuation object by its passivated form, unless this
+     * continuation was accessed since the given time.
+     *
+     * @return true if the continuation object has been replaced
+     */
+    synchronized boolean passivate(PassivatedContinuation passivated, long lastAccessTime) {
+        if (this.continuation == null || this.lastAccessTime != lastAccessTime) {
+            return false;
+        }
+        this.passivated = passivated;
+        this.continuation = null;
+        return true;
+    }
+
+    /**
+     * Set the continuation object read back from the passivated form.
+     */
+    synchronized void activated(Object continuation) {
+        if (this.passivated != null) {
+            this.continuation = continuation;
+            this.passivated = null;
+        }
+    }
+
+    /**
+     * Return true if the continuation object of this continuation is
+     * passivated.
+     */
+    public boolean isPassivated() {
+        return this.passivated != null;
+    }
+
     /**
      * Return the ancestor continuation situated <code>level</code>s
      * above the current continuation. The current instance is
@@ -381,14 +435,22 @@ public class WebContinuation implements Comparable, Cloneable {
             this.disposer.disposeContinuation(this);
         }
         // Remove continuation object - will also serve as "disposed" flag
-        this.continuation = null;
+        final PassivatedContinuation passivated;
+        synchronized (this) {
+            passivated = this.passivated;
+            this.passivated = null;
+            this.continuation = null;
+        }
+        if (passivated != null) {
+            passivated.discard(this);
+        }
     }
 
     /**
      * Return true if this continuation was disposed of
      */
     public boolean disposed() {
-        return this.continuation == null;
+        return this.continuation == null && this.passivated == null;
     }
     
     public boolean interpreterMatches( String interpreterId ) {
@@ -411,11 +473,17 @@ public class WebContinuation implements Comparable, Cloneable {
     public Object clone() {
         
         WebContinuation clone = new WebContinuation(id, continuation, null, timeToLive, interpreterId, disposer);
+        if (this.passivated != null) {
+            // the passivated form belongs to this continuation, the clone
+            // reads its continuation object through it
+            clone.passivated = new PassivatedOriginal(this);
+        }
         // reset last access time
         clone.lastAccessTime = this.lastAccessTime;
         // recreate hierarchy recursively
-        for (Iterator iter = this.children.iterator(); iter.hasNext();) {
-            WebContinuation child = (WebContinuation) iter.next();
+        final Object[] children = this.children.toArray();
+        for (int i = 0; i < children.length; i++) {
+            WebContinuation child = (WebContinuation) children[i];
             WebContinuation childClone = (WebContinuation) child.clone();
             // relationships must be fixed manually
             childClone.parentContinuation = clone;
@@ -464,14 +532,35 @@ public class WebContinuation implements Comparable, Cloneable {
         // REVISIT: is this needed for some reason?
         // System.out.print(spaces); System.out.println("WebContinuation " + id);
 
-        int size = children.size();
+        final Object[] children = this.children.toArray();
         depth++;
 
-        for (int i = 0; i < size; i++) {
-            tree.append(((WebContinuation) children.get(i)).display(depth));
+        for (int i = 0; i < children.length; i++) {
+            tree.append(((WebContinuation) children[i]).display(depth));
         }
 
         return tree.toString();
     }
 
+    /**
+     * The passivated form of a clone, which reads the continuation object
+     * through the original continuation. The original is activated with its
+     * whole tree, disposing of a clone does not discard anything.
+     */
+    private static class PassivatedOriginal implements PassivatedContinuation {
+
+        private final WebContinuation original;
+
+        PassivatedOriginal(WebContinuation original) {
+            this.original = original;
+        }
+
+        public void activate(WebContinuation wk) {
+            wk.activated(this.original.getContinuation());
+        }
+
+        public void discard(WebContinuation wk) {
+            // the original still holds the passivated form
+        }
+    }
 }
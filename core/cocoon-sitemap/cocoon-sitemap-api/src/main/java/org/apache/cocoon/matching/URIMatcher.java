@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.matching;
+
+/**
+ * A matcher which matches its pattern against the sitemap URI of the request,
+ * without a leading slash. The sitemap uses the literal prefix of the
+ * patterns of consecutive URI matchers to build an index, so that only the
+ * matchers whose prefix fits the URI are evaluated.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface URIMatcher extends Matcher {
+
+    /**
+     * Returns a prefix all URIs matched by the pattern start with. The prefix
+     * may be shorter than the literal part of the pattern, but it must never
+     * be longer.
+     *
+     * @param pattern The pattern, without any {..} substitution.
+     * @return the prefix, an empty string if nothing is known.
+     */
+    String getLiteralPrefix(String pattern);
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.sitemap;
+
+/**
+ * A content aggregator which can fetch its parts in parallel. Each part can
+ * have its own timeout and a fallback, which replaces the part if it fails
+ * or does not finish in time.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface ParallelContentAggregator extends ContentAggregator {
+
+    /**
+     * Add a part with a timeout and a fallback. The timeout only applies if
+     * the parts are aggregated in parallel. Please make sure that the
+     * parameters are not null!
+     *
+     * @param timeout the maximum time in milliseconds to wait for the part,
+     *                or an empty string for the default timeout
+     * @param fallback the URI of the content to use instead of the part if it
+     *                 fails or times out, or an empty string for none
+     */
+    public void addPart(String uri,
+                        String element,
+                        String namespace,
+                        String stripRootElement,
+                        String prefix,
+                        String timeout,
+                        String fallback);
+}
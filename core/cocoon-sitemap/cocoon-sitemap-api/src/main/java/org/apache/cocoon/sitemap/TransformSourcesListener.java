@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.sitemap;
+
+import java.util.Map;
+
+import org.apache.avalon.framework.service.ServiceManager;
+
+/**
+ * Listener notified when a sitemap has been built, with the sources of its
+ * <code>map:transform</code> statements. This allows to prepare these
+ * sources, for example to compile stylesheets, before the first request.
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public interface TransformSourcesListener extends SitemapListener {
+
+    /**
+     * @param manager The service manager of the sitemap.
+     * @param sources The sources without any expressions, as a <code>Set</code>
+     *                of source URIs for each transformer type.
+     */
+    void transformSourcesFound(ServiceManager manager, Map sources);
+}
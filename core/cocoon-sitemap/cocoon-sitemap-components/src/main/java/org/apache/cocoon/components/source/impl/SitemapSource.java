@@ -174,6 +174,8 @@ public final class SitemapSource extends AbstractLogEnabled
 
     /**
      * Return an <code>InputStream</code> object to read from the source.
+     * The pipeline is processed at once, XML consumers should use
+     * {@link #toSAX(ContentHandler)} which streams the events instead.
      */
     public InputStream getInputStream() throws IOException {
 
@@ -190,7 +192,7 @@ public final class SitemapSource extends AbstractLogEnabled
         }
 
         try {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            BufferOutputStream os = new BufferOutputStream();
             this.environment.setOutputStream(os);
             EnvironmentHelper.enterProcessor(this.pipelineDescription.processor,
                                              this.environment);
@@ -201,7 +203,7 @@ public final class SitemapSource extends AbstractLogEnabled
                 EnvironmentHelper.leaveProcessor();
             }
 
-            return new ByteArrayInputStream(os.toByteArray());
+            return os.toInputStream();
 
         } catch (ResourceNotFoundException e) {
             throw new SourceNotFoundException("Exception during processing of " + this.systemId, e);
@@ -424,6 +426,17 @@ public final class SitemapSource extends AbstractLogEnabled
         }
     }
 
+    /**
+     * A <code>ByteArrayOutputStream</code> which is read without copying its
+     * buffer.
+     */
+    private static final class BufferOutputStream extends ByteArrayOutputStream {
+
+        public InputStream toInputStream() {
+            return new ByteArrayInputStream(this.buf, 0, this.count);
+        }
+    }
+
     /**
      * A simple SourceValidity protecting callers from resets.
      */
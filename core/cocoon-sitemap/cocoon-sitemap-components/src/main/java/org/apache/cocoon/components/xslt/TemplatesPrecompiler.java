@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.cocoon.sitemap.TransformSourcesListener;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.transformation.TraxTransformer;
+import org.apache.cocoon.transformation.Transformer;
+import org.apache.cocoon.util.AbstractLogEnabled;
+import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceResolver;
+import org.apache.excalibur.xml.xslt.XSLTProcessor;
+
+/**
+ * Compiles the stylesheets used by the <code>map:transform</code> statements
+ * of a sitemap when it is loaded, if the {@link TemplatesCache} is configured
+ * to precompile. The stylesheets are compiled in the background by up to
+ * {@link TemplatesCache#getPrecompileThreads()} threads, the sitemap does
+ * not wait for them. Requests for a stylesheet being compiled wait for the
+ * compilation instead of compiling it again.
+ *
+ * <p>Only sources without expressions are compiled, and only for
+ * transformer types implemented by the {@link TraxTransformer}.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class TemplatesPrecompiler extends AbstractLogEnabled
+                                  implements TransformSourcesListener {
+
+    private TemplatesCache templatesCache;
+
+    private RunnableManager runnableManager;
+
+    public void setTemplatesCache(TemplatesCache templatesCache) {
+        this.templatesCache = templatesCache;
+    }
+
+    public void setRunnableManager(RunnableManager runnableManager) {
+        this.runnableManager = runnableManager;
+    }
+
+    /**
+     * @see org.apache.cocoon.sitemap.TransformSourcesListener#transformSourcesFound(org.apache.avalon.framework.service.ServiceManager, java.util.Map)
+     */
+    public void transformSourcesFound(ServiceManager manager, Map sources) {
+        if (!this.templatesCache.isPrecompile()) {
+            return;
+        }
+
+        // Resolve the sources now, relative URIs can't be resolved by the
+        // background threads
+        final LinkedList jobs = new LinkedList();
+        SourceResolver resolver = null;
+        try {
+            resolver = (SourceResolver) manager.lookup(SourceResolver.ROLE);
+            for (Iterator i = sources.entrySet().iterator(); i.hasNext();) {
+                final Map.Entry entry = (Map.Entry) i.next();
+                final String processorRole = getProcessorRole(manager, (String) entry.getKey());
+                if (processorRole == null) {
+                    continue;
+                }
+                for (Iterator j = ((Set) entry.getValue()).iterator(); j.hasNext();) {
+                    final String src = (String) j.next();
+                    Source source = null;
+                    try {
+                        source = resolver.resolveURI(src);
+                        jobs.add(new String[] { processorRole, source.getURI() });
+                    } catch (Exception e) {
+                        getLogger().info("Unable to resolve stylesheet " + src + " for precompilation.", e);
+                    } finally {
+                        resolver.release(source);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            getLogger().warn("Unable to prepare precompilation of stylesheets.", e);
+            return;
+        } finally {
+            manager.release(resolver);
+        }
+
+        if (jobs.isEmpty()) {
+            return;
+        }
+        if (getLogger().isInfoEnabled()) {
+            getLogger().info("Precompiling " + jobs.size() + " stylesheets.");
+        }
+        final int threads = Math.max(1, Math.min(this.templatesCache.getPrecompileThreads(), jobs.size()));
+        for (int i = 0; i < threads; i++) {
+            this.runnableManager.execute(new Compiler(manager, jobs));
+        }
+    }
+
+    /**
+     * Return the role of the XSLT processor used by the given transformer
+     * type, or <code>null</code> if it is not an XSLT transformer.
+     */
+    private String getProcessorRole(ServiceManager manager, String type) {
+        final String role = Transformer.ROLE + '/' + type;
+        Object transformer = null;
+        try {
+            transformer = manager.lookup(role);
+            if (transformer instanceof TraxTransformer) {
+                return ((TraxTransformer) transformer).getXSLTProcessorRole();
+            }
+        } catch (Exception e) {
+            getLogger().info("Unable to look up transformer " + role + ".", e);
+        } finally {
+            manager.release(transformer);
+        }
+        return null;
+    }
+
+    /**
+     * Compiles stylesheets until the list of jobs is empty.
+     */
+    private class Compiler implements Runnable {
+        private final ServiceManager manager;
+        private final LinkedList jobs;
+
+        public Compiler(ServiceManager manager, LinkedList jobs) {
+            this.manager = manager;
+            this.jobs = jobs;
+        }
+
+        public void run() {
+            String[] job;
+            while ((job = next()) != null) {
+                compile(job[0], job[1]);
+            }
+        }
+
+        private String[] next() {
+            synchronized (this.jobs) {
+                return this.jobs.isEmpty() ? null : (String[]) this.jobs.removeFirst();
+            }
+        }
+
+        private void compile(String processorRole, String uri) {
+            XSLTProcessor processor = null;
+            SourceResolver resolver = null;
+            Source source = null;
+            try {
+                processor = (XSLTProcessor) this.manager.lookup(processorRole);
+                resolver = (SourceResolver) this.manager.lookup(SourceResolver.ROLE);
+                source = resolver.resolveURI(uri);
+                processor.getTransformerHandlerAndValidity(source);
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Precompiled stylesheet " + uri);
+                }
+            } catch (Exception e) {
+                // The error is reported again by the first request
+                getLogger().info("Unable to precompile stylesheet " + uri + ".", e);
+            } finally {
+                if (resolver != null) {
+                    resolver.release(source);
+                }
+                this.manager.release(resolver);
+                this.manager.release(processor);
+            }
+        }
+    }
+}
@@ -29,7 +29,14 @@ import java.util.Map;
  *
  * @version $Id$
  */
-public class RegexpURIMatcher extends AbstractRegexpMatcher {
+public class RegexpURIMatcher extends AbstractRegexpMatcher
+                              implements URIMatcher {
+
+    /** Characters with a special meaning in a regular expression */
+    private static final String METACHARACTERS = "\\.[](){}*+?|^$";
+
+    /** Characters which repeat the preceding character */
+    private static final String QUANTIFIERS = "{*+?";
 
     /**
      * Return the request URI.
@@ -43,4 +50,26 @@ public class RegexpURIMatcher extends AbstractRegexpMatcher {
 
         return uri;
     }
+
+    /**
+     * Return the literal characters following a leading '^'. Patterns which
+     * are not anchored or contain alternatives have no prefix.
+     *
+     * @see org.apache.cocoon.matching.URIMatcher#getLiteralPrefix(java.lang.String)
+     */
+    public String getLiteralPrefix(String pattern) {
+        if (!pattern.startsWith("^") || pattern.indexOf('|') != -1) {
+            return "";
+        }
+
+        int i = 1;
+        while (i < pattern.length() && METACHARACTERS.indexOf(pattern.charAt(i)) == -1) {
+            i++;
+        }
+        // a quantifier applies to the last literal character
+        if (i < pattern.length() && QUANTIFIERS.indexOf(pattern.charAt(i)) != -1 && i > 1) {
+            i--;
+        }
+        return pattern.substring(1, i);
+    }
 }
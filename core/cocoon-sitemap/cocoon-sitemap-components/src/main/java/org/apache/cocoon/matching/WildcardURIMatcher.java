@@ -18,6 +18,7 @@ package org.apache.cocoon.matching;
 
 import org.apache.avalon.framework.parameters.Parameters;
 import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.util.WildcardMatcherHelper;
 
 import java.util.Map;
 
@@ -29,7 +30,8 @@ import java.util.Map;
  *
  * @version $Id$
  */
-public class WildcardURIMatcher extends AbstractWildcardMatcher {
+public class WildcardURIMatcher extends AbstractWildcardMatcher
+                                implements URIMatcher {
     
     /**
      * Return the request URI.
@@ -43,4 +45,19 @@ public class WildcardURIMatcher extends AbstractWildcardMatcher {
 
         return uri;
     }
+
+    /**
+     * Return the characters up to the first wildcard or escape character.
+     *
+     * @see org.apache.cocoon.matching.URIMatcher#getLiteralPrefix(java.lang.String)
+     */
+    public String getLiteralPrefix(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == WildcardMatcherHelper.STAR || c == WildcardMatcherHelper.ESC) {
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
 }
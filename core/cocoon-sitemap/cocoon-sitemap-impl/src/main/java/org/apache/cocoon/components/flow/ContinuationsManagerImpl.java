@@ -16,22 +16,27 @@
  */
 package org.apache.cocoon.components.flow;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 
+import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.configuration.Configurable;
 import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.context.Context;
@@ -43,15 +48,13 @@ import org.apache.avalon.framework.service.Serviceable;
 import org.apache.avalon.framework.thread.ThreadSafe;
 
 import org.apache.cocoon.components.ContextHelper;
+import org.apache.cocoon.configuration.Settings;
 import org.apache.cocoon.environment.ObjectModelHelper;
 import org.apache.cocoon.environment.Request;
 import org.apache.cocoon.thread.RunnableManager;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.util.Deprecation;
 
-import org.apache.commons.collections.Predicate;
-import org.apache.commons.collections.iterators.FilterIterator;
-
 
 /**
  * The default implementation of {@link ContinuationsManager}. <br/>There are
@@ -68,28 +71,58 @@ import org.apache.commons.collections.iterators.FilterIterator;
  * configuration option to true to activate this mode.</li>
  * </ul>
  *
+ * <p>All live continuations are kept in a concurrent map. Their expiration
+ * is tracked by a set of {@link ExpirationWheel}s, so creating and accessing
+ * a continuation does not need a global lock. The wheels are advanced by a
+ * background task every "expirations-check/period" milliseconds. Checking
+ * whether a continuation has expired or has children, and disposing it, is
+ * done while holding the lock of its list of children. So a continuation
+ * which is looked up or gets a new child is never disposed at the same
+ * time.</p>
+ *
+ * <p>In secure mode the number of continuations per session can be limited
+ * by the "max-continuations-per-session" configuration option. When the
+ * limit is exceeded, the least recently accessed continuations without
+ * children are invalidated.</p>
+ *
+ * <p>With "passivation/idle-time" set, continuations created with a
+ * {@link ContinuationsPassivator} are moved out of memory once no
+ * continuation of their tree has been accessed for that many milliseconds.
+ * The continuation objects of the tree are written to a
+ * {@link ContinuationsStore} in the "passivation/directory" (relative to the
+ * work directory) by the expiration task, and read back when one of them
+ * is accessed again.</p>
+ *
  * @since March 19, 2002
  * @see ContinuationsManager
  * @version $Id$
  */
 public class ContinuationsManagerImpl extends AbstractLogEnabled
                                       implements ContinuationsManager, Configurable, ThreadSafe,
-                                                 Serviceable, Contextualizable {
+                                                 Serviceable, Contextualizable, Disposable {
 
     private static final int CONTINUATION_ID_LENGTH = 20;
 
+    /** The number of expiration wheels, must be a power of two */
+    private static final int EXPIRATION_SHARDS = 16;
+
     /**
      * Random number generator used to create continuation ID
      */
     protected SecureRandom random;
-    protected final byte[] bytes = new byte[CONTINUATION_ID_LENGTH];
 
     /**
-     * Sorted set of <code>WebContinuation</code> instances, based on
-     * their expiration time. This is used by the background thread to
-     * invalidate continuations.
+     * All live <code>WebContinuation</code> instances.
+     */
+    protected final ConcurrentMap continuations = new ConcurrentHashMap();
+
+    /**
+     * The wheels tracking the expiration of the continuations. A
+     * continuation is scheduled in the wheel selected by its hash code,
+     * continuations with children are not scheduled as they expire
+     * together with their last child.
      */
-    protected final SortedSet expirations = Collections.synchronizedSortedSet(new TreeSet());
+    protected ExpirationWheel[] expirations;
 
     protected ServiceManager serviceManager;
     protected Context context;
@@ -100,6 +133,42 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
      */
     protected int defaultTimeToLive;
     protected boolean bindContinuationsToSession;
+    protected long expirationCheckInterval;
+
+    /**
+     * The maximum number of continuations per session, 0 for no limit.
+     */
+    protected int maxContinuationsPerSession;
+
+    protected final AtomicLong createdCount = new AtomicLong();
+    protected final AtomicLong expiredCount = new AtomicLong();
+    protected final AtomicLong invalidatedCount = new AtomicLong();
+    protected final AtomicLong evictedCount = new AtomicLong();
+
+    /**
+     * How long a tree of continuations has to be idle before it is
+     * passivated, in milliseconds, 0 to keep all continuations in memory.
+     */
+    protected long passivationIdleTime;
+
+    /**
+     * The store of the passivated continuations, null if passivation is off.
+     */
+    protected ContinuationsStore passivationStore;
+
+    /**
+     * The trees which could not be passivated, mapped to the last access
+     * time of the tree. They are not tried again until they are accessed.
+     * Only used by the expiration task.
+     */
+    private final Map passivationFailures = new WeakHashMap();
+
+    protected final AtomicLong passivatedCount = new AtomicLong();
+    protected final AtomicLong passivatedBytes = new AtomicLong();
+    protected final AtomicLong passivationFailedCount = new AtomicLong();
+    protected final AtomicLong activatedCount = new AtomicLong();
+    protected final AtomicLong activationTime = new AtomicLong();
+    protected volatile long maxActivationTime;
 
     /**
      * Main continuations holder. Used unless continuations are stored in user
@@ -128,6 +197,7 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
     public void configure(Configuration config) {
         this.defaultTimeToLive = config.getAttributeAsInteger("time-to-live", (3600 * 1000));
         this.bindContinuationsToSession = config.getAttributeAsBoolean( "session-bound-continuations", false );
+        this.maxContinuationsPerSession = config.getAttributeAsInteger("max-continuations-per-session", 0);
 
         // create a global ContinuationsHolder if this the "session-bound-continuations" parameter is set to false
         if (!this.bindContinuationsToSession) {
@@ -138,6 +208,34 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         final Configuration expireConf = config.getChild("expirations-check");
         final long initialDelay = expireConf.getChild("offset", true).getValueAsLong(180000);
         final long interval = expireConf.getChild("period", true).getValueAsLong(180000);
+        this.expirationCheckInterval = interval;
+
+        // one tick of the wheels per check, but not less than a second
+        final long now = System.currentTimeMillis();
+        this.expirations = new ExpirationWheel[EXPIRATION_SHARDS];
+        for (int i = 0; i < EXPIRATION_SHARDS; i++) {
+            this.expirations[i] = new ExpirationWheel(Math.max(interval, 1000), now);
+        }
+        final Configuration passivationConf = config.getChild("passivation");
+        this.passivationIdleTime = passivationConf.getAttributeAsLong("idle-time", 0);
+        if (this.passivationIdleTime > 0) {
+            Settings settings = null;
+            try {
+                settings = (Settings) serviceManager.lookup(Settings.ROLE);
+                final String directory = passivationConf.getAttribute("directory", "continuations");
+                File dir = new File(directory);
+                if (!dir.isAbsolute()) {
+                    dir = new File(settings.getWorkDirectory(), directory);
+                }
+                this.passivationStore = new ContinuationsStore(dir);
+            } catch (Exception e) {
+                getLogger().warn("Could not create the store for passivated continuations. " +
+                                 "Continuations will be kept in memory.", e);
+            } finally {
+                serviceManager.release(settings);
+            }
+        }
+
         try {
             final RunnableManager runnableManager = (RunnableManager)serviceManager.lookup(RunnableManager.ROLE);
             runnableManager.execute( new Runnable() {
@@ -153,6 +251,20 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         }
     }
 
+    /**
+     * @see org.apache.avalon.framework.activity.Disposable#dispose()
+     */
+    public void dispose() {
+        if (this.passivationStore != null) {
+            try {
+                this.passivationStore.close();
+            } catch (IOException e) {
+                getLogger().warn("Could not delete the passivated continuations.", e);
+            }
+            this.passivationStore = null;
+        }
+    }
+
     public WebContinuation createWebContinuation(Object kont,
                                                  WebContinuation parent,
                                                  int timeToLive,
@@ -161,12 +273,16 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         int ttl = timeToLive == 0 ? defaultTimeToLive : timeToLive;
 
         WebContinuation wk = generateContinuation(kont, parent, ttl, interpreterId, disposer);
+        this.continuations.put(wk, wk);
+        this.createdCount.incrementAndGet();
 
-        synchronized (this.expirations) {
-            if (parent != null) {
-                expirations.remove(parent);
-            }
-            expirations.add(wk);
+        if (parent != null) {
+            getExpirationWheel(parent).cancel(parent);
+        }
+        schedule(wk);
+
+        if (this.maxContinuationsPerSession > 0 && wk instanceof HolderAwareWebContinuation) {
+            evictContinuations(((HolderAwareWebContinuation) wk).getContinuationsHolder(), wk);
         }
 
         if (getLogger().isDebugEnabled()) {
@@ -176,6 +292,65 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         return wk;
     }
 
+    /**
+     * The expiration wheel for a continuation.
+     */
+    protected ExpirationWheel getExpirationWheel(WebContinuation wk) {
+        return this.expirations[wk.hashCode() & (EXPIRATION_SHARDS - 1)];
+    }
+
+    /**
+     * Schedule the expiration of a continuation, unless it is scheduled
+     * already.
+     */
+    protected void schedule(WebContinuation wk) {
+        getExpirationWheel(wk).schedule(wk, wk.getLastAccessTime() + wk.getTimeToLive());
+    }
+
+    /**
+     * Invalidate the least recently accessed continuations without children
+     * of a session until the session is within its limit again.
+     *
+     * @param continuationsHolder the continuations of the session
+     * @param wk the continuation just created, which is never evicted
+     */
+    protected void evictContinuations(WebContinuationsHolder continuationsHolder, WebContinuation wk) {
+        while (continuationsHolder.size() > this.maxContinuationsPerSession) {
+            WebContinuation victim = null;
+            for (Iterator i = continuationsHolder.holder.values().iterator(); i.hasNext();) {
+                final WebContinuation candidate = (WebContinuation) i.next();
+                if (candidate != wk && candidate.getChildren().size() == 0 &&
+                        (victim == null || candidate.getLastAccessTime() < victim.getLastAccessTime())) {
+                    victim = candidate;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+
+            // a child may have been attached in the meantime
+            if (disposeLeaf(continuationsHolder, victim, false)) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("WK: Evicted continuation " + victim.getId());
+                }
+                _detach(victim);
+                this.evictedCount.incrementAndGet();
+                scheduleParent(victim);
+            }
+        }
+    }
+
+    /**
+     * Schedule the parent of a removed continuation for expiration if it has
+     * no children left.
+     */
+    private void scheduleParent(WebContinuation wk) {
+        final WebContinuation parent = wk.getParentContinuation();
+        if (parent != null && parent.getChildren().size() == 0 && !parent.disposed()) {
+            schedule(parent);
+        }
+    }
+
     public WebContinuation lookupWebContinuation(String id, String interpreterId) {
         WebContinuationsHolder continuationsHolder = lookupWebContinuationsHolder(false);
         if (continuationsHolder == null) {
@@ -187,7 +362,15 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             return null;
         }
 
-        if (kont.hasExpired()) {
+        // The expiration task checks the expiration under the same lock
+        boolean expired;
+        synchronized (kont.getChildren()) {
+            expired = kont.hasExpired();
+            if (!expired) {
+                kont.updateLastAccessTime();
+            }
+        }
+        if (expired) {
             removeContinuation(continuationsHolder, kont);
             return null;
         }
@@ -200,13 +383,9 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             return null;
         }
 
-        // COCOON-2109: Sorting in the TreeSet happens on insert. So in order to re-sort the
-        //              continuation has to be re-added.
-        synchronized (this.expirations) {
-            this.expirations.remove(kont);
-            kont.updateLastAccessTime();
-            this.expirations.add(kont);
-        }
+        // The wheel checks the access time before expiring a continuation,
+        // so it only has to be scheduled again if it was not scheduled.
+        schedule(kont);
 
         return kont;
     }
@@ -229,6 +408,7 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
                                                    int ttl,
                                                    String interpreterId,
                                                    ContinuationsDisposer disposer) {
+        final byte[] bytes = new byte[CONTINUATION_ID_LENGTH];
         char[] result = new char[bytes.length * 2];
         WebContinuation wk;
         WebContinuationsHolder continuationsHolder = lookupWebContinuationsHolder(true);
@@ -242,19 +422,20 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             }
 
             final String id = new String(result);
-            synchronized (continuationsHolder.holder) {
-                if (!continuationsHolder.contains(id)) {
-                    if (this.bindContinuationsToSession) {
-                        wk = new HolderAwareWebContinuation(id, kont, parent,
-                                                            ttl, interpreterId, disposer,
-                                                            continuationsHolder);
-                    } else {
-                        wk = new WebContinuation(id, kont, parent, ttl,
-                                                 interpreterId, disposer);
-                    }
-                    continuationsHolder.addContinuation(wk);
+            if (!continuationsHolder.contains(id)) {
+                if (this.bindContinuationsToSession) {
+                    wk = new HolderAwareWebContinuation(id, kont, parent,
+                                                        ttl, interpreterId, disposer,
+                                                        continuationsHolder);
+                } else {
+                    wk = new WebContinuation(id, kont, parent, ttl,
+                                             interpreterId, disposer);
+                }
+                if (continuationsHolder.addContinuationIfAbsent(wk)) {
                     break;
                 }
+                // another thread created the same id in the meantime
+                _detach(wk);
             }
         }
 
@@ -268,22 +449,28 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             return;
         }
         _detach(wk);
-        _invalidate(continuationsHolder, wk);
+        this.invalidatedCount.addAndGet(_invalidate(continuationsHolder, wk));
+        scheduleParent(wk);
     }
 
-    private void _invalidate(WebContinuationsHolder continuationsHolder, WebContinuation wk) {
+    /**
+     * Invalidates a continuation and all its children.
+     *
+     * @return the number of continuations invalidated
+     */
+    private int _invalidate(WebContinuationsHolder continuationsHolder, WebContinuation wk) {
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("WK: Manual expire of continuation " + wk.getId());
         }
         disposeContinuation(continuationsHolder, wk);
-        expirations.remove(wk);
+        int count = 1;
 
         // Invalidate all the children continuations as well
-        List children = wk.getChildren();
-        int size = children.size();
-        for (int i = 0; i < size; i++) {
-            _invalidate(continuationsHolder, (WebContinuation) children.get(i));
+        final Object[] children = wk.getChildren().toArray();
+        for (int i = 0; i < children.length; i++) {
+            count += _invalidate(continuationsHolder, (WebContinuation) children[i]);
         }
+        return count;
     }
 
     /**
@@ -307,9 +494,31 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
      */
     protected void disposeContinuation(WebContinuationsHolder continuationsHolder, WebContinuation wk) {
         continuationsHolder.removeContinuation(wk);
+        this.continuations.remove(wk);
+        getExpirationWheel(wk).cancel(wk);
         wk.dispose();
     }
 
+    /**
+     * Dispose a continuation unless it has children, has been disposed
+     * already or, if <code>expiredOnly</code> is set, has not expired. The
+     * checks and the disposal are done while holding the lock of the list of
+     * children, so no child is attached and no lookup renews the
+     * continuation in between.
+     *
+     * @return true if the continuation has been disposed
+     */
+    private boolean disposeLeaf(WebContinuationsHolder continuationsHolder, WebContinuation wk,
+                                boolean expiredOnly) {
+        synchronized (wk.getChildren()) {
+            if (wk.getChildren().size() != 0 || wk.disposed() || (expiredOnly && !wk.hasExpired())) {
+                return false;
+            }
+            disposeContinuation(continuationsHolder, wk);
+            return true;
+        }
+    }
+
     /**
      * Removes an expired leaf <code>WebContinuation</code> node
      * from its continuation tree, and recursively removes its
@@ -319,13 +528,12 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
      * @param wk <code>WebContinuation</code> node
      */
     protected void removeContinuation(WebContinuationsHolder continuationsHolder, WebContinuation wk) {
-        if (wk.getChildren().size() != 0) {
+        // remove access to this continuation
+        if (!disposeLeaf(continuationsHolder, wk, true)) {
             return;
         }
-
-        // remove access to this continuation
-        disposeContinuation(continuationsHolder, wk);
         _detach(wk);
+        this.expiredCount.incrementAndGet();
 
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("WK: Deleted continuation: " + wk.getId());
@@ -336,6 +544,9 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         if (null != parent && parent.hasExpired()) {
             //parent must have the same continuations holder, lookup not needed
             removeContinuation(continuationsHolder, parent);
+        } else {
+            // otherwise it expires later, once it has no children left
+            scheduleParent(wk);
         }
     }
 
@@ -353,15 +564,20 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         }
 
         // Clean up expired continuations
-        int count = 0;
-        FilterIterator expirationIterator = new FilterIterator();
-        Predicate expirationPredicate = new ExpirationPredicate();
-        expirationIterator.setPredicate(expirationPredicate);
-        synchronized (this.expirations) {
-            expirationIterator.setIterator(this.expirations.iterator());
-            while (expirationIterator.hasNext()) {
-                WebContinuation wk = (WebContinuation) expirationIterator.next();
-                expirationIterator.remove();
+        final long expired = this.expiredCount.get();
+        final long time = System.currentTimeMillis();
+        for (int i = 0; i < this.expirations.length; i++) {
+            List due = this.expirations[i].advance(time);
+            for (Iterator iter = due.iterator(); iter.hasNext();) {
+                WebContinuation wk = (WebContinuation) iter.next();
+                if (wk.disposed() || !this.continuations.containsKey(wk)) {
+                    continue;
+                }
+                if (!wk.hasExpired()) {
+                    // accessed since it was scheduled
+                    schedule(wk);
+                    continue;
+                }
                 WebContinuationsHolder continuationsHolder;
                 if (wk instanceof HolderAwareWebContinuation) {
                     continuationsHolder = ((HolderAwareWebContinuation) wk).getContinuationsHolder();
@@ -369,14 +585,115 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
                     continuationsHolder = this.continuationsHolder;
                 }
                 removeContinuation(continuationsHolder, wk);
-                count++;
             }
         }
+        final long count = this.expiredCount.get() - expired;
 
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("WK Cleaned up " + count + " continuations in " +
                               (System.currentTimeMillis() - now) + " ms");
         }
+
+        if (this.passivationStore != null) {
+            passivateContinuations();
+        }
+    }
+
+    /**
+     * Passivate the trees of continuations which have not been accessed for
+     * the passivation idle time.
+     */
+    protected void passivateContinuations() {
+        final long idleSince = System.currentTimeMillis() - this.passivationIdleTime;
+        final Set roots = new HashSet();
+        for (Iterator i = this.continuations.keySet().iterator(); i.hasNext();) {
+            WebContinuation wk = (WebContinuation) i.next();
+            if (wk.getLastAccessTime() < idleSince && !wk.isPassivated()
+                    && wk.getDisposer() instanceof ContinuationsPassivator) {
+                while (wk.getParentContinuation() != null) {
+                    wk = wk.getParentContinuation();
+                }
+                roots.add(wk);
+            }
+        }
+
+        final long passivated = this.passivatedCount.get();
+        for (Iterator i = roots.iterator(); i.hasNext();) {
+            passivateTree((WebContinuation) i.next(), idleSince);
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("WK: Passivated " + (this.passivatedCount.get() - passivated) +
+                              " continuations of " + roots.size() + " idle trees");
+        }
+    }
+
+    /**
+     * Passivate a tree of continuations if none of them has been accessed
+     * since the given time. Nothing is passivated if a continuation is
+     * accessed while the tree is written.
+     */
+    protected void passivateTree(WebContinuation root, long idleSince) {
+        final List tree = new ArrayList();
+        collectTree(root, tree);
+        final WebContinuation[] continuations = (WebContinuation[]) tree.toArray(new WebContinuation[tree.size()]);
+        final ContinuationsDisposer disposer = root.getDisposer();
+        final long[] accessTimes = new long[continuations.length];
+        final Object[] objects = new Object[continuations.length];
+        long lastAccessTime = 0;
+        for (int i = 0; i < continuations.length; i++) {
+            final WebContinuation wk = continuations[i];
+            accessTimes[i] = wk.getLastAccessTime();
+            if (accessTimes[i] >= idleSince || wk.getDisposer() != disposer || wk.isPassivated()) {
+                return;
+            }
+            objects[i] = wk.getContinuation();
+            if (objects[i] == null) {
+                // disposed
+                return;
+            }
+            lastAccessTime = Math.max(lastAccessTime, accessTimes[i]);
+        }
+        final Long failed = (Long) this.passivationFailures.get(root);
+        if (failed != null && failed.longValue() == lastAccessTime) {
+            return;
+        }
+
+        final ContinuationsPassivator passivator = (ContinuationsPassivator) disposer;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Object context;
+        final ContinuationsStore.Record record;
+        try {
+            context = passivator.passivateContinuations(continuations, out);
+            record = this.passivationStore.write(out.toByteArray(), out.size());
+        } catch (Exception e) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("WK: Unable to passivate the continuations of " + root.getId(), e);
+            }
+            this.passivationFailures.put(root, new Long(lastAccessTime));
+            this.passivationFailedCount.incrementAndGet();
+            return;
+        }
+        this.passivationFailures.remove(root);
+
+        final PassivatedTree passivated = new PassivatedTree(continuations, passivator, context, record);
+        for (int i = 0; i < continuations.length; i++) {
+            if (!continuations[i].passivate(passivated, accessTimes[i])) {
+                // accessed in the meantime, keep the tree in memory
+                passivated.restore(objects, i);
+                return;
+            }
+        }
+        this.passivatedCount.addAndGet(continuations.length);
+        this.passivatedBytes.addAndGet(record.getLength());
+    }
+
+    private void collectTree(WebContinuation wk, List tree) {
+        tree.add(wk);
+        final Object[] children = wk.getChildren().toArray();
+        for (int i = 0; i < children.length; i++) {
+            collectTree((WebContinuation) children[i], tree);
+        }
     }
 
     /**
@@ -387,14 +704,14 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
     protected void invalidateContinuations(WebContinuationsHolder continuationsHolder) {
         // It's not possible to just iterate over continuationsHolder.holder since _invalidate(..)
         // calls remove(..) on the map leading to ConcurrentModification at the end.
-        WebContinuation[] continuations;
-        synchronized (continuationsHolder.holder) {
-            continuations = new WebContinuation[continuationsHolder.holder.size()];
-            continuations = (WebContinuation[]) continuationsHolder.holder.values().toArray(continuations);
-        }
+        WebContinuation[] continuations =
+                (WebContinuation[]) continuationsHolder.holder.values().toArray(new WebContinuation[0]);
         for (int i = 0; i < continuations.length; i++) {
-            _detach(continuations[i]);
-            _invalidate(continuationsHolder, continuations[i]);
+            // may have been invalidated together with its parent already
+            if (!continuations[i].disposed()) {
+                _detach(continuations[i]);
+                this.invalidatedCount.addAndGet(_invalidate(continuationsHolder, continuations[i]));
+            }
         }
     }
 
@@ -433,15 +750,13 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
 
     public Set getForest() {
         Set rootWebContinuations = new HashSet();
-        // identify the root continuations, once done no more need to lock
-        synchronized (this.expirations) {
-            for (Iterator iter = this.expirations.iterator(); iter.hasNext();) {
-                WebContinuation webContinuation = (WebContinuation) iter.next();
-                while (webContinuation.getParentContinuation() != null) {
-                    webContinuation = webContinuation.getParentContinuation();
-                }
-                rootWebContinuations.add(webContinuation);
+        // identify the root continuations
+        for (Iterator iter = this.continuations.keySet().iterator(); iter.hasNext();) {
+            WebContinuation webContinuation = (WebContinuation) iter.next();
+            while (webContinuation.getParentContinuation() != null) {
+                webContinuation = webContinuation.getParentContinuation();
             }
+            rootWebContinuations.add(webContinuation);
         }
 
         Set clonedRootWebContinuations = new HashSet();
@@ -470,28 +785,168 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
     }
 
     /**
-     * Dump to Log file the current contents of
-     * the expirations <code>SortedSet</code>
+     * Dump to Log file the expiration times of all
+     * live <code>WebContinuation</code>s
      */
     protected void displayExpireSet() {
         StringBuffer wkSet = new StringBuffer("\nWK; Expire set size: ");
 
-        synchronized (this.expirations) {
-            wkSet.append(this.expirations.size());
-            for (Iterator i = this.expirations.iterator(); i.hasNext();) {
-                final WebContinuation wk = (WebContinuation) i.next();
-                wkSet.append("\nWK: ").append(wk.getId()).append(" ExpireTime [");
-                if (wk.hasExpired()) {
-                    wkSet.append("Expired");
-                } else {
-                    wkSet.append(wk.getLastAccessTime() + wk.getTimeToLive());
-                }
-                wkSet.append("]");
+        wkSet.append(getScheduledContinuations());
+        for (Iterator i = this.continuations.keySet().iterator(); i.hasNext();) {
+            final WebContinuation wk = (WebContinuation) i.next();
+            wkSet.append("\nWK: ").append(wk.getId()).append(" ExpireTime [");
+            if (wk.hasExpired()) {
+                wkSet.append("Expired");
+            } else {
+                wkSet.append(wk.getLastAccessTime() + wk.getTimeToLive());
             }
+            wkSet.append("]");
         }
         getLogger().debug(wkSet.toString());
     }
 
+    public int getDefaultTimeToLive() {
+        return this.defaultTimeToLive;
+    }
+
+    public boolean isBindContinuationsToSession() {
+        return this.bindContinuationsToSession;
+    }
+
+    public long getExpirationCheckInterval() {
+        return this.expirationCheckInterval;
+    }
+
+    public int getMaxContinuationsPerSession() {
+        return this.maxContinuationsPerSession;
+    }
+
+    /**
+     * The number of live continuations.
+     */
+    public int getLiveContinuations() {
+        return this.continuations.size();
+    }
+
+    /**
+     * The number of continuations scheduled for expiration.
+     */
+    public int getScheduledContinuations() {
+        int count = 0;
+        for (int i = 0; i < this.expirations.length; i++) {
+            count += this.expirations[i].size();
+        }
+        return count;
+    }
+
+    /**
+     * The number of continuations created since startup.
+     */
+    public long getCreatedContinuations() {
+        return this.createdCount.get();
+    }
+
+    /**
+     * The number of continuations removed after they expired.
+     */
+    public long getExpiredContinuations() {
+        return this.expiredCount.get();
+    }
+
+    /**
+     * The number of continuations invalidated explicitly or by the end of
+     * their session.
+     */
+    public long getInvalidatedContinuations() {
+        return this.invalidatedCount.get();
+    }
+
+    /**
+     * The number of continuations invalidated because their session
+     * exceeded the maximum number of continuations.
+     */
+    public long getEvictedContinuations() {
+        return this.evictedCount.get();
+    }
+
+    public long getPassivationIdleTime() {
+        return this.passivationIdleTime;
+    }
+
+    /**
+     * The number of continuations currently passivated.
+     */
+    public int getPassivatedContinuations() {
+        int count = 0;
+        for (Iterator i = this.continuations.keySet().iterator(); i.hasNext();) {
+            if (((WebContinuation) i.next()).isPassivated()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The number of continuations passivated since startup.
+     */
+    public long getPassivationCount() {
+        return this.passivatedCount.get();
+    }
+
+    /**
+     * The number of bytes written for passivated continuations since startup.
+     */
+    public long getPassivatedBytes() {
+        return this.passivatedBytes.get();
+    }
+
+    /**
+     * The number of bytes of the passivated continuations currently stored.
+     */
+    public long getStoredBytes() {
+        final ContinuationsStore store = this.passivationStore;
+        return store == null ? 0 : store.getLiveBytes();
+    }
+
+    /**
+     * The size of the file of the store of passivated continuations.
+     */
+    public long getStoreLength() {
+        final ContinuationsStore store = this.passivationStore;
+        return store == null ? 0 : store.getLength();
+    }
+
+    /**
+     * The number of trees of continuations which could not be passivated.
+     */
+    public long getPassivationFailures() {
+        return this.passivationFailedCount.get();
+    }
+
+    /**
+     * The number of trees of continuations read back since startup.
+     */
+    public long getActivationCount() {
+        return this.activatedCount.get();
+    }
+
+    /**
+     * The average time taken to read back a tree of continuations, in
+     * milliseconds.
+     */
+    public long getAverageActivationTime() {
+        final long count = this.activatedCount.get();
+        return count == 0 ? 0 : this.activationTime.get() / count;
+    }
+
+    /**
+     * The longest time taken to read back a tree of continuations, in
+     * milliseconds.
+     */
+    public long getMaxActivationTime() {
+        return this.maxActivationTime;
+    }
+
     /**
      * Dump to Log file all <code>WebContinuation</code>s
      * in the system.
@@ -513,13 +968,14 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
      * A holder for WebContinuations. When bound to session notifies the
      * continuations manager of session invalidation.
      *
-     * For thread-safe access you have to synchronize on the Map {@link #holder}!
+     * The continuations are kept in a {@link ConcurrentMap}, no further
+     * synchronization is necessary.
      */
     protected class WebContinuationsHolder implements HttpSessionBindingListener {
 
         private final static String CONTINUATIONS_HOLDER = "o.a.c.c.f.SCMI.WebContinuationsHolder";
 
-        private Map holder = Collections.synchronizedMap(new HashMap());
+        private ConcurrentMap holder = new ConcurrentHashMap();
 
         public WebContinuation get(Object id) {
             return (WebContinuation) this.holder.get(id);
@@ -529,6 +985,19 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             this.holder.put(wk.getId(), wk);
         }
 
+        /**
+         * Add a continuation unless there is already one with the same id.
+         *
+         * @return true if the continuation has been added
+         */
+        public boolean addContinuationIfAbsent(WebContinuation wk) {
+            return this.holder.putIfAbsent(wk.getId(), wk) == null;
+        }
+
+        public int size() {
+            return this.holder.size();
+        }
+
         public void removeContinuation(WebContinuation wk) {
             this.holder.remove(wk.getId());
         }
@@ -550,6 +1019,97 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
 
     }
 
+    /**
+     * The continuation objects of a tree of continuations passivated
+     * together. Reading back one of them reads back all of them.
+     */
+    protected class PassivatedTree implements PassivatedContinuation {
+
+        private final WebContinuation[] continuations;
+        private final ContinuationsPassivator passivator;
+        private final Object context;
+
+        /** The record in the store, null once the tree has been read back */
+        private ContinuationsStore.Record record;
+
+        private int discarded;
+
+        public PassivatedTree(WebContinuation[] continuations,
+                              ContinuationsPassivator passivator,
+                              Object context,
+                              ContinuationsStore.Record record) {
+            this.continuations = continuations;
+            this.passivator = passivator;
+            this.context = context;
+            this.record = record;
+        }
+
+        public synchronized void activate(WebContinuation wk) throws Exception {
+            if (this.record == null) {
+                // read back by another thread already
+                return;
+            }
+
+            final long start = System.currentTimeMillis();
+            final byte[] bytes = passivationStore.read(this.record);
+            final Object[] objects = this.passivator.activateContinuations(this.continuations,
+                                                                           new ByteArrayInputStream(bytes),
+                                                                           this.context);
+            for (int i = 0; i < this.continuations.length; i++) {
+                this.continuations[i].activated(objects[i]);
+            }
+            free();
+
+            final long time = System.currentTimeMillis() - start;
+            activatedCount.incrementAndGet();
+            activationTime.addAndGet(time);
+            if (time > maxActivationTime) {
+                maxActivationTime = time;
+            }
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("WK: Activated " + this.continuations.length +
+                                  " continuations for " + wk.getId() + " in " + time + " ms");
+            }
+        }
+
+        public synchronized void discard(WebContinuation wk) {
+            if (++this.discarded == this.continuations.length) {
+                free();
+            }
+        }
+
+        /**
+         * Put back the continuation objects of the first continuations of
+         * the tree, which were passivated while another one was accessed.
+         */
+        synchronized void restore(Object[] objects, int count) {
+            if (this.record != null) {
+                for (int i = 0; i < count; i++) {
+                    this.continuations[i].activated(objects[i]);
+                }
+                free();
+            }
+        }
+
+        /**
+         * Free the record in the store.
+         */
+        synchronized void free() {
+            if (this.record == null) {
+                return;
+            }
+            final ContinuationsStore store = passivationStore;
+            if (store != null) {
+                try {
+                    store.free(this.record);
+                } catch (IOException e) {
+                    getLogger().warn("Could not compact the passivated continuations.", e);
+                }
+            }
+            this.record = null;
+        }
+    }
+
     /**
      * WebContinuation extension that holds also the information about the
      * holder. This information is needed to cleanup a proper holder after
@@ -576,12 +1136,4 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
 
     }
 
-    protected static class ExpirationPredicate implements Predicate {
-
-        public boolean evaluate(final Object obj) {
-            return ((WebContinuation)obj).hasExpired();
-        }
-
-    }
-
 }
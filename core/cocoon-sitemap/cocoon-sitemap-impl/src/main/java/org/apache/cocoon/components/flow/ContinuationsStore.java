@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An append-only file holding the passivated continuation objects of the
+ * {@link ContinuationsManagerImpl}. Records are always written at the end
+ * of the file; a freed record is only counted. Once more than half of the
+ * file is taken by freed records, the live records are copied to a new file.
+ *
+ * <p>The file is deleted when the store is closed, passivated continuations
+ * don't survive a restart.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public class ContinuationsStore {
+
+    /** Files smaller than this are not compacted */
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private final File directory;
+
+    private File file;
+
+    private RandomAccessFile data;
+
+    /** The end of the file */
+    private long length;
+
+    /** The number of bytes of the live records */
+    private long liveBytes;
+
+    /** The live records, in file order */
+    private final Set records = new LinkedHashSet();
+
+    private long compactions;
+
+    public ContinuationsStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        this.file = createFile();
+        this.data = new RandomAccessFile(this.file, "rw");
+    }
+
+    private File createFile() throws IOException {
+        final File file = File.createTempFile("continuations", ".ser", this.directory);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Append a record.
+     */
+    public synchronized Record write(byte[] bytes, int length) throws IOException {
+        this.data.seek(this.length);
+        this.data.write(bytes, 0, length);
+        final Record record = new Record(this.length, length);
+        this.length += length;
+        this.liveBytes += length;
+        this.records.add(record);
+        return record;
+    }
+
+    /**
+     * Read a live record.
+     */
+    public synchronized byte[] read(Record record) throws IOException {
+        if (!this.records.contains(record)) {
+            throw new IOException("Record has been freed");
+        }
+        final byte[] bytes = new byte[record.length];
+        this.data.seek(record.offset);
+        this.data.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Free a record, compacting the file if it is mostly taken by freed
+     * records.
+     */
+    public synchronized void free(Record record) throws IOException {
+        if (!this.records.remove(record)) {
+            return;
+        }
+        this.liveBytes -= record.length;
+        if (this.length > MIN_COMPACT_SIZE && this.length - this.liveBytes > this.liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Copy the live records to a new file. The records are only moved once
+     * the new file has been written completely.
+     */
+    private void compact() throws IOException {
+        final File newFile = createFile();
+        final RandomAccessFile newData = new RandomAccessFile(newFile, "rw");
+        final long[] offsets = new long[this.records.size()];
+        long position = 0;
+        try {
+            int i = 0;
+            for (Iterator iter = this.records.iterator(); iter.hasNext(); i++) {
+                final Record record = (Record) iter.next();
+                final byte[] bytes = new byte[record.length];
+                this.data.seek(record.offset);
+                this.data.readFully(bytes);
+                newData.write(bytes);
+                offsets[i] = position;
+                position += record.length;
+            }
+        } catch (IOException e) {
+            newData.close();
+            newFile.delete();
+            throw e;
+        }
+
+        int i = 0;
+        for (Iterator iter = this.records.iterator(); iter.hasNext(); i++) {
+            ((Record) iter.next()).offset = offsets[i];
+        }
+        this.data.close();
+        this.file.delete();
+        this.file = newFile;
+        this.data = newData;
+        this.length = position;
+        this.compactions++;
+    }
+
+    /**
+     * Close and delete the file.
+     */
+    public synchronized void close() throws IOException {
+        this.records.clear();
+        this.liveBytes = 0;
+        this.length = 0;
+        try {
+            this.data.close();
+        } finally {
+            this.file.delete();
+        }
+    }
+
+    /**
+     * The size of the file.
+     */
+    public synchronized long getLength() {
+        return this.length;
+    }
+
+    /**
+     * The number of bytes of the live records.
+     */
+    public synchronized long getLiveBytes() {
+        return this.liveBytes;
+    }
+
+    public synchronized int getRecords() {
+        return this.records.size();
+    }
+
+    public synchronized long getCompactions() {
+        return this.compactions;
+    }
+
+    /**
+     * The position of a record in the file.
+     */
+    public static final class Record {
+        long offset;
+        final int length;
+
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return this.length;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timer wheel. Items are scheduled with a deadline and handed
+ * out by {@link #advance(long)} once the wheel passed their deadline.
+ * Scheduling and cancelling take constant time, advancing takes amortised
+ * constant time per item.
+ *
+ * <p>The wheel has {@link #LEVELS} levels of 64 slots, a slot of level
+ * <i>n</i> spans 64<sup><i>n</i></sup> ticks. Items of the higher levels are
+ * moved down when the wheel reaches their slot. Deadlines beyond the range
+ * of the top level are handed out early, callers have to check the actual
+ * deadline of the items returned and schedule them again if necessary.</p>
+ *
+ * <p>An item is scheduled at most once, scheduling it again has no effect
+ * until it has been handed out or cancelled.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public final class ExpirationWheel {
+
+    public static final int LEVELS = 4;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** The length of a tick in milliseconds. */
+    private final long tick;
+
+    /** The tick the wheel has advanced to. */
+    private long currentTick;
+
+    /** The slots, each holding a list of entries. */
+    private final List[][] slots;
+
+    /** The entries which are due at the next advance. */
+    private List due = new ArrayList();
+
+    /** The entry of each scheduled item. */
+    private final Map entries = new HashMap();
+
+    /**
+     * @param tick the length of a tick in milliseconds
+     * @param now the current time in milliseconds
+     */
+    public ExpirationWheel(long tick, long now) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tick);
+        }
+        this.tick = tick;
+        this.currentTick = now / tick;
+        this.slots = new List[LEVELS][SLOTS];
+    }
+
+    /**
+     * Schedule an item, unless it is already scheduled.
+     *
+     * @return true if the item has been scheduled
+     */
+    public synchronized boolean schedule(Object item, long deadline) {
+        if (this.entries.containsKey(item)) {
+            return false;
+        }
+        final Entry entry = new Entry(item, deadline);
+        this.entries.put(item, entry);
+        insert(entry);
+        return true;
+    }
+
+    /**
+     * Remove a scheduled item from the wheel.
+     */
+    public synchronized void cancel(Object item) {
+        final Entry entry = (Entry) this.entries.remove(item);
+        if (entry != null) {
+            // the entry is dropped when its slot is reached
+            entry.item = null;
+        }
+    }
+
+    /**
+     * The number of scheduled items.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Advance the wheel to the given time.
+     *
+     * @return the items whose deadline has passed, these are no longer
+     *         scheduled
+     */
+    public synchronized List advance(long now) {
+        final long target = now / this.tick;
+        while (this.currentTick < target) {
+            this.currentTick++;
+
+            // move entries of the higher levels down
+            for (int level = 1; level < LEVELS; level++) {
+                if ((this.currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                final int index = (int) ((this.currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                final List slot = this.slots[level][index];
+                if (slot != null) {
+                    this.slots[level][index] = null;
+                    for (int i = 0; i < slot.size(); i++) {
+                        insert((Entry) slot.get(i));
+                    }
+                }
+            }
+
+            final int index = (int) (this.currentTick & SLOT_MASK);
+            final List slot = this.slots[0][index];
+            if (slot != null) {
+                this.slots[0][index] = null;
+                this.due.addAll(slot);
+            }
+        }
+
+        final List result = new ArrayList(this.due.size());
+        for (int i = 0; i < this.due.size(); i++) {
+            final Entry entry = (Entry) this.due.get(i);
+            if (entry.item != null) {
+                this.entries.remove(entry.item);
+                result.add(entry.item);
+            }
+        }
+        this.due = new ArrayList();
+        return result;
+    }
+
+    private void insert(Entry entry) {
+        if (entry.item == null) {
+            // cancelled
+            return;
+        }
+        // round up, items are never handed out before their deadline
+        final long expires = (entry.deadline + this.tick - 1) / this.tick;
+        final long delta = expires - this.currentTick;
+        if (delta <= 0) {
+            this.due.add(entry);
+            return;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        final int index = (int) ((expires >>> (SLOT_BITS * level)) & SLOT_MASK);
+        List slot = this.slots[level][index];
+        if (slot == null) {
+            slot = new ArrayList();
+            this.slots[level][index] = slot;
+        }
+        slot.add(entry);
+    }
+
+    private static final class Entry {
+        Object item;
+        final long deadline;
+
+        Entry(Object item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.cocoon.components.treeprocessor.ProcessingNode;
 import org.apache.cocoon.components.treeprocessor.variables.VariableResolver;
 import org.apache.cocoon.environment.Environment;
 import org.apache.cocoon.sitemap.ContentAggregator;
+import org.apache.cocoon.sitemap.ParallelContentAggregator;
 
 import java.util.Map;
 
@@ -41,6 +42,16 @@ import java.util.Map;
  *     this view are added. Otherwise, all parts are added.
  * </li>
  * </ul>
+ * <h3>Parallel aggregation</h3>
+ * With <code>parallel="true"</code>, all parts are fetched concurrently. The
+ * <code>timeout</code> attribute of map:aggregate and map:part limits the time
+ * in milliseconds to wait for a part, the <code>fallback</code> attribute of
+ * map:part gives the URI of the content used if a part fails or times out.
+ * The <code>thread-pool</code> attribute of map:aggregate names the pool of
+ * the <code>RunnableManager</code> the parts are loaded with.
+ * These attributes are ignored if the aggregator is not a
+ * {@link ParallelContentAggregator}.
+ * <p>
  * For more info on aggregation and views, see the mail archive
  * <a href="http://marc.theaimsgroup.com/?l=xml-cocoon-dev&m=100525751417953">here</a> or
  * <a href="http://marc.theaimsgroup.com/?l=xml-cocoon-dev&m=100517130418424">here</a>.
@@ -52,6 +63,9 @@ public class AggregateNode extends AbstractProcessingNode {
     private VariableResolver element;
     private VariableResolver nsURI;
     private VariableResolver nsPrefix;
+    private VariableResolver parallel;
+    private VariableResolver timeout;
+    private VariableResolver threadPool;
 
     /** All parts */
     private Part[] allParts;
@@ -70,6 +84,15 @@ public class AggregateNode extends AbstractProcessingNode {
         this.nsPrefix = nsPrefix;
     }
 
+    public AggregateNode(VariableResolver element, VariableResolver nsURI, VariableResolver nsPrefix,
+                         VariableResolver parallel, VariableResolver timeout,
+                         VariableResolver threadPool) {
+        this(element, nsURI, nsPrefix);
+        this.parallel = parallel;
+        this.timeout = timeout;
+        this.threadPool = threadPool;
+    }
+
     public void setParts(Part[] allParts, Map viewParts) {
         this.allParts = allParts;
         this.viewParts = viewParts;
@@ -87,7 +110,17 @@ public class AggregateNode extends AbstractProcessingNode {
 
         // Setup aggregator
         ProcessingPipeline processingPipeline = context.getProcessingPipeline();
-        processingPipeline.setGenerator("<aggregator>", null, Parameters.EMPTY_PARAMETERS, Parameters.EMPTY_PARAMETERS);
+        Parameters parameters = Parameters.EMPTY_PARAMETERS;
+        if (this.parallel != null) {
+            parameters = new Parameters();
+            parameters.setParameter("parallel", this.parallel.resolve(context, objectModel));
+            parameters.setParameter("timeout", this.timeout.resolve(context, objectModel));
+            if (this.threadPool != null) {
+                parameters.setParameter("thread-pool", this.threadPool.resolve(context, objectModel));
+            }
+            parameters.makeReadOnly();
+        }
+        processingPipeline.setGenerator("<aggregator>", null, parameters, Parameters.EMPTY_PARAMETERS);
 
         ContentAggregator aggregator = (ContentAggregator) processingPipeline.getGenerator();
         aggregator.setRootElement(this.element.resolve(context, objectModel),
@@ -116,13 +149,25 @@ public class AggregateNode extends AbstractProcessingNode {
         for (int i = 0; i < actualParts.length; i++) {
             Part part = actualParts[i];
             if (part != null) {
-                aggregator.addPart(
-                    part.source.resolve(context, objectModel),
-                    part.element.resolve(context, objectModel),
-                    part.nsURI.resolve(context, objectModel),
-                    part.stripRoot.resolve(context, objectModel),
-                    part.nsPrefix.resolve(context, objectModel)
-                );
+                if (part.timeout == null || !(aggregator instanceof ParallelContentAggregator)) {
+                    aggregator.addPart(
+                        part.source.resolve(context, objectModel),
+                        part.element.resolve(context, objectModel),
+                        part.nsURI.resolve(context, objectModel),
+                        part.stripRoot.resolve(context, objectModel),
+                        part.nsPrefix.resolve(context, objectModel)
+                    );
+                } else {
+                    ((ParallelContentAggregator) aggregator).addPart(
+                        part.source.resolve(context, objectModel),
+                        part.element.resolve(context, objectModel),
+                        part.nsURI.resolve(context, objectModel),
+                        part.stripRoot.resolve(context, objectModel),
+                        part.nsPrefix.resolve(context, objectModel),
+                        part.timeout.resolve(context, objectModel),
+                        part.fallback.resolve(context, objectModel)
+                    );
+                }
             }
         }
 
@@ -158,6 +203,8 @@ public class AggregateNode extends AbstractProcessingNode {
         protected VariableResolver nsURI;
         protected VariableResolver nsPrefix;
         protected VariableResolver stripRoot;
+        protected VariableResolver timeout;
+        protected VariableResolver fallback;
 
         public Part(VariableResolver source,
                     VariableResolver element,
@@ -170,5 +217,17 @@ public class AggregateNode extends AbstractProcessingNode {
             this.nsPrefix = nsPrefix;
             this.stripRoot = stripRoot;
         }
+
+        public Part(VariableResolver source,
+                    VariableResolver element,
+                    VariableResolver nsURI,
+                    VariableResolver nsPrefix,
+                    VariableResolver stripRoot,
+                    VariableResolver timeout,
+                    VariableResolver fallback) {
+            this(source, element, nsURI, nsPrefix, stripRoot);
+            this.timeout = timeout;
+            this.fallback = fallback;
+        }
     }
 }
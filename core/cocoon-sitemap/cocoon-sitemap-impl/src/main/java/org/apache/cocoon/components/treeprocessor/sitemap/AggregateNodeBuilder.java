@@ -46,11 +46,23 @@ public class AggregateNodeBuilder extends AbstractProcessingNodeBuilder
     public ProcessingNode buildNode(Configuration config) throws Exception {
 
         // Get root node data
-        this.node = new AggregateNode(
-            VariableResolverFactory.getResolver(config.getAttribute("element"), this.manager),
-            VariableResolverFactory.getResolver(config.getAttribute("ns", ""), this.manager),
-            VariableResolverFactory.getResolver(config.getAttribute("prefix", ""), this.manager)
-        );
+        if (config.getAttribute("parallel", null) == null) {
+            this.node = new AggregateNode(
+                VariableResolverFactory.getResolver(config.getAttribute("element"), this.manager),
+                VariableResolverFactory.getResolver(config.getAttribute("ns", ""), this.manager),
+                VariableResolverFactory.getResolver(config.getAttribute("prefix", ""), this.manager)
+            );
+        } else {
+            this.node = new AggregateNode(
+                VariableResolverFactory.getResolver(config.getAttribute("element"), this.manager),
+                VariableResolverFactory.getResolver(config.getAttribute("ns", ""), this.manager),
+                VariableResolverFactory.getResolver(config.getAttribute("prefix", ""), this.manager),
+                VariableResolverFactory.getResolver(config.getAttribute("parallel"), this.manager),
+                VariableResolverFactory.getResolver(config.getAttribute("timeout", "0"), this.manager),
+                config.getAttribute("thread-pool", null) == null ? null :
+                    VariableResolverFactory.getResolver(config.getAttribute("thread-pool"), this.manager)
+            );
+        }
         this.treeBuilder.setupNode(this.node, config);
 
         this.views = ((SitemapLanguage)this.treeBuilder).getViewsForStatement("", "", config);
@@ -81,13 +93,27 @@ public class AggregateNodeBuilder extends AbstractProcessingNodeBuilder
 
             checkNamespace(childConfig);
 
-            AggregateNode.Part currentPart = new AggregateNode.Part(
-                VariableResolverFactory.getResolver(childConfig.getAttribute("src"), this.manager),
-                VariableResolverFactory.getResolver(childConfig.getAttribute("element", ""), this.manager),
-                VariableResolverFactory.getResolver(childConfig.getAttribute("ns", ""), this.manager),
-                VariableResolverFactory.getResolver(childConfig.getAttribute("prefix", ""), this.manager),
-                VariableResolverFactory.getResolver(childConfig.getAttribute("strip-root", "false"), this.manager)
-            );
+            AggregateNode.Part currentPart;
+            if (childConfig.getAttribute("timeout", null) == null
+                    && childConfig.getAttribute("fallback", null) == null) {
+                currentPart = new AggregateNode.Part(
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("src"), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("element", ""), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("ns", ""), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("prefix", ""), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("strip-root", "false"), this.manager)
+                );
+            } else {
+                currentPart = new AggregateNode.Part(
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("src"), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("element", ""), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("ns", ""), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("prefix", ""), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("strip-root", "false"), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("timeout", ""), this.manager),
+                    VariableResolverFactory.getResolver(childConfig.getAttribute("fallback", ""), this.manager)
+                );
+            }
 
             allParts.add(currentPart);
 
@@ -42,6 +42,9 @@ public class MatchNode extends SimpleSelectorProcessingNode
 
     private Map parameters;
 
+    /** The literal prefix of the pattern for URI matchers */
+    private String uriPrefix;
+
 
     public MatchNode(String type, VariableResolver pattern, String name) {
         super(Matcher.ROLE + "Selector", type);
@@ -53,6 +56,22 @@ public class MatchNode extends SimpleSelectorProcessingNode
         this.parameters = parameterMap;
     }
 
+    /**
+     * Set the prefix all URIs matched by this node start with, if the matcher
+     * matches against the sitemap URI.
+     */
+    public void setURIPrefix(String uriPrefix) {
+        this.uriPrefix = uriPrefix;
+    }
+
+    /**
+     * The prefix all URIs matched by this node start with, or <code>null</code>
+     * if the matcher does not match against the sitemap URI.
+     */
+    public String getURIPrefix() {
+        return this.uriPrefix;
+    }
+
     public final boolean invoke(Environment env, InvokeContext context)
     throws Exception {
 
@@ -26,6 +26,7 @@ import org.apache.cocoon.components.treeprocessor.variables.VariableResolver;
 import org.apache.cocoon.components.treeprocessor.variables.VariableResolverFactory;
 import org.apache.cocoon.matching.Matcher;
 import org.apache.cocoon.matching.PreparableMatcher;
+import org.apache.cocoon.matching.URIMatcher;
 
 /**
  *
@@ -45,10 +46,16 @@ public class MatchNodeBuilder extends AbstractParentProcessingNodeBuilder
         ServiceSelector selector = (ServiceSelector)this.manager.lookup(Matcher.ROLE + "Selector");
 
         Class clazz = null;
+        String uriPrefix = null;
         try {
             // Find matcher class
             Matcher matcher = (Matcher)selector.select(type);
             clazz = matcher.getClass();
+            // URI matchers with a static pattern can be indexed
+            if (matcher instanceof URIMatcher && pattern != null
+                    && !VariableResolverFactory.needsResolve(pattern)) {
+                uriPrefix = ((URIMatcher) matcher).getLiteralPrefix(VariableResolverFactory.unescape(pattern));
+            }
             selector.release(matcher);
         } finally {
             this.manager.release(selector);
@@ -65,14 +72,16 @@ public class MatchNodeBuilder extends AbstractParentProcessingNodeBuilder
 
         if (preparable) {
             node = new PreparableMatchNode(type, VariableResolverFactory.unescape(pattern),name);
+            ((PreparableMatchNode) node).setURIPrefix(uriPrefix);
         } else {
             node = new MatchNode(type, patternResolver,name);
+            ((MatchNode) node).setURIPrefix(uriPrefix);
         }
 
         this.treeBuilder.setupNode(node, config);
 
         // Get all children
-        ProcessingNode[] children = buildChildNodes(config);
+        ProcessingNode[] children = toNodeArray(URIMatchIndexNode.index(buildChildNodesList(config)));
 
         node.setChildren(children);
 
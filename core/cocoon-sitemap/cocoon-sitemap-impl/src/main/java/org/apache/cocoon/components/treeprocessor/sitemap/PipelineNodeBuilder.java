@@ -101,7 +101,7 @@ public class PipelineNodeBuilder extends AbstractParentProcessingNodeBuilder {
             }
         }
 
-        node.setChildren(toNodeArray(children));
+        node.setChildren(toNodeArray(URIMatchIndexNode.index(children)));
         node.setErrorHandler(handler);
 
         return node;
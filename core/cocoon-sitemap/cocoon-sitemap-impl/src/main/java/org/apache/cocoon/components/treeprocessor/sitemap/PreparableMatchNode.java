@@ -47,6 +47,9 @@ public class PreparableMatchNode extends SimpleSelectorProcessingNode
 
     private Object preparedPattern;
 
+    /** The literal prefix of the pattern for URI matchers */
+    private String uriPrefix;
+
 
     public PreparableMatchNode(String type, String pattern, String name) {
         super(Matcher.ROLE + "Selector", type);
@@ -61,6 +64,22 @@ public class PreparableMatchNode extends SimpleSelectorProcessingNode
         this.parameters = parameterMap;
     }
 
+    /**
+     * Set the prefix all URIs matched by this node start with, if the matcher
+     * matches against the sitemap URI.
+     */
+    public void setURIPrefix(String uriPrefix) {
+        this.uriPrefix = uriPrefix;
+    }
+
+    /**
+     * The prefix all URIs matched by this node start with, or <code>null</code>
+     * if the matcher does not match against the sitemap URI.
+     */
+    public String getURIPrefix() {
+        return this.uriPrefix;
+    }
+
     /* (non-Javadoc)
      * @see org.apache.avalon.framework.activity.Initializable#initialize()
      */
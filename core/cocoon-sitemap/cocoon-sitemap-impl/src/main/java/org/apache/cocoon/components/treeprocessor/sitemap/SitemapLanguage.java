@@ -45,6 +45,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceResolver;
 import org.apache.regexp.RE;
+import org.springframework.beans.factory.BeanFactoryUtils;
 import org.springframework.beans.factory.ListableBeanFactory;
 import org.springframework.web.context.WebApplicationContext;
 
@@ -74,6 +75,7 @@ import org.apache.cocoon.sitemap.EnterSitemapEventListener;
 import org.apache.cocoon.sitemap.LeaveSitemapEventListener;
 import org.apache.cocoon.sitemap.PatternException;
 import org.apache.cocoon.sitemap.SitemapParameters;
+import org.apache.cocoon.sitemap.TransformSourcesListener;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.util.location.Location;
 import org.apache.cocoon.util.location.LocationImpl;
@@ -149,6 +151,9 @@ public class SitemapLanguage extends AbstractLogEnabled
     /** Optional event listeners for the leave sitemap event */
     protected List leaveSitemapEventListeners = new ArrayList();
 
+    /** The static sources of the transform statements, a set for each type */
+    protected Map transformSources = new HashMap();
+
     // -------------------------------------
 
     /** Nodes gone through setupNode() that implement Initializable */
@@ -417,10 +422,50 @@ public class SitemapLanguage extends AbstractLogEnabled
             ((Initializable) iter.next()).initialize();
         }
 
+        notifyTransformSourcesListeners();
+
         // And that's all !
         return result;
     }
 
+    /**
+     * Register the source of a transform statement, if it does not contain
+     * any expressions.
+     */
+    public void addTransformSource(String type, String src) {
+        if (src == null || VariableResolverFactory.needsResolve(src)) {
+            return;
+        }
+        Set sources = (Set) this.transformSources.get(type);
+        if (sources == null) {
+            sources = new HashSet();
+            this.transformSources.put(type, sources);
+        }
+        sources.add(src);
+    }
+
+    /**
+     * Hand the static transform sources to the registered listeners.
+     * Failing listeners are logged, they never prevent the sitemap from
+     * being used.
+     */
+    protected void notifyTransformSourcesListeners() {
+        if (this.transformSources.isEmpty()) {
+            return;
+        }
+        final Map beans = BeanFactoryUtils.beansOfTypeIncludingAncestors(this.itsContainer,
+                                                                         TransformSourcesListener.class);
+        final Iterator i = beans.values().iterator();
+        while (i.hasNext()) {
+            final TransformSourcesListener listener = (TransformSourcesListener) i.next();
+            try {
+                listener.transformSourcesFound(this.itsManager, this.transformSources);
+            } catch (Exception e) {
+                getLogger().warn("Transform sources listener " + listener + " failed.", e);
+            }
+        }
+    }
+
     /**
      * Return the list of <code>ProcessingNodes</code> part of this tree that
      * are <code>Disposable</code>. Care should be taken to properly dispose
@@ -601,6 +646,7 @@ public class SitemapLanguage extends AbstractLogEnabled
         VariableResolverFactory.setDisposableCollector(null);
         this.enterSitemapEventListeners.clear();
         this.leaveSitemapEventListeners.clear();
+        this.transformSources = new HashMap();
 
         // Go back to initial state
         this.labelViews.clear();
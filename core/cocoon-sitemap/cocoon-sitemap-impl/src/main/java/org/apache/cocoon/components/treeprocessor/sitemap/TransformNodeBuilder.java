@@ -48,10 +48,12 @@ public class TransformNodeBuilder extends AbstractProcessingNodeBuilder
         this.views = ((SitemapLanguage)this.treeBuilder).getViewsForStatement(Transformer.ROLE, type, config);
         this.pipelineHints = ((SitemapLanguage)this.treeBuilder).getHintsForStatement(Transformer.ROLE, type, config);
 
+        final String src = config.getAttribute("src", null);
         this.node = new TransformNode(
             type,
-            VariableResolverFactory.getResolver(config.getAttribute("src", null), this.manager)
+            VariableResolverFactory.getResolver(src, this.manager)
         );
+        ((SitemapLanguage)this.treeBuilder).addTransformSource(type, src);
 
         this.node.setPipelineHints(this.pipelineHints);
         return this.treeBuilder.setupNode(node, config);
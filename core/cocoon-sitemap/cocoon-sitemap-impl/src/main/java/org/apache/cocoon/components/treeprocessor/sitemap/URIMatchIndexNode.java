@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor.sitemap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cocoon.components.treeprocessor.AbstractProcessingNode;
+import org.apache.cocoon.components.treeprocessor.InvokeContext;
+import org.apache.cocoon.components.treeprocessor.ProcessingNode;
+import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Request;
+
+/**
+ * Dispatches a sequence of consecutive URI matches. The literal prefixes of
+ * their patterns are stored in a trie, so for each request only the matches
+ * whose prefix fits the sitemap URI are invoked. These are invoked in their
+ * original order, hence the first match still wins and the matches keep
+ * their usual behaviour.
+ *
+ * @see org.apache.cocoon.matching.URIMatcher
+ * @version $Id$
+ */
+public class URIMatchIndexNode extends AbstractProcessingNode {
+
+    /** The indexed match nodes, in sitemap order */
+    private final ProcessingNode[] nodes;
+
+    /** The root of the prefix trie */
+    private final TrieNode root;
+
+
+    public URIMatchIndexNode(ProcessingNode[] nodes) {
+        this.nodes = nodes;
+        this.root = new TrieNode();
+        for (int i = 0; i < nodes.length; i++) {
+            String prefix = getURIPrefix(nodes[i]);
+            TrieNode current = this.root;
+            for (int j = 0; j < prefix.length(); j++) {
+                current = current.getOrCreate(prefix.charAt(j));
+            }
+            current.matches.set(i);
+        }
+        if (nodes.length > 0) {
+            setLocation(nodes[0].getLocation());
+        }
+    }
+
+    /**
+     * Replace each run of at least two consecutive URI matches in a list of
+     * nodes with an index node.
+     *
+     * @param children the nodes of a pipeline or match, in sitemap order
+     * @return the list of nodes to use instead
+     */
+    public static List index(List children) {
+        List result = new ArrayList(children.size());
+        List run = new ArrayList();
+        for (int i = 0; i < children.size(); i++) {
+            ProcessingNode child = (ProcessingNode) children.get(i);
+            if (getURIPrefix(child) != null) {
+                run.add(child);
+            } else {
+                addRun(result, run);
+                result.add(child);
+            }
+        }
+        addRun(result, run);
+        return result;
+    }
+
+    private static void addRun(List result, List run) {
+        if (run.size() > 1) {
+            result.add(new URIMatchIndexNode((ProcessingNode[]) run.toArray(new ProcessingNode[run.size()])));
+        } else {
+            result.addAll(run);
+        }
+        run.clear();
+    }
+
+    /**
+     * The literal prefix of a match node, or <code>null</code> if the node
+     * can't be indexed.
+     */
+    private static String getURIPrefix(ProcessingNode node) {
+        if (node instanceof MatchNode) {
+            return ((MatchNode) node).getURIPrefix();
+        } else if (node instanceof PreparableMatchNode) {
+            return ((PreparableMatchNode) node).getURIPrefix();
+        }
+        return null;
+    }
+
+    public final boolean invoke(Environment env, InvokeContext context)
+    throws Exception {
+        final Request request = ObjectModelHelper.getRequest(env.getObjectModel());
+        String uri = request == null ? null : request.getSitemapURI();
+
+        if (uri == null) {
+            // Nothing to look up, evaluate all matches
+            for (int i = 0; i < this.nodes.length; i++) {
+                if (this.nodes[i].invoke(env, context)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (uri.startsWith("/")) {
+            uri = uri.substring(1);
+        }
+
+        // Collect the matches whose prefix the uri starts with
+        final BitSet candidates = new BitSet(this.nodes.length);
+        TrieNode current = this.root;
+        candidates.or(current.matches);
+        for (int i = 0; i < uri.length(); i++) {
+            current = current.get(uri.charAt(i));
+            if (current == null) {
+                break;
+            }
+            candidates.or(current.matches);
+        }
+
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (this.nodes[i].invoke(env, context)) {
+                return true;
+            }
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("None of " + candidates.cardinality() + " out of " + this.nodes.length +
+                              " URI matches at " + getLocation() + " matched '" + uri + "'");
+        }
+        return false;
+    }
+
+    /**
+     * A node of the prefix trie.
+     */
+    private static final class TrieNode {
+
+        /** The matches whose prefix ends at this node */
+        final BitSet matches = new BitSet();
+
+        /** Child nodes keyed by their character */
+        private Map children;
+
+        TrieNode get(char c) {
+            return this.children == null ? null : (TrieNode) this.children.get(new Character(c));
+        }
+
+        TrieNode getOrCreate(char c) {
+            if (this.children == null) {
+                this.children = new HashMap();
+            }
+            final Character key = new Character(c);
+            TrieNode node = (TrieNode) this.children.get(key);
+            if (node == null) {
+                node = new TrieNode();
+                this.children.put(key, node);
+            }
+            return node;
+        }
+    }
+}
@@ -25,10 +25,15 @@ import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.caching.CacheableProcessingComponent;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.environment.SourceResolver;
+import org.apache.cocoon.environment.internal.EnvironmentHelper;
 import org.apache.cocoon.generation.Generator;
+import org.apache.cocoon.thread.RunnableManager;
 import org.apache.cocoon.xml.ContentHandlerWrapper;
+import org.apache.cocoon.xml.SaxBuffer;
 import org.apache.cocoon.xml.XMLConsumer;
 import org.apache.cocoon.xml.XMLUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 import org.apache.commons.lang.BooleanUtils;
 import org.apache.excalibur.source.Source;
@@ -41,6 +46,9 @@ import org.xml.sax.SAXException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -53,11 +61,30 @@ import java.util.Map;
  * It combines several parts into one big XML document which is streamed
  * into the pipeline.
  *
+ * <p>If the <code>parallel</code> parameter is true, all parts are fetched
+ * concurrently into buffers using the threads of the {@link RunnableManager}
+ * and then streamed in document order, so the aggregation takes about as
+ * long as the slowest part. Each part waits at most its own timeout or the
+ * <code>timeout</code> parameter (in milliseconds, 0 means no timeout).
+ * A part which fails or times out is replaced by the content of its
+ * fallback URI or, without fallback, by nothing if it timed out.
+ * The optional <code>thread-pool</code> parameter (the
+ * <code>thread-pool</code> attribute of map:aggregate) names the pool to
+ * use; if it rejects a part, the part is loaded by the aggregating thread.</p>
+ *
+ * <p>Each part loaded in parallel has its own request scope, so request
+ * scoped beans like pooled components are not shared between the threads.
+ * The request attributes and the session are still shared with the
+ * aggregating request, so the part pipelines must not modify them.
+ * Aggregates within a part loaded in parallel fetch their parts one after
+ * another, so that nested aggregates cannot exhaust the thread pool. A part
+ * which timed out is cancelled and its content dropped.</p>
+ *
  * @version $Id$
  */
 public class DefaultContentAggregator extends ContentHandlerWrapper
                                       implements Generator, CacheableProcessingComponent,
-                                                 Serviceable, ContentAggregator {
+                                                 Serviceable, ParallelContentAggregator {
 
     /** The root element of the aggregated content */
     protected Element rootElement;
@@ -77,17 +104,218 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
     /** The service manager */
     protected ServiceManager manager;
 
+    /** Fetch the parts in parallel? */
+    protected boolean parallel;
+
+    /** The default timeout for parts fetched in parallel */
+    protected long timeout;
+
+    /** The thread pool for parts fetched in parallel */
+    protected String threadPool;
+
+    /** The loaders of the parts fetched in parallel */
+    protected PartLoader[] loaders;
+
+    /** The time the loaders have been started */
+    private long loadersStarted;
+
+    /** Is the current thread loading a part? */
+    private static final ThreadLocal LOADING = new ThreadLocal();
+
     /** This object holds the part parts :) */
     protected final class Part {
         public String uri;
         public Element element;
         public Source source;
         boolean stripRootElement;
+        long timeout;
+        String fallback;
 
-        public Part(String uri, Element element, String stripRoot) {
+        public Part(String uri, Element element, String stripRoot, String timeout, String fallback) {
             this.uri = uri;
             this.element = element;
             this.stripRootElement = BooleanUtils.toBoolean(stripRoot);
+            this.timeout = timeout.equals("") ? -1 : Long.parseLong(timeout);
+            this.fallback = fallback.equals("") ? null : fallback;
+        }
+    }
+
+    /**
+     * Streams a part into a buffer, running in the environment of the
+     * aggregating request.
+     */
+    protected final class PartLoader extends EnvironmentHelper.AbstractCocoonRunnable {
+        final Part part;
+        final SaxBuffer buffer = new SaxBuffer() {
+            public void startElement(String uri, String loc, String raw, Attributes a)
+            throws SAXException {
+                if (cancelled) {
+                    throw new SAXException("Loading of part " + part.uri + " has been cancelled");
+                }
+                super.startElement(uri, loc, raw, a);
+            }
+        };
+        private final Source source;
+        private final SourceResolver resolver;
+        private final RequestAttributes attributes;
+        private Exception exception;
+        private boolean finished;
+        private volatile boolean cancelled;
+
+        public PartLoader(Part part, SourceResolver resolver) {
+            this.part = part;
+            this.source = part.source;
+            this.resolver = resolver;
+            this.attributes = RequestContextHolder.getRequestAttributes();
+        }
+
+        protected void doRun() {
+            final Object oldLoading = LOADING.get();
+            final RequestAttributes oldAttributes = RequestContextHolder.getRequestAttributes();
+            PartRequestAttributes partAttributes = null;
+            if (this.attributes != null) {
+                partAttributes = new PartRequestAttributes(this.attributes);
+                RequestContextHolder.setRequestAttributes(partAttributes);
+            }
+            LOADING.set(Boolean.TRUE);
+            try {
+                SourceUtil.parse(manager, this.source, this.buffer);
+            } catch (Exception e) {
+                this.exception = e;
+            } finally {
+                LOADING.set(oldLoading);
+                if (partAttributes != null) {
+                    partAttributes.requestCompleted();
+                    RequestContextHolder.setRequestAttributes(oldAttributes);
+                }
+
+                final boolean release;
+                synchronized (this) {
+                    this.finished = true;
+                    release = this.cancelled;
+                    notifyAll();
+                }
+                if (release) {
+                    this.buffer.recycle();
+                    this.resolver.release(this.source);
+                }
+            }
+        }
+
+        /**
+         * Wait until the part is loaded.
+         *
+         * @param end the time to stop waiting, 0 to wait forever
+         * @return true if the part has been loaded in time
+         */
+        synchronized boolean waitFor(long end) throws InterruptedException {
+            while (!this.finished) {
+                long wait = 0;
+                if (end > 0) {
+                    wait = end - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                }
+                wait(wait);
+            }
+            return true;
+        }
+
+        /**
+         * Stop loading the part. If it is still loading, the loader drops
+         * its content and releases the source of the part when it stops.
+         *
+         * @return true if the part is still loading
+         */
+        synchronized boolean cancel() {
+            if (this.finished) {
+                return false;
+            }
+            this.cancelled = true;
+            return true;
+        }
+
+        synchronized Exception getException() {
+            return this.exception;
+        }
+    }
+
+    /**
+     * The request attributes of a part loaded in parallel. The request scope
+     * is private to the part, as request scoped beans are usually not thread
+     * safe. The session scope is shared with the aggregating request.
+     */
+    static final class PartRequestAttributes implements RequestAttributes {
+        private final RequestAttributes parent;
+        private final Map attributes = new HashMap();
+        private final Map callbacks = new LinkedHashMap();
+
+        PartRequestAttributes(RequestAttributes parent) {
+            this.parent = parent;
+        }
+
+        public Object getAttribute(String name, int scope) {
+            if (scope == SCOPE_REQUEST) {
+                return this.attributes.get(name);
+            }
+            return this.parent.getAttribute(name, scope);
+        }
+
+        public void setAttribute(String name, Object value, int scope) {
+            if (scope == SCOPE_REQUEST) {
+                this.attributes.put(name, value);
+            } else {
+                this.parent.setAttribute(name, value, scope);
+            }
+        }
+
+        public void removeAttribute(String name, int scope) {
+            if (scope == SCOPE_REQUEST) {
+                this.attributes.remove(name);
+                this.callbacks.remove(name);
+            } else {
+                this.parent.removeAttribute(name, scope);
+            }
+        }
+
+        public String[] getAttributeNames(int scope) {
+            if (scope == SCOPE_REQUEST) {
+                return (String[]) this.attributes.keySet().toArray(new String[this.attributes.size()]);
+            }
+            return this.parent.getAttributeNames(scope);
+        }
+
+        public void registerDestructionCallback(String name, Runnable callback, int scope) {
+            if (scope == SCOPE_REQUEST) {
+                this.callbacks.put(name, callback);
+            } else {
+                this.parent.registerDestructionCallback(name, callback, scope);
+            }
+        }
+
+        public Object resolveReference(String key) {
+            return this.parent.resolveReference(key);
+        }
+
+        public String getSessionId() {
+            return this.parent.getSessionId();
+        }
+
+        public Object getSessionMutex() {
+            return this.parent.getSessionMutex();
+        }
+
+        /**
+         * Destroy the request scoped beans of the part.
+         */
+        void requestCompleted() {
+            final Iterator i = this.callbacks.values().iterator();
+            while (i.hasNext()) {
+                ((Runnable) i.next()).run();
+            }
+            this.callbacks.clear();
+            this.attributes.clear();
         }
     }
 
@@ -112,6 +340,10 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("Generating aggregated content");
         }
+        if (this.parallel && this.parts.size() > 1 && LOADING.get() == null) {
+            startLoaders();
+        }
+
         this.contentHandler.startDocument();
         startElem(this.rootElement);
 
@@ -125,7 +357,11 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
                 this.currentElement = this.rootElement;
             }
 
-            SourceUtil.parse(this.manager, part.source, this);
+            if (this.loaders != null) {
+                streamLoadedPart(this.loaders[i]);
+            } else {
+                SourceUtil.parse(this.manager, part.source, this);
+            }
             
             if (part.element != null) {
                 endElem(part.element);
@@ -138,6 +374,95 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
         getLogger().debug("Finished aggregating content");
     }
 
+    /**
+     * Start loading all parts in parallel. A part the thread pool rejects is
+     * loaded right away by the current thread.
+     */
+    private void startLoaders() throws ProcessingException {
+        RunnableManager runnableManager = null;
+        try {
+            runnableManager = (RunnableManager) this.manager.lookup(RunnableManager.ROLE);
+            this.loaders = new PartLoader[this.parts.size()];
+            this.loadersStarted = System.currentTimeMillis();
+            for (int i = 0; i < this.loaders.length; i++) {
+                this.loaders[i] = new PartLoader((Part) this.parts.get(i), this.resolver);
+                try {
+                    if (this.threadPool != null) {
+                        runnableManager.execute(this.threadPool, this.loaders[i]);
+                    } else {
+                        runnableManager.execute(this.loaders[i]);
+                    }
+                } catch (RuntimeException e) {
+                    if (getLogger().isDebugEnabled()) {
+                        getLogger().debug("Unable to load part " + this.loaders[i].part.uri +
+                                          " in parallel, loading it now", e);
+                    }
+                    this.loaders[i].run();
+                }
+            }
+        } catch (ServiceException e) {
+            throw new ProcessingException("Unable to lookup RunnableManager.", e);
+        } finally {
+            this.manager.release(runnableManager);
+        }
+    }
+
+    /**
+     * Stream a part loaded in parallel, using the fallback if it failed or
+     * did not finish in time.
+     */
+    private void streamLoadedPart(PartLoader loader)
+    throws IOException, SAXException, ProcessingException {
+        final Part part = loader.part;
+        final long timeout = part.timeout >= 0 ? part.timeout : this.timeout;
+
+        boolean loaded;
+        try {
+            loaded = loader.waitFor(timeout > 0 ? this.loadersStarted + timeout : 0);
+        } catch (InterruptedException e) {
+            throw new ProcessingException("Interrupted while waiting for part " + part.uri, e);
+        }
+
+        Exception exception = loaded ? loader.getException() : null;
+        if (loaded && exception == null) {
+            loader.buffer.toSAX(this);
+            loader.buffer.recycle();
+            return;
+        }
+
+        if (loaded) {
+            getLogger().warn("Unable to aggregate part " + part.uri, exception);
+        } else {
+            getLogger().warn("Part " + part.uri + " did not finish within " + timeout + "ms");
+            if (loader.cancel()) {
+                // released by the loader
+                part.source = null;
+            }
+        }
+
+        if (part.fallback != null) {
+            Source fallback = null;
+            try {
+                fallback = this.resolver.resolveURI(part.fallback);
+                SourceUtil.parse(this.manager, fallback, this);
+            } catch (SourceException se) {
+                throw SourceUtil.handle("Unable to resolve fallback.", se);
+            } finally {
+                if (fallback != null) {
+                    this.resolver.release(fallback);
+                }
+            }
+        } else if (exception instanceof SAXException) {
+            throw (SAXException) exception;
+        } else if (exception instanceof IOException) {
+            throw (IOException) exception;
+        } else if (exception instanceof ProcessingException) {
+            throw (ProcessingException) exception;
+        } else if (exception != null) {
+            throw new ProcessingException("Unable to aggregate part " + part.uri, exception);
+        }
+    }
+
     /**
      * Generate the unique key.
      * This key must be unique inside the space of this component.
@@ -225,6 +550,20 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
                         String namespace,
                         String stripRootElement,
                         String prefix) {
+        addPart(uri, element, namespace, stripRootElement, prefix, "", "");
+    }
+
+    /**
+     * Add a part with a timeout and a fallback. Please make sure that the
+     * parameters are not null!
+     */
+    public void addPart(String uri,
+                        String element,
+                        String namespace,
+                        String stripRootElement,
+                        String prefix,
+                        String timeout,
+                        String fallback) {
         Element elem = null;
         if (!element.equals("")) {
             if (namespace.equals("")) {
@@ -239,11 +578,14 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
         }
         this.parts.add(new Part(uri,
                                 elem,
-                                stripRootElement));
+                                stripRootElement,
+                                timeout,
+                                fallback));
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("Part uri='" + uri +
                               "' element='" + element + "' ns='" + namespace +
-                              "' stripRootElement='" + stripRootElement + "' prefix='" + prefix + "'");
+                              "' stripRootElement='" + stripRootElement + "' prefix='" + prefix +
+                              "' timeout='" + timeout + "' fallback='" + fallback + "'");
         }
     }
 
@@ -265,6 +607,17 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
     public void recycle() {
         super.recycle();
 
+        // parts might still be loading if the aggregation failed
+        if (this.loaders != null) {
+            for (int i = 0; i < this.loaders.length; i++) {
+                if (this.loaders[i] != null && this.loaders[i].cancel()) {
+                    // released by the loader
+                    this.loaders[i].part.source = null;
+                }
+            }
+            this.loaders = null;
+        }
+
         this.rootElement = null;
         for (int i = 0; i < this.parts.size(); i++) {
             final Part current = (Part) this.parts.get(i);
@@ -287,6 +640,9 @@ public class DefaultContentAggregator extends ContentHandlerWrapper
     public void setup(SourceResolver resolver, Map objectModel, String src, Parameters par)
     throws ProcessingException, SAXException, IOException {
         this.resolver = resolver;
+        this.parallel = par.getParameterAsBoolean("parallel", false);
+        this.timeout = par.getParameterAsLong("timeout", 0);
+        this.threadPool = par.getParameter("thread-pool", null);
         // get the Source for each part
         try {
             for (int i = 0; i < this.parts.size(); i++) {
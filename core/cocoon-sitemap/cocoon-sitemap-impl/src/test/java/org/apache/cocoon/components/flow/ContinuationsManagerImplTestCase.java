@@ -0,0 +1,416 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.configuration.DefaultConfiguration;
+import org.apache.avalon.framework.context.DefaultContext;
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.cocoon.components.ContextHelper;
+import org.apache.cocoon.configuration.Settings;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.mock.MockRequest;
+
+/**
+ * Test cases for the expiration, eviction and passivation of continuations
+ * by the {@link ContinuationsManagerImpl}.
+ *
+ * @version $Id$
+ */
+public class ContinuationsManagerImplTestCase extends TestCase {
+
+    /** More than one tick of the expiration wheels */
+    private static final long TICK = 1100;
+
+    private File directory;
+    private ContinuationsManagerImpl manager;
+
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.directory = new File(System.getProperty("java.io.tmpdir"), "continuations-manager-test");
+        this.manager = createManager(0, 0);
+    }
+
+    protected void tearDown() throws Exception {
+        this.manager.dispose();
+        super.tearDown();
+    }
+
+    /**
+     * Create a manager with session bound continuations, whose expiration
+     * task is not started.
+     */
+    protected ContinuationsManagerImpl createManager(int maxPerSession, long idleTime) throws Exception {
+        final Map objectModel = new HashMap();
+        objectModel.put(ObjectModelHelper.REQUEST_OBJECT, new MockRequest());
+        final DefaultContext context = new DefaultContext();
+        context.put(ContextHelper.CONTEXT_OBJECT_MODEL, objectModel);
+
+        final ServiceManager serviceManager = (ServiceManager) Proxy.newProxyInstance(
+                ServiceManager.class.getClassLoader(),
+                new Class[] { ServiceManager.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("lookup".equals(method.getName()) && Settings.ROLE.equals(args[0])) {
+                            return newSettings();
+                        }
+                        if ("lookup".equals(method.getName())) {
+                            throw new ServiceException((String) args[0], "Not available in this test");
+                        }
+                        return "hasService".equals(method.getName()) ? Boolean.FALSE : null;
+                    }
+                });
+
+        final DefaultConfiguration config = new DefaultConfiguration("continuations-manager");
+        config.setAttribute("session-bound-continuations", true);
+        config.setAttribute("max-continuations-per-session", maxPerSession);
+        final DefaultConfiguration check = new DefaultConfiguration("expirations-check");
+        final DefaultConfiguration period = new DefaultConfiguration("period");
+        period.setValue(1000);
+        check.addChild(period);
+        config.addChild(check);
+        final DefaultConfiguration passivation = new DefaultConfiguration("passivation");
+        passivation.setAttribute("idle-time", Long.toString(idleTime));
+        passivation.setAttribute("directory", this.directory.getName());
+        config.addChild(passivation);
+
+        final ContinuationsManagerImpl manager = new ContinuationsManagerImpl();
+        manager.contextualize(context);
+        manager.service(serviceManager);
+        manager.configure(config);
+        return manager;
+    }
+
+    private WebContinuation create(WebContinuation parent, int ttl) {
+        return this.manager.createWebContinuation(new Object(), parent, ttl, "test", null);
+    }
+
+    /**
+     * The least recently accessed continuation without children is evicted
+     * once a session exceeds its limit, the new continuation never is.
+     */
+    public void testSessionLimit() throws Exception {
+        this.manager.dispose();
+        this.manager = createManager(3, 0);
+        final WebContinuation root = create(null, 0);
+        Thread.sleep(5);
+        final WebContinuation a = create(root, 0);
+        Thread.sleep(5);
+        final WebContinuation b = create(root, 0);
+        Thread.sleep(5);
+        final WebContinuation c = create(root, 0);
+
+        assertTrue(a.disposed());
+        assertFalse(root.disposed());
+        assertFalse(b.disposed());
+        assertFalse(c.disposed());
+        assertEquals(3, this.manager.getLiveContinuations());
+        assertEquals(1, this.manager.getEvictedContinuations());
+        assertEquals(2, root.getChildren().size());
+        assertNull(this.manager.lookupWebContinuation(a.getId(), "test"));
+
+        // an access makes b the most recently used one
+        assertSame(b, this.manager.lookupWebContinuation(b.getId(), "test"));
+        final WebContinuation d = create(b, 0);
+        assertTrue(c.disposed());
+        assertFalse(b.disposed());
+        assertFalse(d.disposed());
+        assertEquals(2, this.manager.getEvictedContinuations());
+    }
+
+    /**
+     * An expired parent is kept while it has children, and expires once
+     * its last child is gone.
+     */
+    public void testExpiredParentWithLiveChild() throws Exception {
+        final WebContinuation parent = create(null, 50);
+        final WebContinuation child = create(parent, 3600000);
+        Thread.sleep(TICK);
+
+        this.manager.expireContinuations();
+        assertTrue(parent.hasExpired());
+        assertFalse(parent.disposed());
+        assertEquals(2, this.manager.getLiveContinuations());
+        // not returned, but not removed either
+        assertNull(this.manager.lookupWebContinuation(parent.getId(), "test"));
+        assertFalse(parent.disposed());
+
+        this.manager.invalidateWebContinuation(child);
+        assertTrue(child.disposed());
+        assertEquals(1, this.manager.getScheduledContinuations());
+        Thread.sleep(TICK);
+
+        this.manager.expireContinuations();
+        assertTrue(parent.disposed());
+        assertEquals(0, this.manager.getLiveContinuations());
+        assertEquals(0, this.manager.getScheduledContinuations());
+    }
+
+    /**
+     * A parent which has not expired yet when its last child expires is
+     * scheduled again, and expires later.
+     */
+    public void testParentOutlivesChild() throws Exception {
+        final WebContinuation parent = create(null, 1500);
+        final WebContinuation child = create(parent, 50);
+        Thread.sleep(TICK);
+
+        this.manager.expireContinuations();
+        assertTrue(child.disposed());
+        assertFalse(parent.disposed());
+        assertEquals(1, this.manager.getScheduledContinuations());
+        Thread.sleep(1500);
+
+        this.manager.expireContinuations();
+        assertTrue(parent.disposed());
+        assertEquals(0, this.manager.getLiveContinuations());
+        assertEquals(2, this.manager.getExpiredContinuations());
+    }
+
+    /**
+     * An expired parent is never disposed while a child is attached to it,
+     * even if children are created while the expiration runs.
+     */
+    public void testConcurrentChildCreation() throws Exception {
+        final int[] violations = new int[1];
+        final ContinuationsDisposer disposer = new ContinuationsDisposer() {
+            public void disposeContinuation(WebContinuation wk) {
+                // the manager holds the lock of the children while disposing
+                if (wk.getChildren().size() != 0) {
+                    synchronized (violations) {
+                        violations[0]++;
+                    }
+                }
+            }
+        };
+        final WebContinuation parent = this.manager.createWebContinuation(new Object(), null, 1, "test", disposer);
+        final ContinuationsManagerImpl.WebContinuationsHolder holder =
+            this.manager.lookupWebContinuationsHolder(false);
+        Thread.sleep(5);
+        assertTrue(parent.hasExpired());
+
+        final Throwable[] errors = new Throwable[1];
+        final Thread[] workers = new Thread[4];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 2000 && !parent.disposed(); j++) {
+                            WebContinuation child =
+                                manager.createWebContinuation(new Object(), parent, 0, "test", disposer);
+                            manager.getForest();
+                            manager.invalidateWebContinuation(child);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors[0] = t;
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        while (!parent.disposed() && isAlive(workers)) {
+            this.manager.removeContinuation(holder, parent);
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].join(10000);
+        }
+        this.manager.removeContinuation(holder, parent);
+
+        assertNull(errors[0]);
+        assertEquals(0, violations[0]);
+        assertTrue(parent.disposed());
+    }
+
+    /**
+     * A tree is written at once, and read back at once when one of its
+     * continuations is accessed, also through a clone.
+     */
+    public void testPassivation() throws Exception {
+        this.manager.dispose();
+        this.manager = createManager(0, 1);
+        final TestPassivator passivator = new TestPassivator();
+        final WebContinuation root = this.manager.createWebContinuation("root", null, 0, "test", passivator);
+        final WebContinuation child = this.manager.createWebContinuation("child", root, 0, "test", passivator);
+        Thread.sleep(5);
+
+        this.manager.passivateContinuations();
+        assertEquals(1, passivator.passivated);
+        assertTrue(root.isPassivated());
+        assertTrue(child.isPassivated());
+        assertFalse(root.disposed());
+        assertEquals(2, this.manager.getPassivatedContinuations());
+        assertEquals(2, this.manager.getPassivationCount());
+        assertTrue(this.manager.getStoredBytes() > 0);
+
+        // a clone reads the object through its original
+        final WebContinuation clone = (WebContinuation) this.manager.getForest().iterator().next();
+        final WebContinuation childClone = (WebContinuation) clone.getChildren().get(0);
+        assertTrue(clone.isPassivated());
+        assertEquals("child", child.getContinuation());
+        assertEquals(1, passivator.activated);
+        assertFalse(root.isPassivated());
+        assertEquals("root", root.getContinuation());
+        assertEquals(0, this.manager.getPassivatedContinuations());
+        assertEquals(0, this.manager.getStoredBytes());
+
+        assertEquals("root", clone.getContinuation());
+        assertEquals("child", childClone.getContinuation());
+        assertEquals(1, passivator.activated);
+
+        // activated continuations are passivated again once idle
+        Thread.sleep(5);
+        this.manager.passivateContinuations();
+        assertEquals(2, passivator.passivated);
+        assertTrue(root.isPassivated());
+        final WebContinuation later = (WebContinuation) this.manager.getForest().iterator().next();
+        this.manager.invalidateWebContinuation(root);
+        assertNull(later.getContinuation());
+        assertTrue(later.disposed());
+        assertEquals(1, passivator.activated);
+    }
+
+    /**
+     * A continuation accessed while its tree is written keeps the tree in
+     * memory.
+     */
+    public void testAccessedWhilePassivating() throws Exception {
+        this.manager.dispose();
+        this.manager = createManager(0, 1);
+        final TestPassivator passivator = new TestPassivator();
+        final WebContinuation root = this.manager.createWebContinuation("root", null, 0, "test", passivator);
+        final WebContinuation child = this.manager.createWebContinuation("child", root, 0, "test", passivator);
+        passivator.access = child;
+        Thread.sleep(5);
+
+        this.manager.passivateContinuations();
+        assertEquals(1, passivator.passivated);
+        assertFalse(root.isPassivated());
+        assertFalse(child.isPassivated());
+        assertEquals("root", root.getContinuation());
+        assertEquals("child", child.getContinuation());
+        assertEquals(0, passivator.activated);
+        assertEquals(0, this.manager.getPassivationCount());
+        assertEquals(0, this.manager.getStoredBytes());
+    }
+
+    /**
+     * The record of a tree is freed once all its continuations are disposed
+     * of, without reading it back.
+     */
+    public void testDiscard() throws Exception {
+        this.manager.dispose();
+        this.manager = createManager(0, 1);
+        final TestPassivator passivator = new TestPassivator();
+        final WebContinuation root = this.manager.createWebContinuation("root", null, 0, "test", passivator);
+        final WebContinuation child = this.manager.createWebContinuation("child", root, 0, "test", passivator);
+        Thread.sleep(5);
+        this.manager.passivateContinuations();
+        final long stored = this.manager.getStoredBytes();
+        assertTrue(stored > 0);
+
+        this.manager.invalidateWebContinuation(child);
+        assertTrue(child.disposed());
+        assertEquals(stored, this.manager.getStoredBytes());
+        assertTrue(root.isPassivated());
+
+        this.manager.invalidateWebContinuation(root);
+        assertTrue(root.disposed());
+        assertEquals(0, this.manager.getStoredBytes());
+        assertEquals(0, passivator.activated);
+        assertEquals(2, passivator.disposed);
+    }
+
+    /**
+     * Writes the continuation objects, which are strings, and optionally
+     * accesses a continuation meanwhile.
+     */
+    private class TestPassivator implements ContinuationsPassivator {
+
+        int passivated;
+        int activated;
+        int disposed;
+        WebContinuation access;
+
+        public Object passivateContinuations(WebContinuation[] continuations, OutputStream out)
+        throws Exception {
+            this.passivated++;
+            final DataOutputStream data = new DataOutputStream(out);
+            for (int i = 0; i < continuations.length; i++) {
+                data.writeUTF((String) continuations[i].getContinuation());
+            }
+            data.flush();
+            if (this.access != null) {
+                manager.lookupWebContinuation(this.access.getId(), "test");
+            }
+            return new Integer(continuations.length);
+        }
+
+        public Object[] activateContinuations(WebContinuation[] continuations, InputStream in, Object context)
+        throws Exception {
+            this.activated++;
+            assertEquals(new Integer(continuations.length), context);
+            final DataInputStream data = new DataInputStream(in);
+            final Object[] objects = new Object[continuations.length];
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = data.readUTF();
+            }
+            return objects;
+        }
+
+        public void disposeContinuation(WebContinuation wk) {
+            this.disposed++;
+        }
+    }
+
+    private Settings newSettings() {
+        final String workDirectory = this.directory.getParent();
+        return (Settings) Proxy.newProxyInstance(
+                Settings.class.getClassLoader(),
+                new Class[] { Settings.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getWorkDirectory".equals(method.getName()) ? workDirectory : null;
+                    }
+                });
+    }
+
+    private static boolean isAlive(Thread[] threads) {
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i].isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class ContinuationsStoreTestCase extends TestCase {
+
+    private File directory;
+    private ContinuationsStore store;
+
+    protected void setUp() throws Exception {
+        this.directory = new File(System.getProperty("java.io.tmpdir"), "continuations-store-test");
+        this.store = new ContinuationsStore(this.directory);
+    }
+
+    protected void tearDown() throws Exception {
+        this.store.close();
+        this.directory.delete();
+    }
+
+    private byte[] bytes(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    public void testWriteRead() throws IOException {
+        ContinuationsStore.Record a = this.store.write(bytes(10, 1), 10);
+        ContinuationsStore.Record b = this.store.write(bytes(20, 2), 15);
+        assertEquals(25, this.store.getLength());
+        assertEquals(25, this.store.getLiveBytes());
+        assertTrue(Arrays.equals(bytes(10, 1), this.store.read(a)));
+        assertTrue(Arrays.equals(bytes(15, 2), this.store.read(b)));
+
+        this.store.free(a);
+        assertEquals(15, this.store.getLiveBytes());
+        assertEquals(1, this.store.getRecords());
+        try {
+            this.store.read(a);
+            fail("Read a freed record");
+        } catch (IOException e) {
+            // expected
+        }
+        // freeing twice is harmless
+        this.store.free(a);
+        assertEquals(15, this.store.getLiveBytes());
+    }
+
+    public void testCompaction() throws IOException {
+        final int size = 256 * 1024;
+        ContinuationsStore.Record[] records = new ContinuationsStore.Record[8];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = this.store.write(bytes(size, i), size);
+        }
+        assertEquals(8 * size, this.store.getLength());
+
+        // free every other record, the last one triggers the compaction
+        for (int i = 0; i < records.length; i += 2) {
+            this.store.free(records[i]);
+        }
+        this.store.free(records[7]);
+        assertEquals(1, this.store.getCompactions());
+        assertEquals(3 * size, this.store.getLength());
+        for (int i = 1; i < 7; i += 2) {
+            assertTrue(Arrays.equals(bytes(size, i), this.store.read(records[i])));
+        }
+
+        // records are appended after the compacted ones
+        ContinuationsStore.Record record = this.store.write(bytes(10, 9), 10);
+        assertTrue(Arrays.equals(bytes(10, 9), this.store.read(record)));
+        assertTrue(Arrays.equals(bytes(size, 5), this.store.read(records[5])));
+    }
+}
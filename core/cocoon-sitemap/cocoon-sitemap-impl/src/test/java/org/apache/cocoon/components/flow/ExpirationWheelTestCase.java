@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class ExpirationWheelTestCase extends TestCase {
+
+    public void testExpiration() {
+        ExpirationWheel wheel = new ExpirationWheel(10, 0);
+        // one item per level
+        wheel.schedule("a", 55);
+        wheel.schedule("b", 5000);
+        wheel.schedule("c", 300000);
+        assertFalse(wheel.schedule("a", 20));
+        assertEquals(3, wheel.size());
+
+        assertTrue(wheel.advance(50).isEmpty());
+        List due = wheel.advance(60);
+        assertEquals(1, due.size());
+        assertEquals("a", due.get(0));
+
+        assertTrue(wheel.advance(4990).isEmpty());
+        due = wheel.advance(5000);
+        assertEquals(1, due.size());
+        assertEquals("b", due.get(0));
+
+        assertTrue(wheel.advance(299990).isEmpty());
+        due = wheel.advance(300000);
+        assertEquals(1, due.size());
+        assertEquals("c", due.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testCancel() {
+        ExpirationWheel wheel = new ExpirationWheel(10, 0);
+        wheel.schedule("a", 100);
+        wheel.cancel("a");
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.advance(200).isEmpty());
+
+        // past deadlines are due at once
+        wheel.schedule("a", 100);
+        assertEquals(1, wheel.advance(200).size());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor.sitemap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.cocoon.components.pipeline.ProcessingPipeline;
+import org.apache.cocoon.components.treeprocessor.InvokeContext;
+import org.apache.cocoon.components.treeprocessor.variables.VariableResolver;
+import org.apache.cocoon.components.treeprocessor.variables.VariableResolverFactory;
+import org.apache.cocoon.environment.mock.MockEnvironment;
+import org.apache.cocoon.sitemap.ParallelContentAggregator;
+
+/**
+ * Test case for the parameters the {@link AggregateNode} passes to the
+ * content aggregator.
+ *
+ * @version $Id$
+ */
+public class AggregateNodeTestCase extends TestCase {
+
+    /** The parameters the aggregator has been set up with */
+    private Parameters parameters;
+
+    public void testSequential() throws Exception {
+        invoke(new AggregateNode(resolver("root"), resolver(""), resolver("")));
+        assertEquals(0, this.parameters.getNames().length);
+    }
+
+    public void testParallel() throws Exception {
+        invoke(new AggregateNode(resolver("root"), resolver(""), resolver(""),
+                                 resolver("true"), resolver("500"), null));
+        assertTrue(this.parameters.getParameterAsBoolean("parallel"));
+        assertEquals(500, this.parameters.getParameterAsLong("timeout"));
+        assertFalse(this.parameters.isParameter("thread-pool"));
+    }
+
+    public void testThreadPool() throws Exception {
+        invoke(new AggregateNode(resolver("root"), resolver(""), resolver(""),
+                                 resolver("true"), resolver("0"), resolver("aggregate")));
+        assertTrue(this.parameters.getParameterAsBoolean("parallel"));
+        assertEquals("aggregate", this.parameters.getParameter("thread-pool"));
+    }
+
+    private void invoke(AggregateNode node) throws Exception {
+        node.setParts(new AggregateNode.Part[0], new HashMap());
+        this.parameters = null;
+
+        final ParallelContentAggregator aggregator = (ParallelContentAggregator) newProxy(
+                ParallelContentAggregator.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+        final ProcessingPipeline pipeline = (ProcessingPipeline) newProxy(ProcessingPipeline.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("setGenerator".equals(method.getName())) {
+                    parameters = (Parameters) args[2];
+                } else if ("getGenerator".equals(method.getName())) {
+                    return aggregator;
+                }
+                return null;
+            }
+        });
+        InvokeContext context = new InvokeContext() {
+            public ProcessingPipeline getProcessingPipeline() {
+                return pipeline;
+            }
+        };
+
+        MockEnvironment env = new MockEnvironment();
+        env.setObjectModel(new HashMap());
+        assertFalse(node.invoke(env, context));
+        assertNotNull(this.parameters);
+    }
+
+    private static VariableResolver resolver(String expression) throws Exception {
+        return VariableResolverFactory.getResolver(expression, null);
+    }
+
+    private static Object newProxy(Class clazz, InvocationHandler handler) {
+        return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz }, handler);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor.sitemap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.avalon.framework.service.ServiceSelector;
+import org.apache.cocoon.components.treeprocessor.AbstractProcessingNode;
+import org.apache.cocoon.components.treeprocessor.InvokeContext;
+import org.apache.cocoon.components.treeprocessor.ProcessingNode;
+import org.apache.cocoon.components.treeprocessor.variables.VariableResolverFactory;
+import org.apache.cocoon.el.objectmodel.ObjectModel;
+import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.mock.MockEnvironment;
+import org.apache.cocoon.environment.mock.MockRequest;
+import org.apache.cocoon.matching.Matcher;
+import org.apache.cocoon.sitemap.impl.DefaultExecutor;
+
+/**
+ * Test case for the {@link URIMatchIndexNode}: the matches selected through
+ * the prefix trie have to behave like the same matches evaluated one after
+ * the other.
+ *
+ * @version $Id$
+ */
+public class URIMatchIndexNodeTestCase extends TestCase {
+
+    /** The patterns the matcher has been asked for, in order */
+    private List tried;
+
+    /** The pattern of the match whose children have been invoked */
+    private String winner;
+
+    private ServiceManager manager;
+
+
+    protected void setUp() throws Exception {
+        this.tried = new ArrayList();
+        this.winner = null;
+
+        final Matcher matcher = new TestMatcher();
+        final ServiceSelector selector = (ServiceSelector) newProxy(ServiceSelector.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "select".equals(method.getName()) ? matcher : null;
+            }
+        });
+        final ObjectModel objectModel = (ObjectModel) newProxy(ObjectModel.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+        this.manager = (ServiceManager) newProxy(ServiceManager.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("lookup".equals(method.getName())) {
+                    return ObjectModel.ROLE.equals(args[0]) ? (Object) objectModel : selector;
+                }
+                return "hasService".equals(method.getName()) ? Boolean.TRUE : null;
+            }
+        });
+    }
+
+    /**
+     * Prefixes which share their first characters: every match whose prefix
+     * the URI starts with is a candidate, the others are never evaluated.
+     */
+    public void testPrefixCollisions() throws Exception {
+        URIMatchIndexNode node = index(new String[] { "a/b", "a/**", "a/bc", "ab/**" });
+
+        assertTrue(invoke(node, "a/bc"));
+        assertEquals("a/**", this.winner);
+        assertEquals(Arrays.asList(new String[] { "a/b", "a/**" }), this.tried);
+
+        assertTrue(invoke(node, "ab/c"));
+        assertEquals("ab/**", this.winner);
+        assertEquals(Collections.singletonList("ab/**"), this.tried);
+
+        assertFalse(invoke(node, "a"));
+        assertEquals(Collections.EMPTY_LIST, this.tried);
+
+        assertFalse(invoke(node, "b/c"));
+        assertEquals(Collections.EMPTY_LIST, this.tried);
+    }
+
+    /**
+     * A match without a literal prefix is a candidate for every URI, so a URI
+     * which fails the more specific matches still falls through to it.
+     */
+    public void testWildcardFallthrough() throws Exception {
+        URIMatchIndexNode node = index(new String[] { "docs/index", "docs/**", "images/logo", "**" });
+
+        assertTrue(invoke(node, "docs/index"));
+        assertEquals("docs/index", this.winner);
+        assertEquals(Collections.singletonList("docs/index"), this.tried);
+
+        assertTrue(invoke(node, "images/logo.png"));
+        assertEquals("**", this.winner);
+        assertEquals(Arrays.asList(new String[] { "images/logo", "**" }), this.tried);
+
+        assertTrue(invoke(node, "unknown"));
+        assertEquals("**", this.winner);
+        assertEquals(Collections.singletonList("**"), this.tried);
+
+        assertTrue(invoke(node, ""));
+        assertEquals("**", this.winner);
+    }
+
+    /**
+     * A later match with a longer prefix must not win over an earlier match
+     * which matches as well.
+     */
+    public void testDeclarationOrder() throws Exception {
+        URIMatchIndexNode node = index(new String[] { "docs/**", "docs/api/**", "**", "docs/api/index" });
+
+        assertTrue(invoke(node, "docs/api/index"));
+        assertEquals("docs/**", this.winner);
+        assertEquals(Collections.singletonList("docs/**"), this.tried);
+
+        assertTrue(invoke(node, "other"));
+        assertEquals("**", this.winner);
+        assertEquals(Collections.singletonList("**"), this.tried);
+    }
+
+    /**
+     * The sitemap URI may start with a slash, which is not part of the prefixes.
+     */
+    public void testLeadingSlash() throws Exception {
+        URIMatchIndexNode node = index(new String[] { "docs/**", "images/**" });
+
+        assertTrue(invoke(node, "/images/logo"));
+        assertEquals("images/**", this.winner);
+        assertEquals(Collections.singletonList("images/**"), this.tried);
+    }
+
+    /**
+     * Without a sitemap URI all matches are evaluated in order.
+     */
+    public void testNoURI() throws Exception {
+        URIMatchIndexNode node = index(new String[] { "docs/**", "images/**", "**" });
+
+        assertFalse(invoke(node, null));
+        assertEquals(Arrays.asList(new String[] { "docs/**", "images/**", "**" }), this.tried);
+    }
+
+    /**
+     * Only runs of at least two consecutive URI matches are indexed, any other
+     * node ends a run and keeps its position.
+     */
+    public void testIndex() throws Exception {
+        ProcessingNode first = createMatch("a/**");
+        ProcessingNode second = createMatch("b/**");
+        ProcessingNode other = new ResultNode("other");
+        ProcessingNode third = createMatch("c/**");
+        MatchNode unindexed = createMatch("d/**");
+        unindexed.setURIPrefix(null);
+        ProcessingNode fourth = createMatch("e/**");
+
+        List result = URIMatchIndexNode.index(Arrays.asList(new ProcessingNode[] {
+            first, second, other, third, unindexed, fourth
+        }));
+
+        assertEquals(5, result.size());
+        assertTrue(result.get(0) instanceof URIMatchIndexNode);
+        assertSame(other, result.get(1));
+        assertSame(third, result.get(2));
+        assertSame(unindexed, result.get(3));
+        assertSame(fourth, result.get(4));
+    }
+
+    private URIMatchIndexNode index(String[] patterns) throws Exception {
+        ProcessingNode[] nodes = new ProcessingNode[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            nodes[i] = createMatch(patterns[i]);
+        }
+        return new URIMatchIndexNode(nodes);
+    }
+
+    /**
+     * Create a match with the prefix the pattern would get from a wildcard
+     * URI matcher.
+     */
+    private MatchNode createMatch(String pattern) throws Exception {
+        MatchNode node = new MatchNode("test", VariableResolverFactory.getResolver(pattern, this.manager), null);
+        int wildcard = pattern.indexOf('*');
+        node.setURIPrefix(wildcard == -1 ? pattern : pattern.substring(0, wildcard));
+        node.setSitemapExecutor(new DefaultExecutor());
+        node.service(this.manager);
+        node.setChildren(new ProcessingNode[] { new ResultNode(pattern) });
+        return node;
+    }
+
+    private boolean invoke(ProcessingNode node, String uri) throws Exception {
+        this.tried.clear();
+        this.winner = null;
+
+        MockEnvironment env = new MockEnvironment();
+        MockRequest request = new MockRequest();
+        if (uri != null) {
+            env.setURI("", uri);
+            request.setEnvironment(env);
+        }
+        Map objectModel = new HashMap();
+        objectModel.put(ObjectModelHelper.REQUEST_OBJECT, request);
+        env.setObjectModel(objectModel);
+
+        InvokeContext context = new InvokeContext();
+        context.service(this.manager);
+        return node.invoke(env, context);
+    }
+
+    private static Object newProxy(Class clazz, InvocationHandler handler) {
+        return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz }, handler);
+    }
+
+    /**
+     * Matches patterns ending with "**" as a prefix and any other pattern
+     * literally, and records the patterns it is asked for.
+     */
+    private class TestMatcher implements Matcher {
+
+        public Map match(String pattern, Map objectModel, Parameters parameters) {
+            tried.add(pattern);
+            String uri = ObjectModelHelper.getRequest(objectModel).getSitemapURI();
+            if (uri == null) {
+                return null;
+            }
+            if (uri.startsWith("/")) {
+                uri = uri.substring(1);
+            }
+            boolean matches;
+            if (pattern.endsWith("**")) {
+                matches = uri.startsWith(pattern.substring(0, pattern.length() - 2));
+            } else {
+                matches = uri.equals(pattern);
+            }
+            return matches ? new HashMap() : null;
+        }
+    }
+
+    /**
+     * The child of a match, which records that its match has been selected.
+     */
+    private class ResultNode extends AbstractProcessingNode {
+
+        private final String pattern;
+
+        public ResultNode(String pattern) {
+            this.pattern = pattern;
+        }
+
+        public boolean invoke(Environment env, InvokeContext context) {
+            winner = this.pattern;
+            return true;
+        }
+    }
+}
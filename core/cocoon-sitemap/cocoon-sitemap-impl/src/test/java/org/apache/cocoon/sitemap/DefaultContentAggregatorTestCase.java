@@ -0,0 +1,441 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.sitemap;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.cocoon.environment.SourceResolver;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.xml.SaxBuffer;
+import org.apache.cocoon.xml.XMLUtils;
+import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.xml.sax.XMLizable;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Test cases for the parallel aggregation of the
+ * {@link DefaultContentAggregator}.
+ *
+ * @version $Id$
+ */
+public class DefaultContentAggregatorTestCase extends TestCase {
+
+    private Map sources;
+    private List released;
+    private List started;
+    private List pools;
+    private boolean rejectTasks;
+    private ServiceManager manager;
+    private SourceResolver resolver;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.sources = new HashMap();
+        this.released = Collections.synchronizedList(new ArrayList());
+        this.started = Collections.synchronizedList(new ArrayList());
+        this.pools = Collections.synchronizedList(new ArrayList());
+        this.manager = newServiceManager();
+        this.resolver = newSourceResolver();
+    }
+
+    protected void tearDown() throws Exception {
+        RequestContextHolder.resetRequestAttributes();
+        super.tearDown();
+    }
+
+    public void testDocumentOrder() throws Exception {
+        this.sources.put("slow", new TestSource("slow", "first", 200));
+        this.sources.put("fast", new TestSource("fast", "second", 0));
+
+        final DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("slow", "", "", "false", "");
+        aggregator.addPart("fast", "", "", "false", "");
+        assertEquals("firstsecond", aggregate(aggregator));
+        assertEquals(2, this.started.size());
+
+        aggregator.recycle();
+        assertEquals(2, this.released.size());
+    }
+
+    public void testThreadPool() throws Exception {
+        this.sources.put("first", new TestSource("first", "first", 0));
+        this.sources.put("second", new TestSource("second", "second", 0));
+
+        final DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("first", "", "", "false", "");
+        aggregator.addPart("second", "", "", "false", "");
+        final Parameters parameters = parallelParameters("0");
+        parameters.setParameter("thread-pool", "aggregate");
+        aggregator.setup(this.resolver, null, null, parameters);
+        final SaxBuffer result = new SaxBuffer();
+        aggregator.setConsumer(result);
+        aggregator.generate();
+        assertEquals("firstsecond", result.toString());
+        assertEquals(Arrays.asList(new String[] { "aggregate", "aggregate" }), this.pools);
+        aggregator.recycle();
+
+        // without the parameter the default pool is used
+        final DefaultContentAggregator other = newAggregator();
+        other.addPart("first", "", "", "false", "");
+        other.addPart("second", "", "", "false", "");
+        assertEquals("firstsecond", aggregate(other));
+        assertEquals(2, this.pools.size());
+        assertEquals(4, this.started.size());
+    }
+
+    public void testTimeoutWithFallback() throws Exception {
+        final TestSource blocked = new TestSource("blocked", "late", -1);
+        this.sources.put("blocked", blocked);
+        this.sources.put("fast", new TestSource("fast", "fast", 0));
+        this.sources.put("fallback", new TestSource("fallback", "fallback", 0));
+
+        final DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("blocked", "", "", "false", "", "100", "fallback");
+        aggregator.addPart("fast", "", "", "false", "");
+        assertEquals("fallbackfast", aggregate(aggregator));
+
+        // must not wait for the part still loading
+        aggregator.recycle();
+        assertFalse("Loading part released too early", this.released.contains(blocked));
+
+        blocked.release();
+        for (int i = 0; i < 100 && !this.released.contains(blocked); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Cancelled part not released", this.released.contains(blocked));
+    }
+
+    public void testTimeoutWithoutFallback() throws Exception {
+        final TestSource blocked = new TestSource("blocked", "late", -1);
+        this.sources.put("blocked", blocked);
+        this.sources.put("fast", new TestSource("fast", "fast", 0));
+
+        final DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("blocked", "", "", "false", "");
+        aggregator.addPart("fast", "", "", "false", "");
+        assertEquals("fast", aggregate(aggregator, "100"));
+        aggregator.recycle();
+        blocked.release();
+    }
+
+    public void testFailure() throws Exception {
+        final TestSource failing = new TestSource("failing", "", 0);
+        failing.failure = new SAXException("Part failed");
+        this.sources.put("failing", failing);
+        this.sources.put("fast", new TestSource("fast", "fast", 0));
+
+        DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("failing", "", "", "false", "");
+        aggregator.addPart("fast", "", "", "false", "");
+        try {
+            aggregate(aggregator);
+            fail("Failure of a part must fail the aggregation");
+        } catch (SAXException e) {
+            assertEquals("Part failed", e.getMessage());
+        }
+        aggregator.recycle();
+
+        this.sources.put("fallback", new TestSource("fallback", "fallback", 0));
+        aggregator = newAggregator();
+        aggregator.addPart("failing", "", "", "false", "", "", "fallback");
+        aggregator.addPart("fast", "", "", "false", "");
+        assertEquals("fallbackfast", aggregate(aggregator));
+        aggregator.recycle();
+    }
+
+    public void testNestedAggregateIsSequential() throws Exception {
+        this.sources.put("a", new TestSource("a", "a", 0));
+        this.sources.put("b", new TestSource("b", "b", 0));
+        this.sources.put("nested", new TestSource("nested", "", 0) {
+            public void toSAX(ContentHandler handler) throws SAXException {
+                try {
+                    final DefaultContentAggregator nested = newAggregator();
+                    nested.addPart("a", "", "", "true", "");
+                    nested.addPart("b", "", "", "true", "");
+                    nested.setup(resolver, null, null, parallelParameters("0"));
+                    nested.setConsumer(new SaxBuffer() {
+                        public void characters(char[] ch, int start, int length) throws SAXException {
+                            handler.characters(ch, start, length);
+                        }
+                    });
+                    nested.generate();
+                    nested.recycle();
+                } catch (Exception e) {
+                    throw new SAXException(e);
+                }
+            }
+        });
+        this.sources.put("c", new TestSource("c", "c", 0));
+
+        final DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("nested", "", "", "false", "");
+        aggregator.addPart("c", "", "", "false", "");
+        assertEquals("abc", aggregate(aggregator));
+        assertEquals("Nested aggregate must not use the pool", 2, this.started.size());
+        aggregator.recycle();
+    }
+
+    public void testRejectedPartsAreLoadedInline() throws Exception {
+        this.rejectTasks = true;
+        this.sources.put("a", new TestSource("a", "a", 0));
+        this.sources.put("b", new TestSource("b", "b", 0));
+
+        final DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("a", "", "", "false", "");
+        aggregator.addPart("b", "", "", "false", "");
+        assertEquals("ab", aggregate(aggregator));
+        aggregator.recycle();
+    }
+
+    public void testPartsHaveOwnRequestScope() throws Exception {
+        final Map requestScope = new HashMap();
+        final Map sessionScope = new HashMap();
+        RequestContextHolder.setRequestAttributes(newRequestAttributes(requestScope, sessionScope));
+        requestScope.put("bean", "aggregating request");
+
+        final List destroyed = Collections.synchronizedList(new ArrayList());
+        final List seen = Collections.synchronizedList(new ArrayList());
+        for (int i = 0; i < 2; i++) {
+            final String name = "part" + i;
+            this.sources.put(name, new TestSource(name, name, 0) {
+                public void toSAX(ContentHandler handler) throws SAXException {
+                    final RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+                    seen.add(attributes.getAttribute("bean", RequestAttributes.SCOPE_REQUEST));
+                    attributes.setAttribute("bean", name, RequestAttributes.SCOPE_REQUEST);
+                    attributes.registerDestructionCallback("bean", new Runnable() {
+                        public void run() {
+                            destroyed.add(name);
+                        }
+                    }, RequestAttributes.SCOPE_REQUEST);
+                    attributes.setAttribute("shared", name, RequestAttributes.SCOPE_SESSION);
+                    super.toSAX(handler);
+                }
+            });
+        }
+
+        final DefaultContentAggregator aggregator = newAggregator();
+        aggregator.addPart("part0", "", "", "false", "");
+        aggregator.addPart("part1", "", "", "false", "");
+        assertEquals("part0part1", aggregate(aggregator));
+        aggregator.recycle();
+
+        assertEquals(Collections.nCopies(2, null), seen);
+        assertEquals(2, destroyed.size());
+        assertEquals("aggregating request", requestScope.get("bean"));
+        assertNotNull("Session scope must be shared", sessionScope.get("shared"));
+    }
+
+    private DefaultContentAggregator newAggregator() throws Exception {
+        final DefaultContentAggregator aggregator = new DefaultContentAggregator();
+        aggregator.service(this.manager);
+        aggregator.setRootElement("root", "", "");
+        return aggregator;
+    }
+
+    private String aggregate(DefaultContentAggregator aggregator) throws Exception {
+        return aggregate(aggregator, "0");
+    }
+
+    private String aggregate(DefaultContentAggregator aggregator, String timeout) throws Exception {
+        aggregator.setup(this.resolver, null, null, parallelParameters(timeout));
+        final SaxBuffer result = new SaxBuffer();
+        aggregator.setConsumer(result);
+        aggregator.generate();
+        return result.toString();
+    }
+
+    private static Parameters parallelParameters(String timeout) {
+        final Parameters parameters = new Parameters();
+        parameters.setParameter("parallel", "true");
+        parameters.setParameter("timeout", timeout);
+        return parameters;
+    }
+
+    private ServiceManager newServiceManager() {
+        final RunnableManager runnableManager = (RunnableManager) Proxy.newProxyInstance(
+                RunnableManager.class.getClassLoader(),
+                new Class[] { RunnableManager.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (rejectTasks) {
+                            throw new IllegalStateException("Pool exhausted");
+                        }
+                        if (args[0] instanceof String) {
+                            pools.add(args[0]);
+                        }
+                        for (int i = 0; i < args.length; i++) {
+                            if (args[i] instanceof Runnable) {
+                                started.add(args[i]);
+                                new Thread((Runnable) args[i]).start();
+                            }
+                        }
+                        return null;
+                    }
+                });
+        return (ServiceManager) Proxy.newProxyInstance(
+                ServiceManager.class.getClassLoader(),
+                new Class[] { ServiceManager.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("lookup".equals(method.getName())) {
+                            return runnableManager;
+                        } else if ("hasService".equals(method.getName())) {
+                            return Boolean.TRUE;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private SourceResolver newSourceResolver() {
+        return (SourceResolver) Proxy.newProxyInstance(
+                SourceResolver.class.getClassLoader(),
+                new Class[] { SourceResolver.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("resolveURI".equals(method.getName())) {
+                            return sources.get(args[0]);
+                        } else if ("release".equals(method.getName())) {
+                            released.add(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static RequestAttributes newRequestAttributes(final Map requestScope, final Map sessionScope) {
+        return (RequestAttributes) Proxy.newProxyInstance(
+                RequestAttributes.class.getClassLoader(),
+                new Class[] { RequestAttributes.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (args == null || args.length < 2) {
+                            return null;
+                        }
+                        final Map scope = ((Integer) args[args.length - 1]).intValue() == RequestAttributes.SCOPE_REQUEST
+                                          ? requestScope : sessionScope;
+                        if ("getAttribute".equals(method.getName())) {
+                            return scope.get(args[0]);
+                        } else if ("setAttribute".equals(method.getName())) {
+                            scope.put(args[0], args[1]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * A part producing an element with the given text, after a delay. A
+     * negative delay blocks the part until it is released.
+     */
+    private static class TestSource implements Source, XMLizable {
+        private final String uri;
+        private final String text;
+        private final long delay;
+        private boolean released;
+        SAXException failure;
+
+        TestSource(String uri, String text, long delay) {
+            this.uri = uri;
+            this.text = text;
+            this.delay = delay;
+        }
+
+        public void toSAX(ContentHandler handler) throws SAXException {
+            waitForDelay();
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            handler.startDocument();
+            handler.startElement("", this.uri, this.uri, XMLUtils.EMPTY_ATTRIBUTES);
+            handler.characters(this.text.toCharArray(), 0, this.text.length());
+            handler.endElement("", this.uri, this.uri);
+            handler.endDocument();
+        }
+
+        private synchronized void waitForDelay() {
+            try {
+                if (this.delay > 0) {
+                    wait(this.delay);
+                } else if (this.delay < 0) {
+                    while (!this.released) {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                /* ignored */
+            }
+        }
+
+        synchronized void release() {
+            this.released = true;
+            notifyAll();
+        }
+
+        public boolean exists() {
+            return true;
+        }
+
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        public String getURI() {
+            return this.uri;
+        }
+
+        public String getScheme() {
+            return "test";
+        }
+
+        public SourceValidity getValidity() {
+            return null;
+        }
+
+        public void refresh() {
+        }
+
+        public String getMimeType() {
+            return "text/xml";
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        public long getLastModified() {
+            return 0;
+        }
+    }
+}
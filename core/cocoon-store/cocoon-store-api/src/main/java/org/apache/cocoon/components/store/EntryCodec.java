@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store;
+
+import java.io.IOException;
+
+/**
+ * Converts the values of a store which keeps its entries outside of the
+ * heap, like the <code>MappedFileStore</code> of <code>cocoon-store-impl</code>,
+ * from and to bytes.
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public interface EntryCodec {
+
+    /**
+     * Encode the value.
+     *
+     * @param value the value to encode
+     * @return the encoded value, or <code>null</code> if the value can not be
+     *         encoded by this codec
+     * @throws IOException
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * Decode a value which was encoded by {@link #encode(Object)}.
+     *
+     * @param data the encoded value
+     * @return the value
+     * @throws IOException if the data can not be decoded
+     */
+    Object decode(byte[] data) throws IOException;
+}
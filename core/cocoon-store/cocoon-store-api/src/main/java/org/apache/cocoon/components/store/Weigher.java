@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store;
+
+/**
+ * Calculates the weight of a store entry. Stores that support a weight bound,
+ * like the memory stores of <code>cocoon-store-impl</code> with a
+ * <code>maxWeight</code>, evict entries until the sum of the weights of all
+ * held entries fits into that bound.
+ *
+ * <p>Components which know the objects they put into a store provide their
+ * own weigher by implementing this interface, without depending on a store
+ * implementation.</p>
+ *
+ * @version $Id$
+ * @since 2.2
+ */
+public interface Weigher {
+
+    /**
+     * Returns the weight of the entry. The weight must be positive and must
+     * not change while the entry is held by the store.
+     *
+     * @param key the key of the entry
+     * @param value the value of the entry
+     * @return the weight of the entry, at least 1
+     */
+    int weigh(Object key, Object value);
+}
@@ -25,6 +25,7 @@ import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
 import org.apache.avalon.framework.parameters.ParameterException;
+import org.apache.cocoon.components.store.Weigher;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.excalibur.store.Store;
@@ -47,6 +48,12 @@ public class MRUMemoryStore implements Store {
 
     private int maxObjects = MAX_OBJECTS;
 
+    private long maxWeight = -1;
+
+    private Weigher weigher;
+
+    private long weightedSize;
+
     protected boolean persistent;
 
     private Store persistentStore;
@@ -77,6 +84,28 @@ public class MRUMemoryStore implements Store {
         this.maxObjects = maxobjects;
     }
 
+    /**
+     * The maximum total weight of the held objects, usually their estimated
+     * size in bytes. The limit is enforced whenever an object is added; an
+     * object that is heavier than the limit is not held at all. If not set,
+     * the store is only bounded by the number of objects.
+     *
+     * @param maxWeight
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * The weigher used to calculate the weight of each object. If a maximum
+     * weight is set but no weigher, an {@link ObjectSizeWeigher} is used.
+     *
+     * @param weigher
+     */
+    public void setWeigher(Weigher weigher) {
+        this.weigher = weigher;
+    }
+
     /**
      * @param persistent
      */
@@ -117,6 +146,12 @@ public class MRUMemoryStore implements Store {
 
         this.persistent = this.persistentStore != null;
 
+        if (this.maxWeight < 1) {
+            this.weigher = null;
+        } else if (this.weigher == null) {
+            this.weigher = new ObjectSizeWeigher();
+        }
+
         this.cache = new Hashtable((int) (this.maxObjects * 1.2));
         this.mrulist = new LinkedList();
         if (this.storeJanitor != null) {
@@ -185,6 +220,25 @@ public class MRUMemoryStore implements Store {
             getLogger().debug("  key: " + key);
             getLogger().debug("  value: " + value);
         }
+        final long weight = weigh(key, value);
+        if (weight > 0) {
+            /** ...drop a previous object of that key first, it must not count twice... */
+            Object old = this.cache.remove(key);
+            if (old != null) {
+                this.mrulist.remove(key);
+                this.weightedSize -= weigh(key, old);
+            }
+            if (weight > this.maxWeight) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Object is heavier than the store (" + weight + "), not holding it.");
+                }
+                return;
+            }
+            /** ...make room until the new object fits into the weight limit... */
+            while (this.weightedSize + weight > this.maxWeight && this.cache.size() > 0) {
+                free();
+            }
+        }
         /** ...first test if the max. objects in cache is reached... */
         while (this.mrulist.size() >= this.maxObjects) {
             /** ...ok, heapsize is reached, remove the last element... */
@@ -194,6 +248,7 @@ public class MRUMemoryStore implements Store {
         this.cache.put(key, value);
         this.mrulist.remove(key);
         this.mrulist.addFirst(key);
+        this.weightedSize += weight;
     }
 
     /**
@@ -247,8 +302,11 @@ public class MRUMemoryStore implements Store {
             getLogger().debug("Removing object from store");
             getLogger().debug("  key: " + key);
         }
-        this.cache.remove(key);
+        Object value = this.cache.remove(key);
         this.mrulist.remove(key);
+        if (value != null) {
+            this.weightedSize -= weigh(key, value);
+        }
 
         if (this.persistent && key != null) {
             this.persistentStore.remove(key);
@@ -301,6 +359,24 @@ public class MRUMemoryStore implements Store {
         return this.cache.size();
     }
 
+    /**
+     * Returns the total weight of the objects in the store, or 0 if no
+     * maximum weight is configured.
+     */
+    public synchronized long getWeightedSize() {
+        return this.weightedSize;
+    }
+
+    /**
+     * Calculate the weight of an entry, 0 if weights are not tracked.
+     */
+    private long weigh(Object key, Object value) {
+        if (this.weigher == null) {
+            return 0;
+        }
+        return Math.max(1, this.weigher.weigh(key, value));
+    }
+
     /**
      * Frees some of the fast memory used by this store. It removes the last
      * element in the store.
@@ -313,6 +389,8 @@ public class MRUMemoryStore implements Store {
                 Object value = this.cache.remove(key);
                 if (value == null) {
                     getLogger().warn("Concurrency condition in free()");
+                } else {
+                    this.weightedSize -= weigh(key, value);
                 }
 
                 if (getLogger().isDebugEnabled()) {
@@ -0,0 +1,720 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.cocoon.components.store.EntryCodec;
+import org.apache.cocoon.configuration.Settings;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.util.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.excalibur.store.Store;
+
+/**
+ * A persistent store which keeps its entries outside of the heap in memory
+ * mapped segment files. It is meant as the second level behind an in-memory
+ * store (see {@link MRUMemoryStore#setPersistentStore(Store)}) for large
+ * caches, where one file per entry (like the {@link FilesystemStore} writes)
+ * becomes too expensive.
+ *
+ * <p>Each segment file is an append-only log of records. A record holds the
+ * serialized key and the value as encoded by the configured
+ * {@link EntryCodec}, and is protected by a CRC32 checksum. Removals are
+ * logged as tombstone records. Only the position of every live record is
+ * kept on the heap; the index is rebuilt by replaying the segments when the
+ * store is started, so the cache survives a restart (or a crash, up to the
+ * last record which was completely written).</p>
+ *
+ * <p>When the active segment is full, a new one is started. If there are
+ * more than <code>maxSegments</code> segments, the oldest one is dropped
+ * with all its entries. A background task compacts the oldest segment when
+ * less than <code>compactionThreshold</code> percent of it are still live,
+ * by copying the live records to the active segment. Only the oldest segment
+ * is ever dropped or compacted, so a tombstone can never be lost while an
+ * older record of the same key is still around.</p>
+ *
+ * <p>Configuration:
+ * <ul>
+ *  <li><b>directory</b>: Directory of the segment files, relative to the work
+ *      directory (Default: the <code>mapped-store</code> sub directory of the
+ *      cache directory)</li>
+ *  <li><b>segmentSize</b>: Size of a segment file in bytes (Default: 64MB)</li>
+ *  <li><b>maxSegments</b>: Maximum number of segment files (Default: 16)</li>
+ *  <li><b>compactionThreshold</b>: Live percentage below which the oldest
+ *      segment is compacted (Default: 50)</li>
+ *  <li><b>compactionInterval</b>: Seconds between compaction runs (Default: 60).
+ *      Compaction needs a <code>runnableManager</code>.</li>
+ *  <li><b>codec</b>: The {@link EntryCodec} of the values
+ *      (Default: {@link SerializingEntryCodec})</li>
+ * </ul></p>
+ *
+ * @version $Id$
+ */
+public class MappedFileStore implements Store, Runnable {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int COMPACTION_THRESHOLD = 50;
+    private static final int COMPACTION_INTERVAL = 60;
+    private static final String THREAD_POOL = "daemon";
+    private static final String DIRECTORY = "mapped-store";
+    private static final String SUFFIX = ".seg";
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /** Record header: total length of key and value, key length, type, crc */
+    private static final int RECORD_HEADER = 4 + 4 + 1 + 4;
+
+    /** By default we use the logger for this class. */
+    private Log logger = LogFactory.getLog(getClass());
+
+    private Settings settings;
+    private String directory;
+    private int segmentSize = SEGMENT_SIZE;
+    private int maxSegments = MAX_SEGMENTS;
+    private int compactionThreshold = COMPACTION_THRESHOLD;
+    private int compactionInterval = COMPACTION_INTERVAL;
+    private String threadPool = THREAD_POOL;
+    private RunnableManager runnableManager;
+    private EntryCodec codec = new SerializingEntryCodec();
+
+    private File segmentDirectory;
+
+    /** All segments, the oldest first. */
+    private final List segments = new ArrayList();
+
+    /** The segment records are appended to. */
+    private Segment active;
+
+    private long nextSegmentId;
+
+    /** Key to {@link Location} */
+    private final ConcurrentHashMap index = new ConcurrentHashMap();
+
+    /** Read access to the segments, write access to modify them. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * @param settings
+     */
+    public void setSettings(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Directory of the segment files, relative to the work directory.
+     *
+     * @param directory
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Size of a segment file in bytes. Entries larger than a segment are not
+     * stored. (Default: 64MB)
+     *
+     * @param segmentSize
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Maximum number of segment files. (Default: 16)
+     *
+     * @param maxSegments
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Live percentage below which the oldest segment is compacted.
+     * (Default: 50)
+     *
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Seconds between compaction runs. (Default: 60)
+     *
+     * @param compactionInterval
+     */
+    public void setCompactionInterval(int compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    /**
+     * Name of the thread pool for the compaction. (Default: 'daemon')
+     *
+     * @param threadPool
+     */
+    public void setThreadPool(String threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * The <code>RunnableManager</code> used for the compaction. Without it,
+     * segments are never compacted, only dropped.
+     *
+     * @param runnableManager
+     */
+    public void setRunnableManager(RunnableManager runnableManager) {
+        this.runnableManager = runnableManager;
+    }
+
+    /**
+     * @param codec
+     */
+    public void setCodec(EntryCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Initialize the store and rebuild the index from the segment files.
+     *
+     * @throws Exception
+     */
+    public void init() throws Exception {
+        if (this.segmentSize < 1024) {
+            throw new Exception("MappedFileStore segmentSize must be at least 1024 bytes");
+        }
+        if (this.maxSegments < 2) {
+            throw new Exception("MappedFileStore maxSegments must be at least 2");
+        }
+        if (this.compactionThreshold < 0 || this.compactionThreshold > 100) {
+            throw new Exception("MappedFileStore compactionThreshold has to be between 0 and 100");
+        }
+
+        if (this.directory != null) {
+            this.segmentDirectory = new File(IOUtils.getContextFilePath(this.settings.getWorkDirectory(),
+                                                                        this.directory));
+        } else {
+            this.segmentDirectory = new File(this.settings.getCacheDirectory(), DIRECTORY);
+        }
+        if (!this.segmentDirectory.isDirectory() && !this.segmentDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory " + this.segmentDirectory);
+        }
+
+        recover();
+
+        if (this.runnableManager != null && this.compactionInterval > 0) {
+            final long interval = this.compactionInterval * 1000L;
+            this.runnableManager.execute(this.threadPool, this, interval, interval);
+        }
+    }
+
+    /**
+     * Dispose the component
+     */
+    public void destroy() {
+        if (this.runnableManager != null) {
+            this.runnableManager.remove(this);
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            for (Iterator i = this.segments.iterator(); i.hasNext();) {
+                ((Segment) i.next()).close();
+            }
+            this.segments.clear();
+            this.index.clear();
+            this.active = null;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the object associated to the given unique key.
+     */
+    public Object get(Object key) {
+        byte[] data;
+        this.lock.readLock().lock();
+        try {
+            Location location = (Location) this.index.get(key);
+            if (location == null) {
+                return null;
+            }
+            data = location.readValue();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        try {
+            return this.codec.decode(data);
+        } catch (IOException e) {
+            getLogger().warn("Unable to decode entry " + key + ", removing it.", e);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store the given object. Keys have to be serializable, values have to be
+     * supported by the codec; other entries are ignored.
+     */
+    public void store(Object key, Object value) throws IOException {
+        final byte[] keyBytes = encodeKey(key);
+        final byte[] valueBytes = keyBytes == null ? null : this.codec.encode(value);
+        if (valueBytes == null) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Unable to store entry " + key + ", key or value can not be encoded.");
+            }
+            return;
+        }
+        if (RECORD_HEADER + keyBytes.length + valueBytes.length > this.segmentSize) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Entry " + key + " is larger than a segment, not storing it.");
+            }
+            remove(key);
+            return;
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            Location location = append(RECORD_PUT, keyBytes, valueBytes, true);
+            location.segment.liveBytes += location.length();
+            unlink((Location) this.index.put(key, location));
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This store does not use the heap for its entries, there is nothing to
+     * free.
+     */
+    public void free() {
+        // nothing to do
+    }
+
+    /**
+     * Remove the object associated to the given key.
+     */
+    public void remove(Object key) {
+        this.lock.writeLock().lock();
+        try {
+            Location location = (Location) this.index.remove(key);
+            if (location != null) {
+                unlink(location);
+                byte[] keyBytes = encodeKey(key);
+                if (keyBytes != null) {
+                    append(RECORD_REMOVE, keyBytes, new byte[0], true);
+                }
+            }
+        } catch (IOException e) {
+            getLogger().error("Unable to log the removal of " + key, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Clear the Store of all elements
+     */
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            for (Iterator i = this.segments.iterator(); i.hasNext();) {
+                ((Segment) i.next()).delete();
+            }
+            this.segments.clear();
+            this.index.clear();
+            this.active = null;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indicates if the given key is associated to a contained object.
+     */
+    public boolean containsKey(Object key) {
+        return this.index.containsKey(key);
+    }
+
+    /**
+     * Returns the list of used keys as an Enumeration.
+     */
+    public Enumeration keys() {
+        return this.index.keys();
+    }
+
+    /**
+     * Returns count of the objects in the store.
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Returns the number of segment files.
+     */
+    public int getSegmentCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.segments.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compact the oldest segments. Called periodically by the
+     * <code>RunnableManager</code>.
+     */
+    public void run() {
+        this.lock.writeLock().lock();
+        try {
+            while (this.segments.size() > 1) {
+                Segment oldest = (Segment) this.segments.get(0);
+                if (oldest == this.active
+                        || oldest.liveBytes * 100 >= (long) oldest.position * this.compactionThreshold) {
+                    break;
+                }
+                compact(oldest);
+            }
+        } catch (IOException e) {
+            getLogger().error("Error while compacting the segments", e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Move the live records of the segment to the active segment and delete
+     * it. Must be called holding the write lock.
+     */
+    private void compact(Segment segment) throws IOException {
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Compacting segment " + segment.file + " (" + segment.liveBytes
+                              + " of " + segment.position + " bytes live)");
+        }
+        for (Iterator i = this.index.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            Location location = (Location) entry.getValue();
+            if (location.segment == segment) {
+                // Don't drop segments while moving, this one is still in use
+                Location moved = append(RECORD_PUT, location.readKey(), location.readValue(), false);
+                moved.segment.liveBytes += moved.length();
+                entry.setValue(moved);
+            }
+        }
+        this.segments.remove(segment);
+        segment.delete();
+        dropOverflow();
+    }
+
+    /**
+     * Append a record to the active segment. Must be called holding the
+     * write lock.
+     */
+    private Location append(byte type, byte[] key, byte[] value, boolean dropOverflow) throws IOException {
+        final int length = RECORD_HEADER + key.length + value.length;
+        if (this.active == null || this.active.position + length > this.active.capacity()) {
+            if (this.active != null) {
+                this.active.buffer.force();
+            }
+            this.active = createSegment();
+            if (dropOverflow) {
+                dropOverflow();
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(key);
+        crc.update(value);
+
+        final Segment segment = this.active;
+        final int offset = segment.position;
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + 4);
+        buffer.putInt(key.length);
+        buffer.put(type);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(key);
+        buffer.put(value);
+        // The length is written last, it marks the record as complete
+        buffer.putInt(offset, key.length + value.length);
+        segment.position = offset + length;
+
+        return new Location(segment, offset, key.length, value.length);
+    }
+
+    /**
+     * Drop the oldest segments with all their entries if there are too
+     * many. Must be called holding the write lock.
+     */
+    private void dropOverflow() {
+        while (this.segments.size() > this.maxSegments) {
+            Segment oldest = (Segment) this.segments.remove(0);
+            for (Iterator i = this.index.values().iterator(); i.hasNext();) {
+                if (((Location) i.next()).segment == oldest) {
+                    i.remove();
+                }
+            }
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Dropping segment " + oldest.file);
+            }
+            oldest.delete();
+        }
+    }
+
+    private void unlink(Location location) {
+        if (location != null) {
+            location.segment.liveBytes -= location.length();
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        String name = Long.toHexString(this.nextSegmentId++);
+        while (name.length() < 16) {
+            name = "0" + name;
+        }
+        Segment segment = new Segment(new File(this.segmentDirectory, name + SUFFIX));
+        segment.open(this.segmentSize);
+        this.segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Rebuild the index by replaying all segment files in order.
+     */
+    private void recover() throws IOException {
+        File[] files = this.segmentDirectory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = new Segment(files[i]);
+            try {
+                String name = files[i].getName();
+                long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+                this.nextSegmentId = Math.max(this.nextSegmentId, id + 1);
+                segment.open(-1);
+            } catch (Exception e) {
+                getLogger().warn("Ignoring invalid segment file " + files[i], e);
+                segment.delete();
+                continue;
+            }
+            this.segments.add(segment);
+            replay(segment);
+        }
+
+        if (!this.segments.isEmpty()) {
+            this.active = (Segment) this.segments.get(this.segments.size() - 1);
+            this.active.clearTail();
+        }
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Recovered " + this.index.size() + " entries from "
+                              + this.segments.size() + " segments in " + this.segmentDirectory);
+        }
+    }
+
+    private void replay(Segment segment) {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        final int capacity = segment.capacity();
+        int offset = 0;
+        while (offset + RECORD_HEADER <= capacity) {
+            int length = buffer.getInt(offset);
+            int keyLength = buffer.getInt(offset + 4);
+            byte type = buffer.get(offset + 8);
+            int crc = buffer.getInt(offset + 9);
+            if (length <= 0 || keyLength <= 0 || keyLength > length
+                    || length > capacity - offset - RECORD_HEADER
+                    || (type != RECORD_PUT && type != RECORD_REMOVE)) {
+                break;
+            }
+            Location location = new Location(segment, offset, keyLength, length - keyLength);
+            byte[] key = location.readKey();
+            byte[] value = location.readValue();
+            CRC32 check = new CRC32();
+            check.update(type);
+            check.update(key);
+            check.update(value);
+            if ((int) check.getValue() != crc) {
+                getLogger().warn("Corrupt record in segment " + segment.file + " at " + offset
+                                 + ", ignoring the rest of the segment.");
+                break;
+            }
+            offset += location.length();
+
+            Object object;
+            try {
+                object = SerializingEntryCodec.deserialize(key, 0, key.length);
+            } catch (IOException e) {
+                getLogger().debug("Ignoring record with an unreadable key in " + segment.file, e);
+                continue;
+            }
+            if (type == RECORD_PUT) {
+                segment.liveBytes += location.length();
+                unlink((Location) this.index.put(object, location));
+            } else {
+                unlink((Location) this.index.remove(object));
+            }
+        }
+        segment.position = offset;
+    }
+
+    private byte[] encodeKey(Object key) throws IOException {
+        if (!(key instanceof Serializable)) {
+            return null;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+        SerializingEntryCodec.serialize(key, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * A segment file.
+     */
+    private static final class Segment {
+        final File file;
+        MappedByteBuffer buffer;
+        int position;
+        long liveBytes;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Map the file; create it with the given size if it is positive.
+         */
+        void open(int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                if (size > 0) {
+                    raf.setLength(size);
+                }
+                FileChannel channel = raf.getChannel();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            } finally {
+                // The mapping stays valid after closing the file
+                raf.close();
+            }
+        }
+
+        int capacity() {
+            return this.buffer.capacity();
+        }
+
+        /**
+         * Zero the unused part behind the last valid record, which may hold
+         * a partially written record.
+         */
+        void clearTail() {
+            for (int i = this.position; i < capacity(); i++) {
+                if (this.buffer.get(i) != 0) {
+                    for (int j = this.position; j < capacity(); j++) {
+                        this.buffer.put(j, (byte) 0);
+                    }
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            if (this.buffer != null) {
+                this.buffer.force();
+                // The mapping is released by the garbage collector
+                this.buffer = null;
+            }
+        }
+
+        void delete() {
+            this.buffer = null;
+            this.file.delete();
+        }
+    }
+
+    /**
+     * The position of a record.
+     */
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int valueLength;
+
+        Location(Segment segment, int offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        int length() {
+            return RECORD_HEADER + this.keyLength + this.valueLength;
+        }
+
+        byte[] readKey() {
+            return read(this.offset + RECORD_HEADER, this.keyLength);
+        }
+
+        byte[] readValue() {
+            return read(this.offset + RECORD_HEADER + this.keyLength, this.valueLength);
+        }
+
+        private byte[] read(int position, int length) {
+            byte[] data = new byte[length];
+            ByteBuffer buffer = this.segment.buffer.duplicate();
+            buffer.position(position);
+            buffer.get(data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Iterator;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * A {@link CocoonStoreJanitor} which does not poll the heap. Instead it sets a
+ * collection usage threshold on the heap memory pools of the JVM and frees
+ * the registered stores only when the JVM reports that a pool is still above
+ * that threshold after a garbage collection. Short-lived allocation spikes in
+ * the young generation therefore never wipe the caches.
+ *
+ * <p>This janitor is meant as a fallback for stores which are not bounded by
+ * weight (see {@link MRUMemoryStore#setMaxWeight(long)}). It accepts the
+ * properties of the {@link CocoonStoreJanitor}, so only the class of the
+ * janitor bean has to be changed. The <code>freeMemory</code>,
+ * <code>heapSize</code>, <code>cleanupThreadInterval</code>,
+ * <code>invokeGC</code>, <code>threadPool</code> and
+ * <code>runnableManager</code> properties are not used, as the notification
+ * always follows a garbage collection and no thread is needed.</p>
+ *
+ * <p>Additional parameter:
+ * <ul>
+ *  <li><b>usageThreshold</b>: Percentage of the maximum size of a heap memory
+ *      pool which triggers the freeing of the stores when it is still in use
+ *      after a garbage collection (Default: 80%)</li>
+ * </ul></p>
+ *
+ * @version $Id$
+ */
+public class MemoryPoolStoreJanitor extends CocoonStoreJanitor
+                                    implements NotificationListener {
+
+    private static final int USAGE_THRESHOLD = 80;
+
+    private int usageThreshold = USAGE_THRESHOLD;
+
+    /** Has this janitor registered as a listener? */
+    private boolean listening;
+
+
+    /**
+     * Percentage of the maximum size of a heap memory pool which triggers the
+     * freeing of the stores when it is still in use after a garbage
+     * collection. If not specified, defaults to 80%.
+     *
+     * @param usageThreshold
+     */
+    public void setUsageThreshold(int usageThreshold) {
+        this.usageThreshold = usageThreshold;
+    }
+
+    /**
+     * Install the usage thresholds and start listening to the memory
+     * notifications of the JVM.
+     *
+     * @see org.apache.cocoon.components.store.impl.StoreJanitorImpl#doStart()
+     */
+    protected void doStart() throws Exception {
+        if (this.usageThreshold < 1 || this.usageThreshold > 100) {
+            throw new Exception("MemoryPoolStoreJanitor usageThreshold has to be between 1 and 100");
+        }
+
+        int pools = 0;
+        for (Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator(); i.hasNext();) {
+            MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                long threshold = max / 100 * this.usageThreshold;
+                pool.setCollectionUsageThreshold(threshold);
+                pools++;
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Collection usage threshold of memory pool " + pool.getName()
+                                      + " set to " + threshold + " bytes");
+                }
+            }
+        }
+
+        if (pools == 0) {
+            getLogger().warn("No heap memory pool supports collection usage thresholds, "
+                             + "stores will not be freed on low memory.");
+            return;
+        }
+
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+        this.listening = true;
+    }
+
+    /**
+     * Stop listening to the memory notifications.
+     *
+     * @see org.apache.cocoon.components.store.impl.StoreJanitorImpl#doStop()
+     */
+    protected void doStop() {
+        if (this.listening) {
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+            } catch (ListenerNotFoundException ignore) {
+                /* ignored */
+            }
+            this.listening = false;
+        }
+    }
+
+    /**
+     * Not used, this janitor has no checker thread.
+     *
+     * @see org.apache.cocoon.components.store.impl.CocoonStoreJanitor#start()
+     */
+    public void start() {
+        // nothing to do
+    }
+
+    /**
+     * Not used, this janitor has no checker thread.
+     *
+     * @see org.apache.cocoon.components.store.impl.CocoonStoreJanitor#run()
+     */
+    public void run() {
+        // nothing to do
+    }
+
+    /**
+     * Free the stores when a heap memory pool exceeds its collection usage
+     * threshold.
+     *
+     * @see javax.management.NotificationListener#handleNotification(javax.management.Notification, java.lang.Object)
+     */
+    public void handleNotification(Notification notification, Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            return;
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Memory is low: " + notification.getMessage());
+        }
+        freeStores();
+    }
+}
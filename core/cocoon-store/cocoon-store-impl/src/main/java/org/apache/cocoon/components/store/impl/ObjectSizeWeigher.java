@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import org.apache.cocoon.components.store.Weigher;
+
+/**
+ * A {@link Weigher} which estimates the number of bytes an entry occupies on
+ * the heap. Byte and character arrays and strings are estimated from their
+ * length, arrays of objects from their elements. All other objects count with
+ * a configurable default size; subclasses can override
+ * {@link #estimate(Object)} to recognize more types.
+ *
+ * <p>The estimates include the object headers of a 64 bit JVM with
+ * compressed references. They do not have to be exact, they only have to be
+ * proportional to what the entries really cost.</p>
+ *
+ * @version $Id$
+ */
+public class ObjectSizeWeigher implements Weigher {
+
+    /** Size of an object header. */
+    protected static final int OBJECT_HEADER = 16;
+
+    /** Size of an array header. */
+    protected static final int ARRAY_HEADER = 16;
+
+    /** Size of a reference. */
+    protected static final int REFERENCE = 4;
+
+    private static final int DEFAULT_OBJECT_SIZE = 256;
+
+    private int defaultObjectSize = DEFAULT_OBJECT_SIZE;
+
+
+    /**
+     * The size assumed for objects of an unknown type.
+     * (Default: 256 bytes)
+     *
+     * @param defaultObjectSize
+     */
+    public void setDefaultObjectSize(int defaultObjectSize) {
+        this.defaultObjectSize = defaultObjectSize;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.store.Weigher#weigh(java.lang.Object, java.lang.Object)
+     */
+    public int weigh(Object key, Object value) {
+        long size = estimate(key) + estimate(value);
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(1, size);
+    }
+
+    /**
+     * Estimate the heap size of the object in bytes.
+     *
+     * @param object the object, may be <code>null</code>
+     * @return the estimated size in bytes
+     */
+    protected long estimate(Object object) {
+        if (object == null) {
+            return 0;
+        }
+        if (object instanceof byte[]) {
+            return align(ARRAY_HEADER + ((byte[]) object).length);
+        }
+        if (object instanceof char[]) {
+            return align(ARRAY_HEADER + 2L * ((char[]) object).length);
+        }
+        if (object instanceof String) {
+            return sizeOf((String) object);
+        }
+        if (object instanceof Number || object instanceof Boolean || object instanceof Character) {
+            return OBJECT_HEADER + 8;
+        }
+        if (object instanceof Object[]) {
+            Object[] array = (Object[]) object;
+            long size = align(ARRAY_HEADER + (long) REFERENCE * array.length);
+            for (int i = 0; i < array.length; i++) {
+                size += estimate(array[i]);
+            }
+            return size;
+        }
+        return this.defaultObjectSize;
+    }
+
+    /**
+     * Estimate the heap size of a string in bytes.
+     */
+    protected static long sizeOf(String string) {
+        if (string == null) {
+            return 0;
+        }
+        return OBJECT_HEADER + 8 + align(ARRAY_HEADER + 2L * string.length());
+    }
+
+    /**
+     * Round up to the 8 byte object alignment.
+     */
+    protected static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
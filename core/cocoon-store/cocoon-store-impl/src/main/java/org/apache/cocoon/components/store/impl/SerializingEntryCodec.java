@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import org.apache.cocoon.components.store.EntryCodec;
+
+/**
+ * The default {@link EntryCodec}: byte arrays are stored as they are, all
+ * other serializable objects are serialized.
+ *
+ * @version $Id$
+ */
+public class SerializingEntryCodec implements EntryCodec {
+
+    /** Marks a raw byte array. */
+    protected static final byte TYPE_BYTES = 0;
+
+    /** Marks a serialized object. */
+    protected static final byte TYPE_SERIALIZED = 1;
+
+    /**
+     * @see org.apache.cocoon.components.store.EntryCodec#encode(java.lang.Object)
+     */
+    public byte[] encode(Object value) throws IOException {
+        if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            byte[] data = new byte[bytes.length + 1];
+            data[0] = TYPE_BYTES;
+            System.arraycopy(bytes, 0, data, 1, bytes.length);
+            return data;
+        }
+        if (!(value instanceof Serializable)) {
+            return null;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        buffer.write(TYPE_SERIALIZED);
+        serialize(value, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @see org.apache.cocoon.components.store.EntryCodec#decode(byte[])
+     */
+    public Object decode(byte[] data) throws IOException {
+        if (data.length == 0) {
+            throw new IOException("Empty entry");
+        }
+        switch (data[0]) {
+            case TYPE_BYTES:
+                byte[] bytes = new byte[data.length - 1];
+                System.arraycopy(data, 1, bytes, 0, bytes.length);
+                return bytes;
+            case TYPE_SERIALIZED:
+                return deserialize(data, 1, data.length - 1);
+            default:
+                throw new IOException("Unknown entry type " + data[0]);
+        }
+    }
+
+    /**
+     * Serialize the object to the stream.
+     */
+    protected static void serialize(Object object, OutputStream out) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(object);
+        oos.flush();
+    }
+
+    /**
+     * Deserialize an object from a part of the array.
+     */
+    protected static Object deserialize(byte[] data, int offset, int length) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to deserialize entry: " + e.getMessage());
+        } finally {
+            ois.close();
+        }
+    }
+}
@@ -239,7 +239,13 @@ public class StoreJanitorImpl implements StoreJanitor, Runnable {
         doStart();
     }
 
-    private void doStart() throws Exception {
+    /**
+     * Start the memory checks. By default a "checker" thread is spawned
+     * which polls the memory usage.
+     *
+     * @throws Exception
+     */
+    protected void doStart() throws Exception {
         this.doRun = true;
         Thread checker = new Thread(this);
         if (getLogger().isDebugEnabled()) {
@@ -251,7 +257,10 @@ public class StoreJanitorImpl implements StoreJanitor, Runnable {
         checker.start();
     }
 
-    private void doStop() {
+    /**
+     * Stop the memory checks.
+     */
+    protected void doStop() {
         this.doRun = false;
     }
 
@@ -309,13 +318,8 @@ public class StoreJanitorImpl implements StoreJanitor, Runnable {
                 freePhysicalMemory();
             }
 
-            synchronized (this) {
-                if (!this.invokeGC
-                        || (memoryLow() && getStoreList().size() > 0)) {
-
-                    freeMemory();
-                    setIndex(getIndex() + 1);
-                }
+            if (!this.invokeGC || memoryLow()) {
+                freeStores();
             }
         }
 
@@ -333,6 +337,17 @@ public class StoreJanitorImpl implements StoreJanitor, Runnable {
         }
     }
 
+    /**
+     * Free objects from the registered stores, using the configured
+     * freeing algorithm.
+     */
+    protected synchronized void freeStores() {
+        if (getStoreList().size() > 0) {
+            freeMemory();
+            setIndex(getIndex() + 1);
+        }
+    }
+
     /**
      * Method to check if memory is running low in the JVM.
      *
@@ -517,7 +532,7 @@ public class StoreJanitorImpl implements StoreJanitor, Runnable {
     /**
      * This method forces the garbage collector
      */
-    private void freePhysicalMemory() {
+    protected void freePhysicalMemory() {
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("Invoking GC. Memory total: "
                               + getJVM().totalMemory() + ", free: "
@@ -0,0 +1,783 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cocoon.components.store.Weigher;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.excalibur.store.Store;
+import org.apache.excalibur.store.StoreJanitor;
+
+/**
+ * A concurrent in-memory store using the W-TinyLFU replacement policy. It is
+ * a drop-in replacement for the {@link MRUMemoryStore}: it supports the same
+ * configuration properties, registers itself with the {@link StoreJanitor}
+ * and swaps evicted entries out to a persistent store (usually a
+ * {@link FilesystemStore}) if one is set.
+ *
+ * <p>Entries are held in a {@link ConcurrentHashMap}, so lookups never block.
+ * The replacement policy is split into independent segments selected by the
+ * hash of the key. Each segment owns a small LRU admission window, a
+ * segmented LRU main space (probation and protected) and a
+ * {@link FrequencySketch}. A new entry enters the window; when it leaves the
+ * window it only replaces the main space victim if it has been requested
+ * more often in the recent past. This keeps one-hit wonders and scans from
+ * flushing the popular entries.</p>
+ *
+ * <p>Reads are recorded in a lossy per-segment buffer and replayed against
+ * the policy whenever the segment lock can be acquired without waiting, so
+ * {@link #get(Object)} never blocks on the policy.</p>
+ *
+ * <p>The store is bounded by the number of objects ({@link #setMaxObjects(int)})
+ * and optionally by the total weight of its entries ({@link #setMaxWeight(long)}
+ * together with {@link #setWeigher(Weigher)}).</p>
+ *
+ * @version $Id$
+ */
+public class TinyLfuMemoryStore implements Store {
+
+    private static final int MAX_OBJECTS = 100;
+
+    /** The smallest capacity for a single segment worth splitting for. */
+    private static final int MIN_SEGMENT_CAPACITY = 32;
+
+    /** Percentage of the capacity used by the admission window. */
+    private static final int WINDOW_PERCENT = 1;
+
+    /** Percentage of the main space used by the protected segment. */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final int READ_BUFFER_SIZE = 32;
+
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /** Number of buffered reads which trigger an attempt to drain. */
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int DEAD = 3;
+
+    /** By default we use the logger for this class. */
+    private Log logger = LogFactory.getLog(getClass());
+
+    private int maxObjects = MAX_OBJECTS;
+
+    private long maxWeight = -1;
+
+    private int concurrencyLevel = Runtime.getRuntime().availableProcessors();
+
+    private Weigher weigher;
+
+    protected boolean persistent;
+
+    private Store persistentStore;
+
+    private StoreJanitor storeJanitor;
+
+    private ConcurrentHashMap cache;
+
+    private Segment[] segments;
+
+    private int segmentShift;
+
+    private final AtomicInteger freeIndex = new AtomicInteger();
+
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * Indicates how many objects will be held in the cache. When the number of
+     * maxobjects has been reached, the entry with the lowest estimated
+     * popularity is thrown out. (Default: 100 objects)
+     *
+     * @param maxobjects
+     */
+    public void setMaxObjects(int maxobjects) {
+        this.maxObjects = maxobjects;
+    }
+
+    /**
+     * The maximum total weight of the held entries as calculated by the
+     * {@link Weigher}, usually their estimated size in bytes. The limit is
+     * enforced whenever an object is added; an object that is heavier than
+     * the share of a single segment is not held at all. If not set, the store
+     * is only bounded by the number of objects.
+     *
+     * @param maxWeight
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * The weigher used to calculate the weight of each entry. If a maximum
+     * weight is set but no weigher, an {@link ObjectSizeWeigher} is used.
+     * Without a maximum weight every entry has a weight of 1.
+     *
+     * @param weigher
+     */
+    public void setWeigher(Weigher weigher) {
+        this.weigher = weigher;
+    }
+
+    /**
+     * The expected number of threads accessing the store concurrently. This
+     * determines the number of independent policy segments.
+     * (Default: the number of available processors)
+     *
+     * @param concurrencyLevel
+     */
+    public void setConcurrencyLevel(int concurrencyLevel) {
+        this.concurrencyLevel = concurrencyLevel;
+    }
+
+    /**
+     * @param persistent
+     */
+    public void setUsePersistentStore(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * Set to keep objects persisted after container shutdown
+     *
+     * @param persistentStore
+     */
+    public void setPersistentStore(Store persistentStore) {
+        this.persistentStore = persistentStore;
+    }
+
+    /**
+     * @param storeJanitor
+     */
+    public void setStoreJanitor(StoreJanitor storeJanitor) {
+        this.storeJanitor = storeJanitor;
+    }
+
+    /**
+     * Initialize the TinyLfuMemoryStore.
+     *
+     * @throws Exception
+     */
+    public void init() throws Exception {
+        if (this.maxObjects < 1) {
+            throw new Exception("TinyLfuMemoryStore maxobjects must be at least 1!");
+        }
+        if (this.concurrencyLevel < 1) {
+            throw new Exception("TinyLfuMemoryStore concurrencylevel must be at least 1!");
+        }
+
+        if (this.persistent && this.persistentStore == null) {
+            throw new Exception("The persistent store must be set if usePersistentStore is required");
+        }
+
+        this.persistent = this.persistentStore != null;
+
+        if (this.maxWeight < 1) {
+            this.weigher = null;
+        } else if (this.weigher == null) {
+            this.weigher = new ObjectSizeWeigher();
+        }
+
+        final long capacity = this.maxWeight > 0 ? this.maxWeight : this.maxObjects;
+        int count = 1;
+        int shift = 0;
+        while (count < this.concurrencyLevel
+               && this.maxObjects / (count << 1) >= MIN_SEGMENT_CAPACITY
+               && capacity / (count << 1) >= MIN_SEGMENT_CAPACITY) {
+            count <<= 1;
+            shift++;
+        }
+        this.segmentShift = 32 - shift;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // Distribute the remainder over the first segments
+            int objects = this.maxObjects / count + (i < this.maxObjects % count ? 1 : 0);
+            long weight = capacity / count + (i < capacity % count ? 1 : 0);
+            this.segments[i] = new Segment(objects, weight);
+        }
+        this.cache = new ConcurrentHashMap((int) (this.maxObjects * 1.2), 0.75f, count);
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("TinyLfuMemoryStore: " + count + " segment(s), maxobjects="
+                              + this.maxObjects + ", maxweight=" + capacity);
+        }
+
+        if (this.storeJanitor != null) {
+            this.storeJanitor.register(this);
+        }
+    }
+
+    /**
+     * Dispose the component
+     */
+    public void destroy() {
+        getLogger().debug("Destroying component!");
+
+        if (this.storeJanitor != null) {
+            this.storeJanitor.unregister(this);
+        }
+
+        // save all cache entries to filesystem
+        if (this.persistent) {
+            getLogger().debug("Final cache size: " + this.cache.size());
+            for (Iterator i = this.cache.values().iterator(); i.hasNext();) {
+                Node node = (Node) i.next();
+                i.remove();
+                try {
+                    if (checkSerializable(node.value)) {
+                        this.persistentStore.store(node.key, node.value);
+                    }
+                } catch (IOException ioe) {
+                    getLogger().error("Error in dispose()", ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the given object in a persistent state. It is up to the caller to
+     * ensure that the key has a persistent state across different JVM
+     * executions.
+     *
+     * @param key
+     *            The key for the object to store
+     * @param value
+     *            The object to store
+     */
+    public void store(Object key, Object value) {
+        hold(key, value);
+    }
+
+    /**
+     * Holds the requested object in memory. Entries evicted to make room for
+     * it are swapped out to the persistent store if configured.
+     *
+     * @param key
+     *            The key of the object to be stored
+     * @param value
+     *            The object to be stored
+     */
+    public void hold(Object key, Object value) {
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Holding object in memory:");
+            getLogger().debug("  key: " + key);
+            getLogger().debug("  value: " + value);
+        }
+
+        hold(key, value, hash(key), weigh(key, value));
+    }
+
+    private void hold(Object key, Object value, int hash, int weight) {
+        final Node node = new Node(key, value, weight);
+        final List evicted = new ArrayList();
+        segmentFor(hash).put(node, hash, evicted);
+        swapOut(evicted);
+    }
+
+    /**
+     * Get the object associated to the given unique key.
+     *
+     * @param key
+     *            The key of the requested object
+     * @return the requested object
+     */
+    public Object get(Object key) {
+        final int hash = hash(key);
+        final Node node = (Node) this.cache.get(key);
+        if (node != null) {
+            segmentFor(hash).recordRead(node);
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Found key: " + key.toString());
+            }
+            return node.value;
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("NOT Found key: " + key.toString());
+        }
+
+        /** try to fetch from filesystem */
+        if (this.persistent) {
+            Object value = this.persistentStore.get(key);
+            if (value != null) {
+                try {
+                    // An entry too heavy to be held stays in the persistent
+                    // store, holding it again would only write it back
+                    final int weight = weigh(key, value);
+                    if (!this.cache.containsKey(key) && segmentFor(hash).canHold(weight)) {
+                        hold(key, value, hash, weight);
+                    }
+                    return value;
+                } catch (Exception e) {
+                    getLogger().error("Error in get()!", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the object associated to the given key.
+     *
+     * @param key
+     *            The key of to be removed object
+     */
+    public void remove(Object key) {
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Removing object from store");
+            getLogger().debug("  key: " + key);
+        }
+        if (key == null) {
+            return;
+        }
+        segmentFor(hash(key)).remove(key);
+
+        if (this.persistent) {
+            this.persistentStore.remove(key);
+        }
+    }
+
+    /**
+     * Clear the Store of all elements
+     */
+    public void clear() {
+        Enumeration enumer = this.cache.keys();
+        while (enumer.hasMoreElements()) {
+            Object key = enumer.nextElement();
+            remove(key);
+        }
+    }
+
+    /**
+     * Indicates if the given key is associated to a contained object.
+     *
+     * @param key
+     *            The key of the object
+     * @return true if the key exists
+     */
+    public boolean containsKey(Object key) {
+        if (this.persistent) {
+            return this.cache.containsKey(key) || this.persistentStore.containsKey(key);
+        } else {
+            return this.cache.containsKey(key);
+        }
+    }
+
+    /**
+     * Returns the list of used keys as an Enumeration. The enumeration is
+     * weakly consistent and never throws a
+     * {@link java.util.ConcurrentModificationException}.
+     *
+     * @return the enumeration of the cache
+     */
+    public Enumeration keys() {
+        return this.cache.keys();
+    }
+
+    /**
+     * Returns count of the objects in the store.
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    /**
+     * Returns the total weight of the objects in the store. If no
+     * {@link Weigher} is configured, this is the same as {@link #size()}.
+     */
+    public long getWeightedSize() {
+        long weight = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            weight += this.segments[i].weightedSize();
+        }
+        return weight;
+    }
+
+    /**
+     * Frees some of the fast memory used by this store. It removes the
+     * least valuable entry of one of the segments; the segments are visited
+     * in turn on each call.
+     */
+    public void free() {
+        final List evicted = new ArrayList(1);
+        for (int i = 0; i < this.segments.length && evicted.isEmpty(); i++) {
+            int index = (this.freeIndex.getAndIncrement() & Integer.MAX_VALUE) % this.segments.length;
+            this.segments[index].evictOne(evicted);
+        }
+        swapOut(evicted);
+    }
+
+    /**
+     * Writes evicted entries to the persistent store, if configured. This is
+     * called without holding any segment lock.
+     */
+    private void swapOut(List evicted) {
+        for (int i = 0; i < evicted.size(); i++) {
+            Node node = (Node) evicted.get(i);
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Freeing cache.");
+                getLogger().debug("  key: " + node.key);
+                getLogger().debug("  value: " + node.value);
+            }
+
+            if (this.persistent && checkSerializable(node.value)) {
+                // Swap object on fs.
+                try {
+                    this.persistentStore.store(node.key, node.value);
+                } catch (Exception e) {
+                    getLogger().error("Error storing object on fs", e);
+                }
+            }
+        }
+    }
+
+    private int weigh(Object key, Object value) {
+        if (this.weigher == null) {
+            return 1;
+        }
+        int weight = this.weigher.weigh(key, value);
+        return weight < 1 ? 1 : weight;
+    }
+
+    private Segment segmentFor(int hash) {
+        return this.segments.length == 1 ? this.segments[0] : this.segments[hash >>> this.segmentShift];
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    /**
+     * This method checks if an object is serializable.
+     *
+     * @param object
+     *            The object to be checked
+     * @return true if the object is storeable
+     */
+    private boolean checkSerializable(Object object) {
+        return object instanceof Serializable;
+    }
+
+    /**
+     * A store entry. The queue fields are guarded by the lock of the owning
+     * segment.
+     */
+    private static final class Node {
+        final Object key;
+        final Object value;
+        final int weight;
+
+        int queue = WINDOW;
+        Node prev;
+        Node next;
+
+        Node(Object key, Object value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes in access order, the least recently used
+     * node first.
+     */
+    private static final class AccessQueue {
+        private final Node head = new Node(null, null, 0);
+        long weight;
+
+        AccessQueue() {
+            this.head.prev = this.head;
+            this.head.next = this.head;
+        }
+
+        Node first() {
+            return this.head.next == this.head ? null : this.head.next;
+        }
+
+        Node last() {
+            return this.head.prev == this.head ? null : this.head.prev;
+        }
+
+        void addLast(Node node) {
+            node.prev = this.head.prev;
+            node.next = this.head;
+            this.head.prev.next = node;
+            this.head.prev = node;
+            this.weight += node.weight;
+        }
+
+        void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            this.weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            unlink(node);
+            addLast(node);
+        }
+    }
+
+    /**
+     * One independent part of the replacement policy.
+     */
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final AtomicReferenceArray readBuffer = new AtomicReferenceArray(READ_BUFFER_SIZE);
+        private final AtomicInteger readIndex = new AtomicInteger();
+
+        private final int maxCount;
+        private final long maxWeight;
+        private final long maxWindow;
+        private final long maxProtected;
+
+        private final FrequencySketch sketch;
+        private final AccessQueue window = new AccessQueue();
+        private final AccessQueue probation = new AccessQueue();
+        private final AccessQueue protectedQueue = new AccessQueue();
+        private int count;
+
+        Segment(int maxCount, long maxWeight) {
+            this.maxCount = maxCount;
+            this.maxWeight = maxWeight;
+            this.maxWindow = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+            this.maxProtected = (maxWeight - this.maxWindow) * PROTECTED_PERCENT / 100;
+            this.sketch = new FrequencySketch(maxCount);
+        }
+
+        boolean canHold(int weight) {
+            return weight <= this.maxWeight;
+        }
+
+        long weightedSize() {
+            this.lock.lock();
+            try {
+                return this.window.weight + this.probation.weight + this.protectedQueue.weight;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Records a read without blocking. Reads are dropped if the buffer
+         * is contended, which only costs a little precision of the policy.
+         */
+        void recordRead(Node node) {
+            int index = this.readIndex.getAndIncrement();
+            this.readBuffer.lazySet(index & READ_BUFFER_MASK, node);
+            if ((index & (DRAIN_THRESHOLD - 1)) == 0 && this.lock.tryLock()) {
+                try {
+                    drainReads();
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        }
+
+        void put(Node node, int hash, List evicted) {
+            this.lock.lock();
+            try {
+                drainReads();
+                this.sketch.increment(hash);
+
+                if (node.weight > this.maxWeight) {
+                    // Too heavy to be held, replace a previous entry by nothing
+                    Node old = (Node) cache.remove(node.key);
+                    if (old != null && old.queue != DEAD) {
+                        queueOf(old).unlink(old);
+                        old.queue = DEAD;
+                        this.count--;
+                    }
+                    evicted.add(node);
+                    return;
+                }
+
+                Node old = (Node) cache.put(node.key, node);
+                if (old != null && old.queue != DEAD) {
+                    // Replace the entry in place, keeping its position in the policy
+                    node.queue = old.queue;
+                    queueOf(old).unlink(old);
+                    old.queue = DEAD;
+                    this.count--;
+                    queueOf(node).addLast(node);
+                } else {
+                    this.window.addLast(node);
+                }
+                this.count++;
+
+                evict(evicted);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        void remove(Object key) {
+            this.lock.lock();
+            try {
+                Node node = (Node) cache.remove(key);
+                if (node != null && node.queue != DEAD) {
+                    queueOf(node).unlink(node);
+                    node.queue = DEAD;
+                    this.count--;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        void evictOne(List evicted) {
+            this.lock.lock();
+            try {
+                drainReads();
+                Node victim = this.probation.first();
+                if (victim == null) {
+                    victim = this.window.first();
+                }
+                if (victim == null) {
+                    victim = this.protectedQueue.first();
+                }
+                if (victim != null) {
+                    evictNode(victim, evicted);
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void drainReads() {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                Node node = (Node) this.readBuffer.getAndSet(i, null);
+                if (node != null) {
+                    onAccess(node);
+                }
+            }
+        }
+
+        private void onAccess(Node node) {
+            if (node.queue == DEAD) {
+                return;
+            }
+            this.sketch.increment(hash(node.key));
+            switch (node.queue) {
+                case WINDOW:
+                    this.window.moveToLast(node);
+                    break;
+                case PROBATION:
+                    // Promote to the protected segment, demoting its LRU entries
+                    this.probation.unlink(node);
+                    node.queue = PROTECTED;
+                    this.protectedQueue.addLast(node);
+                    while (this.protectedQueue.weight > this.maxProtected) {
+                        Node demoted = this.protectedQueue.first();
+                        if (demoted == node) {
+                            break;
+                        }
+                        this.protectedQueue.unlink(demoted);
+                        demoted.queue = PROBATION;
+                        this.probation.addLast(demoted);
+                    }
+                    break;
+                default:
+                    this.protectedQueue.moveToLast(node);
+            }
+        }
+
+        private void evict(List evicted) {
+            // Move the overflow of the admission window to probation, where
+            // it competes with the main space victim for admission
+            while (this.window.weight > this.maxWindow) {
+                Node node = this.window.first();
+                this.window.unlink(node);
+                node.queue = PROBATION;
+                this.probation.addLast(node);
+            }
+
+            while (this.count > this.maxCount
+                   || this.window.weight + this.probation.weight + this.protectedQueue.weight > this.maxWeight) {
+                Node victim = this.probation.first();
+                Node candidate = this.probation.last();
+                if (victim == null) {
+                    victim = this.protectedQueue.first();
+                    if (victim == null) {
+                        victim = this.window.first();
+                    }
+                    evictNode(victim, evicted);
+                } else if (victim == candidate) {
+                    evictNode(victim, evicted);
+                } else if (admit(candidate, victim)) {
+                    evictNode(victim, evicted);
+                } else {
+                    evictNode(candidate, evicted);
+                }
+            }
+        }
+
+        /**
+         * TinyLFU admission: the candidate only replaces the victim if it is
+         * estimated to be more popular.
+         */
+        private boolean admit(Node candidate, Node victim) {
+            return this.sketch.frequency(hash(candidate.key)) > this.sketch.frequency(hash(victim.key));
+        }
+
+        private void evictNode(Node node, List evicted) {
+            queueOf(node).unlink(node);
+            node.queue = DEAD;
+            this.count--;
+            cache.remove(node.key, node);
+            evicted.add(node);
+        }
+
+        private AccessQueue queueOf(Node node) {
+            switch (node.queue) {
+                case WINDOW:
+                    return this.window;
+                case PROBATION:
+                    return this.probation;
+                default:
+                    return this.protectedQueue;
+            }
+        }
+    }
+}
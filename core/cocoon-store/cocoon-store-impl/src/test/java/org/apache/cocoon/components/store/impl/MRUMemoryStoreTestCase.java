@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.components.store.Weigher;
+
+/**
+ * Test case for the byte budget of the {@link MRUMemoryStore}.
+ *
+ * @version $Id$
+ */
+public class MRUMemoryStoreTestCase extends TestCase {
+
+    private MRUMemoryStore createStore(int maxObjects, long maxWeight, Weigher weigher) throws Exception {
+        MRUMemoryStore store = new MRUMemoryStore();
+        store.setMaxObjects(maxObjects);
+        store.setMaxWeight(maxWeight);
+        store.setWeigher(weigher);
+        store.init();
+        return store;
+    }
+
+    public void testWeightLimit() throws Exception {
+        MRUMemoryStore store = createStore(1000, 1000, new LengthWeigher());
+        for (int i = 0; i < 100; i++) {
+            store.hold("key" + i, new byte[100]);
+            assertTrue("weight", store.getWeightedSize() <= 1000);
+        }
+        assertEquals("size", 10, store.size());
+        assertEquals("weight", 1000, store.getWeightedSize());
+        // the least recently used objects are evicted first
+        assertNull(store.get("key89"));
+        assertNotNull(store.get("key90"));
+        assertNotNull(store.get("key99"));
+
+        // a lighter object makes room for one heavier object only
+        store.hold("key99", new byte[10]);
+        assertEquals("weight", 910, store.getWeightedSize());
+        store.hold("big", new byte[190]);
+        assertEquals("weight", 1000, store.getWeightedSize());
+        assertEquals("size", 10, store.size());
+        assertNull(store.get("key91"));
+    }
+
+    public void testRemoveAndFree() throws Exception {
+        MRUMemoryStore store = createStore(1000, 1000, new LengthWeigher());
+        store.hold("a", new byte[300]);
+        store.hold("b", new byte[200]);
+        store.remove("a");
+        assertEquals("weight", 200, store.getWeightedSize());
+        store.free();
+        assertEquals("weight", 0, store.getWeightedSize());
+        assertEquals("size", 0, store.size());
+    }
+
+    public void testHeavyObjectNotHeld() throws Exception {
+        MRUMemoryStore store = createStore(1000, 1000, new LengthWeigher());
+        store.hold("small", new byte[100]);
+        store.hold("heavy", new byte[2000]);
+        assertNull(store.get("heavy"));
+        // the store is not flushed for it
+        assertNotNull(store.get("small"));
+        assertEquals("weight", 100, store.getWeightedSize());
+    }
+
+    public void testObjectLimit() throws Exception {
+        MRUMemoryStore store = createStore(5, 1000000, new LengthWeigher());
+        for (int i = 0; i < 10; i++) {
+            store.hold("key" + i, new byte[10]);
+        }
+        assertEquals("size", 5, store.size());
+        assertEquals("weight", 50, store.getWeightedSize());
+    }
+
+    public void testDefaultWeigher() throws Exception {
+        MRUMemoryStore store = createStore(1000, 10000, null);
+        for (int i = 0; i < 100; i++) {
+            store.hold("key" + i, new byte[1000]);
+        }
+        // the object size weigher counts the headers too
+        assertEquals("size", 9, store.size());
+        assertTrue("weight", store.getWeightedSize() <= 10000);
+    }
+
+    public void testWithoutBudget() throws Exception {
+        MRUMemoryStore store = createStore(10, -1, new LengthWeigher());
+        store.hold("key", new byte[1000000]);
+        assertEquals("size", 1, store.size());
+        assertEquals("weight", 0, store.getWeightedSize());
+    }
+
+    /**
+     * Weighs byte arrays by their length and everything else as 1.
+     */
+    private static class LengthWeigher implements Weigher {
+        public int weigh(Object key, Object value) {
+            return value instanceof byte[] ? ((byte[]) value).length : 1;
+        }
+    }
+}
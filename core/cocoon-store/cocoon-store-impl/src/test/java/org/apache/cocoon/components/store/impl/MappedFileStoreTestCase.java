@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.configuration.MutableSettings;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Test case for the {@link MappedFileStore}.
+ *
+ * @version $Id$
+ */
+public class MappedFileStoreTestCase extends TestCase {
+
+    private File directory;
+
+    private MutableSettings settings;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.directory = File.createTempFile("mapped-store", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.settings = new MutableSettings("test");
+        this.settings.setCacheDirectory(this.directory.getAbsolutePath());
+        this.settings.setWorkDirectory(this.directory.getAbsolutePath());
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory);
+        super.tearDown();
+    }
+
+    private MappedFileStore createStore(int maxSegments) throws Exception {
+        MappedFileStore store = new MappedFileStore();
+        store.setSettings(this.settings);
+        store.setSegmentSize(4096);
+        store.setMaxSegments(maxSegments);
+        store.init();
+        return store;
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[300];
+        Arrays.fill(value, (byte) i);
+        return value;
+    }
+
+    public void testRoundTrip() throws Exception {
+        MappedFileStore store = createStore(16);
+        store.store("string", "value");
+        store.store("bytes", value(1));
+        assertEquals("string", "value", store.get("string"));
+        assertTrue("bytes", Arrays.equals(value(1), (byte[]) store.get("bytes")));
+        assertEquals("size", 2, store.size());
+
+        store.store("string", "other value");
+        assertEquals("replaced", "other value", store.get("string"));
+        assertEquals("size", 2, store.size());
+
+        store.remove("string");
+        assertNull("removed", store.get("string"));
+        assertFalse("removed", store.containsKey("string"));
+        assertEquals("size", 1, store.size());
+        store.destroy();
+    }
+
+    public void testReopen() throws Exception {
+        MappedFileStore store = createStore(16);
+        for (int i = 0; i < 30; i++) {
+            store.store("key" + i, value(i));
+        }
+        store.remove("key3");
+        store.store("key4", "replaced");
+        store.destroy();
+
+        store = createStore(16);
+        assertEquals("size", 29, store.size());
+        assertNull("removed", store.get("key3"));
+        assertEquals("replaced", "replaced", store.get("key4"));
+        for (int i = 5; i < 30; i++) {
+            assertTrue("key" + i, Arrays.equals(value(i), (byte[]) store.get("key" + i)));
+        }
+        store.destroy();
+    }
+
+    public void testCompaction() throws Exception {
+        MappedFileStore store = createStore(16);
+        for (int i = 0; i < 30; i++) {
+            store.store("key" + i, value(i));
+        }
+        final int segments = store.getSegmentCount();
+        assertTrue("segments", segments > 2);
+        // most of the entries of the oldest segment are gone
+        for (int i = 0; i < 10; i++) {
+            store.remove("key" + i);
+        }
+        store.run();
+        assertTrue("compacted", store.getSegmentCount() < segments);
+        assertEquals("size", 20, store.size());
+        for (int i = 10; i < 30; i++) {
+            assertTrue("key" + i, Arrays.equals(value(i), (byte[]) store.get("key" + i)));
+        }
+        store.destroy();
+
+        // the tombstones of the compacted segment must not be needed any more
+        store = createStore(16);
+        assertEquals("size", 20, store.size());
+        for (int i = 0; i < 10; i++) {
+            assertNull("key" + i, store.get("key" + i));
+        }
+        store.destroy();
+    }
+
+    public void testDropOldestSegment() throws Exception {
+        MappedFileStore store = createStore(2);
+        for (int i = 0; i < 30; i++) {
+            store.store("key" + i, value(i));
+            assertTrue("segments", store.getSegmentCount() <= 2);
+        }
+        assertTrue("size", store.size() < 30);
+        assertNull("dropped", store.get("key0"));
+        assertTrue("key29", Arrays.equals(value(29), (byte[]) store.get("key29")));
+        store.destroy();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Iterator;
+
+import javax.management.Notification;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the {@link MemoryPoolStoreJanitor}.
+ *
+ * @version $Id$
+ */
+public class MemoryPoolStoreJanitorTestCase extends TestCase {
+
+    private MemoryPoolStoreJanitor janitor;
+    private MRUMemoryStore store;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.janitor = new MemoryPoolStoreJanitor();
+        this.janitor.setPercentToFree(50);
+        this.janitor.setFreeingAlgorithm("all-stores");
+        this.janitor.init();
+
+        this.store = new MRUMemoryStore();
+        this.store.setMaxObjects(100);
+        this.store.setStoreJanitor(this.janitor);
+        this.store.init();
+        for (int i = 0; i < 10; i++) {
+            this.store.hold("key" + i, "value" + i);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        this.store.destroy();
+        this.janitor.destroy();
+        super.tearDown();
+    }
+
+    public void testThresholds() {
+        for (Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator(); i.hasNext();) {
+            MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                assertEquals(pool.getName(), pool.getUsage().getMax() / 100 * 80,
+                             pool.getCollectionUsageThreshold());
+            }
+        }
+    }
+
+    public void testThresholdExceeded() {
+        this.janitor.handleNotification(newNotification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED), null);
+        assertEquals("size", 5, this.store.size());
+        // the most recently used objects are kept
+        assertNotNull(this.store.get("key9"));
+        assertNull(this.store.get("key0"));
+    }
+
+    public void testOtherNotifications() {
+        // usage thresholds are crossed by short-lived garbage too
+        this.janitor.handleNotification(newNotification(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED), null);
+        assertEquals("size", 10, this.store.size());
+    }
+
+    public void testUnregistered() {
+        this.janitor.unregister(this.store);
+        this.janitor.handleNotification(newNotification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED), null);
+        assertEquals("size", 10, this.store.size());
+    }
+
+    public void testInvalidThreshold() throws Exception {
+        MemoryPoolStoreJanitor invalid = new MemoryPoolStoreJanitor();
+        invalid.setUsageThreshold(0);
+        try {
+            invalid.init();
+            fail("A usage threshold of 0% is not valid");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    private Notification newNotification(String type) {
+        return new Notification(type, ManagementFactory.getMemoryMXBean(), 1);
+    }
+}
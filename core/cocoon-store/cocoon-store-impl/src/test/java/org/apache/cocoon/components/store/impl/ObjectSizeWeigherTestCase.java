@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the {@link ObjectSizeWeigher}.
+ *
+ * @version $Id$
+ */
+public class ObjectSizeWeigherTestCase extends TestCase {
+
+    private ObjectSizeWeigher weigher;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.weigher = new ObjectSizeWeigher();
+    }
+
+    public void testArrays() {
+        // header and content, aligned to 8 bytes
+        assertEquals(16 + 1000, this.weigher.estimate(new byte[1000]));
+        assertEquals(16 + 8, this.weigher.estimate(new byte[1]));
+        assertEquals(16 + 2000, this.weigher.estimate(new char[1000]));
+        assertEquals(16 + 8 + 16 + 8, this.weigher.estimate(new Object[] { new byte[8] , null }));
+    }
+
+    public void testStrings() {
+        assertEquals(16 + 8 + 16 + 8, this.weigher.estimate("abcd"));
+        assertTrue(this.weigher.estimate("a longer string") > this.weigher.estimate("short"));
+        assertEquals(16 + 8, this.weigher.estimate(new Long(1)));
+    }
+
+    public void testDefaultSize() {
+        assertEquals(256, this.weigher.estimate(new Object()));
+        this.weigher.setDefaultObjectSize(100);
+        assertEquals(100, this.weigher.estimate(new Object()));
+    }
+
+    public void testWeigh() {
+        assertEquals(this.weigher.estimate("key") + this.weigher.estimate(new byte[100]),
+                     this.weigher.weigh("key", new byte[100]));
+        // never less than 1
+        assertEquals(1, this.weigher.weigh(null, null));
+    }
+}
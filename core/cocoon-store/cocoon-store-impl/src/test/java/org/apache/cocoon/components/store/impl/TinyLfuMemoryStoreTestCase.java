@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.components.store.Weigher;
+import org.apache.excalibur.store.Store;
+
+/**
+ * Test case for the {@link TinyLfuMemoryStore}.
+ *
+ * @version $Id$
+ */
+public class TinyLfuMemoryStoreTestCase extends TestCase {
+
+    private TinyLfuMemoryStore createStore(int maxObjects, long maxWeight, Store persistentStore)
+    throws Exception {
+        TinyLfuMemoryStore store = new TinyLfuMemoryStore();
+        store.setMaxObjects(maxObjects);
+        store.setConcurrencyLevel(1);
+        if (maxWeight > 0) {
+            store.setMaxWeight(maxWeight);
+            store.setWeigher(new LengthWeigher());
+        }
+        store.setPersistentStore(persistentStore);
+        store.init();
+        return store;
+    }
+
+    public void testEviction() throws Exception {
+        TinyLfuMemoryStore store = createStore(10, -1, null);
+        for (int i = 0; i < 50; i++) {
+            store.hold("key" + i, "value" + i);
+            assertTrue("size", store.size() <= 10);
+        }
+        assertEquals("size", 10, store.size());
+        store.destroy();
+    }
+
+    public void testAdmission() throws Exception {
+        TinyLfuMemoryStore store = createStore(100, -1, null);
+        for (int i = 0; i < 10; i++) {
+            store.hold("hot" + i, "value" + i);
+        }
+        for (int n = 0; n < 20; n++) {
+            for (int i = 0; i < 10; i++) {
+                assertNotNull("hot" + i, store.get("hot" + i));
+            }
+        }
+        // a scan of entries requested once must not flush the popular ones
+        for (int i = 0; i < 1000; i++) {
+            store.hold("scan" + i, "value" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNotNull("hot" + i + " evicted by scan", store.get("hot" + i));
+        }
+        assertTrue("size", store.size() <= 100);
+        store.destroy();
+    }
+
+    public void testWeightLimit() throws Exception {
+        TinyLfuMemoryStore store = createStore(1000, 1000, null);
+        for (int i = 0; i < 100; i++) {
+            store.hold("key" + i, new byte[100]);
+            assertTrue("weight", store.getWeightedSize() <= 1000);
+        }
+        assertEquals("size", 10, store.size());
+        assertEquals("weight", 1000, store.getWeightedSize());
+        store.destroy();
+    }
+
+    public void testSwapOut() throws Exception {
+        CountingStore persistentStore = new CountingStore();
+        TinyLfuMemoryStore store = createStore(10, -1, persistentStore);
+        for (int i = 0; i < 20; i++) {
+            store.hold("key" + i, "value" + i);
+        }
+        assertEquals("size", 10, store.size());
+        assertEquals("swapped out", 10, persistentStore.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("key" + i, "value" + i, store.get("key" + i));
+            assertTrue("key" + i, store.containsKey("key" + i));
+        }
+        store.destroy();
+    }
+
+    public void testHeavyEntryNotHeld() throws Exception {
+        CountingStore persistentStore = new CountingStore();
+        TinyLfuMemoryStore store = createStore(100, 1000, persistentStore);
+        final byte[] heavy = new byte[2000];
+        store.hold("heavy", heavy);
+        assertEquals("size", 0, store.size());
+        assertEquals("stores", 1, persistentStore.stores);
+
+        // reading it back must not write it to the persistent store again
+        for (int i = 0; i < 5; i++) {
+            assertSame("heavy", heavy, store.get("heavy"));
+        }
+        assertEquals("size", 0, store.size());
+        assertEquals("stores", 1, persistentStore.stores);
+        store.destroy();
+    }
+
+    public void testRemove() throws Exception {
+        CountingStore persistentStore = new CountingStore();
+        TinyLfuMemoryStore store = createStore(10, -1, persistentStore);
+        store.hold("key", "value");
+        store.remove("key");
+        assertNull("key", store.get("key"));
+        assertFalse("key", store.containsKey("key"));
+        assertEquals("size", 0, store.size());
+        store.destroy();
+    }
+
+    /**
+     * Weighs byte arrays by their length and everything else as 1.
+     */
+    private static class LengthWeigher implements Weigher {
+        public int weigh(Object key, Object value) {
+            return value instanceof byte[] ? ((byte[]) value).length : 1;
+        }
+    }
+
+    /**
+     * An in-memory persistent store counting the stored objects.
+     */
+    private static class CountingStore implements Store {
+        private final Map map = Collections.synchronizedMap(new HashMap());
+        int stores;
+
+        public Object get(Object key) {
+            return this.map.get(key);
+        }
+
+        public void store(Object key, Object value) throws IOException {
+            this.stores++;
+            this.map.put(key, value);
+        }
+
+        public void free() {
+        }
+
+        public void remove(Object key) {
+            this.map.remove(key);
+        }
+
+        public void clear() {
+            this.map.clear();
+        }
+
+        public boolean containsKey(Object key) {
+            return this.map.containsKey(key);
+        }
+
+        public Enumeration keys() {
+            return Collections.enumeration(this.map.keySet());
+        }
+
+        public int size() {
+            return this.map.size();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.thread.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.thread.ThreadPool;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link RunnableManager} built on <code>java.util.concurrent</code>. It
+ * creates {@link ConcurrentThreadPool}s and uses a
+ * {@link ScheduledThreadPoolExecutor} with a single daemon thread to hand
+ * delayed and repeated commands to their pools. As with the
+ * {@link DefaultRunnableManager}, a repeated command is handed to its pool
+ * every <code>interval</code> milliseconds, independent of the time the
+ * command takes to run.
+ *
+ * <p>The configuration is the same as for the {@link DefaultRunnableManager}:
+ *
+ * <pre>
+ *     &lt;property name=&quot;workerThreadPools&quot;&gt;
+ *       &lt;configurator:bean-map type=&quot;org.apache.cocoon.thread.ThreadPool&quot; strip-prefix=&quot;true&quot;/&gt;
+ *     &lt;/property&gt;
+ * </pre>
+ *
+ * </p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class ConcurrentRunnableManager implements RunnableManager {
+
+    /** By default we use the logger for this class. */
+    private Log logger = LogFactory.getLog(getClass());
+
+    /** The managed thread pools */
+    final Map pools = new ConcurrentHashMap();
+
+    /** The scheduled commands, each mapped to a list of futures */
+    private final Map scheduled = new HashMap();
+
+    /** Hands delayed and repeated commands to their pools */
+    private ScheduledThreadPoolExecutor scheduler;
+
+    /** Map of the configured worker thread pools */
+    private Map workerThreadPools;
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * @param workerThreadPools
+     *            the workerThreadPools to set
+     */
+    public void setWorkerThreadPools(Map workerThreadPools) {
+        this.workerThreadPools = workerThreadPools;
+    }
+
+    /**
+     * Initialize
+     */
+    public void init() throws Exception {
+        if (workerThreadPools != null) {
+            final Iterator iter = workerThreadPools.values().iterator();
+            while (iter.hasNext()) {
+                final ThreadPool pool = (ThreadPool) iter.next();
+                pools.put(pool.getName(), pool);
+            }
+        }
+
+        // Check if a "default" pool has been created
+        if (pools.get(ThreadPool.DEFAULT_THREADPOOL_NAME) == null) {
+            createPool(ThreadPool.DEFAULT_THREADPOOL_NAME, ThreadPool.DEFAULT_QUEUE_SIZE,
+                       ThreadPool.DEFAULT_MAX_POOL_SIZE, ThreadPool.DEFAULT_MIN_POOL_SIZE,
+                       Thread.NORM_PRIORITY, ThreadPool.DEFAULT_DAEMON_MODE,
+                       ThreadPool.DEFAULT_KEEP_ALIVE_TIME, ThreadPool.DEFAULT_BLOCK_POLICY,
+                       ThreadPool.DEFAULT_SHUTDOWN_GRACEFUL, ThreadPool.DEFAULT_SHUTDOWN_WAIT_TIME);
+        }
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new java.util.concurrent.ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "cocoon-runnable-manager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.RunnableManager#createPool(java.lang.String, int, int, int, int, boolean, long, java.lang.String, boolean, int)
+     */
+    public ThreadPool createPool(final String name, final int queueSize, final int maxPoolSize, final int minPoolSize,
+                                 final int priority, final boolean isDaemon, final long keepAliveTime,
+                                 final String blockPolicy, final boolean shutdownGraceful,
+                                 final int shutdownWaitTimeMs) {
+        final ConcurrentThreadPool pool = new ConcurrentThreadPool();
+        pool.setName(name);
+        pool.setQueueSize(queueSize);
+        pool.setMaxPoolSize(maxPoolSize);
+        pool.setMinPoolSize(minPoolSize);
+        pool.setPriority(priority);
+        pool.setDaemon(isDaemon);
+        pool.setKeepAliveTime(keepAliveTime);
+        pool.setBlockPolicy(blockPolicy);
+        pool.setShutdownGraceful(shutdownGraceful);
+        pool.setShutdownWaitTimeMs(shutdownWaitTimeMs);
+        pool.init();
+
+        if (((ConcurrentHashMap) pools).putIfAbsent(name, pool) != null) {
+            pool.shutdown();
+            throw new IllegalArgumentException("ThreadPool \"" + name + "\" already exists");
+        }
+        return pool;
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.RunnableManager#createPool(int, int, int, int, boolean, long, java.lang.String, boolean, int)
+     */
+    public ThreadPool createPool(final int queueSize, final int maxPoolSize, final int minPoolSize,
+                                 final int priority, final boolean isDaemon, final long keepAliveTime,
+                                 final String blockPolicy, final boolean shutdownGraceful,
+                                 final int shutdownWaitTime) {
+        final String name = "anon-" + System.identityHashCode(new Object());
+        return createPool(name, queueSize, maxPoolSize, minPoolSize, priority, isDaemon, keepAliveTime,
+                          blockPolicy, shutdownGraceful, shutdownWaitTime);
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.RunnableManager#getPool(java.lang.String)
+     */
+    public ThreadPool getPool(String name) {
+        if (name == null) {
+            name = ThreadPool.DEFAULT_THREADPOOL_NAME;
+        }
+        return (ThreadPool) pools.get(name);
+    }
+
+    /**
+     * Destroy
+     */
+    public void destroy() throws Exception {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+        synchronized (this.scheduled) {
+            this.scheduled.clear();
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Disposing all thread pools");
+        }
+        for (final Iterator i = pools.values().iterator(); i.hasNext();) {
+            final ThreadPool pool = (ThreadPool) i.next();
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Disposing thread pool " + pool.getName());
+            }
+
+            if (pool instanceof ConcurrentThreadPool) {
+                ((ConcurrentThreadPool) pool).shutdown();
+            } else if (pool instanceof DefaultThreadPool) {
+                ((DefaultThreadPool) pool).shutdown();
+            }
+
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Thread pool " + pool.getName() + " disposed");
+            }
+        }
+        pools.clear();
+    }
+
+    /**
+     * Run a {@link Runnable} in the background using a {@link ThreadPool}
+     *
+     * @param threadPoolName
+     *            The thread pool name to be used
+     * @param command
+     *            The {@link Runnable} to execute
+     * @param delay
+     *            the delay befor first run
+     * @param interval
+     *            The interval for repeated runs
+     */
+    public void execute(final String threadPoolName, final Runnable command, final long delay, long interval) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay < 0");
+        }
+
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
+        }
+
+        ThreadPool pool = (ThreadPool) pools.get(threadPoolName);
+        if (null == pool) {
+            getLogger().warn("ThreadPool \"" + threadPoolName + "\" is not known. Will use ThreadPool \""
+                             + ThreadPool.DEFAULT_THREADPOOL_NAME + "\"");
+            pool = (ThreadPool) pools.get(ThreadPool.DEFAULT_THREADPOOL_NAME);
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Command entered: " + command + ", pool=" + (null == pool ? "null" : pool.getName())
+                              + ", delay=" + delay + ", interval=" + interval);
+        }
+
+        if (delay == 0 && interval == 0) {
+            new Dispatcher(pool, command, interval, false).run();
+            return;
+        }
+
+        final Dispatcher dispatcher = new Dispatcher(pool, command, interval, true);
+
+        synchronized (this.scheduled) {
+            if (interval > 0) {
+                dispatcher.future = this.scheduler.scheduleWithFixedDelay(dispatcher, delay, interval,
+                                                                          TimeUnit.MILLISECONDS);
+            } else {
+                dispatcher.future = this.scheduler.schedule(dispatcher, delay, TimeUnit.MILLISECONDS);
+            }
+            List futures = (List) this.scheduled.get(command);
+            if (futures == null) {
+                futures = new ArrayList(1);
+                this.scheduled.put(command, futures);
+            }
+            futures.add(dispatcher);
+        }
+    }
+
+    public void execute(final Runnable command, final long delay, final long interval) {
+        execute(ThreadPool.DEFAULT_THREADPOOL_NAME, command, delay, interval);
+    }
+
+    public void execute(final Runnable command, final long delay) {
+        execute(ThreadPool.DEFAULT_THREADPOOL_NAME, command, delay, 0);
+    }
+
+    public void execute(final Runnable command) {
+        execute(ThreadPool.DEFAULT_THREADPOOL_NAME, command, 0, 0);
+    }
+
+    public void execute(final String threadPoolName, final Runnable command, final long delay) {
+        execute(threadPoolName, command, delay, 0);
+    }
+
+    public void execute(final String threadPoolName, final Runnable command) {
+        execute(threadPoolName, command, 0, 0);
+    }
+
+    /**
+     * Remove a <code>Runnable</code> from the scheduled commands
+     *
+     * @param command
+     *            The <code>Runnable</code> to be removed
+     */
+    public void remove(Runnable command) {
+        synchronized (this.scheduled) {
+            final List futures = (List) this.scheduled.get(command);
+            if (futures != null) {
+                final Dispatcher dispatcher = (Dispatcher) futures.remove(0);
+                if (futures.isEmpty()) {
+                    this.scheduled.remove(command);
+                }
+                dispatcher.future.cancel(false);
+                return;
+            }
+        }
+
+        getLogger().warn("Could not find command " + command + " for removal");
+    }
+
+    /**
+     * The number of delayed or repeated commands waiting for their next run.
+     */
+    public int getScheduledCount() {
+        return this.scheduler == null ? 0 : this.scheduler.getQueue().size();
+    }
+
+    /**
+     * Hands a command to its pool.
+     */
+    private final class Dispatcher implements Runnable {
+        final ThreadPool pool;
+        final Runnable command;
+        final long interval;
+        final boolean scheduledRun;
+        ScheduledFuture future;
+
+        Dispatcher(ThreadPool pool, Runnable command, long interval, boolean scheduledRun) {
+            this.pool = pool;
+            this.command = command;
+            this.interval = interval;
+            this.scheduledRun = scheduledRun;
+        }
+
+        public void run() {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Executing command " + this.command + " in pool \"" + this.pool.getName()
+                                  + "\", schedule with interval=" + this.interval);
+            }
+
+            if (this.scheduledRun && this.interval == 0) {
+                // a delayed command runs only once, the lock is held by
+                // execute() until the dispatcher has been registered
+                synchronized (scheduled) {
+                    final List futures = (List) scheduled.get(this.command);
+                    if (futures != null && futures.remove(this) && futures.isEmpty()) {
+                        scheduled.remove(this.command);
+                    }
+                }
+            }
+
+            // Exceptions must not escape, they would stop a repeated command
+            try {
+                this.pool.execute(this.command);
+            } catch (final InterruptedException ie) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Interrupted executing command + " + this.command);
+                }
+            } catch (final Throwable t) {
+                getLogger().error("Exception executing command " + this.command, t);
+            }
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.thread.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cocoon.thread.ThreadFactory;
+import org.apache.cocoon.thread.ThreadPool;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link ThreadPool} built on a <code>java.util.concurrent</code>
+ * {@link ThreadPoolExecutor}. It is configured with the same properties as
+ * the {@link DefaultThreadPool}:
+ * <pre>
+ *   &lt;bean name=&quot;org.apache.cocoon.thread.ThreadPool/default&quot;
+ *         class=&quot;org.apache.cocoon.thread.impl.ConcurrentThreadPool&quot;
+ *         init-method=&quot;init&quot; scope=&quot;singleton&quot;&gt;
+ *     &lt;property name=&quot;name&quot; value=&quot;default&quot; /&gt;
+ *     ...
+ *     &lt;!--+
+ *         | Run each command in a new virtual thread instead of a pooled
+ *         | thread. Queue and pool sizes, priority and daemon mode are
+ *         | ignored then. Requires a Java runtime with virtual threads,
+ *         | otherwise the pool falls back to platform threads.
+ *         +--&gt;
+ *     &lt;property name=&quot;virtualThreads&quot; value=&quot;false&quot; /&gt;
+ *   &lt;/bean&gt;
+ * </pre>
+ *
+ * <p>Besides the configuration, the pool exposes the number of active
+ * threads, the number of queued, completed and rejected commands.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class ConcurrentThreadPool implements ThreadPool {
+
+    /** By default we use the logger for this class. */
+    protected final Log logger = LogFactory.getLog(getClass());
+
+    /** The name of this thread pool */
+    private String name = ThreadPool.DEFAULT_THREADPOOL_NAME;
+
+    /** Is daemon thread pool */
+    private boolean daemon = ThreadPool.DEFAULT_DAEMON_MODE;
+
+    /** The priority of this thread pool */
+    private int priority = Thread.NORM_PRIORITY;
+
+    /** The maximum queue size */
+    private int queueSize = ThreadPool.DEFAULT_QUEUE_SIZE;
+
+    /** The maximum pool size */
+    private int maxPoolSize = ThreadPool.DEFAULT_MAX_POOL_SIZE;
+
+    /** The minimum pool size */
+    private int minPoolSize = ThreadPool.DEFAULT_MIN_POOL_SIZE;
+
+    /** The keep alive time in milliseconds */
+    private long keepAliveTime = ThreadPool.DEFAULT_KEEP_ALIVE_TIME;
+
+    /** The blocking policy */
+    private String blockPolicy = ThreadPool.DEFAULT_BLOCK_POLICY;
+
+    /** Should we wait for running jobs to terminate on shutdown ? */
+    private boolean shutdownGraceful = ThreadPool.DEFAULT_SHUTDOWN_GRACEFUL;
+
+    /** How long to wait for running jobs to terminate on disposition */
+    private int shutdownWaitTimeMs = ThreadPool.DEFAULT_SHUTDOWN_WAIT_TIME;
+
+    /** A ThreadFactory implementation */
+    private ThreadFactory factory;
+
+    /** Run each command in its own virtual thread? */
+    private boolean virtualThreads;
+
+    /** The executor running the commands */
+    private ExecutorService executor;
+
+    /** The queue of the executor, <code>null</code> for virtual threads */
+    private BlockingQueue queue;
+
+    /** The number of commands running in virtual threads */
+    private final AtomicInteger virtualActive = new AtomicInteger();
+
+    /** The number of commands completed in virtual threads */
+    private final AtomicLong virtualCompleted = new AtomicLong();
+
+    /** The number of rejected commands */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Initialize the bean after properties set */
+    public void init() throws IllegalArgumentException {
+        if (logger.isInfoEnabled()) {
+            logger.info("ThreadPool [" + name + "] initializing ...");
+        }
+
+        if (this.virtualThreads) {
+            this.executor = createVirtualThreadExecutor();
+        }
+        if (this.executor == null) {
+            this.virtualThreads = false;
+            this.executor = createThreadPoolExecutor();
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info(this.toString());
+            logger.info("ThreadPool [" + name + "] initialized");
+        }
+    }
+
+    private ExecutorService createThreadPoolExecutor() {
+        if (this.factory == null) {
+            logger.warn("No ThreadFactory is configured. Will use a "
+                        + DefaultThreadFactory.class.getName());
+            this.factory = new DefaultThreadFactory();
+        }
+        // Use priority and daemon from factory when changed
+        this.priority = (this.factory.getPriority() != Thread.NORM_PRIORITY ? this.factory.getPriority() : this.priority);
+        this.factory.setPriority(this.priority);
+        this.daemon = (this.factory.isDaemon() ? this.factory.isDaemon() : this.daemon);
+        this.factory.setDaemon(this.daemon);
+
+        // make sure we have enough threads for the default thread pool as we
+        // need one for the runnable manager
+        if (ThreadPool.DEFAULT_THREADPOOL_NAME.equals(this.name)
+                && this.minPoolSize > 0 && this.minPoolSize < ThreadPool.DEFAULT_MIN_POOL_SIZE) {
+            this.minPoolSize = ThreadPool.DEFAULT_MIN_POOL_SIZE;
+        }
+        if (this.minPoolSize < 1) {
+            this.minPoolSize = 1;
+            logger.warn("min-pool-size < 1 for pool \"" + this.name + "\". Set to 1");
+        }
+        this.maxPoolSize = (this.maxPoolSize < 0) ? Integer.MAX_VALUE : this.maxPoolSize;
+        if (this.keepAliveTime < 0) {
+            this.keepAliveTime = 1000;
+            logger.warn("keep-alive-time-ms < 0 for pool \"" + this.name + "\". Set to 1000");
+        }
+
+        // A queued pool starts more than min-pool-size threads, up to
+        // max-pool-size, only once its queue is full; an unbounded queue
+        // never is
+        final int maximum = Math.max(this.minPoolSize, this.maxPoolSize);
+        if (this.queueSize == 0) {
+            this.queue = new SynchronousQueue();
+        } else if (this.queueSize > 0) {
+            this.queue = new ArrayBlockingQueue(this.queueSize);
+        } else {
+            this.queue = new LinkedBlockingQueue();
+        }
+
+        final ThreadFactory threadFactory = this.factory;
+        final ThreadPoolExecutor pool =
+                new ThreadPoolExecutor(this.minPoolSize, maximum, this.keepAliveTime, TimeUnit.MILLISECONDS, this.queue,
+                                       new java.util.concurrent.ThreadFactory() {
+                                           public Thread newThread(Runnable command) {
+                                               return threadFactory.newThread(command);
+                                           }
+                                       },
+                                       new CountingHandler(createRejectionPolicy()));
+        return pool;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each command.
+     * Virtual threads are looked up by reflection as they are not available
+     * on all supported Java runtimes.
+     *
+     * @return the executor or <code>null</code> if virtual threads are not
+     *         available
+     */
+    private ExecutorService createVirtualThreadExecutor() {
+        try {
+            final Class builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual", new Class[0]).invoke(null, new Object[0]);
+            builder = builderClass.getMethod("name", new Class[] {String.class, Long.TYPE})
+                                  .invoke(builder, new Object[] {this.name + "-", new Long(0)});
+            final Object threadFactory = builderClass.getMethod("factory", new Class[0]).invoke(builder, new Object[0]);
+            final Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+                                                                 new Class[] {java.util.concurrent.ThreadFactory.class});
+            return (ExecutorService) newExecutor.invoke(null, new Object[] {threadFactory});
+        } catch (Exception e) {
+            logger.warn("Virtual threads are not available for pool \"" + this.name
+                        + "\". Will use platform threads.", e);
+            return null;
+        }
+    }
+
+    private RejectedExecutionHandler createRejectionPolicy() {
+        if (POLICY_ABORT.equalsIgnoreCase(this.blockPolicy)) {
+            return new ThreadPoolExecutor.AbortPolicy();
+        } else if (POLICY_DISCARD.equalsIgnoreCase(this.blockPolicy)) {
+            return new ThreadPoolExecutor.DiscardPolicy();
+        } else if (POLICY_DISCARD_OLDEST.equalsIgnoreCase(this.blockPolicy)) {
+            return new ThreadPoolExecutor.DiscardOldestPolicy();
+        } else if (POLICY_RUN.equalsIgnoreCase(this.blockPolicy)) {
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        } else if (POLICY_WAIT.equalsIgnoreCase(this.blockPolicy)) {
+            return new WaitPolicy();
+        }
+
+        final StringBuffer msg = new StringBuffer();
+        msg.append("WARNING: Unknown block-policy configuration \"").append(this.blockPolicy);
+        msg.append("\". Should be one of \"").append(POLICY_ABORT);
+        msg.append("\",\"").append(POLICY_DISCARD);
+        msg.append("\",\"").append(POLICY_DISCARD_OLDEST);
+        msg.append("\",\"").append(POLICY_RUN);
+        msg.append("\",\"").append(POLICY_WAIT);
+        msg.append("\". Will use \"").append(DefaultThreadPool.POLICY_DEFAULT).append("\"");
+        logger.warn(msg.toString());
+        this.blockPolicy = DefaultThreadPool.POLICY_DEFAULT;
+        return createRejectionPolicy();
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.ThreadPool#execute(java.lang.Runnable)
+     */
+    public void execute(final Runnable command) throws InterruptedException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Executing Command: " + command.toString() + ",pool=" + getName());
+        }
+
+        if (this.virtualThreads) {
+            this.virtualActive.incrementAndGet();
+            try {
+                this.executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            virtualActive.decrementAndGet();
+                            virtualCompleted.incrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                this.virtualActive.decrementAndGet();
+                this.rejected.incrementAndGet();
+                throw e;
+            }
+            return;
+        }
+
+        try {
+            this.executor.execute(command);
+        } catch (WaitInterruptedException e) {
+            throw (InterruptedException) e.getCause();
+        }
+    }
+
+    /**
+     * Shutdown the pool.
+     */
+    public void shutdown() {
+        if (this.shutdownGraceful) {
+            this.executor.shutdown();
+        } else {
+            this.executor.shutdownNow();
+        }
+
+        try {
+            if (getShutdownWaitTimeMs() > 0) {
+                if (!this.executor.awaitTermination(getShutdownWaitTimeMs(), TimeUnit.MILLISECONDS)) {
+                    logger.warn("running commands have not terminated within "
+                                + getShutdownWaitTimeMs()
+                                + "ms. Will shut them down by interruption");
+                    this.executor.shutdownNow();
+                }
+            }
+        } catch (final InterruptedException ie) {
+            logger.error("cannot shutdown ThreadPool", ie);
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.ThreadPool#isTerminatedAfterShutdown()
+     */
+    public boolean isTerminatedAfterShutdown() {
+        return this.executor != null && this.executor.isTerminated();
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.ThreadPool#getQueueSize()
+     */
+    public int getQueueSize() {
+        return this.queue == null ? 0 : this.queue.size();
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.ThreadPool#getMaxQueueSize()
+     */
+    public int getMaxQueueSize() {
+        return ((queueSize < 0) ? Integer.MAX_VALUE : queueSize);
+    }
+
+    /**
+     * @see org.apache.cocoon.thread.ThreadPool#isQueued()
+     */
+    public boolean isQueued() {
+        return !this.virtualThreads && queueSize != 0;
+    }
+
+    /**
+     * The number of threads currently running commands.
+     */
+    public int getActiveCount() {
+        if (this.virtualThreads) {
+            return this.virtualActive.get();
+        }
+        return this.executor == null ? 0 : ((ThreadPoolExecutor) this.executor).getActiveCount();
+    }
+
+    /**
+     * The number of threads in the pool, 0 when using virtual threads.
+     */
+    public int getPoolSize() {
+        if (this.virtualThreads || this.executor == null) {
+            return 0;
+        }
+        return ((ThreadPoolExecutor) this.executor).getPoolSize();
+    }
+
+    /**
+     * The number of commands which have been completed.
+     */
+    public long getCompletedCount() {
+        if (this.virtualThreads) {
+            return this.virtualCompleted.get();
+        }
+        return this.executor == null ? 0 : ((ThreadPoolExecutor) this.executor).getCompletedTaskCount();
+    }
+
+    /**
+     * The number of commands for which neither a thread nor a slot in the
+     * queue was available. Depending on the block policy they have been
+     * aborted, discarded, run by the caller or had to wait.
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Run each command in a new virtual thread.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public String getBlockPolicy() {
+        return blockPolicy;
+    }
+
+    public void setBlockPolicy(final String blockPolicy) {
+        this.blockPolicy = blockPolicy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public void setPoolPriority(String poolPriority) {
+        if ("MIN".equalsIgnoreCase(poolPriority)) {
+            setPriority(Thread.MIN_PRIORITY);
+        } else if ("MAX".equalsIgnoreCase(poolPriority)) {
+            setPriority(Thread.MAX_PRIORITY);
+        } else {
+            if (!"NORM".equalsIgnoreCase(poolPriority)) {
+                logger.warn("Unknown thread priority \"" + poolPriority + "\". Set to \"NORM\".");
+            }
+            setPriority(Thread.NORM_PRIORITY);
+        }
+    }
+
+    public boolean isShutdownGraceful() {
+        return shutdownGraceful;
+    }
+
+    public void setShutdownGraceful(boolean shutdownGraceful) {
+        this.shutdownGraceful = shutdownGraceful;
+    }
+
+    public int getShutdownWaitTimeMs() {
+        return shutdownWaitTimeMs;
+    }
+
+    public void setShutdownWaitTimeMs(int shutdownWaitTimeMs) {
+        this.shutdownWaitTimeMs = shutdownWaitTimeMs;
+    }
+
+    public long getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    public void setKeepAliveTime(long keepAliveTime) {
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    public void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    public ThreadFactory getFactory() {
+        return factory;
+    }
+
+    public void setFactory(ThreadFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Overwrite the toString method
+     */
+    public String toString() {
+        final StringBuffer msg = new StringBuffer();
+        msg.append("ThreadPool named \"").append(name);
+        if (this.virtualThreads) {
+            msg.append("\" created with virtual threads");
+        } else {
+            if (this.isQueued()) {
+                msg.append("\" created with maximum queue-size=").append(queueSize);
+            } else {
+                msg.append("\" created with no queue");
+            }
+            msg.append(",max-pool-size=").append(maxPoolSize);
+            msg.append(",min-pool-size=").append(minPoolSize);
+            msg.append(",priority=").append(priority);
+            msg.append(",isDaemon=").append(daemon);
+            msg.append(",keep-alive-time-ms=").append(keepAliveTime);
+        }
+        msg.append(",block-policy=\"").append(blockPolicy);
+        msg.append("\",shutdown-wait-time-ms=").append(shutdownWaitTimeMs);
+        return msg.toString();
+    }
+
+    /**
+     * Counts the rejected commands before applying the block policy.
+     */
+    private final class CountingHandler implements RejectedExecutionHandler {
+        private final RejectedExecutionHandler policy;
+
+        CountingHandler(RejectedExecutionHandler policy) {
+            this.policy = policy;
+        }
+
+        public void rejectedExecution(Runnable command, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+            this.policy.rejectedExecution(command, executor);
+        }
+    }
+
+    /**
+     * Waits until the queue accepts the command.
+     */
+    private static final class WaitPolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable command, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("ThreadPool has been shut down");
+            }
+            try {
+                executor.getQueue().put(command);
+            } catch (InterruptedException e) {
+                throw new WaitInterruptedException(e);
+            }
+        }
+    }
+
+    /**
+     * Transports the interruption of a waiting caller through the executor.
+     */
+    private static final class WaitInterruptedException extends RejectedExecutionException {
+        WaitInterruptedException(InterruptedException cause) {
+            super("Interrupted while waiting for the queue", cause);
+        }
+    }
+}
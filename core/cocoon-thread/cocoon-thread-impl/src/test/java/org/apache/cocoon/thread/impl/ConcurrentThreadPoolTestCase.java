@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.thread.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.easymock.MockControl;
+
+/**
+ * Test case for the {@link ConcurrentThreadPool} and the
+ * {@link ConcurrentRunnableManager}.
+ *
+ * @version $Id$
+ */
+public class ConcurrentThreadPoolTestCase extends AbstractTestCase {
+
+    public final void testConcurrentThreadPool() {
+        final ConcurrentThreadPool pool = new ConcurrentThreadPool();
+        pool.setName("mypool");
+        pool.setPriority(Thread.MAX_PRIORITY);
+        pool.setQueueSize(230);
+        pool.setMaxPoolSize(15);
+        pool.setMinPoolSize(9);
+        pool.setKeepAliveTime(11000L);
+        pool.setBlockPolicy("ABORT");
+        pool.setShutdownGraceful(false);
+        pool.setShutdownWaitTimeMs(12345);
+        pool.init();
+
+        assertEquals("block-policy", "ABORT", pool.getBlockPolicy());
+        assertEquals("keep-alive-time-ms", 11000L, pool.getKeepAliveTime());
+        assertEquals("max-queueu-size", 230, pool.getMaxQueueSize());
+        assertEquals("max-pool-size", 15, pool.getMaxPoolSize());
+        assertEquals("min-pool-size", 9, pool.getMinPoolSize());
+        assertEquals("name", "mypool", pool.getName());
+        assertEquals("priority", Thread.MAX_PRIORITY, pool.getPriority());
+        assertEquals("queue-size", 0, pool.getQueueSize());
+        assertEquals("isQueued", true, pool.isQueued());
+        assertEquals("isTerminatedAfterShutdown", false, pool.isTerminatedAfterShutdown());
+        pool.shutdown();
+        verify();
+    }
+
+    public final void testExecuteRunnable() throws InterruptedException {
+        final MockControl runnableControl = createStrictControl(Runnable.class);
+        final Runnable runnable = (Runnable) runnableControl.getMock();
+        runnable.run();
+        runnableControl.replay();
+
+        final ConcurrentThreadPool pool = new ConcurrentThreadPool();
+        pool.setName("mypool");
+        pool.setQueueSize(230);
+        pool.setMinPoolSize(9);
+        pool.setKeepAliveTime(100);
+        pool.setShutdownGraceful(true);
+        pool.setShutdownWaitTimeMs(1000);
+        pool.init();
+        pool.execute(runnable);
+        pool.shutdown();
+        assertTrue("isTerminatedAfterShutdown", pool.isTerminatedAfterShutdown());
+        assertEquals("completed", 1, pool.getCompletedCount());
+        verify();
+    }
+
+    public final void testRejected() throws InterruptedException {
+        final Object lock = new Object();
+        final Runnable blocker = new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                    // wait until released
+                }
+            }
+        };
+
+        final ConcurrentThreadPool pool = new ConcurrentThreadPool();
+        pool.setName("tiny");
+        pool.setQueueSize(0);
+        pool.setMaxPoolSize(1);
+        pool.setMinPoolSize(1);
+        pool.setBlockPolicy("DISCARD");
+        pool.setShutdownGraceful(true);
+        pool.setShutdownWaitTimeMs(1000);
+        pool.init();
+        synchronized (lock) {
+            pool.execute(blocker);
+            pool.execute(blocker);
+            assertEquals("rejected", 1, pool.getRejectedCount());
+        }
+        pool.shutdown();
+    }
+
+    public final void testBoundedQueueGrowsToMaxPoolSize() throws InterruptedException {
+        final Object lock = new Object();
+        final Runnable blocker = new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                    // wait until released
+                }
+            }
+        };
+
+        final ConcurrentThreadPool pool = new ConcurrentThreadPool();
+        pool.setName("bounded");
+        pool.setQueueSize(2);
+        pool.setMaxPoolSize(3);
+        pool.setMinPoolSize(1);
+        pool.setBlockPolicy("DISCARD");
+        pool.setShutdownGraceful(true);
+        pool.setShutdownWaitTimeMs(1000);
+        pool.init();
+        synchronized (lock) {
+            // one thread, then the queue fills, then the pool grows
+            for (int i = 0; i < 6; i++) {
+                pool.execute(blocker);
+            }
+            assertEquals("pool-size", 3, pool.getPoolSize());
+            assertEquals("queue-size", 2, pool.getQueueSize());
+            assertEquals("rejected", 1, pool.getRejectedCount());
+        }
+        pool.shutdown();
+        assertEquals("completed", 5, pool.getCompletedCount());
+    }
+
+    public final void testRunnableManager() throws Exception {
+        final List runs = Collections.synchronizedList(new ArrayList());
+        final Runnable once = new Runnable() {
+            public void run() {
+                runs.add("once");
+            }
+        };
+        final Runnable repeated = new Runnable() {
+            public void run() {
+                runs.add("repeated");
+            }
+        };
+        final Runnable removed = new Runnable() {
+            public void run() {
+                runs.add("removed");
+            }
+        };
+
+        final ConcurrentRunnableManager manager = new ConcurrentRunnableManager();
+        manager.init();
+        assertNotNull("default pool", manager.getPool(null));
+
+        manager.execute(once, 100);
+        manager.execute(repeated, 100, 20);
+        manager.execute(removed, 10000);
+        assertEquals("scheduled", 3, manager.getScheduledCount());
+        manager.remove(removed);
+        Thread.sleep(400);
+        manager.remove(repeated);
+        manager.destroy();
+
+        assertEquals("once", 1, Collections.frequency(runs, "once"));
+        assertTrue("repeated", Collections.frequency(runs, "repeated") > 1);
+        assertFalse("removed", runs.contains("removed"));
+    }
+}